@@ -2,7 +2,7 @@
 import React, { useEffect, useState } from 'react';
 import { Button, CircularProgress, TextField } from '@mui/material';
 import { b64uEncode, toCSV, toCSVLine, saveToFile } from './lib/util.js';
-import { parseParams, paramDefaults, serverRunQuery } from './lib/server.js';
+import { parseParams, paramDefaults, serverRunQuery, serverCancelQuery } from './lib/server.js';
 
 import ResultsTables from './ResultsTables.js';
 
@@ -15,6 +15,7 @@ export default function Runner({ query }) {
   
   const [refreshNow, setRefreshNow] = useState(false);
   const [running, setRunning] = useState(false);
+  const [runId, setRunId] = useState(undefined);
 
   const [results, setResults] = useState(undefined);
   const [error, setError] = useState(undefined);
@@ -56,6 +57,10 @@ export default function Runner({ query }) {
 	  if (runQuery.Statement) runQueryInfo.Statement = runQuery.Statement;
 	  if (paramValues) runQueryInfo.Params = paramValues;
 
+	  // ours to pick so the Cancel button can name this run
+	  runQueryInfo.RunId = crypto.randomUUID();
+	  setRunId(runQueryInfo.RunId);
+
 	  try {
 		const results = await serverRunQuery(runQueryInfo);
 		
@@ -74,6 +79,7 @@ export default function Runner({ query }) {
 	  }
 	  finally {
 		setRunning(false);
+		setRunId(undefined);
 	  }
 	}
 
@@ -88,6 +94,17 @@ export default function Runner({ query }) {
 	setRefreshNow(true);
   }
 
+  // the run itself comes back with a "Query cancelled" error
+  async function cancelClick() {
+	try {
+	  const response = await serverCancelQuery(runId);
+	  if (!response.success) console.error(`cancel ${runId}: not found`);
+	}
+	catch (err) {
+	  setError(`cancel: ${err}`);
+	}
+  }
+
   function csvClick() {
 
 	let csv = '';
@@ -140,6 +157,9 @@ export default function Runner({ query }) {
 				disabled={missingParams()}
 				onClick={refreshClick}>Refresh</Button>
 
+		{ runId && <Button variant="outlined"
+						   onClick={cancelClick}>Cancel</Button> }
+
 		{ results && <Button variant="outlined"
 							 onClick={csvClick}>Save as CSV</Button> }
 
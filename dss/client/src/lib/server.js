@@ -23,6 +23,10 @@ export async function serverDeleteQuery(id) {
   return(await serverFetch('data/query/delete?id=' + encodeURIComponent(id)));
 }
 
+export async function serverCancelQuery(runId) {
+  return(await serverFetch('data/query/cancel?id=' + encodeURIComponent(runId)));
+}
+
 export async function serverGetSchema(connectionName) {
   return(await serverFetch('data/connection/schema?connection=' +
 						   encodeURIComponent(connectionName)));
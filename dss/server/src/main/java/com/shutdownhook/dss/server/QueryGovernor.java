@@ -0,0 +1,345 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.dss.server;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Keeps track of every query QueryRunner executes. Each target database
+// gets a fair semaphore so at most MaxConcurrentPerConnection statements
+// run against it at once; up to MaxQueuedPerConnection more wait their
+// turn (for at most QueueTimeoutSeconds) and anything beyond that fails
+// fast. Running statements get a query timeout and can be cancelled by
+// RunId, which is also how the running-query view identifies them. Callers
+// waiting on someone else's identical run (see ResultCache) are tracked
+// and cancellable the same way, but don't take a slot.
+
+public class QueryGovernor
+{
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public static class Config
+	{
+		public Integer MaxConcurrentPerConnection = 4; // 0 = unlimited
+		public Integer MaxQueuedPerConnection = 20;
+		public Integer QueueTimeoutSeconds = 30;
+		public Integer QueryTimeoutSeconds = 300; // 0 = no timeout
+		public Integer MaxStatementChars = 200; // in the running view
+	}
+
+	public QueryGovernor(Config cfg) {
+		this.cfg = cfg;
+		this.gates = new ConcurrentHashMap<String,Gate>();
+		this.tickets = new ConcurrentHashMap<UUID,Ticket>();
+	}
+
+	// +--------+
+	// | Ticket |
+	// +--------+
+
+	public final static String STATE_QUEUED = "queued";
+	public final static String STATE_RUNNING = "running";
+	public final static String STATE_SHARED = "shared";
+
+	public static class Ticket
+	{
+		public Ticket(UUID runId, String user, String connectionName, String statement) {
+			this.runId = (runId == null ? UUID.randomUUID() : runId);
+			this.user = user;
+			this.connectionName = connectionName;
+			this.statement = statement;
+		}
+
+		public UUID getRunId() { return(runId); }
+		public String getUser() { return(user); }
+		public boolean isCancelled() { return(cancelled); }
+		public synchronized boolean hasStatement() { return(stmt != null); }
+
+		public void addRow() { rows.incrementAndGet(); }
+
+		private UUID runId;
+		private String user;
+		private String connectionName;
+		private String statement;
+		private String state = STATE_QUEUED;
+		private long startMillis = System.currentTimeMillis();
+		private long runStartMillis;
+		private long seq; // admission order; breaks startMillis ties
+		private AtomicLong rows = new AtomicLong();
+		private volatile boolean cancelled = false;
+		private Statement stmt;
+		private Gate gate;
+		private Thread waiter;
+	}
+
+	// +-------+
+	// | admit |
+	// +-------+
+
+	public void admit(Ticket ticket, String connectionString) throws SQLException {
+
+		track(ticket, STATE_QUEUED);
+
+		if (cfg.MaxConcurrentPerConnection <= 0) {
+			markRunning(ticket, null);
+			return;
+		}
+
+		Gate gate = gates.computeIfAbsent(connectionString, (k) -> new Gate(cfg));
+
+		int limit = cfg.MaxConcurrentPerConnection + cfg.MaxQueuedPerConnection;
+		
+		if (gate.queued.incrementAndGet() > limit) {
+			gate.queued.decrementAndGet();
+			tickets.remove(ticket.runId);
+			throw new SQLException("Too many queries waiting for this connection; try again later");
+		}
+
+		boolean acquired = false;
+
+		// one long wait keeps our place in the fair queue; cancel
+		// interrupts us if it happens while we're still in line
+		synchronized (ticket) { ticket.waiter = Thread.currentThread(); }
+		
+		try {
+			if (!ticket.cancelled) {
+				acquired = gate.semaphore.tryAcquire(cfg.QueueTimeoutSeconds, TimeUnit.SECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			// fall through as not acquired
+		}
+		finally {
+			synchronized (ticket) { ticket.waiter = null; }
+			Thread.interrupted(); // in case cancel raced with a successful acquire
+		}
+
+		if (!acquired || ticket.cancelled) {
+			if (acquired) gate.semaphore.release();
+			gate.queued.decrementAndGet();
+			tickets.remove(ticket.runId);
+
+			throw new SQLException(ticket.cancelled ? "Query cancelled"
+								   : "Timed out waiting for a free slot on this connection");
+		}
+
+		markRunning(ticket, gate);
+	}
+
+	private void track(Ticket ticket, String state) throws SQLException {
+
+		if (tickets.putIfAbsent(ticket.runId, ticket) != null) {
+			throw new SQLException("Duplicate RunId " + ticket.runId.toString());
+		}
+
+		ticket.seq = nextSeq.incrementAndGet();
+		synchronized (ticket) { ticket.state = state; }
+	}
+
+	private void markRunning(Ticket ticket, Gate gate) {
+		synchronized (ticket) {
+			ticket.state = STATE_RUNNING;
+			ticket.runStartMillis = System.currentTimeMillis();
+			ticket.gate = gate;
+		}
+	}
+
+	// +---------+
+	// | release |
+	// +---------+
+
+	public void release(Ticket ticket) {
+
+		Gate gate;
+
+		synchronized (ticket) {
+			// statements are pooled and reused; never cancel one we've let go of
+			ticket.stmt = null;
+			gate = ticket.gate;
+			ticket.gate = null;
+		}
+
+		tickets.remove(ticket.runId);
+
+		if (gate != null) {
+			gate.semaphore.release();
+			gate.queued.decrementAndGet();
+		}
+	}
+
+	// called from ExecuteHandler.prepare, before the statement runs. cancel
+	// sets the flag before it looks for a statement, so checking it here
+	// under the same lock means a cancel that lands between admit and
+	// attach isn't lost.
+	public void attach(Ticket ticket, Statement stmt) throws SQLException {
+
+		stmt.setQueryTimeout(cfg.QueryTimeoutSeconds);
+
+		synchronized (ticket) {
+			if (ticket.cancelled) throw new SQLException("Query cancelled");
+			ticket.stmt = stmt;
+		}
+	}
+
+	// +------+
+	// | join |
+	// +------+
+
+	// Waits for an identical run that another caller started, under this
+	// caller's own ticket so it shows up in running() and a cancel only
+	// stops the wait (never the shared run). The ticket is untracked again
+	// on return, so the caller can still admit it for a run of its own.
+	public <T> T join(Ticket ticket, Future<T> running)
+		throws SQLException, InterruptedException, ExecutionException {
+
+		track(ticket, STATE_SHARED);
+		synchronized (ticket) { ticket.waiter = Thread.currentThread(); }
+
+		try {
+			if (!ticket.cancelled) {
+				T result = running.get();
+				if (!ticket.cancelled) return(result);
+			}
+		}
+		catch (InterruptedException e) {
+			if (!ticket.cancelled) throw e;
+		}
+		finally {
+			synchronized (ticket) { ticket.waiter = null; }
+			Thread.interrupted(); // in case cancel raced with get returning
+			tickets.remove(ticket.runId);
+		}
+
+		throw new SQLException("Query cancelled");
+	}
+
+	// +--------+
+	// | cancel |
+	// +--------+
+
+	// user == null means caller is an admin and can cancel anything
+	public boolean cancel(UUID runId, String user) {
+
+		Ticket ticket = tickets.get(runId);
+		if (ticket == null) return(false);
+		if (user != null && !user.equals(ticket.user)) return(false);
+
+		ticket.cancelled = true;
+
+		synchronized (ticket) {
+			if (ticket.waiter != null) {
+				ticket.waiter.interrupt();
+			}
+			else if (ticket.stmt != null) {
+				try { ticket.stmt.cancel(); }
+				catch (SQLException e) {
+					log.warning(String.format("cancel %s: %s", runId, e.getMessage()));
+				}
+			}
+		}
+
+		log.info(String.format("Cancelled query %s", runId));
+		return(true);
+	}
+
+	// +---------+
+	// | running |
+	// +---------+
+
+	public static class RunningQuery
+	{
+		public UUID RunId;
+		public String User;
+		public String Connection;
+		public String Statement;
+		public String State;
+		public Long ElapsedMillis;
+		public Long RunningMillis;
+		public Long Rows;
+		public Boolean Cancelled;
+	}
+
+	// user == null means everything
+	public List<RunningQuery> running(String user) {
+
+		List<Ticket> matches = new ArrayList<Ticket>();
+		for (Ticket ticket : tickets.values()) {
+			if (user == null || user.equals(ticket.user)) matches.add(ticket);
+		}
+
+		// oldest first; tickets made in the same millisecond go in admission order
+		matches.sort((a, b) -> (a.startMillis != b.startMillis
+								? Long.compare(a.startMillis, b.startMillis)
+								: Long.compare(a.seq, b.seq)));
+
+		List<RunningQuery> queries = new ArrayList<RunningQuery>();
+		long now = System.currentTimeMillis();
+
+		for (Ticket ticket : matches) {
+
+			RunningQuery q = new RunningQuery();
+			q.RunId = ticket.runId;
+			q.User = ticket.user;
+			q.Connection = ticket.connectionName;
+			q.Statement = truncate(ticket.statement);
+			q.ElapsedMillis = now - ticket.startMillis;
+			q.Rows = ticket.rows.get();
+			q.Cancelled = ticket.cancelled;
+
+			synchronized (ticket) {
+				q.State = ticket.state;
+				q.RunningMillis = (ticket.runStartMillis == 0 ? 0 : now - ticket.runStartMillis);
+			}
+
+			queries.add(q);
+		}
+
+		return(queries);
+	}
+
+	private String truncate(String statement) {
+		if (statement == null || statement.length() <= cfg.MaxStatementChars) return(statement);
+		return(statement.substring(0, cfg.MaxStatementChars) + "...");
+	}
+
+	// +------+
+	// | Gate |
+	// +------+
+
+	private static class Gate
+	{
+		public Gate(Config cfg) {
+			this.semaphore = new Semaphore(cfg.MaxConcurrentPerConnection, true);
+		}
+
+		public Semaphore semaphore;
+		public AtomicInteger queued = new AtomicInteger();
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Config cfg;
+	private ConcurrentHashMap<String,Gate> gates;
+	private ConcurrentHashMap<UUID,Ticket> tickets;
+	private AtomicLong nextSeq = new AtomicLong();
+
+	private final static Logger log = Logger.getLogger(QueryGovernor.class.getName());
+}
@@ -5,16 +5,27 @@
 
 package com.shutdownhook.dss.server;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import com.google.gson.stream.JsonWriter;
+
 import com.shutdownhook.toolbox.Easy;
 import com.shutdownhook.toolbox.SqlStore;
 
@@ -25,7 +36,16 @@ public class QueryRunner
 	// +----------------+
 
 	public QueryRunner() {
+		this(new QueryGovernor.Config());
+	}
+	
+	public QueryRunner(QueryGovernor.Config cfgGovernor) {
 		stores = new HashMap<String,SqlStore>();
+		governor = new QueryGovernor(cfgGovernor);
+	}
+
+	public QueryGovernor getGovernor() {
+		return(governor);
 	}
 
 	// +--------+
@@ -56,24 +76,52 @@ public class QueryRunner
 							String[] params,
 							int maxQueryRows) throws Exception {
 
+		return(run(connectionString, sql, params, maxQueryRows, null));
+	}
+	
+	public QueryResults run(String connectionString,
+							String sql,
+							String[] params,
+							int maxQueryRows,
+							QueryGovernor.Ticket ticket) throws Exception {
+
 		QueryResults results;
+		if (ticket == null) ticket = new QueryGovernor.Ticket(null, null, null, sql);
 
 		try {
-			results = runHelper(connectionString, sql, params, maxQueryRows);
+			governor.admit(ticket, connectionString);
+			
+			try { results = runHelper(connectionString, sql, params, maxQueryRows, ticket); }
+			finally { governor.release(ticket); }
 		}
 		catch (SQLException e) {
-			results = new QueryResults();
-			results.Error = e.getMessage();
-			if (results.Error == null) results.Error = e.toString();
+			results = errorResults(e);
 		}
 
 		return(results);
 	}
 
+	// waits on an identical run already in flight (see ResultCache) under
+	// the caller's own ticket; errors come back the same way run reports them
+	public QueryResults join(Future<QueryResults> running,
+							 QueryGovernor.Ticket ticket) throws Exception {
+
+		try { return(governor.join(ticket, running)); }
+		catch (SQLException e) { return(errorResults(e)); }
+	}
+
+	private static QueryResults errorResults(SQLException e) {
+		QueryResults results = new QueryResults();
+		results.Error = e.getMessage();
+		if (results.Error == null) results.Error = e.toString();
+		return(results);
+	}
+
 	private QueryResults runHelper(String connectionString,
 								   String sql,
 								   String[] params,
-								   int maxQueryRows) throws Exception {
+								   int maxQueryRows,
+								   QueryGovernor.Ticket ticket) throws Exception {
 
 		SqlStore store = getStore(connectionString);
 		QueryResults results = new QueryResults();
@@ -84,12 +132,8 @@ public class QueryRunner
 			private Result currentResult = null;
 				
 			public void prepare(PreparedStatement stmt) throws Exception {
-				if (params == null) return;
-				for (int i = 0; i < params.length; ++i) {
-					String p = params[i];
-					try { stmt.setInt(i+1, Integer.parseInt(p)); }
-					catch (Exception eParse) { stmt.setString(i+1, p); }
-				}
+				bindParams(stmt, params);
+				governor.attach(ticket, stmt);
 			}
 
 			public void update(int count, int iresult) throws Exception {
@@ -112,8 +156,11 @@ public class QueryRunner
 					currentResult.Truncated = true;
 					return(false);
 				}
+
+				if (ticket.isCancelled()) return(false);
 				
 				addRow(rs);
+				ticket.addRow();
 				return(true);
 			}
 
@@ -134,9 +181,271 @@ public class QueryRunner
 			}
 		});
 
+		if (ticket.isCancelled()) throw new SQLException("Query cancelled");
 		return(results);
 	}
 
+	// +-----------+
+	// | runStream |
+	// +-----------+
+
+	// Writes results as newline-delimited JSON frames while rows come off
+	// the ResultSet, so memory doesn't grow with the row count. Values are
+	// typed per column rather than all strings:
+	//
+	//   {"Type":"Result","Index":0,"Headers":["id","name"],"Types":["number","string"]}
+	//   {"Type":"Row","Values":[1,"fred"]}
+	//   {"Type":"End","Index":0,"Rows":1,"Truncated":false}
+	//   {"Type":"Update","Index":1,"UpdateCount":3}
+	//   {"Type":"Error","Error":"..."}
+	//
+	// Error is always last and may follow partial output.
+
+	public void runStream(String connectionString,
+						  String sql,
+						  String[] params,
+						  int maxQueryRows,
+						  OutputStream stream) throws Exception {
+
+		runStream(connectionString, sql, params, maxQueryRows, stream, null);
+	}
+	
+	public void runStream(String connectionString,
+						  String sql,
+						  String[] params,
+						  int maxQueryRows,
+						  OutputStream stream,
+						  QueryGovernor.Ticket ticket) throws Exception {
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		if (ticket == null) ticket = new QueryGovernor.Ticket(null, null, null, sql);
+		StreamHandler handler = new StreamHandler(writer, params, maxQueryRows, governor, ticket);
+
+		try {
+			governor.admit(ticket, connectionString);
+
+			try {
+				getStore(connectionString).execute(sql, handler);
+				if (ticket.isCancelled()) throw new SQLException("Query cancelled");
+				handler.finishResult();
+			}
+			finally {
+				governor.release(ticket);
+			}
+		}
+		catch (SQLException e) {
+			String msg = e.getMessage();
+			handler.writeError(msg == null ? e.toString() : msg);
+		}
+
+		writer.flush();
+	}
+
+	private final static int COL_STRING = 0;
+	private final static int COL_LONG = 1;
+	private final static int COL_DOUBLE = 2;
+	private final static int COL_DECIMAL = 3;
+	private final static int COL_BOOLEAN = 4;
+
+	private static class StreamHandler implements SqlStore.ExecuteHandler
+	{
+		public StreamHandler(Writer writer, String[] params, int maxQueryRows,
+							 QueryGovernor governor, QueryGovernor.Ticket ticket) {
+			this.writer = writer;
+			this.governor = governor;
+			this.ticket = ticket;
+			this.json = new JsonWriter(writer);
+			this.json.setLenient(true); // one top-level value per line
+			this.params = params;
+			this.maxQueryRows = maxQueryRows;
+		}
+
+		public void prepare(PreparedStatement stmt) throws Exception {
+			bindParams(stmt, params);
+			governor.attach(ticket, stmt);
+		}
+
+		public void update(int count, int iresult) throws Exception {
+
+			finishResult();
+			
+			json.beginObject();
+			json.name("Type").value("Update");
+			json.name("Index").value(iresult);
+			json.name("UpdateCount").value(count);
+			json.endObject();
+			endFrame();
+		}
+
+		public boolean row(ResultSet rs, int irow, int iresult) throws Exception {
+			
+			if (iresult != currentIndex) {
+				finishResult();
+				startResult(rs, iresult);
+			}
+
+			if ((irow + 1) > maxQueryRows) {
+				log.info(String.format("Truncating streamed results after %d rows", irow));
+				truncated = true;
+				return(false);
+			}
+
+			if (ticket.isCancelled()) return(false);
+
+			json.beginObject();
+			json.name("Type").value("Row");
+			json.name("Values").beginArray();
+			
+			for (int icol = 1; icol <= kinds.length; ++icol) {
+				writeValue(rs, icol, kinds[icol-1]);
+			}
+			
+			json.endArray();
+			json.endObject();
+			endFrame();
+
+			++rowCount;
+			ticket.addRow();
+			return(true);
+		}
+
+		private void startResult(ResultSet rs, int iresult) throws Exception {
+
+			ResultSetMetaData meta = rs.getMetaData();
+			int ccol = meta.getColumnCount();
+			kinds = new int[ccol];
+			
+			json.beginObject();
+			json.name("Type").value("Result");
+			json.name("Index").value(iresult);
+			
+			json.name("Headers").beginArray();
+			for (int icol = 1; icol <= ccol; ++icol) json.value(meta.getColumnLabel(icol));
+			json.endArray();
+			
+			json.name("Types").beginArray();
+			for (int icol = 1; icol <= ccol; ++icol) {
+				kinds[icol-1] = columnKind(meta.getColumnType(icol));
+				json.value(kindName(kinds[icol-1]));
+			}
+			json.endArray();
+			
+			json.endObject();
+			endFrame();
+
+			currentIndex = iresult;
+			rowCount = 0;
+			truncated = false;
+			inResult = true;
+		}
+
+		public void finishResult() throws Exception {
+
+			if (!inResult) return;
+			
+			json.beginObject();
+			json.name("Type").value("End");
+			json.name("Index").value(currentIndex);
+			json.name("Rows").value(rowCount);
+			json.name("Truncated").value(truncated);
+			json.endObject();
+			endFrame();
+
+			inResult = false;
+		}
+
+		public void writeError(String msg) throws Exception {
+			json.beginObject();
+			json.name("Type").value("Error");
+			json.name("Error").value(msg);
+			json.endObject();
+			endFrame();
+		}
+
+		private void writeValue(ResultSet rs, int icol, int kind) throws Exception {
+
+			switch (kind) {
+				case COL_LONG:
+					long l = rs.getLong(icol);
+					if (rs.wasNull()) json.nullValue(); else json.value(l);
+					break;
+					
+				case COL_DOUBLE:
+					double d = rs.getDouble(icol);
+					if (rs.wasNull() || Double.isNaN(d) || Double.isInfinite(d)) json.nullValue();
+					else json.value(d);
+					break;
+
+				case COL_DECIMAL:
+					BigDecimal bd = rs.getBigDecimal(icol);
+					if (bd == null) json.nullValue(); else json.value(bd);
+					break;
+
+				case COL_BOOLEAN:
+					boolean b = rs.getBoolean(icol);
+					if (rs.wasNull()) json.nullValue(); else json.value(b);
+					break;
+
+				default:
+					json.value(rs.getString(icol));
+					break;
+			}
+		}
+
+		// JsonWriter doesn't buffer, so the newline lands after the frame;
+		// flushing here would push a tiny chunk per row
+		private void endFrame() throws IOException {
+			writer.write('\n');
+		}
+
+		private Writer writer;
+		private JsonWriter json;
+		private String[] params;
+		private int maxQueryRows;
+		private QueryGovernor governor;
+		private QueryGovernor.Ticket ticket;
+
+		private int currentIndex = -1;
+		private boolean inResult = false;
+		private int[] kinds;
+		private int rowCount;
+		private boolean truncated;
+	}
+
+	private static int columnKind(int sqlType) {
+		switch (sqlType) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return(COL_LONG);
+
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return(COL_DOUBLE);
+
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return(COL_DECIMAL);
+
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return(COL_BOOLEAN);
+
+			default:
+				return(COL_STRING);
+		}
+	}
+
+	private static String kindName(int kind) {
+		switch (kind) {
+			case COL_LONG: case COL_DOUBLE: case COL_DECIMAL: return("number");
+			case COL_BOOLEAN: return("boolean");
+			default: return("string");
+		}
+	}
+
 	// +----------+
 	// | Metadata |
 	// +----------+
@@ -184,6 +493,15 @@ public class QueryRunner
 	// | Helpers |
 	// +---------+
 
+	private static void bindParams(PreparedStatement stmt, String[] params) throws Exception {
+		if (params == null) return;
+		for (int i = 0; i < params.length; ++i) {
+			String p = params[i];
+			try { stmt.setInt(i+1, Integer.parseInt(p)); }
+			catch (Exception eParse) { stmt.setString(i+1, p); }
+		}
+	}
+
 	private synchronized SqlStore getStore(String connectionString) {
 
 		if (!stores.containsKey(connectionString)) {
@@ -199,6 +517,7 @@ public class QueryRunner
 	// +---------+
 
 	private Map<String,SqlStore> stores;
+	private QueryGovernor governor;
 
 	private final static Logger log = Logger.getLogger(QueryRunner.class.getName());
 }
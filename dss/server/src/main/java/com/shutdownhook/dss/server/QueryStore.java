@@ -175,6 +175,7 @@ public class QueryStore extends SqlStore
 				info.Value = new ExecutionInfo();
 				info.Value.ConnectionString = rs.getString("connection_string");
 				info.Value.LogQueries = (rs.getInt("log_queries") != 0);
+				info.Value.ConnectionName = connectionName;
 			}
 		});
 
@@ -197,7 +198,9 @@ public class QueryStore extends SqlStore
 		"select " +
 		"  c.connection_string connection_string, " +
 		"  c.log_queries log_queries, " + 
-		"  q.statement statement " +
+		"  q.connection_name connection_name, " +
+		"  q.statement statement, " +
+		"  q.cache_seconds cache_seconds " +
 		"from " +
 		"  queries q " +
 		"inner join " +
@@ -213,6 +216,8 @@ public class QueryStore extends SqlStore
 		public String ConnectionString;
 		public String Statement;
 		public Boolean LogQueries;
+		public String ConnectionName;
+		public Integer CacheSeconds; // only for saved queries; null/0 = don't cache
 	}
 
 	public ExecutionInfo getQueryExecutionInfo(UUID queryId, String user) throws Exception {
@@ -234,6 +239,8 @@ public class QueryStore extends SqlStore
 				info.Value.ConnectionString = rs.getString("connection_string");
 				info.Value.Statement = rs.getString("statement");
 				info.Value.LogQueries = (rs.getInt("log_queries") != 0);
+				info.Value.ConnectionName = rs.getString("connection_name");
+				info.Value.CacheSeconds = rs.getInt("cache_seconds");
 			}
 		});
 
@@ -445,6 +452,7 @@ public class QueryStore extends SqlStore
 			ensureTable("connections", CREATE_CONNECTIONS_TABLE);
 			ensureTable("access", CREATE_ACCESS_TABLE);
 			ensureTable("queries", CREATE_QUERIES_TABLE);
+			ensureColumn("queries", "cache_seconds", ADD_CACHE_SECONDS_COLUMN);
 			
 			ensureAdminConnection();
 			ensureFirstAdminUser(user);
@@ -652,11 +660,16 @@ public class QueryStore extends SqlStore
 		"    params_csv text null, " +
 		"    owner varchar(128) not null, " +
 		"    is_shared boolean null, " +
+		"    cache_seconds integer null, " +
 		"    note varchar(256) null, " +
 		" " +
 		"    primary key (id) " +
 		") ";
 
+	// added after the fact; opts a shared query into ResultCache
+	private final static String ADD_CACHE_SECONDS_COLUMN =
+		"alter table queries add cache_seconds integer null";
+
 	// +---------+
 	// | Members |
 	// +---------+
@@ -0,0 +1,293 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.dss.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// Caches results of shared queries that opt in (queries.cache_seconds > 0).
+// Entries are keyed by connection name + statement + params, expire after
+// the query's TTL and are evicted LRU once MaxBytes is exceeded. Identical
+// runs that arrive while one is already executing wait for and share that
+// execution rather than hitting the database again. Errors aren't shared:
+// a joined caller that sees one (e.g. the first caller was cancelled) runs
+// its own loader instead.
+//
+// Access checks happen before the cache is consulted, so a hit never
+// returns anything the caller couldn't have run themselves.
+
+public class ResultCache
+{
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public static class Config
+	{
+		public Long MaxBytes = 32L * 1024L * 1024L;
+		public Long MaxEntryBytes = 4L * 1024L * 1024L;
+	}
+
+	public ResultCache(Config cfg) {
+		this.cfg = cfg;
+		this.entries = new EntryMap();
+		this.inFlight = new ConcurrentHashMap<String,CompletableFuture<QueryRunner.QueryResults>>();
+	}
+
+	public interface Loader {
+		public QueryRunner.QueryResults load() throws Exception;
+	}
+
+	// how a caller waits on an identical run that's already in flight
+	public interface Joiner {
+		public QueryRunner.QueryResults join(Future<QueryRunner.QueryResults> running)
+			throws Exception;
+	}
+
+	public static String key(String connectionName, String statement, String[] params) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(connectionName).append('\0').append(statement);
+		if (params != null) {
+			for (String param : params) sb.append('\0').append(param == null ? "" : param);
+		}
+		return(sb.toString());
+	}
+
+	// +-----+
+	// | get |
+	// +-----+
+
+	public QueryRunner.QueryResults get(String key, int ttlSeconds, Loader loader)
+		throws Exception {
+
+		return(get(key, ttlSeconds, loader, (running) -> running.get()));
+	}
+	
+	public QueryRunner.QueryResults get(String key, int ttlSeconds,
+										Loader loader, Joiner joiner) throws Exception {
+
+		QueryRunner.QueryResults results = lookup(key);
+		if (results != null) { hits.increment(); return(results); }
+
+		CompletableFuture<QueryRunner.QueryResults> mine =
+			new CompletableFuture<QueryRunner.QueryResults>();
+
+		CompletableFuture<QueryRunner.QueryResults> running = inFlight.putIfAbsent(key, mine);
+
+		if (running != null) {
+			sharedRuns.increment();
+			
+			try { results = joiner.join(running); }
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) throw (Exception) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw e;
+			}
+
+			if (results.Error == null) return(results);
+
+			// never cached, and may not even be ours (another caller's
+			// cancel or admission failure), so run it for ourselves
+			misses.increment();
+			results = loader.load();
+			store(key, ttlSeconds, results);
+			return(results);
+		}
+
+		try {
+			// someone may have finished between our lookup and putIfAbsent
+			results = lookup(key);
+			if (results != null) {
+				hits.increment();
+			}
+			else {
+				misses.increment();
+				results = loader.load();
+				store(key, ttlSeconds, results);
+			}
+
+			mine.complete(results);
+			return(results);
+		}
+		catch (Throwable e) {
+			// Errors too, or everyone joined to this run waits forever
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	// +-------+
+	// | Stats |
+	// +-------+
+
+	public static class Stats
+	{
+		public long Hits;
+		public long Misses;
+		public long SharedRuns;
+		public long Evictions;
+		public long Expirations;
+		public long Entries;
+		public long Bytes;
+		public long InFlight;
+	}
+
+	public Stats getStats() {
+
+		Stats stats = new Stats();
+		stats.Hits = hits.sum();
+		stats.Misses = misses.sum();
+		stats.SharedRuns = sharedRuns.sum();
+		stats.Evictions = evictions.sum();
+		stats.Expirations = expirations.sum();
+		stats.InFlight = inFlight.size();
+
+		synchronized (entries) {
+			stats.Entries = entries.size();
+			stats.Bytes = cachedBytes;
+		}
+
+		return(stats);
+	}
+
+	// +----------------+
+	// | Implementation |
+	// +----------------+
+
+	private static class Entry
+	{
+		public QueryRunner.QueryResults Results;
+		public long ExpiresAt;
+		public long Bytes;
+	}
+
+	private QueryRunner.QueryResults lookup(String key) {
+
+		synchronized (entries) {
+
+			Entry entry = entries.get(key);
+			if (entry == null) return(null);
+
+			if (System.currentTimeMillis() >= entry.ExpiresAt) {
+				entries.remove(key);
+				cachedBytes -= entry.Bytes;
+				expirations.increment();
+				return(null);
+			}
+
+			return(entry.Results);
+		}
+	}
+
+	private void store(String key, int ttlSeconds, QueryRunner.QueryResults results) {
+
+		if (!cacheable(results)) return;
+
+		long bytes = estimateBytes(key, results);
+		if (bytes > cfg.MaxEntryBytes) {
+			log.fine(String.format("Not caching %d byte result", bytes));
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.Results = results;
+		entry.ExpiresAt = System.currentTimeMillis() + (ttlSeconds * 1000L);
+		entry.Bytes = bytes;
+
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null) cachedBytes -= old.Bytes;
+			cachedBytes += bytes;
+			entries.prune();
+		}
+	}
+
+	// errors and statements that change things are never cached
+	private static boolean cacheable(QueryRunner.QueryResults results) {
+		if (results.Error != null) return(false);
+		for (QueryRunner.Result result : results.Results) {
+			if (result.UpdateCount != null) return(false);
+		}
+		return(true);
+	}
+
+	// rough heap cost: ~40 bytes per String object plus 2 per char
+	private static long estimateBytes(String key, QueryRunner.QueryResults results) {
+
+		long bytes = stringBytes(key);
+
+		for (QueryRunner.Result result : results.Results) {
+			bytes += 64;
+			for (String header : result.Headers) bytes += stringBytes(header);
+			for (List<String> row : result.Rows) {
+				bytes += 32;
+				for (String val : row) bytes += stringBytes(val);
+			}
+		}
+
+		return(bytes);
+	}
+
+	private static long stringBytes(String s) {
+		return(s == null ? 8 : 40 + (2L * s.length()));
+	}
+
+	// +----------+
+	// | EntryMap |
+	// +----------+
+
+	private class EntryMap extends LinkedHashMap<String,Entry>
+	{
+		public EntryMap() {
+			super(16, 0.75f, true);
+		}
+
+		// caller holds the lock
+		public void prune() {
+			while (cachedBytes > cfg.MaxBytes && size() > 0) {
+				Map.Entry<String,Entry> eldest = entrySet().iterator().next();
+				cachedBytes -= eldest.getValue().Bytes;
+				remove(eldest.getKey());
+				evictions.increment();
+			}
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Config cfg;
+	private EntryMap entries;
+	private long cachedBytes = 0;
+	private ConcurrentHashMap<String,CompletableFuture<QueryRunner.QueryResults>> inFlight;
+
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder sharedRuns = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+	private LongAdder expirations = new LongAdder();
+
+	private final static Logger log = Logger.getLogger(ResultCache.class.getName());
+}
@@ -33,6 +33,16 @@ public class Server implements Closeable
 
 		public int MaxQueryRows = 2500;
 
+		// row cap for Format = "ndjson" runs; those stream straight from the
+		// ResultSet to the client so the cap can be much higher
+		public int MaxStreamedQueryRows = 1000000;
+
+		// results for saved queries with cache_seconds > 0 are kept here
+		public ResultCache.Config ResultCache = new ResultCache.Config();
+
+		// per-connection concurrency, queueing and timeouts for query runs
+		public QueryGovernor.Config Governor = new QueryGovernor.Config();
+
 		public String LoggingConfigPath = "@logging.properties";
 		
 		public String ListQueriesUrl = "/data/queries";
@@ -41,6 +51,9 @@ public class Server implements Closeable
 		public String RunQueryUrl = "/data/query/run";
 		public String DeleteQueryUrl = "/data/query/delete";
 		public String GetSchemaUrl = "/data/connection/schema";
+		public String CacheStatsUrl = "/data/cache/stats";
+		public String RunningQueriesUrl = "/data/query/running";
+		public String CancelQueryUrl = "/data/query/cancel";
 
 		public String ClientSiteZip = "@clientSite.zip";
 		public Boolean StaticPagesRouteHtmlWithoutExtension = false;
@@ -60,7 +73,8 @@ public class Server implements Closeable
 
 		this.gson = new Gson();
 		this.store = new QueryStore(cfg.Sql);
-		this.runner = new QueryRunner();
+		this.runner = new QueryRunner(cfg.Governor);
+		this.resultCache = new ResultCache(cfg.ResultCache);
 		
 		setupWebServer();
 	}
@@ -75,6 +89,9 @@ public class Server implements Closeable
 		registerRunQuery();
 		registerDeleteQuery();
 		registerSchemaQuery();
+		registerCacheStats();
+		registerRunningQueries();
+		registerCancelQuery();
 	}
 
 	// +----------------+
@@ -185,7 +202,11 @@ public class Server implements Closeable
 		public String Statement; 
 		public UUID QueryId;
 		public String[] Params;
+		public String Format; // null/"json" = QueryResults; "ndjson" = streamed frames
+		public UUID RunId; // optional; client-chosen so it can cancel the run
 	}
+
+	public final static String FORMAT_NDJSON = "ndjson";
 	
 	private void registerRunQuery() throws Exception {
 
@@ -221,19 +242,110 @@ public class Server implements Closeable
 										   user, request.Body.replace("\n", " ")));
 				}
 
-				QueryRunner.QueryResults results =
-					runner.run(exInfo.ConnectionString, exInfo.Statement,
-							   runInfo.Params, cfg.MaxQueryRows);
+				QueryGovernor.Ticket ticket =
+					new QueryGovernor.Ticket(runInfo.RunId, user,
+											 exInfo.ConnectionName, exInfo.Statement);
+
+				if (FORMAT_NDJSON.equalsIgnoreCase(runInfo.Format)) {
+					response.setStream("application/x-ndjson", (out) -> {
+						runner.runStream(exInfo.ConnectionString, exInfo.Statement,
+										 runInfo.Params, cfg.MaxStreamedQueryRows, out, ticket);
+					});
+					return;
+				}
+
+				QueryRunner.QueryResults results;
+
+				if (exInfo.CacheSeconds != null && exInfo.CacheSeconds > 0) {
+					String key = ResultCache.key(exInfo.ConnectionName,
+												 exInfo.Statement, runInfo.Params);
+					
+					// joined callers wait under their own ticket, so they
+					// show up as running and can be cancelled on their own
+					results = resultCache.get(key, exInfo.CacheSeconds, () -> {
+						return(runner.run(exInfo.ConnectionString, exInfo.Statement,
+										  runInfo.Params, cfg.MaxQueryRows, ticket));
+					}, (running) -> runner.join(running, ticket));
+				}
+				else {
+					results = runner.run(exInfo.ConnectionString, exInfo.Statement,
+										 runInfo.Params, cfg.MaxQueryRows, ticket);
+				}
 				
 				response.setJson(gson.toJson(results));
 			}
 		});
 	}
 
+	// +--------------------+
+	// | registerCacheStats |
+	// +--------------------+
+
+	// admins only (i.e., can create in the DSS connection); ?clear=true
+	// drops all cached results after taking the snapshot
+	
+	private void registerCacheStats() throws Exception {
+		server.registerHandler(cfg.CacheStatsUrl, new WebServer.Handler() {
+			public void handle(Request request, Response response) throws Exception {
+
+				if (!isAdmin(getAuthUser(request))) { response.Status = 401; return; }
+
+				ResultCache.Stats stats = resultCache.getStats();
+				if ("true".equalsIgnoreCase(request.QueryParams.get("clear"))) resultCache.clear();
+				
+				response.setJson(gson.toJson(stats));
+			}
+		});
+	}
+
+	// +------------------------+
+	// | registerRunningQueries |
+	// +------------------------+
+
+	// admins see everything; everyone else sees their own runs
+	
+	private void registerRunningQueries() throws Exception {
+		server.registerHandler(cfg.RunningQueriesUrl, new WebServer.Handler() {
+			public void handle(Request request, Response response) throws Exception {
+				String user = getAuthUser(request);
+				String filter = (isAdmin(user) ? null : user);
+				response.setJson(gson.toJson(runner.getGovernor().running(filter)));
+			}
+		});
+	}
+
+	// +---------------------+
+	// | registerCancelQuery |
+	// +---------------------+
+
+	private void registerCancelQuery() throws Exception {
+		server.registerHandler(cfg.CancelQueryUrl, new WebServer.Handler() {
+			public void handle(Request request, Response response) throws Exception {
+
+				UUID runId = UUID.fromString(request.QueryParams.get("id"));
+				String user = getAuthUser(request);
+				String owner = (isAdmin(user) ? null : user);
+				
+				boolean success = runner.getGovernor().cancel(runId, owner);
+				
+				log.info(String.format("[AUDIT] cancelQuery %s (%s): %s",
+									   runId, user, success ? "cancelled" : "not found"));
+				
+				response.setJson(String.format("{ \"success\": %s }",
+											   success ? "true" : "false"));
+			}
+		});
+	}
+
 	// +---------+
 	// | Helpers |
 	// +---------+
 
+	// "admin" is anyone who can create queries against the DSS store itself
+	private boolean isAdmin(String user) throws Exception {
+		return(store.canCreateInConnection(QueryStore.DSS_CONNECTION_NAME, user));
+	}
+
 	private static String getAuthUser(Request request) throws Exception {
 		String user = request.User.Email;
 		if (Easy.nullOrEmpty(user)) user = request.User.Id;
@@ -249,6 +361,7 @@ public class Server implements Closeable
 	private WebServer server;
 	private QueryStore store;
 	private QueryRunner runner;
+	private ResultCache resultCache;
 	private Gson gson;
 
 	private final static Logger log = Logger.getLogger(Server.class.getName());
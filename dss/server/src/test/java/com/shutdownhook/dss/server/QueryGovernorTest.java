@@ -0,0 +1,174 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.dss.server;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryGovernorTest
+{
+	@Test
+	public void testLimitsAndQueue() throws Exception {
+
+		QueryGovernor.Config cfg = new QueryGovernor.Config();
+		cfg.MaxConcurrentPerConnection = 1;
+		cfg.MaxQueuedPerConnection = 1;
+		cfg.QueueTimeoutSeconds = 1;
+		QueryGovernor governor = new QueryGovernor(cfg);
+
+		QueryGovernor.Ticket first = new QueryGovernor.Ticket(null, "a", "c", "select 1");
+		governor.admit(first, "cs");
+
+		// other connections aren't affected
+		QueryGovernor.Ticket other = new QueryGovernor.Ticket(null, "a", "c2", "select 1");
+		governor.admit(other, "cs2");
+		governor.release(other);
+
+		// second waits in line, then times out
+		QueryGovernor.Ticket second = new QueryGovernor.Ticket(null, "b", "c", "select 2");
+		CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+			try { governor.admit(second, "cs"); Assert.fail("should time out"); }
+			catch (SQLException e) { /* expected */ }
+		});
+
+		waitForCount(governor, 2);
+
+		List<QueryGovernor.RunningQuery> running = governor.running(null);
+		Assert.assertEquals(QueryGovernor.STATE_RUNNING, running.get(0).State);
+		Assert.assertEquals(QueryGovernor.STATE_QUEUED, running.get(1).State);
+		Assert.assertEquals(1, governor.running("b").size());
+
+		// third has no room in the queue at all
+		try {
+			governor.admit(new QueryGovernor.Ticket(null, "c", "c", "select 3"), "cs");
+			Assert.fail("queue should be full");
+		}
+		catch (SQLException e) {
+			// expected
+		}
+
+		waiting.get(10, TimeUnit.SECONDS);
+		governor.release(first);
+		Assert.assertEquals(0, governor.running(null).size());
+
+		// slot is free again
+		QueryGovernor.Ticket fourth = new QueryGovernor.Ticket(null, "d", "c", "select 4");
+		governor.admit(fourth, "cs");
+		governor.release(fourth);
+	}
+
+	@Test
+	public void testCancelQueued() throws Exception {
+
+		QueryGovernor.Config cfg = new QueryGovernor.Config();
+		cfg.MaxConcurrentPerConnection = 1;
+		QueryGovernor governor = new QueryGovernor(cfg);
+
+		QueryGovernor.Ticket first = new QueryGovernor.Ticket(null, "a", "c", "select 1");
+		governor.admit(first, "cs");
+
+		QueryGovernor.Ticket second = new QueryGovernor.Ticket(null, "b", "c", "select 2");
+		CompletableFuture<String> waiting = CompletableFuture.supplyAsync(() -> {
+			try { governor.admit(second, "cs"); return("admitted"); }
+			catch (SQLException e) { return(e.getMessage()); }
+		});
+
+		waitForCount(governor, 2);
+
+		Assert.assertFalse(governor.cancel(second.getRunId(), "somebody else"));
+		Assert.assertTrue(governor.cancel(second.getRunId(), "b"));
+		Assert.assertEquals("Query cancelled", waiting.get(10, TimeUnit.SECONDS));
+
+		governor.release(first);
+	}
+
+	@Test
+	public void testCancelRunning() throws Exception {
+
+		File dbFile = File.createTempFile("dss-governor", ".sqlite");
+		String connectionString = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+
+		try {
+			QueryRunner runner = new QueryRunner();
+			UUID runId = UUID.randomUUID();
+			
+			QueryGovernor.Ticket ticket =
+				new QueryGovernor.Ticket(runId, "a", "c", "forever");
+
+			String sql =
+				"with recursive c(x) as (select 1 union all select x + 1 from c) " +
+				"select count(*) from c";
+			
+			CompletableFuture<QueryRunner.QueryResults> running =
+				CompletableFuture.supplyAsync(() -> {
+					try { return(runner.run(connectionString, sql, null, 10, ticket)); }
+					catch (Exception e) { throw new RuntimeException(e); }
+				});
+
+			for (int i = 0; i < 3000 && !ticket.hasStatement(); ++i) Thread.sleep(10);
+			Assert.assertTrue(ticket.hasStatement());
+			
+			Assert.assertTrue(runner.getGovernor().cancel(runId, null));
+
+			// sqlite drops an interrupt that arrives before the statement
+			// starts stepping, so keep nudging until the query gives up
+			QueryRunner.QueryResults results = null;
+			for (int i = 0; i < 60 && results == null; ++i) {
+				try { results = running.get(500, TimeUnit.MILLISECONDS); }
+				catch (TimeoutException e) { runner.getGovernor().cancel(runId, null); }
+			}
+			
+			Assert.assertNotNull(results);
+			Assert.assertNotNull(results.Error);
+			Assert.assertEquals(0, runner.getGovernor().running(null).size());
+		}
+		finally {
+			dbFile.delete();
+		}
+	}
+
+	@Test
+	public void testCancelJoined() throws Exception {
+
+		QueryGovernor governor = new QueryGovernor(new QueryGovernor.Config());
+		CompletableFuture<String> shared = new CompletableFuture<String>();
+
+		QueryGovernor.Ticket first = new QueryGovernor.Ticket(null, "a", "c", "select 1");
+		CompletableFuture<String> joined = CompletableFuture.supplyAsync(() -> {
+			try { return(governor.join(first, shared)); }
+			catch (Exception e) { return(e.getMessage()); }
+		});
+
+		waitForCount(governor, 1);
+		Assert.assertEquals(QueryGovernor.STATE_SHARED, governor.running("a").get(0).State);
+
+		// cancelling a joined caller stops its wait, not the shared run
+		Assert.assertTrue(governor.cancel(first.getRunId(), "a"));
+		Assert.assertEquals("Query cancelled", joined.get(10, TimeUnit.SECONDS));
+		Assert.assertFalse(shared.isDone());
+		Assert.assertEquals(0, governor.running(null).size());
+
+		QueryGovernor.Ticket second = new QueryGovernor.Ticket(null, "b", "c", "select 1");
+		shared.complete("done");
+		Assert.assertEquals("done", governor.join(second, shared));
+		Assert.assertEquals(0, governor.running(null).size());
+	}
+
+	private static void waitForCount(QueryGovernor governor, int count) throws Exception {
+		for (int i = 0; i < 200 && governor.running(null).size() < count; ++i) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(count, governor.running(null).size());
+	}
+}
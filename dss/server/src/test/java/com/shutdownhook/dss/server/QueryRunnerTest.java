@@ -0,0 +1,99 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.dss.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class QueryRunnerTest
+{
+	private static File dbFile;
+	private static String connectionString;
+	private static QueryRunner runner;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+
+		dbFile = File.createTempFile("dss-runner", ".sqlite");
+		connectionString = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+		runner = new QueryRunner();
+
+		String[] setup = new String[] {
+			"create table t (id integer, name text, score real)",
+			"insert into t values (1, 'one', 1.5)",
+			"insert into t values (2, null, 2.5)",
+			"insert into t values (3, 'three', null)"
+		};
+
+		for (String sql : setup) {
+			Assert.assertNull(runner.run(connectionString, sql, null, 10).Error);
+		}
+	}
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		dbFile.delete();
+	}
+
+	@Test
+	public void testStream() throws Exception {
+
+		String[] lines = stream("select id, name, score from t order by id", 10);
+		Assert.assertEquals(5, lines.length);
+
+		JsonObject header = parse(lines[0]);
+		Assert.assertEquals("Result", header.get("Type").getAsString());
+		Assert.assertEquals("id", header.getAsJsonArray("Headers").get(0).getAsString());
+		Assert.assertEquals("number", header.getAsJsonArray("Types").get(0).getAsString());
+		Assert.assertEquals("string", header.getAsJsonArray("Types").get(1).getAsString());
+
+		Assert.assertEquals("[1,\"one\",1.5]", parse(lines[1]).get("Values").toString());
+		Assert.assertEquals("[2,null,2.5]", parse(lines[2]).get("Values").toString());
+		Assert.assertEquals("[3,\"three\",null]", parse(lines[3]).get("Values").toString());
+
+		JsonObject end = parse(lines[4]);
+		Assert.assertEquals("End", end.get("Type").getAsString());
+		Assert.assertEquals(3, end.get("Rows").getAsInt());
+		Assert.assertFalse(end.get("Truncated").getAsBoolean());
+	}
+
+	@Test
+	public void testStreamTruncated() throws Exception {
+
+		String[] lines = stream("select id from t order by id", 2);
+		Assert.assertEquals(4, lines.length);
+
+		JsonObject end = parse(lines[3]);
+		Assert.assertEquals(2, end.get("Rows").getAsInt());
+		Assert.assertTrue(end.get("Truncated").getAsBoolean());
+	}
+
+	@Test
+	public void testStreamError() throws Exception {
+
+		String[] lines = stream("select * from nope", 10);
+		Assert.assertEquals(1, lines.length);
+		Assert.assertEquals("Error", parse(lines[0]).get("Type").getAsString());
+	}
+
+	private static String[] stream(String sql, int maxRows) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		runner.runStream(connectionString, sql, null, maxRows, out);
+		return(out.toString("UTF-8").split("\n"));
+	}
+
+	private static JsonObject parse(String line) {
+		return(new JsonParser().parse(line).getAsJsonObject());
+	}
+}
@@ -0,0 +1,216 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.dss.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResultCacheTest
+{
+	@Test
+	public void testHitMiss() throws Exception {
+
+		ResultCache cache = new ResultCache(new ResultCache.Config());
+		AtomicInteger loads = new AtomicInteger();
+		String key = ResultCache.key("c", "select 1", new String[] { "a" });
+
+		QueryRunner.QueryResults first = cache.get(key, 60, () -> results(loads, "x"));
+		QueryRunner.QueryResults second = cache.get(key, 60, () -> results(loads, "y"));
+
+		Assert.assertEquals(1, loads.get());
+		Assert.assertSame(first, second);
+
+		// different params is a different entry
+		String key2 = ResultCache.key("c", "select 1", new String[] { "b" });
+		cache.get(key2, 60, () -> results(loads, "z"));
+		Assert.assertEquals(2, loads.get());
+
+		ResultCache.Stats stats = cache.getStats();
+		Assert.assertEquals(1, stats.Hits);
+		Assert.assertEquals(2, stats.Misses);
+		Assert.assertEquals(2, stats.Entries);
+	}
+
+	@Test
+	public void testExpiresAndSkipsErrors() throws Exception {
+
+		ResultCache cache = new ResultCache(new ResultCache.Config());
+		AtomicInteger loads = new AtomicInteger();
+
+		cache.get("k", 0, () -> results(loads, "x"));
+		cache.get("k", 0, () -> results(loads, "x"));
+		Assert.assertEquals(2, loads.get());
+		Assert.assertEquals(1, cache.getStats().Expirations);
+
+		QueryRunner.QueryResults err = new QueryRunner.QueryResults();
+		err.Error = "nope";
+		cache.get("e", 60, () -> { loads.incrementAndGet(); return(err); });
+		cache.get("e", 60, () -> { loads.incrementAndGet(); return(err); });
+		Assert.assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testEvictsLru() throws Exception {
+
+		ResultCache.Config cfg = new ResultCache.Config();
+		cfg.MaxBytes = 1000L;
+		ResultCache cache = new ResultCache(cfg);
+		AtomicInteger loads = new AtomicInteger();
+
+		for (int i = 0; i < 20; ++i) cache.get("k" + i, 60, () -> results(loads, "value"));
+
+		ResultCache.Stats stats = cache.getStats();
+		Assert.assertTrue(stats.Bytes <= 1000L);
+		Assert.assertTrue(stats.Evictions > 0);
+		Assert.assertEquals(20 - stats.Evictions, stats.Entries);
+
+		// most recent one is still there
+		cache.get("k19", 60, () -> results(loads, "value"));
+		Assert.assertEquals(20, loads.get());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+
+		ResultCache cache = new ResultCache(new ResultCache.Config());
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		int threads = 8;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<QueryRunner.QueryResults>> futures =
+			new ArrayList<Future<QueryRunner.QueryResults>>();
+
+		try {
+			for (int i = 0; i < threads; ++i) {
+				futures.add(pool.submit(() -> cache.get("k", 60, () -> {
+					release.await(10, TimeUnit.SECONDS);
+					return(results(loads, "x"));
+				})));
+			}
+
+			// give everyone a chance to pile up behind the first load
+			while (cache.getStats().SharedRuns < threads - 1 &&
+				   cache.getStats().Hits == 0) {
+				Thread.sleep(10);
+			}
+
+			release.countDown();
+
+			QueryRunner.QueryResults first = futures.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<QueryRunner.QueryResults> f : futures) {
+				Assert.assertSame(first, f.get(10, TimeUnit.SECONDS));
+			}
+
+			Assert.assertEquals(1, loads.get());
+		}
+		finally {
+			release.countDown();
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testJoinersDontShareErrors() throws Exception {
+
+		ResultCache cache = new ResultCache(new ResultCache.Config());
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+
+		try {
+			// e.g. the first caller was cancelled
+			Future<QueryRunner.QueryResults> first = pool.submit(() -> cache.get("k", 60, () -> {
+				release.await(10, TimeUnit.SECONDS);
+				QueryRunner.QueryResults err = new QueryRunner.QueryResults();
+				err.Error = "Query cancelled";
+				return(err);
+			}));
+
+			while (cache.getStats().InFlight == 0) Thread.sleep(10);
+
+			Future<QueryRunner.QueryResults> joiner =
+				pool.submit(() -> cache.get("k", 60, () -> results(loads, "x")));
+
+			while (cache.getStats().SharedRuns == 0) Thread.sleep(10);
+			release.countDown();
+
+			Assert.assertEquals("Query cancelled", first.get(10, TimeUnit.SECONDS).Error);
+			
+			QueryRunner.QueryResults mine = joiner.get(10, TimeUnit.SECONDS);
+			Assert.assertNull(mine.Error);
+			Assert.assertEquals(1, loads.get());
+
+			// and its own successful run was cached
+			Assert.assertSame(mine, cache.get("k", 60, () -> results(loads, "y")));
+		}
+		finally {
+			release.countDown();
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testErrorsReachJoiners() throws Exception {
+
+		ResultCache cache = new ResultCache(new ResultCache.Config());
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+
+		try {
+			Future<QueryRunner.QueryResults> loader = pool.submit(() -> cache.get("k", 60, () -> {
+				release.await(10, TimeUnit.SECONDS);
+				throw new OutOfMemoryError("big result");
+			}));
+
+			while (cache.getStats().InFlight == 0) Thread.sleep(10);
+
+			Future<QueryRunner.QueryResults> joiner = pool.submit(() -> cache.get("k", 60, () -> {
+				throw new Exception("joiner shouldn't load");
+			}));
+
+			while (cache.getStats().SharedRuns == 0) Thread.sleep(10);
+			release.countDown();
+
+			for (Future<QueryRunner.QueryResults> f : Arrays.asList(loader, joiner)) {
+				try {
+					f.get(10, TimeUnit.SECONDS);
+					Assert.fail("expected OutOfMemoryError");
+				}
+				catch (ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+				}
+			}
+		}
+		finally {
+			release.countDown();
+			pool.shutdownNow();
+		}
+	}
+
+	private static QueryRunner.QueryResults results(AtomicInteger loads, String val) {
+		loads.incrementAndGet();
+		QueryRunner.QueryResults results = new QueryRunner.QueryResults();
+		QueryRunner.Result result = new QueryRunner.Result();
+		result.Headers.add("col");
+		List<String> row = new ArrayList<String>();
+		row.add(val);
+		result.Rows.add(row);
+		results.Results.add(result);
+		return(results);
+	}
+}
@@ -9,8 +9,15 @@ import java.lang.IllegalArgumentException;
 import java.lang.Math;
 import java.lang.StringBuilder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+// Cells are stored contiguously in row-major order; cell (r,c) lives at
+// cells[(r * cols) + c]. Besides the allocating operations, there are
+// "Into" versions and fused vector kernels that write into existing
+// storage, so callers that keep their own workspaces (see Network) can
+// run without generating garbage.
+
 public class Matrix
 {
 	// +-------+
@@ -23,7 +30,7 @@ public class Matrix
 			throw new IllegalArgumentException();
 		}
 
-		cells = new double[rows][cols];
+		cells = new double[rows * cols];
 		
 		this.rows = rows;
 		this.cols = cols;
@@ -31,12 +38,12 @@ public class Matrix
 
 	public Matrix(Matrix m) throws IllegalArgumentException {
 		this(m.rows, m.cols);
-		iterate((r,c) -> { cells[r][c] = m.cells[r][c]; });
+		System.arraycopy(m.cells, 0, cells, 0, cells.length);
 	}
 
 	public Matrix(double[][] rgrgd) throws IllegalArgumentException {
 		this(rgrgd.length, rgrgd[0].length);
-		iterate((r,c) -> { cells[r][c] = rgrgd[r][c]; });
+		for (int r = 0; r < rows; ++r) System.arraycopy(rgrgd[r], 0, cells, r * cols, cols);
 	}
 
 	public Matrix(double[] rgd) throws IllegalArgumentException {
@@ -45,15 +52,23 @@ public class Matrix
 
 	public Matrix(double[] rgd, int ifirst, int imac) throws IllegalArgumentException {
 		this(imac - ifirst, 1);
-		iterate((r,c) -> { cells[r][c] = rgd[r+ifirst]; });
+		System.arraycopy(rgd, ifirst, cells, 0, rows);
 	}
 
 	public int getRows() { return(rows); }
 	public int getCols() { return(cols); }
-	public double[][] getCells() { return(cells); }
+	// the live row-major backing store; writes go straight into the matrix
+	public double[] getData() { return(cells); }
+
+	// a copy, shaped for serialization
+	public double[][] getCells() {
+		double[][] rgrgd = new double[rows][];
+		for (int r = 0; r < rows; ++r) rgrgd[r] = Arrays.copyOfRange(cells, r * cols, (r + 1) * cols);
+		return(rgrgd);
+	}
 
-	public double getCell(int row, int col) { return(cells[row][col]); }
-	public void putCell(int row, int col, double val) { cells[row][col] = val; }
+	public double getCell(int row, int col) { return(cells[(row * cols) + col]); }
+	public void putCell(int row, int col, double val) { cells[(row * cols) + col] = val; }
 
 	// +-----------+
 	// | randomize |
@@ -73,7 +88,11 @@ public class Matrix
 
 	public Matrix transpose() {
 		Matrix m = new Matrix(cols, rows);
-		iterate((r,c) -> { m.cells[c][r] = cells[r][c]; });
+		for (int r = 0; r < rows; ++r) {
+			for (int c = 0; c < cols; ++c) {
+				m.cells[(c * rows) + r] = cells[(r * cols) + c];
+			}
+		}
 		return(m);
 	}
 
@@ -86,16 +105,169 @@ public class Matrix
 		if (cols != b.rows) throw new IllegalArgumentException();
 		
 		Matrix m = new Matrix(rows, b.cols);
+		multiplyInto(b, m);
+		return(m);
+	}
+
+	// Blocked i-k-j loop: the inner loop walks rows of b and out
+	// sequentially, and blocking on k keeps the slice of b being used in
+	// cache across rows of this. Each output cell still accumulates its
+	// terms in k order starting from zero, so results are bit-for-bit the
+	// same as a straight dot product.
+	
+	public void multiplyInto(Matrix b, Matrix out) throws IllegalArgumentException {
+
+		if (cols != b.rows || out.rows != rows || out.cols != b.cols || out == this || out == b) {
+			throw new IllegalArgumentException();
+		}
+
+		int n = b.cols;
+		double[] bcells = b.cells;
+		double[] ocells = out.cells;
 		
-		m.iterate((rowM,colM) -> {
-			// dot produt of rowM of this with colM of b
-			m.cells[rowM][colM] = 0.0;
-			for (int i = 0; i < cols; ++i) {
-				m.cells[rowM][colM] += (cells[rowM][i] * b.cells[i][colM]);
+		Arrays.fill(ocells, 0.0);
+
+		for (int kFirst = 0; kFirst < cols; kFirst += BLOCK) {
+			int kMac = Math.min(cols, kFirst + BLOCK);
+			for (int r = 0; r < rows; ++r) {
+				int ibase = r * cols;
+				int obase = r * n;
+				for (int k = kFirst; k < kMac; ++k) {
+					double a = cells[ibase + k];
+					int bbase = k * n;
+					for (int c = 0; c < n; ++c) {
+						ocells[obase + c] += (a * bcells[bbase + c]);
+					}
+				}
 			}
-		});
+		}
+	}
 
-		return(m);
+	// +-------------+
+	// | Batch Fused |
+	// +-------------+
+
+	// Batched versions of the vector kernels below: x, e, a and out hold one
+	// sample per column, so a whole mini-batch moves through a layer as a
+	// single matrix-matrix operation.
+
+	// out = op((this * x) + add), add (rows x 1) broadcast to every column
+	public void multiplyAddApply(Matrix x, Matrix add, MatrixOperator op, Matrix out) {
+
+		if (add != null && add.cells.length != rows) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		multiplyInto(x, out);
+
+		double[] ocells = out.cells;
+		for (int r = 0; r < rows; ++r) {
+			int obase = r * out.cols;
+			double d = (add == null ? 0.0 : add.cells[r]);
+			for (int c = 0; c < out.cols; ++c) {
+				double v = ocells[obase + c] + d;
+				ocells[obase + c] = (op == null ? v : op.op(v));
+			}
+		}
+	}
+
+	// out = transpose(this) * e, without building the transpose
+	public void transposeMultiplyInto(Matrix e, Matrix out) {
+
+		if (e.rows != rows || out.rows != cols || out.cols != e.cols) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		int n = e.cols;
+		double[] ecells = e.cells;
+		double[] ocells = out.cells;
+		
+		Arrays.fill(ocells, 0.0);
+		
+		for (int r = 0; r < rows; ++r) {
+			int ibase = r * cols;
+			int ebase = r * n;
+			for (int c = 0; c < cols; ++c) {
+				double d = cells[ibase + c];
+				int obase = c * n;
+				for (int j = 0; j < n; ++j) ocells[obase + j] += (d * ecells[ebase + j]);
+			}
+		}
+	}
+
+	// out = this * transpose(a); with samples in columns that's the sum of
+	// the per-sample outer products
+	public void multiplyTransposeInto(Matrix a, Matrix out) {
+
+		if (a.cols != cols || out.rows != rows || out.cols != a.rows) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		double[] acells = a.cells;
+		double[] ocells = out.cells;
+		
+		for (int r = 0; r < rows; ++r) {
+			int ibase = r * cols;
+			for (int c = 0; c < a.rows; ++c) {
+				int abase = c * cols;
+				double d = 0.0;
+				for (int j = 0; j < cols; ++j) d += (cells[ibase + j] * acells[abase + j]);
+				ocells[(r * out.cols) + c] = d;
+			}
+		}
+	}
+
+	// +--------------+
+	// | Vector Fused |
+	// +--------------+
+
+	// These treat this as a weight matrix applied to column vectors held in
+	// plain arrays, which is the shape of every per-sample network step.
+
+	// out = op((this * x) + add); add (rows x 1) may be null, op may be null
+	public void multiplyAddApply(double[] x, Matrix add, MatrixOperator op, double[] out) {
+
+		if (x.length < cols || out.length < rows || (add != null && add.cells.length != rows)) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		for (int r = 0; r < rows; ++r) {
+			int ibase = r * cols;
+			double d = 0.0;
+			for (int k = 0; k < cols; ++k) d += (cells[ibase + k] * x[k]);
+			if (add != null) d += add.cells[r];
+			out[r] = (op == null ? d : op.op(d));
+		}
+	}
+
+	// out = transpose(this) * v, without building the transpose
+	public void transposeMultiply(double[] v, double[] out) {
+
+		if (v.length < rows || out.length < cols) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		Arrays.fill(out, 0, cols, 0.0);
+		
+		for (int r = 0; r < rows; ++r) {
+			int ibase = r * cols;
+			double d = v[r];
+			for (int c = 0; c < cols; ++c) out[c] += (cells[ibase + c] * d);
+		}
+	}
+
+	// this += g * transpose(a)
+	public void addOuterProduct(double[] g, double[] a) {
+
+		if (g.length < rows || a.length < cols) {
+			throw new IllegalArgumentException("matrix size mismatch");
+		}
+
+		for (int r = 0; r < rows; ++r) {
+			int ibase = r * cols;
+			double d = g[r];
+			for (int c = 0; c < cols; ++c) cells[ibase + c] += (d * a[c]);
+		}
 	}
 
 	// +-------+
@@ -109,7 +281,7 @@ public class Matrix
 			throw new IllegalArgumentException("matrix size mismatch");
 		}
 
-		iterate((r,c) -> { cells[r][c] *= m.cells[r][c]; });
+		for (int i = 0; i < cells.length; ++i) cells[i] *= m.cells[i];
 	}
 
 	// +----------------+
@@ -124,7 +296,7 @@ public class Matrix
 			throw new IllegalArgumentException("matrix size mismatch");
 		}
 		
-		iterate((r,c) -> { cells[r][c] += m.cells[r][c]; });
+		for (int i = 0; i < cells.length; ++i) cells[i] += m.cells[i];
 	}
 	
 	public void subtract(Matrix m) throws IllegalArgumentException {
@@ -132,7 +304,7 @@ public class Matrix
 			throw new IllegalArgumentException("matrix size mismatch");
 		}
 		
-		iterate((r,c) -> { cells[r][c] -= m.cells[r][c]; });
+		for (int i = 0; i < cells.length; ++i) cells[i] -= m.cells[i];
 	}
 	
 	// +-----------------+
@@ -156,8 +328,7 @@ public class Matrix
 	}
 
 	public void transform(MatrixOperator op) {
-		iterate((r,c) -> { cells[r][c] = op.op(cells[r][c]); });
-
+		for (int i = 0; i < cells.length; ++i) cells[i] = op.op(cells[i]);
 	}
 
 	// +--------+
@@ -181,11 +352,9 @@ public class Matrix
 			return(false);
 		}
 
-		for (int r = 0; r < rows; ++r) {
-			for (int c = 0; c < cols; ++c) {
-				double cmp = Math.abs(cells[r][c] - m.cells[r][c]);
-				if (cmp > epsilon) return(false);
-			}
+		for (int i = 0; i < cells.length; ++i) {
+			double cmp = Math.abs(cells[i] - m.cells[i]);
+			if (cmp > epsilon) return(false);
 		}
 
 		return(true);
@@ -204,7 +373,7 @@ public class Matrix
 			sb.append(String.format("%s%s%04.3f",
 									c > 0 && r == 0 ? "\n" : "",
 									r > 0 ? "\t" : "",
-									cells[r][c]));
+									getCell(r, c)));
 		});
 
 		return(sb.toString());
@@ -212,17 +381,10 @@ public class Matrix
 
 	public double[] toArray() throws IllegalArgumentException {
 
-		if (rows == 1) {
+		if (rows == 1 || cols == 1) {
 
-			// easy!
-			return(cells[0]);
-		}
-		else if (cols == 1) {
-			
-			// gotta copy
-			double[] rgd = new double[rows];
-			for (int r = 0; r < rows; ++r) rgd[r] = cells[r][0];
-			return(rgd);
+			// easy! (but copy so callers can't scribble on us)
+			return(cells.clone());
 		}
 		
 		// oops
@@ -233,7 +395,11 @@ public class Matrix
 	// | Members |
 	// +---------+
 
-	private double[][] cells;
+	// BLOCK rows of b stay cache-resident while every row of this passes
+	// over them
+	private final static int BLOCK = 64;
+	
+	private double[] cells;
 	int rows;
 	int cols;
 }
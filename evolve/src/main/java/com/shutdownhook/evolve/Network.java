@@ -14,6 +14,8 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 import com.google.gson.Gson;
@@ -59,6 +61,7 @@ public class Network
 		
 		this.cfg = cfg;
 		this.activation = createActivationFunction(cfg.ActivationFunction);
+		this.activationOp = (v -> activation.function(v));
 
 		weights = new ArrayList<Matrix>();
 		biases = new ArrayList<Matrix>();
@@ -144,25 +147,47 @@ public class Network
 
 	public double[] forwardPass(double[] input) {
 		
-		List<Matrix> results = forwardPassInternal(input);
-		return(results.get(results.size() - 1).toArray());
+		Workspace ws = workspaces.get();
+		forwardPassInternal(input, ws);
+		return(ws.activations[ws.activations.length - 1].clone());
 	}
 
-	private List<Matrix> forwardPassInternal(double[] input) {
+	// leaves the activations for every layer in ws.activations
+	private void forwardPassInternal(double[] input, Workspace ws) {
 
-		List<Matrix> results = new ArrayList<Matrix>();
-		results.add(new Matrix(input, 0, cfg.Layers[0]));
+		System.arraycopy(input, 0, ws.activations[0], 0, cfg.Layers[0]);
 
 		for (int i = 0; i < weights.size(); ++i) {
+			weights.get(i).multiplyAddApply(ws.activations[i], biases.get(i),
+											activationOp, ws.activations[i+1]);
+		}
+	}
 
-			Matrix layer = weights.get(i).multiply(results.get(i));
-			layer.add(biases.get(i));
-			layer.transform(v -> activation.function(v));
+	// +-----------+
+	// | Workspace |
+	// +-----------+
 
-			results.add(layer);
+	// Per-layer scratch vectors so a training step doesn't allocate. Each
+	// thread gets its own, so forwardPass stays safe to call concurrently
+	// as long as nobody is training at the same time.
+	
+	private class Workspace
+	{
+		public Workspace() {
+			activations = new double[cfg.Layers.length][];
+			errors = new double[cfg.Layers.length][];
+			gradients = new double[cfg.Layers.length][];
+
+			for (int i = 0; i < cfg.Layers.length; ++i) {
+				activations[i] = new double[cfg.Layers[i]];
+				errors[i] = new double[cfg.Layers[i]];
+				gradients[i] = new double[cfg.Layers[i]];
+			}
 		}
-
-		return(results);
+		
+		public double[][] activations;
+		public double[][] errors;
+		public double[][] gradients;
 	}
 
 	// +-------+
@@ -172,30 +197,40 @@ public class Network
 	// vals should have inputs first and then expected
 	public void trainOne(double[] vals) {
 
+		Workspace ws = workspaces.get();
+		
 		// forwardprop
 
-		List<Matrix> results = forwardPassInternal(vals);
+		forwardPassInternal(vals, ws);
 
 		// backprop
+
+		int numInputs = numInputs();
+		int last = weights.size();
 		
-		Matrix errors = new Matrix(vals, numInputs(), numInputs() + numOutputs());
-		errors.subtract(results.get(results.size() - 1));
+		double[] output = ws.activations[last];
+		double[] errors = ws.errors[last];
+		for (int j = 0; j < errors.length; ++j) errors[j] = vals[numInputs + j] - output[j];
 
-		for (int i = weights.size() - 1; i >= 0; --i) {
+		for (int i = last - 1; i >= 0; --i) {
 
 			// figure out the gradient for each weight in the layer
-			Matrix gradient = new Matrix(results.get(i+1));
-			gradient.transform(v -> activation.derivative(v));
-			gradient.scale(errors);
-			gradient.scale(cfg.LearningRate);
+			double[] results = ws.activations[i+1];
+			double[] gradient = ws.gradients[i+1];
+			errors = ws.errors[i+1];
+			
+			for (int j = 0; j < gradient.length; ++j) {
+				gradient[j] = activation.derivative(results[j]) * errors[j] * cfg.LearningRate;
+			}
 
-			// do this before updating weights
-			errors = weights.get(i).transpose().multiply(errors);
+			// do this before updating weights; the input layer doesn't need any
+			if (i > 0) weights.get(i).transposeMultiply(errors, ws.errors[i]);
 
 			// the actual learning part!
-			Matrix weightDeltas = gradient.multiply(results.get(i).transpose());
-			weights.get(i).add(weightDeltas);
-			biases.get(i).add(gradient);
+			weights.get(i).addOuterProduct(gradient, ws.activations[i]);
+
+			double[] bias = biases.get(i).getData();
+			for (int j = 0; j < bias.length; ++j) bias[j] += gradient[j];
 		}
 	}
 
@@ -204,7 +239,23 @@ public class Network
 	}
 	
 	public void trainMany(double[][] rgvals, int iterations, TrainManyCallback callback) {
+		trainMany(rgvals, iterations, 1, null, callback);
+	}
+
+	// batchSize > 1 trains mini-batches: every sample in a batch is run
+	// against the same weights and their updates are summed and applied
+	// together (so LearningRate still means the same thing per sample).
+	// pool (may be null) splits each batch across threads; it's ignored
+	// when batchSize is 1. callback sees every iteration count, but within
+	// a batch they're all reported before the batch trains.
+	
+	public void trainMany(double[][] rgvals, int iterations, int batchSize,
+						  ForkJoinPool pool, TrainManyCallback callback) {
 
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be >= 1");
+		
+		BatchTrainer trainer = (batchSize > 1 ? new BatchTrainer(batchSize, pool) : null);
+		
 		// all this work is to be sure we cover the training
 		// set in random order, but as evenly as possible
 		
@@ -221,12 +272,17 @@ public class Network
 			int iterationsNow = runOrder.length;
 			if (iterationsNow > iterationsLeft) iterationsNow = iterationsLeft;
 
-			for (int i = 0; i < iterationsNow; ++i) {
+			for (int i = 0; i < iterationsNow; i += batchSize) {
 
-				if (callback != null && !callback.call(totalRuns)) return;
-			    ++totalRuns;
+				int count = Math.min(batchSize, iterationsNow - i);
+				
+				for (int j = 0; j < count; ++j) {
+					if (callback != null && !callback.call(totalRuns)) return;
+					++totalRuns;
+				}
 
-				trainOne(rgvals[runOrder[i]]);
+				if (trainer == null) trainOne(rgvals[runOrder[i]]);
+				else trainer.train(rgvals, runOrder, i, count);
 			}
 			
 			iterationsLeft -= iterationsNow;
@@ -239,6 +295,182 @@ public class Network
 		public boolean call(int iterations);
 	}
 
+	// +--------------+
+	// | BatchTrainer |
+	// +--------------+
+
+	// A batch is split into chunks of adjacent samples. Each chunk runs its
+	// samples forward and backward as matrices (one sample per column)
+	// against the current weights and keeps its summed weight and bias
+	// deltas. Once every chunk is done the deltas are added to the network
+	// in chunk order, so results don't depend on thread scheduling.
+	
+	private class BatchTrainer
+	{
+		public BatchTrainer(int batchSize, ForkJoinPool pool) {
+			
+			this.pool = pool;
+			
+			int chunkCount = (pool == null ? 1 : Math.min(batchSize, pool.getParallelism()));
+			this.chunkWidth = (batchSize + chunkCount - 1) / chunkCount;
+
+			chunks = new BatchChunk[chunkCount];
+			for (int i = 0; i < chunkCount; ++i) chunks[i] = new BatchChunk(chunkWidth);
+		}
+
+		public void train(double[][] rgvals, int[] runOrder, int first, int count) {
+
+			for (int i = 0; i < chunks.length; ++i) {
+				int chunkFirst = i * chunkWidth;
+				int chunkCount = Math.max(0, Math.min(chunkWidth, count - chunkFirst));
+				chunks[i].load(rgvals, runOrder, first + chunkFirst, chunkCount);
+			}
+
+			if (pool == null || chunks.length == 1) chunks[0].run();
+			else pool.invoke(new ChunkTask(0, chunks.length));
+
+			// reduce
+			for (BatchChunk chunk : chunks) {
+				if (chunk.count == 0) continue;
+				for (int i = 0; i < weights.size(); ++i) {
+					
+					weights.get(i).add(chunk.weightDeltas[i]);
+
+					double[] bias = biases.get(i).getData();
+					double[] deltas = chunk.biasDeltas[i];
+					for (int j = 0; j < bias.length; ++j) bias[j] += deltas[j];
+				}
+			}
+		}
+
+		private class ChunkTask extends RecursiveAction
+		{
+			public ChunkTask(int lo, int hi) { this.lo = lo; this.hi = hi; }
+
+			protected void compute() {
+				if (hi - lo == 1) {
+					if (chunks[lo].count > 0) chunks[lo].run();
+					return;
+				}
+
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ChunkTask(lo, mid), new ChunkTask(mid, hi));
+			}
+
+			private int lo;
+			private int hi;
+		}
+		
+		private ForkJoinPool pool;
+		private int chunkWidth;
+		private BatchChunk[] chunks;
+	}
+
+	private class BatchChunk
+	{
+		public BatchChunk(int width) {
+
+			this.width = width;
+			
+			int layers = cfg.Layers.length;
+			
+			activations = new Matrix[layers];
+			errors = new Matrix[layers];
+			gradients = new Matrix[layers];
+
+			for (int i = 0; i < layers; ++i) {
+				activations[i] = new Matrix(cfg.Layers[i], width);
+				errors[i] = new Matrix(cfg.Layers[i], width);
+				gradients[i] = new Matrix(cfg.Layers[i], width);
+			}
+
+			weightDeltas = new Matrix[layers - 1];
+			biasDeltas = new double[layers - 1][];
+
+			for (int i = 0; i < layers - 1; ++i) {
+				weightDeltas[i] = new Matrix(cfg.Layers[i+1], cfg.Layers[i]);
+				biasDeltas[i] = new double[cfg.Layers[i+1]];
+			}
+		}
+
+		public void load(double[][] rgvals, int[] runOrder, int first, int count) {
+			this.rgvals = rgvals;
+			this.runOrder = runOrder;
+			this.first = first;
+			this.count = count;
+		}
+
+		public void run() {
+
+			int numInputs = numInputs();
+			int numOutputs = numOutputs();
+			int last = weights.size();
+			
+			// forwardprop; columns past count (a short last batch) are
+			// zero-filled and get zero errors, so they add nothing below
+			
+			double[] input = activations[0].getData();
+			for (int j = 0; j < width; ++j) {
+				double[] vals = (j < count ? rgvals[runOrder[first + j]] : null);
+				for (int k = 0; k < numInputs; ++k) {
+					input[(k * width) + j] = (vals == null ? 0.0 : vals[k]);
+				}
+			}
+			
+			for (int i = 0; i < last; ++i) {
+				weights.get(i).multiplyAddApply(activations[i], biases.get(i),
+												activationOp, activations[i+1]);
+			}
+
+			// backprop
+
+			double[] output = activations[last].getData();
+			double[] outErrors = errors[last].getData();
+			for (int j = 0; j < width; ++j) {
+				double[] vals = (j < count ? rgvals[runOrder[first + j]] : null);
+				for (int k = 0; k < numOutputs; ++k) {
+					int ik = (k * width) + j;
+					outErrors[ik] = (vals == null ? 0.0 : vals[numInputs + k] - output[ik]);
+				}
+			}
+
+			for (int i = last - 1; i >= 0; --i) {
+
+				double[] results = activations[i+1].getData();
+				double[] errs = errors[i+1].getData();
+				double[] gradient = gradients[i+1].getData();
+				
+				for (int j = 0; j < gradient.length; ++j) {
+					gradient[j] = activation.derivative(results[j]) * errs[j] * cfg.LearningRate;
+				}
+
+				if (i > 0) weights.get(i).transposeMultiplyInto(errors[i+1], errors[i]);
+
+				gradients[i+1].multiplyTransposeInto(activations[i], weightDeltas[i]);
+
+				double[] biasDelta = biasDeltas[i];
+				for (int r = 0; r < biasDelta.length; ++r) {
+					double d = 0.0;
+					for (int j = 0; j < width; ++j) d += gradient[(r * width) + j];
+					biasDelta[r] = d;
+				}
+			}
+		}
+
+		public Matrix[] weightDeltas;
+		public double[][] biasDeltas;
+		public int count;
+		
+		private int width;
+		private Matrix[] activations;
+		private Matrix[] errors;
+		private Matrix[] gradients;
+
+		private double[][] rgvals;
+		private int[] runOrder;
+		private int first;
+	}
+
 	// +-------------+
 	// | testVerbose |
 	// +-------------+
@@ -353,6 +585,12 @@ public class Network
 		public int TrainingIterations;
 		public int TrainingReportInterval = 0; // 0 means never
 
+		// samples per weight update; 1 is plain per-sample training
+		public int BatchSize = 1;
+		
+		// > 1 splits each batch across this many threads (needs BatchSize > 1)
+		public int TrainingThreads = 1;
+
 		// 0 means test with the full training set
 		public int HoldBackPercentage = 0;
 
@@ -419,18 +657,26 @@ public class Network
 		long startNanos = System.nanoTime();
 			
 		results.Network = new Network(cfg.Network);
-		results.Network.trainMany(trainSet, cfg.TrainingIterations, (iterations) -> {
+
+		ForkJoinPool pool = (cfg.TrainingThreads > 1 ? new ForkJoinPool(cfg.TrainingThreads) : null);
+
+		try {
+			results.Network.trainMany(trainSet, cfg.TrainingIterations, cfg.BatchSize, pool, (iterations) -> {
 				
-			if (cfg.TrainingReportInterval > 0 &&
-				iterations % cfg.TrainingReportInterval == 0) {
+				if (cfg.TrainingReportInterval > 0 &&
+					iterations % cfg.TrainingReportInterval == 0) {
 
-				TestResultErrorSummary r = results.Network.testSummary(testSet);
-				log.info(String.format("ITERATION\t%7d\t%04.3f\t%04.3f\t%04.3f",
-									   iterations, r.Min, r.Max, r.Avg));
-			}
+					TestResultErrorSummary r = results.Network.testSummary(testSet);
+					log.info(String.format("ITERATION\t%7d\t%04.3f\t%04.3f\t%04.3f",
+										   iterations, r.Min, r.Max, r.Avg));
+				}
 
-			return(true);
-		});
+				return(true);
+			});
+		}
+		finally {
+			if (pool != null) pool.shutdown();
+		}
 
 		results.TrainingNanos = System.nanoTime() - startNanos;
 		results.TrainingIterations = cfg.TrainingIterations;
@@ -465,6 +711,11 @@ public class Network
 
 		Easy.setSimpleLogFormat();
 
+		if (args.length > 0 && args[0].equals("bench")) {
+			bench(args);
+			return;
+		}
+
 		String json = Easy.stringFromSmartyPath(args[0]);
 		TrainAndTestConfig cfg = TrainAndTestConfig.fromJson(json);
 
@@ -502,6 +753,58 @@ public class Network
 		}
 	}
 
+	// +-------+
+	// | bench |
+	// +-------+
+
+	// bench [LAYERS] [SAMPLES] [ITERATIONS] [ROUNDS] [BATCHSIZE] [THREADS]
+	// e.g. bench 64,32,8 1000 100000 5 32 4
+	//
+	// Trains a fresh network on random data and reports samples/second for
+	// trainMany. The first round is warmup for the JIT and isn't reported.
+	
+	private static void bench(String[] args) {
+
+		String[] layerStrs = (args.length > 1 ? args[1] : "64,32,8").split(",");
+		int samples = (args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+		int iterations = (args.length > 3 ? Integer.parseInt(args[3]) : 100000);
+		int rounds = (args.length > 4 ? Integer.parseInt(args[4]) : 5);
+		int batchSize = (args.length > 5 ? Integer.parseInt(args[5]) : 1);
+		int threads = (args.length > 6 ? Integer.parseInt(args[6]) : 1);
+
+		Config cfg = new Config();
+		cfg.Layers = new int[layerStrs.length];
+		for (int i = 0; i < layerStrs.length; ++i) cfg.Layers[i] = Integer.parseInt(layerStrs[i]);
+
+		int width = cfg.Layers[0] + cfg.Layers[cfg.Layers.length - 1];
+		double[][] rgvals = new double[samples][width];
+		Random rand = new Random(1);
+		for (double[] vals : rgvals) {
+			for (int i = 0; i < width; ++i) vals[i] = rand.nextDouble();
+		}
+
+		ForkJoinPool pool = (threads > 1 ? new ForkJoinPool(threads) : null);
+		
+		try {
+			for (int round = 0; round <= rounds; ++round) {
+			
+				Network network = new Network(cfg);
+			
+				long startNanos = System.nanoTime();
+				network.trainMany(rgvals, iterations, batchSize, pool, null);
+				long elapsedNanos = System.nanoTime() - startNanos;
+
+				if (round == 0) continue;
+
+				System.out.println(String.format("round %d: %.0f samples/sec", round,
+												 iterations * 1000000000d / elapsedNanos));
+			}
+		}
+		finally {
+			if (pool != null) pool.shutdown();
+		}
+	}
+
 	// +--------------+
 	// | Misc Helpers |
 	// +--------------+
@@ -537,6 +840,9 @@ public class Network
 
 	private Config cfg;
 	private ActivationFunction activation;
+	private Matrix.MatrixOperator activationOp;
+
+	private ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(() -> new Workspace());
 
 	private Random rand;
 
@@ -111,6 +111,89 @@ public class MatrixTest
 		assertTrue(new Matrix(a).multiply(new Matrix(b)).equals(new Matrix(m)));
 	}
 
+    @Test
+    public void blockedMultiplyMatchesDotProducts() throws Exception
+    {
+		// big enough on the inner dimension to span several blocks
+		Matrix a = new Matrix(7, 150);
+		Matrix b = new Matrix(150, 9);
+		a.randomize();
+		b.randomize();
+
+		Matrix m = a.multiply(b);
+
+		for (int r = 0; r < a.getRows(); ++r) {
+			for (int c = 0; c < b.getCols(); ++c) {
+				double d = 0.0;
+				for (int i = 0; i < a.getCols(); ++i) d += (a.getCell(r, i) * b.getCell(i, c));
+				assertTrue(d == m.getCell(r, c));
+			}
+		}
+	}
+
+    @Test
+    public void fusedVectorOps() throws Exception
+    {
+		Matrix w = new Matrix(5, 3);
+		Matrix b = new Matrix(5, 1);
+		w.randomize();
+		b.randomize();
+
+		double[] x = { 0.5, -0.25, 2.0 };
+		double[] v = { 1.0, -2.0, 0.5, 0.0, 3.0 };
+
+		// multiply-add-activate
+		Matrix expected = w.multiply(new Matrix(x));
+		expected.add(b);
+		expected.transform(d -> d * 2.0);
+		
+		double[] out = new double[5];
+		w.multiplyAddApply(x, b, d -> d * 2.0, out);
+		assertTrue(new Matrix(out).equals(expected, 0.0));
+
+		// transpose multiply
+		double[] tout = new double[3];
+		w.transposeMultiply(v, tout);
+		assertTrue(new Matrix(tout).equals(w.transpose().multiply(new Matrix(v)), 0.0));
+
+		// outer product
+		Matrix outer = new Matrix(w);
+		outer.add(new Matrix(v).multiply(new Matrix(x).transpose()));
+		w.addOuterProduct(v, x);
+		assertTrue(w.equals(outer, 0.0));
+	}
+
+    @Test
+    public void fusedBatchOps() throws Exception
+    {
+		Matrix w = new Matrix(5, 3);
+		Matrix b = new Matrix(5, 1);
+		Matrix x = new Matrix(3, 4);
+		Matrix e = new Matrix(5, 4);
+		w.randomize();
+		b.randomize();
+		x.randomize();
+		e.randomize();
+
+		// multiply-add-activate, bias broadcast to each column
+		Matrix expected = w.multiply(x);
+		expected.iterate((r,c) -> { expected.putCell(r, c, (expected.getCell(r, c) + b.getCell(r, 0)) * 2.0); });
+
+		Matrix out = new Matrix(5, 4);
+		w.multiplyAddApply(x, b, d -> d * 2.0, out);
+		assertTrue(out.equals(expected, 0.0));
+
+		// transpose multiply
+		Matrix tout = new Matrix(3, 4);
+		w.transposeMultiplyInto(e, tout);
+		assertTrue(tout.equals(w.transpose().multiply(e), 0.0));
+
+		// multiply by transpose
+		Matrix mout = new Matrix(5, 3);
+		e.multiplyTransposeInto(x, mout);
+		assertTrue(mout.equals(e.multiply(x.transpose()), 0.0));
+	}
+
     @Test
     public void randomize() throws Exception {
 		double min = -2.0;
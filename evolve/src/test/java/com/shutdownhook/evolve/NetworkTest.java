@@ -0,0 +1,150 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.evolve;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class NetworkTest
+{
+    @Test
+    public void paddedBatchMatchesTrainOne() throws Exception
+    {
+		// one sample in a batch of four leaves three padded columns
+		double[][] rgvals = randomSamples(1);
+
+		Network batched = new Network(fixedConfig());
+		batched.trainMany(rgvals, 50, 4, null, null);
+
+		Network single = new Network(fixedConfig());
+		for (int i = 0; i < 50; ++i) single.trainOne(rgvals[0]);
+
+		assertStatesEqual(single, batched, 0.0);
+	}
+
+    @Test
+    public void batchSumsSampleUpdates() throws Exception
+    {
+		double[][] rgvals = randomSamples(3);
+
+		Network batched = new Network(fixedConfig());
+		batched.trainMany(rgvals, 3, 3, null, null);
+
+		// each sample trained alone from the same start; the batch update
+		// should be the sum of their individual updates
+		Network.NetworkState start = fixedConfig().State;
+		double[][][] expected = copyWeights(start.Weights);
+
+		for (double[] vals : rgvals) {
+			Network single = new Network(fixedConfig());
+			single.trainOne(vals);
+
+			double[][][] weights = single.getState().State.Weights;
+			for (int l = 0; l < weights.length; ++l) {
+				for (int r = 0; r < weights[l].length; ++r) {
+					for (int c = 0; c < weights[l][r].length; ++c) {
+						expected[l][r][c] += (weights[l][r][c] - start.Weights[l][r][c]);
+					}
+				}
+			}
+		}
+
+		assertWeightsEqual(expected, batched.getState().State.Weights, 0.000000001);
+	}
+
+    @Test
+    public void parallelMatchesSerial() throws Exception
+    {
+		// each pass is one batch, split into chunks of 2, 2 and 1
+		double[][] rgvals = randomSamples(5);
+		ForkJoinPool pool = new ForkJoinPool(3);
+
+		try {
+			Network serial = new Network(fixedConfig());
+			serial.trainMany(rgvals, 15, 5, null, null);
+
+			Network parallel = new Network(fixedConfig());
+			parallel.trainMany(rgvals, 15, 5, pool, null);
+
+			// chunks reduce in a different order than one big batch
+			assertStatesEqual(serial, parallel, 0.000000001);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// +---------+
+	// | helpers |
+	// +---------+
+
+	private final static int[] LAYERS = { 6, 5, 4, 2 };
+
+	private static Network.Config fixedConfig() {
+
+		Random rand = new Random(3);
+
+		Network.Config cfg = new Network.Config();
+		cfg.Layers = LAYERS;
+		cfg.LearningRate = 0.1;
+		cfg.State = new Network.NetworkState();
+		cfg.State.Weights = new double[LAYERS.length - 1][][];
+		cfg.State.Biases = new double[LAYERS.length - 1][][];
+
+		for (int l = 1; l < LAYERS.length; ++l) {
+			cfg.State.Weights[l-1] = new double[LAYERS[l]][LAYERS[l-1]];
+			cfg.State.Biases[l-1] = new double[LAYERS[l]][1];
+			for (double[] row : cfg.State.Weights[l-1]) {
+				for (int i = 0; i < row.length; ++i) row[i] = rand.nextDouble() - 0.5;
+			}
+			for (double[] row : cfg.State.Biases[l-1]) row[0] = rand.nextDouble() - 0.5;
+		}
+
+		return(cfg);
+	}
+
+	// order of samples in a pass is random, so each test keeps a whole
+	// pass in one batch, where order only affects rounding
+	private static double[][] randomSamples(int count) {
+
+		Random rand = new Random(7);
+		int width = LAYERS[0] + LAYERS[LAYERS.length - 1];
+
+		double[][] rgvals = new double[count][width];
+		for (double[] vals : rgvals) {
+			for (int i = 0; i < width; ++i) vals[i] = rand.nextDouble();
+		}
+
+		return(rgvals);
+	}
+
+	private static double[][][] copyWeights(double[][][] weights) {
+		double[][][] copy = new double[weights.length][][];
+		for (int l = 0; l < weights.length; ++l) {
+			copy[l] = new double[weights[l].length][];
+			for (int r = 0; r < weights[l].length; ++r) copy[l][r] = weights[l][r].clone();
+		}
+		return(copy);
+	}
+
+	private static void assertStatesEqual(Network expected, Network actual, double epsilon) {
+		assertWeightsEqual(expected.getState().State.Weights, actual.getState().State.Weights, epsilon);
+		assertWeightsEqual(expected.getState().State.Biases, actual.getState().State.Biases, epsilon);
+	}
+
+	private static void assertWeightsEqual(double[][][] expected, double[][][] actual, double epsilon) {
+		for (int l = 0; l < expected.length; ++l) {
+			for (int r = 0; r < expected[l].length; ++r) {
+				for (int c = 0; c < expected[l][r].length; ++c) {
+					assertEquals(expected[l][r][c], actual[l][r][c], epsilon);
+				}
+			}
+		}
+	}
+}
@@ -5,6 +5,7 @@
 package com.shutdownhook.life.cli;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -20,6 +21,7 @@ import com.shutdownhook.life.lifelib.NeighborhoodRulesProcessor;
 import com.shutdownhook.life.lifelib.Population;
 import com.shutdownhook.life.lifelib.Rules;
 import com.shutdownhook.life.lifelib.Serializers;
+import com.shutdownhook.life.lifelib.TiledRunner;
 import com.shutdownhook.toolbox.Easy;
 import com.shutdownhook.toolbox.Exec;
 import com.shutdownhook.toolbox.Template;
@@ -238,6 +240,73 @@ public class App
 		mooreRules.toFile(mooreFile);
 	}
 
+	// +-------+
+	// | bench |
+	// +-------+
+
+	// bench [RULESTYPE] [DX] [DY] [GENERATIONS] [ROUNDS]
+	// cells/second for each way of running one world: cell by cell,
+	// word by word on one thread, and tiled across the ForkJoin pool.
+	// The first round warms up the JIT and isn't reported.
+
+	private static void bench(String[] cmds) throws Exception {
+
+		Rules.RulesType rulesType = (cmds.length >= 2
+									 ? Rules.RulesType.valueOf(cmds[1])
+									 : Rules.RulesType.Neighborhood_Moore);
+		
+		int dx = (cmds.length >= 3 ? Integer.parseInt(cmds[2]) : 1000);
+		int dy = (cmds.length >= 4 ? Integer.parseInt(cmds[3]) : 1000);
+		int generations = (cmds.length >= 5 ? Integer.parseInt(cmds[4]) : 20);
+		int rounds = (cmds.length >= 6 ? Integer.parseInt(cmds[5]) : 3);
+
+		Rules.RulesProcessor rules = Rules.get(rulesType);
+		TiledRunner runner = new TiledRunner(dx, dy, 0, null);
+
+		Bitmap env = new Bitmap(dx, dy);
+		env.randomize();
+
+		System.out.println(String.format("%s %dx%d, %d generations, %d bands of %d rows",
+										 rulesType, dx, dy, generations,
+										 runner.getBandCount(), runner.getBandRows()));
+
+		for (int round = 0; round <= rounds; ++round) {
+
+			long start = System.nanoTime();
+			Bitmap byCell = env;
+			for (int i = 0; i < generations; ++i) byCell = Rules.applyByCell(byCell, rules);
+			long cellNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Bitmap byWord = env;
+			for (int i = 0; i < generations; ++i) byWord = Rules.apply(byWord, rules);
+			long wordNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Bitmap tiled = runner.run(env, rules, generations, null);
+			long tiledNanos = System.nanoTime() - start;
+
+			if (round == 0) continue;
+
+			double cells = (double) dx * dy * generations;
+			System.out.println(String.format("round %d: cell %s; word %s; tiled %s cells/sec%s",
+											 round,
+											 cellsPerSecond(cells, cellNanos),
+											 cellsPerSecond(cells, wordNanos),
+											 cellsPerSecond(cells, tiledNanos),
+											 sameBits(byCell, byWord) && sameBits(byWord, tiled)
+											 ? "" : " (MISMATCH)"));
+		}
+	}
+
+	private static String cellsPerSecond(double cells, long nanos) {
+		return(String.format("%,.0f", cells * 1000000000.0 / Math.max(1L, nanos)));
+	}
+
+	private static boolean sameBits(Bitmap b1, Bitmap b2) {
+		return(Arrays.equals(b1.getAsDNA(), b2.getAsDNA()));
+	}
+
 	// +------+
 	// | test |
 	// +------+
@@ -266,6 +335,7 @@ public class App
 			case "vn-to-moore": vnToMoore(cmds); break;
 			case "viz": visualizeRules(cmds); break;
 			case "viz-html": visualizeRulesHtml(cmds); break;
+			case "bench": bench(cmds); break;
 			case "test": test(cmds); break;
 		}
 
@@ -159,16 +159,7 @@ public class Bitmap
 			if (edgeStrategy == EdgeStrategy.Off) return(false);
 		}
 
-		int xFinal = xTarget;
-		int yFinal = yTarget;
-		
-		if (xTarget < 0) { while (xFinal < 0) xFinal += dx; }
-		else if (xTarget >= dx) { while (xFinal >= dx) xFinal -= dx; }
-		
-		if (yTarget < 0) { while (yFinal < 0) yFinal += dy; }
-		else if (yTarget >= dy) { while (yFinal >= dy) yFinal -= dy; }
-
-		return(get(xFinal, yFinal));
+		return(get(Math.floorMod(xTarget, dx), Math.floorMod(yTarget, dy)));
 	}
 
 	// +--------------+
@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import com.shutdownhook.toolbox.Easy;
 
@@ -38,7 +39,26 @@ public class Fitness
 	// | compute |
 	// +---------+
 
+	// Every fitness type boils down to a few counts --- cells on, cells on
+	// under some fixed masks, and for the stripe types on cells and run
+	// starts per column --- so compute just takes those counts a word at a
+	// time (see Counts) and scores them. Results are the same as
+	// computeByCell, which is the original cell-by-cell implementation.
+
 	public static double compute(Bitmap env, FitnessType fitnessType) {
+
+		Counts counts = new Counts(fitnessType, env.getDx(), env.getDy());
+		if (counts.masks == null) return(0.0);
+
+		counts.countAll(env.longs);
+		return(counts.score());
+	}
+
+	// +---------------+
+	// | computeByCell |
+	// +---------------+
+
+	public static double computeByCell(Bitmap env, FitnessType fitnessType) {
 		switch (fitnessType) {
 			case MostOn: default: return(fractionWithValue(env, true));
 			case MostOff: return(fractionWithValue(env, false));
@@ -341,6 +361,383 @@ public class Fitness
 
 	private static Map<String,Bitmap> bitmaps = new HashMap<String,Bitmap>();
 	
+	// +---------+
+	// | Tracker |
+	// +---------+
+
+	// Keeps the counts behind a fitness score current as the world changes,
+	// so the score is available every generation without a rescan. update
+	// compares each long with the last state it saw and only recounts the
+	// ones that changed (and for the stripe types, the rows they touch), so
+	// generations where little changes are cheap. update also tells callers
+	// when nothing changed at all --- a world that has stopped changing
+	// will stay that way.
+
+	public static class Tracker
+	{
+		public Tracker(Bitmap env, FitnessType fitnessType) {
+			this.counts = new Counts(fitnessType, env.getDx(), env.getDy());
+			this.last = env.longs.clone();
+			
+			if (counts.masks == null) return;
+			
+			counts.countAll(env.longs);
+			if (counts.colOn != null) this.dirty = new boolean[env.getDy()];
+		}
+
+		public double get() {
+			return(counts.masks == null ? 0.0 : counts.score());
+		}
+
+		// returns false if env is the same as the last state seen
+		public boolean update(Bitmap env) {
+
+			if (env.getDx() != counts.dx || env.getDy() != counts.dy) {
+				throw new IllegalArgumentException("Tracker world size mismatch");
+			}
+
+			long[] longs = env.longs;
+			boolean changed = false;
+			
+			for (int i = 0; i < longs.length; ++i) {
+				
+				long diff = last[i] ^ longs[i];
+				if (diff == 0L) continue;
+
+				changed = true;
+				if (counts.masks == null) continue;
+				
+				counts.countLong(i, last[i], -1);
+				counts.countLong(i, longs[i], 1);
+
+				if (dirty != null) {
+					long bit = ((long) i) * Long.SIZE;
+					int yFirst = (int) ((bit + Long.numberOfTrailingZeros(diff)) / counts.dx);
+					int yLast = (int) ((bit + Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / counts.dx);
+					for (int y = yFirst; y <= yLast; ++y) dirty[y] = true;
+				}
+			}
+
+			if (!changed) return(false);
+
+			if (dirty != null) {
+				// a row's run starts depend on the row above it too
+				for (int y = 0; y < dirty.length; ++y) {
+					if (dirty[y] || (y > 0 && dirty[y-1])) {
+						counts.countRow(last, y, -1);
+						counts.countRow(longs, y, 1);
+					}
+				}
+				for (int y = 0; y < dirty.length; ++y) dirty[y] = false;
+			}
+			
+			System.arraycopy(longs, 0, last, 0, longs.length);
+			return(true);
+		}
+
+		private Counts counts;
+		private long[] last;
+		private boolean[] dirty;
+	}
+	
+	// +--------+
+	// | Counts |
+	// +--------+
+
+	// on = cells on; masked[i] = cells on under masks.bits[i]; corner =
+	// cell (0,0); and for the stripe types, per column: cells on and
+	// starts of runs of on and off cells. Everything is a plain sum over
+	// longs (or rows), so it can be added or taken away piece by piece.
+
+	private static class Counts
+	{
+		public Counts(FitnessType fitnessType, int dx, int dy) {
+			
+			this.fitnessType = fitnessType;
+			this.dx = dx;
+			this.dy = dy;
+			
+			this.masks = getMasks(fitnessType, dx, dy);
+			if (masks == null) return;
+			
+			this.masked = new int[masks.bits.length];
+
+			if (fitnessType == FitnessType.VStripes2 || fitnessType == FitnessType.VStripesCombo) {
+				colOn = new int[dx];
+				colOnRuns = new int[dx];
+				colOffRuns = new int[dx];
+			}
+		}
+
+		public void countAll(long[] longs) {
+
+			for (int i = 0; i < longs.length; ++i) on += Long.bitCount(longs[i]);
+			corner = ((longs[0] & 1L) != 0L);
+
+			// masks like Edges are mostly empty; skip those longs
+			for (int m = 0; m < masked.length; ++m) {
+				long[] bits = masks.bits[m];
+				for (int i : masks.used[m]) masked[m] += Long.bitCount(longs[i] & bits[i]);
+			}
+			
+			if (colOn != null) {
+				for (int y = 0; y < dy; ++y) countRow(longs, y, 1);
+			}
+		}
+
+		// add (sign 1) or remove (sign -1) long i, with value val
+		public void countLong(int i, long val, int sign) {
+			
+			on += sign * Long.bitCount(val);
+			if (i == 0) corner = ((val & 1L) != 0L);
+			
+			for (int m = 0; m < masked.length; ++m) {
+				masked[m] += sign * Long.bitCount(val & masks.bits[m][i]);
+			}
+		}
+
+		// add or remove the per-column counts contributed by row y
+		public void countRow(long[] longs, int y, int sign) {
+
+			for (int x0 = 0; x0 < dx; x0 += Long.SIZE) {
+
+				int count = Math.min(Long.SIZE, dx - x0);
+				long mask = (count == Long.SIZE ? -1L : (1L << count) - 1);
+
+				long cur = WordRules.readBits(longs, ((long) y * dx) + x0, count);
+				long prev = (y == 0 ? ~cur : WordRules.readBits(longs, ((long) (y-1) * dx) + x0, count));
+
+				addBits(colOn, x0, cur, sign);
+				addBits(colOnRuns, x0, cur & ~prev & mask, sign);
+				addBits(colOffRuns, x0, ~cur & prev & mask, sign);
+			}
+		}
+
+		private static void addBits(int[] cols, int x0, long bits, int sign) {
+			while (bits != 0L) {
+				cols[x0 + Long.numberOfTrailingZeros(bits)] += sign;
+				bits &= (bits - 1);
+			}
+		}
+
+		// same arithmetic as the cell-by-cell versions, so the same doubles
+		public double score() {
+
+			int total = dx * dy;
+			
+			switch (fitnessType) {
+				
+				case MostOn: default:
+				case MostOff:
+					double fractionOn = ((double) on) / ((double) total);
+					return(fitnessType == FitnessType.MostOff ? 1.0 - fractionOn : fractionOn);
+					
+				case FiftyFifty:
+					return(fiftyFifty());
+					
+				case Edges:
+					int edgePoints = (dx * 2) + (dy * 2) - 4;
+					int centerPoints = total - edgePoints;
+					int edgesOn = masked[0] + masked[1] + masked[2] + masked[3];
+					double edgeScore = ((double) edgesOn) / ((double) edgePoints);
+					int centerOff = centerPoints - (on - edgesOn);
+					double nonEdgeScore = ((double) centerOff) / ((double) centerPoints);
+					return((edgeScore + nonEdgeScore) / 2.0);
+
+				case VStripes:
+				case TwoBySquares:
+				case Checkerboard:
+					return(((double) matching(corner)) / ((double) total));
+
+				case Diamond21:
+				case Triangle21:
+				case Triangle41:
+					return(((double) matching(true)) / ((double) total));
+
+				case VStripes2:
+					return(vStripes2());
+
+				case VStripesCombo:
+					return((vStripes2() + fiftyFifty()) / 2.0);
+
+				case ComboQuadrants:
+					double nwScore = quadrant(0);
+					double neScore = 1.0 - quadrant(1);
+					double seScore = quadrant(2);
+					double swScore = quadrant(3);
+					if (swScore > 0.5) swScore = 0.5 - (swScore - 0.5);
+					swScore /= 0.5;
+					return((nwScore + neScore + seScore + swScore) / 4.0);
+			}
+		}
+
+		private double fiftyFifty() {
+			double fraction = ((double) on) / (((double) (dx * dy)) / 2);
+			return(fraction <= 1.0 ? fraction : 2.0 - fraction);
+		}
+
+		// cells matching mask 0 (patternVal true) or its inverse (false)
+		private int matching(boolean patternVal) {
+			int mismatched = on + masks.sizes[0] - (2 * masked[0]);
+			return(patternVal ? (dx * dy) - mismatched : mismatched);
+		}
+
+		private double quadrant(int m) {
+			return(((double) masked[m]) / ((double) masks.sizes[m]));
+		}
+
+		private double vStripes2() {
+
+			double avgRunAccum = averageRunLength(0, true);
+			boolean evenVal = true;
+
+			double temp = averageRunLength(0, false);
+			if (temp > avgRunAccum) {
+				avgRunAccum = temp;
+				evenVal = false;
+			}
+
+			for (int x = 1; x < dx; x += 2) {
+				avgRunAccum += averageRunLength(x, !evenVal);
+				if (x+1 < dx) avgRunAccum += averageRunLength(x+1, evenVal);
+			}
+
+			double avgRun = avgRunAccum / ((double)dx);
+			return(avgRun / ((double)dy));
+		}
+
+		private double averageRunLength(int x, boolean val) {
+			int accum = (val ? colOn[x] : dy - colOn[x]);
+			int runs = (val ? colOnRuns[x] : colOffRuns[x]);
+			return(runs == 0 ? 0.0 : ((double)accum) / ((double)runs));
+		}
+
+		private FitnessType fitnessType;
+		private int dx;
+		private int dy;
+		private Masks masks;
+
+		private int on;
+		private int[] masked;
+		private boolean corner;
+		private int[] colOn;
+		private int[] colOnRuns;
+		private int[] colOffRuns;
+	}
+
+	// +-------+
+	// | Masks |
+	// +-------+
+
+	// Fixed patterns packed the same way as Bitmap, built once per fitness
+	// type and world size. Null means the type can't score this size.
+
+	private static class Masks
+	{
+		public long[][] bits;
+		public int[][] used; // indexes of the non-zero longs in bits
+		public int[] sizes;
+	}
+
+	private static synchronized Masks getMasks(FitnessType fitnessType, int dx, int dy) {
+
+		String key = String.format("%s %d %d", fitnessType, dx, dy);
+		if (masksCache.containsKey(key)) return(masksCache.get(key));
+
+		Bitmap[] bitmaps = null;
+
+		switch (fitnessType) {
+			
+			default:
+				bitmaps = new Bitmap[0];
+				break;
+				
+			case Edges:
+				// the same cells the by-cell loops visit; a world one cell
+				// high or wide has its only row or column counted twice
+				bitmaps = new Bitmap[] { maskBitmap(dx, dy, (x, y) -> y == 0),
+										 maskBitmap(dx, dy, (x, y) -> y == dy - 1),
+										 maskBitmap(dx, dy, (x, y) -> x == 0 && y > 0 && y < dy - 1),
+										 maskBitmap(dx, dy, (x, y) -> x == dx - 1 && y > 0 && y < dy - 1) };
+				break;
+
+			case VStripes:
+				bitmaps = new Bitmap[] { maskBitmap(dx, dy, (x, y) -> (x % 2) == 0) };
+				break;
+				
+			case TwoBySquares:
+				bitmaps = new Bitmap[] { maskBitmap(dx, dy, (x, y) -> (((x / 2) + (y / 2)) % 2) == 0) };
+				break;
+				
+			case Checkerboard:
+				bitmaps = new Bitmap[] { maskBitmap(dx, dy, (x, y) -> ((x + y) % 2) == 0) };
+				break;
+
+			case ComboQuadrants:
+				int dxHalf = dx / 2;
+				int dyHalf = dy / 2;
+				bitmaps = new Bitmap[] { maskBitmap(dx, dy, (x, y) -> x < dxHalf && y < dyHalf),
+										 maskBitmap(dx, dy, (x, y) -> x >= dxHalf && y < dyHalf),
+										 maskBitmap(dx, dy, (x, y) -> x >= dxHalf && y >= dyHalf),
+										 maskBitmap(dx, dy, (x, y) -> x < dxHalf && y >= dyHalf) };
+				break;
+
+			case Diamond21: bitmaps = matchMask("@diamond21.bitmap.txt", dx, dy); break;
+			case Triangle21: bitmaps = matchMask("@triangle21.bitmap.txt", dx, dy); break;
+			case Triangle41: bitmaps = matchMask("@triangle41.bitmap.txt", dx, dy); break;
+		}
+
+		Masks masks = null;
+		
+		if (bitmaps != null) {
+			masks = new Masks();
+			masks.bits = new long[bitmaps.length][];
+			masks.used = new int[bitmaps.length][];
+			masks.sizes = new int[bitmaps.length];
+			
+			for (int i = 0; i < bitmaps.length; ++i) {
+				
+				long[] bits = bitmaps[i].longs;
+				masks.bits[i] = bits;
+				masks.sizes[i] = bitmaps[i].getTrueCount();
+
+				masks.used[i] = IntStream.range(0, bits.length).filter(j -> bits[j] != 0L).toArray();
+			}
+		}
+
+		masksCache.put(key, masks);
+		return(masks);
+	}
+
+	private interface CellTest {
+		public boolean test(int x, int y);
+	}
+
+	private static Bitmap maskBitmap(int dx, int dy, CellTest cellTest) {
+		Bitmap bitmap = new Bitmap(dx, dy);
+		for (int y = 0; y < dy; ++y) {
+			for (int x = 0; x < dx; ++x) {
+				if (cellTest.test(x, y)) bitmap.set(x, y, true);
+			}
+		}
+		return(bitmap);
+	}
+
+	private static Bitmap[] matchMask(String matchPath, int dx, int dy) {
+		
+		Bitmap matchBits = getMatchBitmap(matchPath);
+		if (matchBits == null) return(null); // already logged
+
+		if (dx != matchBits.getDx() || dy != matchBits.getDy()) {
+			log.severe("Size mismatch for matchFitness");
+			return(null);
+		}
+
+		return(new Bitmap[] { matchBits });
+	}
+
+	private static Map<String,Masks> masksCache = new HashMap<String,Masks>();
+
 	// +---------+
 	// | Members |
 	// +---------+
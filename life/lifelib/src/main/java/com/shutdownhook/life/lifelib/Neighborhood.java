@@ -140,6 +140,15 @@ public class Neighborhood
 		return(NEIGHBORHOOD_RELATIVES[neighborhoodType.ordinal()].length);
 	}
 
+	// +--------------+
+	// | getRelatives |
+	// +--------------+
+
+	// for WordRules; shared, so don't modify
+	static int[][] getRelatives(NeighborhoodType neighborhoodType) {
+		return(NEIGHBORHOOD_RELATIVES[neighborhoodType.ordinal()]);
+	}
+
 	// +---------+
 	// | Members |
 	// +---------+
@@ -150,13 +159,13 @@ public class Neighborhood
 	// | Neighborhood Relative Arrays |
 	// +------------------------------+
 
-	private static final int EDGE = 100000;
-	private static final int NW   = 100001;
-	private static final int NE   = 100002;
-	private static final int SW   = 100003;
-	private static final int SE   = 100004;
-	private static final int NS   = 100005;
-	private static final int WE   = 100006;
+	static final int EDGE = 100000;
+	static final int NW   = 100001;
+	static final int NE   = 100002;
+	static final int SW   = 100003;
+	static final int SE   = 100004;
+	static final int NS   = 100005;
+	static final int WE   = 100006;
 	
 	private static final int[][][] NEIGHBORHOOD_RELATIVES = {
 		{
@@ -52,6 +52,19 @@ public class NeighborhoodRulesProcessor implements Rules.RulesProcessor
 
 	public NeighborhoodType getNeighborhoodType() { return(neighborhoodType); }
 	protected Bitmap getVals() { return(vals); }
+
+	// +--------------+
+	// | getWordRules |
+	// +--------------+
+
+	// Rules.apply uses this instead of calling apply cell by cell. Compiled
+	// on first use, after subclass constructors have finished with vals.
+	// A subclass that overrides apply should return null here.
+
+	public WordRules getWordRules() {
+		if (wordRules == null) wordRules = new WordRules(neighborhoodType, vals);
+		return(wordRules);
+	}
 	
 	// +----------------------+
 	// | RulesProcessor.apply |
@@ -122,6 +135,7 @@ public class NeighborhoodRulesProcessor implements Rules.RulesProcessor
 
 	private NeighborhoodType neighborhoodType;
 	protected Bitmap vals;
+	private volatile WordRules wordRules;
 
 	private final static Logger log = Logger.getLogger(NeighborhoodRulesProcessor.class.getName());
 }
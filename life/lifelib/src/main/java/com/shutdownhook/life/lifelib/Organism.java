@@ -65,12 +65,13 @@ public class Organism
 												  int iterations,
 												  FitnessType fitnessType,
 												  double lastFitnessWeight,
-												  boolean saveStates) {
+												  boolean saveStates,
+												  boolean incrementalFitness) {
 		
 		return(exec.runAsync("runCycle", new Exec.AsyncOperation() {
 			public Cycle execute() throws Exception {
-				return(runCycle(initialEnv, iterations, fitnessType,
-								lastFitnessWeight, saveStates));
+				return(runCycle(null, initialEnv, iterations, fitnessType,
+								lastFitnessWeight, saveStates, incrementalFitness));
 			}
 		}));
 	}
@@ -78,6 +79,19 @@ public class Organism
 	public Cycle runCycle(Bitmap initialEnv, int iterations,
 						  FitnessType fitnessType, double lastFitnessWeight,
 						  boolean saveStates) throws Exception {
+
+		return(runCycle(null, initialEnv, iterations, fitnessType,
+						lastFitnessWeight, saveStates, false));
+	}
+
+	// tiledRunner null = run generations one after another on this thread.
+	// incrementalFitness = keep fitness current each generation with a
+	// Fitness.Tracker, which also lets the cycle stop early once the world
+	// stops changing; the result is the same either way.
+	
+	public Cycle runCycle(TiledRunner tiledRunner, Bitmap initialEnv, int iterations,
+						  FitnessType fitnessType, double lastFitnessWeight,
+						  boolean saveStates, boolean incrementalFitness) throws Exception {
 		++age;
 
 		Cycle cycle = new Cycle();
@@ -87,14 +101,32 @@ public class Organism
 			cycle.AllStates[0] = initialEnv;
 		}
 
+		Fitness.Tracker tracker = (incrementalFitness
+								   ? new Fitness.Tracker(initialEnv, fitnessType)
+								   : null);
+
 		Bitmap env = initialEnv;
-		for (int i = 0; i < iterations; ++i) {
-			env = Rules.apply(env, rules);
-			if (saveStates) cycle.AllStates[i+1] = env;
+		if (tiledRunner != null) {
+			env = tiledRunner.run(initialEnv, rules, iterations, cycle.AllStates, tracker);
+		}
+		else {
+			for (int i = 0; i < iterations; ++i) {
+				env = Rules.apply(env, rules);
+				if (saveStates) cycle.AllStates[i+1] = env;
+
+				// generation 0 may have a different EdgeStrategy, so only
+				// later generations are known to be a fixed point
+				if (tracker != null && !tracker.update(env) && i > 0) {
+					if (saveStates) Arrays.fill(cycle.AllStates, i+2, iterations+1, env);
+					break;
+				}
+			}
 		}
 
 		cycle.EndState = env;
-		cycle.Fitness = Fitness.compute(cycle.EndState, fitnessType);
+		cycle.Fitness = (tracker != null
+						 ? tracker.get()
+						 : Fitness.compute(cycle.EndState, fitnessType));
 
 		if (lastCycle != null && lastFitnessWeight > 0.0) {
 			cycle.Fitness = (lastCycle.Fitness * lastFitnessWeight) +
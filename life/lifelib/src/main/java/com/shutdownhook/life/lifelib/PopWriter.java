@@ -5,16 +5,22 @@
 
 package com.shutdownhook.life.lifelib;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
@@ -28,7 +34,21 @@ import com.shutdownhook.toolbox.Template;
 import com.shutdownhook.life.lifelib.Organism.Cycle;
 import com.shutdownhook.life.lifelib.Rules.RulesProcessor;
 
-public class PopWriter
+// The write* methods are called from the simulation loop. They just take
+// a cheap snapshot of whatever they need (organisms and the population
+// keep changing underneath us) and queue a job; a single writer thread
+// runs the jobs in order, so each file sees its writes in the order they
+// were made. Organism images are rendered once per organism per cycle on
+// a small pool as soon as they're asked for, and jobs wait for the ones
+// they need. The queue is bounded, so when the disk falls behind the
+// simulation blocks rather than piling up images in memory.
+//
+// Organism files stay open (buffered) from prefix to suffix; everything
+// else is rendered straight into its file. A failed job fails the next
+// write* call (or close). close drains the queue and must be called when
+// the population is done.
+
+public class PopWriter implements Closeable
 {
 	// +----------------+
 	// | Config & Setup |
@@ -58,6 +78,10 @@ public class PopWriter
 		public String OrganismDivTemplate = "@organismDiv.html.tmpl";
 
 		public String IndexTemplate = "@index.html.tmpl";
+
+		// jobs waiting to be written; 0 = write synchronously
+		public Integer QueueSize = 512;
+		public Integer RenderThreads = 2;
 	}
 
 	public PopWriter(Population pop, Config cfg) throws Exception {
@@ -80,6 +104,46 @@ public class PopWriter
 		this.orgSuffixTemplate = new Template(orgSuffixTemplateText);
 		
 		this.graphics = new Graphics(new Graphics.Config());
+		this.renderExec = new Exec(Math.max(1, cfg.RenderThreads));
+
+		this.views = new HashMap<String,OrgView>();
+		this.orgWriters = new HashMap<String,Writer>();
+
+		if (cfg.QueueSize > 0) {
+			this.queue = new ArrayBlockingQueue<Job>(cfg.QueueSize);
+			this.writerThread = new Thread(() -> writerLoop(), "PopWriter");
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
+	}
+
+	// +-------+
+	// | close |
+	// +-------+
+
+	public void close() throws IOException {
+
+		if (closed) return;
+		closed = true;
+
+		if (queue != null) {
+			try {
+				queue.put(STOP);
+				writerThread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (Writer w : orgWriters.values()) {
+			try { w.close(); } catch (IOException e) { recordFailure(e); }
+		}
+		orgWriters.clear();
+
+		renderExec.shutdownPool();
+
+		if (failure != null) throw new IOException("PopWriter failed", failure);
 	}
 	
 	// +-------------+
@@ -89,7 +153,7 @@ public class PopWriter
 	public void writeConfig() throws Exception {
 		File file = getConfigFile();
 		String json = new Gson().toJson(pop.getConfig());
-		Easy.stringToFile(file.getAbsolutePath(), json);
+		enqueue(() -> Easy.stringToFile(file.getAbsolutePath(), json));
 	}
 
 	// +------------+
@@ -102,7 +166,7 @@ public class PopWriter
 
 		int cycleCount = pop.getCycleCount();
 		
-		Map tokens = new HashMap<String,String>();
+		Map<String,String> tokens = new HashMap<String,String>();
 		tokens.put("NAME", pop.getName());
 		tokens.put("CYCLE_COUNT", Integer.toString(cycleCount));
 		tokens.put("CONFIG_URL", getConfigFile().getName());
@@ -110,30 +174,33 @@ public class PopWriter
 		tokens.put("FIRST_CYCLE_URL", getPopulationFile(1).getName());
 		tokens.put("LAST_CYCLE_URL", getPopulationFile(cycleCount).getName());
 
-		tokens.put("WINNER_ORG_DIV", getOrganismDiv(pop.getOrganisms()[0], 1, 1));
+		OrgView winner = getView(pop.getOrganisms()[0]);
 				   
 		String json = new GsonBuilder().setPrettyPrinting().create().toJson(pop.getConfig());
 		tokens.put("CONFIG_JSON", json);
 
 		addFitnessLists(tokens);
 		
-		String html = indexTemplate.render(tokens, new Template.TemplateProcessor() {
+		enqueue(() -> {
 
-			public boolean repeat(String[] args, int counter) {
+			tokens.put("WINNER_ORG_DIV", getOrganismDiv(winner, 1, 1));
 
-				if (cycleNum > cycleCount) return(false);
+			renderToFile(file, indexTemplate, tokens, new Template.TemplateProcessor() {
 
-				tokens.put("CYCLE_URL", getPopulationFile(cycleNum).getName());
-				tokens.put("CYCLE_NUM", Integer.toString(cycleNum));
+				public boolean repeat(String[] args, int counter) {
 				
-				++cycleNum;
-				return(true);
-			}
+					if (cycleNum > cycleCount) return(false);
 
-			private int cycleNum = 1;
-		});
+					tokens.put("CYCLE_URL", getPopulationFile(cycleNum).getName());
+					tokens.put("CYCLE_NUM", Integer.toString(cycleNum));
+
+					++cycleNum;
+					return(true);
+				}
 
-		Easy.stringToFile(file.getAbsolutePath(), html);
+				private int cycleNum = 1;
+			});
+		});
 	}
 
 	private void addFitnessLists(Map<String,String> tokens) {
@@ -175,19 +242,20 @@ public class PopWriter
 		
 		File file = getCsvFile();
 
-		StringBuilder sb = new StringBuilder();
-		sb.append("Maximum,Average,Minimum\n");
+		// metrics objects are finished by now, but the list keeps growing
+		List<Population.FitnessMetrics> allMetrics =
+			new ArrayList<Population.FitnessMetrics>(pop.getMetrics());
 		
-		List<Population.FitnessMetrics> allMetrics = pop.getMetrics();
-
-		for (int i = 0; i < allMetrics.size(); ++i) {
-			Population.FitnessMetrics metrics = allMetrics.get(i);
-			sb.append(String.format("%.3f,%.3f,%.3f\n",
-									metrics.Max, metrics.Avg,
-									metrics.Min));
-		}
-		
-		Easy.stringToFile(file.getAbsolutePath(), sb.toString());
+		enqueue(() -> {
+			try (Writer w = openWriter(file, false)) {
+				w.write("Maximum,Average,Minimum\n");
+				for (Population.FitnessMetrics metrics : allMetrics) {
+					w.write(String.format("%.3f,%.3f,%.3f\n",
+										  metrics.Max, metrics.Avg,
+										  metrics.Min));
+				}
+			}
+		});
 	}
 
 	// +---------------+
@@ -212,7 +280,7 @@ public class PopWriter
 			return;
 		}
 
-		((NeighborhoodRulesProcessor)rulesProcessor).toFile(file);
+		enqueue(() -> ((NeighborhoodRulesProcessor)rulesProcessor).toFile(file));
 	}
 
 	// +-----------------+
@@ -223,7 +291,7 @@ public class PopWriter
 
 		File file = getPopulationFile(pop.getAge());
 		
-		Map tokens = new HashMap<String,String>();
+		Map<String,String> tokens = new HashMap<String,String>();
 		tokens.put("NAME", pop.getName());
 		tokens.put("AGE", Integer.toString(pop.getAge()));
 		tokens.put("CYCLE_COUNT", Integer.toString(pop.getCycleCount()));
@@ -244,31 +312,34 @@ public class PopWriter
 
 		tokens.put("COL_TEMPLATE", repeatString("auto", cfg.PopulationColumns));
 
-		String html = popTemplate.render(tokens, new Template.TemplateProcessor() {
+		Organism[] organisms = pop.getOrganisms();
+		OrgView[] orgViews = new OrgView[organisms.length];
+		for (int i = 0; i < organisms.length; ++i) orgViews[i] = getView(organisms[i]);
 				
-			public boolean repeat(String[] args, int counter) {
+		enqueue(() -> {
+			renderToFile(file, popTemplate, tokens, new Template.TemplateProcessor() {
 
-				if (iorg == pop.getOrganisms().length) return(false);
+				public boolean repeat(String[] args, int counter) {
 
-				Organism org = pop.getOrganisms()[iorg];
-				tokens.put("ORG_DIV", getOrganismDiv(org, row, col));
+					if (iorg == orgViews.length) return(false);
 
-				++col;
-				if (col > cfg.PopulationColumns) {
-					col = 1;
-					++row;
-				}
+					tokens.put("ORG_DIV", getOrganismDiv(orgViews[iorg], row, col));
 
-				++iorg;
-				return(true);
-			}
+					++col;
+					if (col > cfg.PopulationColumns) {
+						col = 1;
+						++row;
+					}
 
-			private int iorg = 0;
-			private int row = 1;
-			private int col = 1;
-		});
+					++iorg;
+					return(true);
+				}
 
-		Easy.stringToFile(file.getAbsolutePath(), html);
+				private int iorg = 0;
+				private int row = 1;
+				private int col = 1;
+			});
+		});
 	}
 
 	// +---------------------+
@@ -281,42 +352,66 @@ public class PopWriter
 		throws Exception {
 
 		File file = getOrganismFile(org);
+		String id = org.getId();
 
 		boolean haveParents = (parent1 != null || parent2 != null);
-		String parent1Div = (parent1 == null ? "" : getOrganismDiv(parent1, 1, 1));
-		String parent2Div = (parent2 == null ? "" : getOrganismDiv(parent2, 1, 2));
+		OrgView parent1View = (parent1 == null ? null : getView(parent1));
+		OrgView parent2View = (parent2 == null ? null : getView(parent2));
 		
-		Map tokens = new HashMap<String,String>();
-		tokens.put("ID", org.getId());
+		Map<String,String> tokens = new HashMap<String,String>();
+		tokens.put("ID", id);
 		tokens.put("COL_TEMPLATE", repeatString("auto", cfg.OrganismColumns));
 		tokens.put("HAVE_PARENTS", Boolean.toString(haveParents));
-		tokens.put("PARENT1_ORG_DIV", parent1Div);
-		tokens.put("PARENT2_ORG_DIV", parent2Div);
 		
-		String html = orgPrefixTemplate.render(tokens);
-		Easy.stringToFile(file.getAbsolutePath(), html);
+		enqueue(() -> {
+			tokens.put("PARENT1_ORG_DIV", parent1View == null ? "" : getOrganismDiv(parent1View, 1, 1));
+			tokens.put("PARENT2_ORG_DIV", parent2View == null ? "" : getOrganismDiv(parent2View, 1, 2));
+
+			Writer w = openWriter(file, false);
+			orgWriters.put(id, w);
+			orgPrefixTemplate.render(w, tokens, null);
+		});
 	}
 
 	public void writeOrganismCycle(Organism org) throws Exception {
 
 		File file = getOrganismFile(org);
+		OrgView view = getView(org);
 
-		int row = (org.getAge() / cfg.OrganismColumns) + 1;
-		int col = (org.getAge() % cfg.OrganismColumns) + 1;
+		int row = (view.Age / cfg.OrganismColumns) + 1;
+		int col = (view.Age % cfg.OrganismColumns) + 1;
 
-		String html = getOrganismDiv(org, row, col);
-		Easy.appendStringToFile(file.getAbsolutePath(), html);
+		enqueue(() -> getOrgWriter(view.Id, file).write(getOrganismDiv(view, row, col)));
 	}
 
 	public void writeOrganismSuffix(Organism org) throws Exception {
 
 		File file = getOrganismFile(org);
+		String id = org.getId();
+
+		// the organism is done; nobody will ask for its image again
+		synchronized (views) { views.remove(id); }
 
-		Map tokens = new HashMap<String,String>();
+		Map<String,String> tokens = new HashMap<String,String>();
 		// no tokens yet
 
-		String html = orgSuffixTemplate.render(tokens);
-		Easy.appendStringToFile(file.getAbsolutePath(), html);
+		enqueue(() -> {
+			Writer w = getOrgWriter(id, file);
+			orgWriters.remove(id);
+			try { orgSuffixTemplate.render(w, tokens, null); }
+			finally { w.close(); }
+		});
+	}
+
+	// writer thread only
+	private Writer getOrgWriter(String id, File file) throws IOException {
+		Writer w = orgWriters.get(id);
+		if (w == null) {
+			// e.g., a prefix written by an earlier PopWriter
+			w = openWriter(file, true);
+			orgWriters.put(id, w);
+		}
+		return(w);
 	}
 	
 	// +----------------+
@@ -324,18 +419,22 @@ public class PopWriter
 	// +----------------+
 
 	public String getOrganismDiv(Organism org, int row, int col) {
+		return(getOrganismDiv(getView(org), row, col));
+	}
+
+	private String getOrganismDiv(OrgView view, int row, int col) {
 
 		try {
-			Cycle cycle = org.getLastCycle();
-			String img = graphics.renderDataURL(cycle.EndState);
+			String img = view.Img.get();
+			if (img == null) return(""); // render failed and was logged
 
 			Map<String,String> tokens = new HashMap<String,String>();
-			tokens.put("AGE", Integer.toString(org.getAge()));
-			tokens.put("FITNESS", String.format("%.3f", cycle.Fitness));
+			tokens.put("AGE", Integer.toString(view.Age));
+			tokens.put("FITNESS", String.format("%.3f", view.Fitness));
 			tokens.put("IMG", img);
 			tokens.put("ROW", Integer.toString(row));
 			tokens.put("COL", Integer.toString(col));
-			tokens.put("URL", getOrganismFile(org).getName());
+			tokens.put("URL", view.Url);
 			
 			return(orgDivTemplate.render(tokens));
 		}
@@ -345,6 +444,111 @@ public class PopWriter
 		}
 	}
 
+	// +---------+
+	// | OrgView |
+	// +---------+
+
+	// What an organism looked like at the end of a cycle. The image render
+	// starts as soon as the view is created; every page that shows this
+	// organism for this cycle shares it.
+
+	private static class OrgView
+	{
+		public String Id;
+		public int Age;
+		public double Fitness;
+		public String Url;
+		public CompletableFuture<String> Img;
+	}
+
+	private OrgView getView(Organism org) {
+
+		synchronized (views) {
+
+			OrgView view = views.get(org.getId());
+			if (view != null && view.Age == org.getAge()) return(view);
+
+			Cycle cycle = org.getLastCycle();
+			Bitmap endState = cycle.EndState; // never changed once the cycle is done
+
+			view = new OrgView();
+			view.Id = org.getId();
+			view.Age = org.getAge();
+			view.Fitness = cycle.Fitness;
+			view.Url = getOrganismFile(org).getName();
+
+			view.Img = renderExec.runAsync("renderDataURL", new Exec.AsyncOperation() {
+				public String execute() throws Exception {
+					return(graphics.renderDataURL(endState));
+				}
+			});
+
+			views.put(view.Id, view);
+			return(view);
+		}
+	}
+
+	// +-------------+
+	// | Job & queue |
+	// +-------------+
+
+	private interface Job {
+		public void run() throws Exception;
+	}
+
+	private final static Job STOP = () -> { };
+
+	private void enqueue(Job job) throws Exception {
+
+		if (failure != null) throw new Exception("PopWriter failed", failure);
+		if (closed) throw new IllegalStateException("PopWriter is closed");
+
+		if (queue == null) {
+			job.run();
+			return;
+		}
+
+		// blocks when the writer falls behind
+		queue.put(job);
+	}
+
+	private void writerLoop() {
+
+		while (true) {
+
+			Job job;
+			try { job = queue.take(); }
+			catch (InterruptedException e) { return; }
+
+			if (job == STOP) return;
+
+			// after a failure keep draining, so nobody stays blocked on put
+			if (failure != null) continue;
+
+			// Errors too; a dead writer thread would leave put and close
+			// waiting forever once the queue fills
+			try { job.run(); }
+			catch (Throwable e) { recordFailure(e); }
+		}
+	}
+
+	private void recordFailure(Throwable e) {
+		log.severe(Easy.exMsg(e, "PopWriter job", true));
+		if (failure == null) failure = e;
+	}
+
+	private Writer openWriter(File file, boolean append) throws IOException {
+		return(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append),
+														 StandardCharsets.UTF_8)));
+	}
+
+	private void renderToFile(File file, Template template, Map<String,String> tokens,
+							  Template.TemplateProcessor processor) throws Exception {
+		try (Writer w = openWriter(file, false)) {
+			template.render(w, tokens, processor);
+		}
+	}
+
 	// +-------+
 	// | files |
 	// +-------+
@@ -371,7 +575,7 @@ public class PopWriter
 		return(new File(getWriteDir(), cfg.CsvFileName));
 	}
 	
-	private File getWriteDir() {
+	private synchronized File getWriteDir() {
 
 		if (writeDir != null) return(writeDir);
 
@@ -430,6 +634,14 @@ public class PopWriter
 	private Template orgDivTemplate;
 	
 	private Graphics graphics;
+	private Exec renderExec;
+	private Map<String,OrgView> views;
+
+	private BlockingQueue<Job> queue; // null = synchronous
+	private Thread writerThread;
+	private Map<String,Writer> orgWriters; // writer thread only
+	private volatile Throwable failure;
+	private volatile boolean closed = false;
 
 	private File writeDir;
 	
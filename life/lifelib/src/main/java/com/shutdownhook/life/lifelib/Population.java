@@ -56,6 +56,16 @@ public class Population
 
 		public Reproduction.Params ReproductionParams = new Reproduction.Params();
 
+		// true = run organisms one at a time, each splitting the world into
+		// bands of rows computed in parallel (see TiledRunner). Better for
+		// big worlds and small populations; 0 band rows = auto.
+		public Boolean TiledWorld = false;
+		public Integer TileBandRows = 0;
+
+		// true = keep fitness current every generation (see Fitness.Tracker)
+		// so cycles can stop as soon as a world stops changing
+		public Boolean IncrementalFitness = false;
+
 		public PopWriter.Config PopWriter;
 	}
 
@@ -123,12 +133,26 @@ public class Population
 		
 		List<CompletableFuture<Cycle>> futures = new ArrayList<CompletableFuture<Cycle>>();
 		for (int i = 0; i < organisms.length; ++i) {
+
+			if (cfg.TiledWorld) {
+				if (tiledRunner == null) {
+					tiledRunner = new TiledRunner(cfg.WorldDx, cfg.WorldDy, cfg.TileBandRows, null);
+				}
+				
+				futures.add(CompletableFuture.completedFuture(
+					organisms[i].runCycle(tiledRunner, initialEnv, cfg.CycleLength,
+										  cfg.FitnessType, cfg.LastFitnessWeight,
+										  saveStates, cfg.IncrementalFitness)));
+				continue;
+			}
+			
 			futures.add(organisms[i].runCycleAsync(exec,
 												   initialEnv,
 												   cfg.CycleLength,
 												   cfg.FitnessType,
 												   cfg.LastFitnessWeight,
-												   saveStates));
+												   saveStates,
+												   cfg.IncrementalFitness));
 		}
 
 		// and wait for them to be done
@@ -172,6 +196,9 @@ public class Population
 				popWriter.writeIndex();
 				popWriter.writeCsv();
 				popWriter.writeTopRules();
+
+				// wait for everything to hit the disk
+				popWriter.close();
 			}
 		}
 
@@ -302,6 +329,7 @@ public class Population
 	private List<FitnessMetrics> metrics;
 	
 	private PopWriter popWriter;
+	private TiledRunner tiledRunner;
 
 	private final static Logger log = Logger.getLogger(Population.class.getName());
 }
@@ -33,6 +33,17 @@ public class Rules
 
 	public static Bitmap apply(Bitmap env, RulesProcessor proc) {
 
+		if (proc instanceof NeighborhoodRulesProcessor) {
+			WordRules wordRules = ((NeighborhoodRulesProcessor) proc).getWordRules();
+			if (wordRules != null) return(wordRules.apply(env));
+		}
+
+		return(applyByCell(env, proc));
+	}
+
+	// the general path, for any RulesProcessor
+	public static Bitmap applyByCell(Bitmap env, RulesProcessor proc) {
+
 		int dx = env.getDx();
 		int dy = env.getDy();
 		
@@ -0,0 +1,196 @@
+//
+// TILEDRUNNER.JAVA
+//
+
+// Runs one world for many generations by splitting it into bands of rows
+// that are computed in parallel on a ForkJoinPool. Each band pads its own
+// rows plus PAD halo rows on either side straight from the previous
+// generation (which nobody writes while a generation is running), so there
+// is no other coordination between bands. Band boundaries fall on long
+// boundaries of the Bitmap so no two bands ever write the same long.
+//
+// Generations ping-pong between two Bitmaps that, like the padded band
+// buffers, are reused for every run; a TiledRunner handles one world at a
+// time and is not thread-safe.
+
+package com.shutdownhook.life.lifelib;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import com.shutdownhook.life.lifelib.Rules.RulesProcessor;
+
+public class TiledRunner
+{
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	// bandRows 0 = pick based on pool parallelism; pool null = common pool
+	public TiledRunner(int dx, int dy, int bandRows, ForkJoinPool pool) {
+
+		this.dx = dx;
+		this.dy = dy;
+		this.pool = (pool == null ? ForkJoinPool.commonPool() : pool);
+
+		// smallest row count that always ends on a long boundary
+		int align = Long.SIZE / gcd(dx, Long.SIZE);
+
+		if (bandRows <= 0) {
+			int targetBands = this.pool.getParallelism() * BANDS_PER_THREAD;
+			bandRows = (dy + targetBands - 1) / targetBands;
+		}
+
+		this.bandRows = Math.min(dy, ((bandRows + align - 1) / align) * align);
+		this.bandCount = (dy + this.bandRows - 1) / this.bandRows;
+
+		// Rules.apply hands back Wrap bitmaps; match it exactly
+		this.buffers = new Bitmap[] { new Bitmap(dx, dy), new Bitmap(dx, dy) };
+
+		Bitmap shape = buffers[0];
+		this.padded = new long[bandCount][][];
+		for (int i = 0; i < bandCount; ++i) {
+			padded[i] = WordRules.newPaddedRows(shape, this.bandRows);
+		}
+
+		log.fine(String.format("TiledRunner %dx%d: %d bands of %d rows",
+							   dx, dy, bandCount, this.bandRows));
+	}
+
+	// +------------+
+	// | Properties |
+	// +------------+
+
+	public int getBandRows() { return(bandRows); }
+	public int getBandCount() { return(bandCount); }
+
+	// +-----+
+	// | run |
+	// +-----+
+
+	// Same result as calling Rules.apply iterations times. If states is
+	// non-null, states[i] gets a copy of generation i (1..iterations). The
+	// returned end state is a copy too, so it outlives the next run.
+
+	public Bitmap run(Bitmap initialEnv, RulesProcessor rules,
+					  int iterations, Bitmap[] states) {
+		return(run(initialEnv, rules, iterations, states, null));
+	}
+
+	// tracker (may be null) is updated every generation; once it reports
+	// no change after the first generation the world is at a fixed point,
+	// so the remaining generations are skipped
+	public Bitmap run(Bitmap initialEnv, RulesProcessor rules,
+					  int iterations, Bitmap[] states, Fitness.Tracker tracker) {
+
+		if (initialEnv.getDx() != dx || initialEnv.getDy() != dy) {
+			throw new IllegalArgumentException("TiledRunner world size mismatch");
+		}
+
+		WordRules wordRules = null;
+		if (rules instanceof NeighborhoodRulesProcessor) {
+			wordRules = ((NeighborhoodRulesProcessor) rules).getWordRules();
+		}
+
+		if (wordRules == null) {
+			// nothing to tile; just the regular path
+			Bitmap env = initialEnv;
+			for (int i = 0; i < iterations; ++i) {
+				env = Rules.apply(env, rules);
+				if (states != null) states[i+1] = env;
+				if (fixedPoint(tracker, env, i, iterations, states)) break;
+			}
+			return(env);
+		}
+
+		Bitmap env = initialEnv;
+		for (int i = 0; i < iterations; ++i) {
+			Bitmap newEnv = buffers[i % 2];
+			pool.invoke(new BandTask(wordRules, env, newEnv, 0, bandCount));
+			env = newEnv;
+			if (states != null) states[i+1] = copy(env);
+			if (fixedPoint(tracker, env, i, iterations, states)) break;
+		}
+
+		return(iterations == 0 ? env : copy(env));
+	}
+
+	private static boolean fixedPoint(Fitness.Tracker tracker, Bitmap env, int i,
+									  int iterations, Bitmap[] states) {
+
+		// generation 0 may have a different EdgeStrategy than the rest
+		if (tracker == null || tracker.update(env) || i == 0) return(false);
+		
+		if (states != null) Arrays.fill(states, i+2, iterations+1, states[i+1]);
+		return(true);
+	}
+
+	// +----------+
+	// | BandTask |
+	// +----------+
+
+	private class BandTask extends RecursiveAction
+	{
+		public BandTask(WordRules wordRules, Bitmap env, Bitmap newEnv, int lo, int hi) {
+			this.wordRules = wordRules; this.env = env; this.newEnv = newEnv;
+			this.lo = lo; this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo == 1) {
+				runBand(wordRules, env, newEnv, lo);
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new BandTask(wordRules, env, newEnv, lo, mid),
+					  new BandTask(wordRules, env, newEnv, mid, hi));
+		}
+
+		private WordRules wordRules;
+		private Bitmap env;
+		private Bitmap newEnv;
+		private int lo;
+		private int hi;
+	}
+
+	private void runBand(WordRules wordRules, Bitmap env, Bitmap newEnv, int band) {
+		int yMin = band * bandRows;
+		int yMac = Math.min(dy, yMin + bandRows);
+		WordRules.padRows(env, padded[band], yMin);
+		wordRules.apply(env, newEnv, padded[band], yMin, yMac);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static Bitmap copy(Bitmap env) {
+		return(new Bitmap(env.getDx(), env.getDy(), env.getEdgeStrategy(), env.longs.clone()));
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) { int t = a % b; a = b; b = t; }
+		return(a);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	// a few bands per thread keeps everyone busy when some finish early
+	private final static int BANDS_PER_THREAD = 2;
+
+	private int dx;
+	private int dy;
+	private int bandRows;
+	private int bandCount;
+	private ForkJoinPool pool;
+
+	private Bitmap[] buffers;
+	private long[][][] padded;
+
+	private final static Logger log = Logger.getLogger(TiledRunner.class.getName());
+}
@@ -0,0 +1,368 @@
+//
+// WORDRULES.JAVA
+//
+
+// Applies a NeighborhoodRulesProcessor 64 cells at a time. Each generation
+// the environment is copied into rows padded by PAD cells on every side
+// (filled per the EdgeStrategy), so any relative of a run of 64 cells is
+// just a 64-bit read from the right padded row at the right offset ---
+// no per-cell edge checks. The rule table is compiled once into a reduced
+// decision diagram whose nodes are evaluated as bitwise multiplexers, so
+// the whole table is applied to all 64 lanes of a word together.
+
+package com.shutdownhook.life.lifelib;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.shutdownhook.life.lifelib.Bitmap.EdgeStrategy;
+import com.shutdownhook.life.lifelib.Neighborhood.NeighborhoodType;
+
+public class WordRules
+{
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	public WordRules(NeighborhoodType neighborhoodType, Bitmap vals) {
+
+		this.neighborhoodType = neighborhoodType;
+		this.relatives = Neighborhood.getRelatives(neighborhoodType);
+
+		compile(vals);
+
+		log.fine(String.format("Compiled %s rules to %d nodes",
+							   neighborhoodType, nodeVar.length - FIRST_NODE));
+	}
+
+	// +-------+
+	// | apply |
+	// +-------+
+
+	public Bitmap apply(Bitmap env) {
+		// matches Rules.apply, which always hands back a default (Wrap) bitmap
+		Bitmap newEnv = new Bitmap(env.getDx(), env.getDy());
+		apply(env, newEnv, null);
+		return(newEnv);
+	}
+
+	// newEnv must be the same size as env and distinct from it; padded may
+	// be null or a buffer from newPaddedRows(env) to reuse across calls
+	public void apply(Bitmap env, Bitmap newEnv, long[][] padded) {
+		apply(env, newEnv, padRows(env, padded), 0, env.getDy());
+	}
+
+	// rows [yMin, yMac) only, from padRows(env, padded, yMin); each band
+	// writes only its own bits of newEnv, except that bands meeting mid-word
+	// share a long --- callers running bands in parallel must keep them
+	// word-aligned (see TiledRunner)
+	public void apply(Bitmap env, Bitmap newEnv, long[][] padded, int yMin, int yMac) {
+
+		int dx = env.getDx();
+		int dy = env.getDy();
+		int words = (dx + Long.SIZE - 1) / Long.SIZE;
+
+		long[] inputs = new long[relatives.length];
+		long[] nodeVals = new long[nodeVar.length];
+		nodeVals[ONE] = -1L;
+
+		for (int y = yMin; y < yMac; ++y) {
+			for (int w = 0; w < words; ++w) {
+
+				int x0 = w * Long.SIZE;
+				getInputs(padded, y - yMin, dx, dy, x0, y, inputs);
+
+				long bits = (table == null ? eval(inputs, nodeVals) : evalByLane(inputs));
+				int count = Math.min(Long.SIZE, dx - x0);
+				writeBits(newEnv.longs, ((long) y * dx) + x0, bits, count);
+			}
+		}
+	}
+
+	// +---------+
+	// | padRows |
+	// +---------+
+
+	public final static int PAD = 2; // furthest relative in any neighborhood
+
+	public static long[][] newPaddedRows(Bitmap env) {
+		return(newPaddedRows(env, env.getDy()));
+	}
+
+	// room for a band of rows plus PAD halo rows above and below
+	public static long[][] newPaddedRows(Bitmap env, int rows) {
+		int wordsPerRow = ((env.getDx() + (2 * PAD) + Long.SIZE - 1) / Long.SIZE) + 1;
+		return(new long[rows + (2 * PAD)][wordsPerRow]);
+	}
+
+	public static long[][] padRows(Bitmap env, long[][] padded) {
+		return(padRows(env, padded, 0));
+	}
+
+	// padded[PAD + y - yMin] holds row y, with cell x at bit PAD + x. Halo
+	// rows above and below a band come straight from env; rows off the top
+	// or bottom of env follow the EdgeStrategy.
+	public static long[][] padRows(Bitmap env, long[][] padded, int yMin) {
+
+		if (padded == null) padded = newPaddedRows(env);
+
+		for (int yPad = 0; yPad < padded.length; ++yPad) {
+			padRow(env, yMin + yPad - PAD, padded[yPad]);
+		}
+
+		return(padded);
+	}
+
+	private static void padRow(Bitmap env, int y, long[] row) {
+
+		int dx = env.getDx();
+		int dy = env.getDy();
+		EdgeStrategy edge = env.getEdgeStrategy();
+
+		if (y < 0 || y >= dy) {
+			// off the top or bottom; corners follow the same strategy
+			if (edge == EdgeStrategy.On) { fillRow(row, -1L); return; }
+			if (edge == EdgeStrategy.Off) { fillRow(row, 0L); return; }
+			y = Math.floorMod(y, dy);
+		}
+
+		fillRow(row, 0L);
+
+		long rowStart = (long) y * dx;
+		for (int x = 0; x < dx; x += Long.SIZE) {
+			int count = Math.min(Long.SIZE, dx - x);
+			writeBits(row, PAD + x, readBits(env.longs, rowStart + x, count), count);
+		}
+
+		for (int i = 1; i <= PAD; ++i) {
+			writeBits(row, PAD - i, edgeBit(env, edge, -i, rowStart), 1);
+			writeBits(row, PAD + dx - 1 + i, edgeBit(env, edge, dx - 1 + i, rowStart), 1);
+		}
+	}
+
+	private static long edgeBit(Bitmap env, EdgeStrategy edge, int x, long rowStart) {
+		if (edge == EdgeStrategy.On) return(1L);
+		if (edge == EdgeStrategy.Off) return(0L);
+		return(readBits(env.longs, rowStart + Math.floorMod(x, env.getDx()), 1));
+	}
+
+	private static void fillRow(long[] row, long val) {
+		for (int i = 0; i < row.length; ++i) row[i] = val;
+	}
+
+	// +-----------+
+	// | getInputs |
+	// +-----------+
+
+	// inputs[i] gets relative i for cells x0..x0+63 of row y (which is row
+	// yBand of the padded band), the same bit Neighborhood.get would produce
+	// for each of them
+
+	private void getInputs(long[][] padded, int yBand, int dx, int dy, int x0, int y, long[] inputs) {
+
+		long north = (y < (dy / 2) ? -1L : 0L);
+		long west = lowMask((dx / 2) - x0);
+
+		for (int i = 0; i < relatives.length; ++i) {
+
+			int xOffset = relatives[i][0];
+			int yOffset = relatives[i][1];
+
+			switch (xOffset) {
+
+				case Neighborhood.EDGE:
+					inputs[i] = edgeMask(dx, dy, x0, y);
+					break;
+
+				case Neighborhood.NS: inputs[i] = north; break;
+				case Neighborhood.WE: inputs[i] = west; break;
+				case Neighborhood.NW: inputs[i] = west & north; break;
+				case Neighborhood.NE: inputs[i] = ~west & north; break;
+				case Neighborhood.SW: inputs[i] = west & ~north; break;
+				case Neighborhood.SE: inputs[i] = ~west & ~north; break;
+
+				default:
+					inputs[i] = readBits(padded[PAD + yBand + yOffset], PAD + x0 + xOffset, Long.SIZE);
+					break;
+			}
+		}
+	}
+
+	private static long edgeMask(int dx, int dy, int x0, int y) {
+
+		if (y == 0 || y == dy - 1) return(-1L);
+
+		long mask = 0L;
+		if (x0 == 0) mask |= 1L;
+
+		int xLast = dx - 1 - x0;
+		if (xLast >= 0 && xLast < Long.SIZE) mask |= (1L << xLast);
+
+		return(mask);
+	}
+
+	// lowest count bits set; count is clamped to 0..64
+	private static long lowMask(int count) {
+		if (count <= 0) return(0L);
+		if (count >= Long.SIZE) return(-1L);
+		return((1L << count) - 1);
+	}
+
+	// +----------------+
+	// | compile & eval |
+	// +----------------+
+
+	// Neighborhood.get puts relative 0 in the high bit of the table index,
+	// so the top half of the table is "relative 0 on." Splitting on each
+	// relative in turn gives a binary decision tree over the table; merging
+	// identical subtrees and skipping tests whose two branches are the same
+	// shrinks it to a DAG. Nodes are numbered children-first, so a single
+	// forward pass evaluates them.
+
+	private final static int ZERO = 0;
+	private final static int ONE = 1;
+	private final static int FIRST_NODE = 2;
+
+	private void compile(Bitmap vals) {
+
+		int size = 1 << relatives.length;
+		if (vals.getDx() != size || vals.getDy() != 1) {
+			throw new IllegalArgumentException("WordRules vals must match relative count");
+		}
+
+		unique = new HashMap<Long,Integer>();
+		vars = new int[16]; los = new int[16]; his = new int[16];
+		nodeCount = FIRST_NODE;
+
+		root = build(vals, 0, 0, size);
+
+		nodeVar = new int[nodeCount];
+		nodeLo = new int[nodeCount];
+		nodeHi = new int[nodeCount];
+		System.arraycopy(vars, 0, nodeVar, 0, nodeCount);
+		System.arraycopy(los, 0, nodeLo, 0, nodeCount);
+		System.arraycopy(his, 0, nodeHi, 0, nodeCount);
+
+		unique = null; vars = null; los = null; his = null;
+
+		// Each node costs a few ops per word; assembling each cell's index
+		// costs a few per relative per cell. Big tables with little
+		// structure (e.g. VonNeumannR2's 8192 random entries) come out
+		// cheaper the second way.
+		if (nodeCount > relatives.length * LANE_COST_NODES) {
+			table = new boolean[size];
+			for (int i = 0; i < size; ++i) table[i] = vals.get(i, 0);
+		}
+	}
+
+	private int build(Bitmap vals, int level, int offset, int size) {
+
+		if (size == 1) return(vals.get(offset, 0) ? ONE : ZERO);
+
+		int half = size / 2;
+		int lo = build(vals, level + 1, offset, half);
+		int hi = build(vals, level + 1, offset + half, half);
+		if (lo == hi) return(lo);
+
+		long key = (((long) level) << 42) | (((long) lo) << 21) | hi;
+		Integer existing = unique.get(key);
+		if (existing != null) return(existing);
+
+		if (nodeCount == vars.length) {
+			vars = Arrays.copyOf(vars, nodeCount * 2);
+			los = Arrays.copyOf(los, nodeCount * 2);
+			his = Arrays.copyOf(his, nodeCount * 2);
+		}
+
+		int node = nodeCount++;
+		vars[node] = level; los[node] = lo; his[node] = hi;
+		unique.put(key, node);
+
+		return(node);
+	}
+
+	private final static int LANE_COST_NODES = 24;
+
+	private long evalByLane(long[] inputs) {
+
+		long bits = 0L;
+
+		for (int lane = 0; lane < Long.SIZE; ++lane) {
+			int index = 0;
+			for (int i = 0; i < inputs.length; ++i) {
+				index = (index << 1) | (int) ((inputs[i] >>> lane) & 1L);
+			}
+			if (table[index]) bits |= (1L << lane);
+		}
+
+		return(bits);
+	}
+
+	private long eval(long[] inputs, long[] nodeVals) {
+
+		for (int n = FIRST_NODE; n < nodeVals.length; ++n) {
+			long sel = inputs[nodeVar[n]];
+			nodeVals[n] = (sel & nodeVals[nodeHi[n]]) | (~sel & nodeVals[nodeLo[n]]);
+		}
+
+		return(nodeVals[root]);
+	}
+
+	// +---------------------+
+	// | readBits, writeBits |
+	// +---------------------+
+
+	// count (1..64) bits starting at bitIndex, low bit first, as packed by
+	// Bitmap. Bits past the end of the array read as zero.
+
+	static long readBits(long[] longs, long bitIndex, int count) {
+
+		int ilong = (int) (bitIndex >>> 6);
+		int ibit = (int) (bitIndex & 63);
+
+		long bits = longs[ilong] >>> ibit;
+		if (ibit != 0 && ilong + 1 < longs.length) bits |= (longs[ilong + 1] << (Long.SIZE - ibit));
+
+		return(bits & lowMask(count));
+	}
+
+	static void writeBits(long[] longs, long bitIndex, long bits, int count) {
+
+		int ilong = (int) (bitIndex >>> 6);
+		int ibit = (int) (bitIndex & 63);
+
+		long mask = lowMask(count);
+		bits &= mask;
+
+		longs[ilong] = (longs[ilong] & ~(mask << ibit)) | (bits << ibit);
+
+		if (ibit != 0 && ibit + count > Long.SIZE) {
+			int shift = Long.SIZE - ibit;
+			longs[ilong + 1] = (longs[ilong + 1] & ~(mask >>> shift)) | (bits >>> shift);
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private NeighborhoodType neighborhoodType;
+	private int[][] relatives;
+
+	private int root;
+	private boolean[] table; // set when evaluating lane by lane
+	private int[] nodeVar;
+	private int[] nodeLo;
+	private int[] nodeHi;
+
+	// compile-time only
+	private Map<Long,Integer> unique;
+	private int[] vars;
+	private int[] los;
+	private int[] his;
+	private int nodeCount;
+
+	private final static Logger log = Logger.getLogger(WordRules.class.getName());
+}
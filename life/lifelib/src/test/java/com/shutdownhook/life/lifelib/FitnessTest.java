@@ -4,6 +4,8 @@
 
 package com.shutdownhook.life.lifelib;
 
+import java.util.EnumSet;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -70,10 +72,104 @@ public class FitnessTest
 		assertFitness(BITS_0_QUADRANTS, FitnessType.ComboQuadrants, 0.0);
 	}
 	
+	@Test
+	public void wordMatchesCells() throws Exception {
+
+		int[][] sizes = { {1, 1}, {1, 7}, {7, 1}, {2, 2}, {5, 4}, {21, 21}, {64, 3}, {100, 37} };
+
+		for (FitnessType fitnessType : FitnessType.values()) {
+			if (MATCH_TYPES.contains(fitnessType)) continue;
+			for (int[] size : sizes) {
+				for (int i = 0; i < 3; ++i) {
+					
+					Bitmap bits = new Bitmap(size[0], size[1]);
+					if (i == 1) bits.fill(true);
+					if (i == 2) bits.randomize();
+
+					String msg = String.format("%s %dx%d #%d", fitnessType, size[0], size[1], i);
+					Assert.assertEquals(msg, Fitness.computeByCell(bits, fitnessType),
+										Fitness.compute(bits, fitnessType), 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void trackerMatchesCompute() throws Exception {
+
+		int[][] sizes = { {5, 4}, {21, 21}, {100, 37} };
+		
+		for (FitnessType fitnessType : FitnessType.values()) {
+			if (MATCH_TYPES.contains(fitnessType)) continue;
+			for (int[] size : sizes) {
+				
+				Bitmap env = new Bitmap(size[0], size[1]);
+				env.randomize();
+
+				Fitness.Tracker tracker = new Fitness.Tracker(env, fitnessType);
+				Rules.RulesProcessor proc = Rules.get(Rules.RulesType.Neighborhood_VonNeumann);
+
+				for (int i = 0; i < 10; ++i) {
+
+					// mix of small changes and whole new generations
+					if (i % 2 == 0) env.set(i % size[0], i % size[1], !env.get(i % size[0], i % size[1]));
+					else env = Rules.apply(env, proc);
+					
+					tracker.update(env);
+
+					String msg = String.format("%s %dx%d gen %d", fitnessType, size[0], size[1], i);
+					Assert.assertEquals(msg, Fitness.compute(env, fitnessType), tracker.get(), 0.0);
+				}
+
+				Assert.assertFalse(tracker.update(env));
+			}
+		}
+	}
+
+	@Test
+	public void incrementalCycleMatches() throws Exception {
+
+		// an oscillator, and a still life that stops changing right away
+		Bitmap block = new Bitmap(10, 10, Bitmap.EdgeStrategy.Off);
+		block.set(4, 4, true); block.set(5, 4, true);
+		block.set(4, 5, true); block.set(5, 5, true);
+
+		Bitmap[] envs = { Serializers.fromString(LifeRulesProcessor.PULSAR), block };
+
+		Rules.RulesProcessor[] procs = { new LifeRulesProcessor(),
+										 Rules.get(Rules.RulesType.Neighborhood_Moore) };
+
+		for (Bitmap env : envs) {
+			for (Rules.RulesProcessor proc : procs) {
+				for (boolean tiled : new boolean[] { false, true }) {
+			
+					Organism org = new Organism(proc);
+					TiledRunner runner = (tiled ? new TiledRunner(env.getDx(), env.getDy(), 0, null) : null);
+			
+					Organism.Cycle full = org.runCycle(runner, env, 30, FitnessType.VStripesCombo,
+													   0.0, true, false);
+					
+					Organism.Cycle incr = org.runCycle(runner, env, 30, FitnessType.VStripesCombo,
+													   0.0, true, true);
+
+					Assert.assertEquals(full.Fitness, incr.Fitness, 0.0);
+					for (int i = 0; i < full.AllStates.length; ++i) {
+						Assert.assertArrayEquals(full.AllStates[i].getAsDNA(),
+												 incr.AllStates[i].getAsDNA());
+					}
+				}
+			}
+		}
+	}
+	
 	// +---------+
 	// | helpers |
 	// +---------+
 
+	// the bitmaps these match against aren't checked in
+	private final static EnumSet<FitnessType> MATCH_TYPES =
+		EnumSet.of(FitnessType.Diamond21, FitnessType.Triangle21, FitnessType.Triangle41);
+
 	private void assertFitness(String bitsStr,
 							   FitnessType fitnessType,
 							   double expectedFitness) throws Exception {
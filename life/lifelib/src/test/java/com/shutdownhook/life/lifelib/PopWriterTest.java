@@ -0,0 +1,90 @@
+//
+// POPWRITERTEST.JAVA
+//
+
+package com.shutdownhook.life.lifelib;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.shutdownhook.toolbox.Easy;
+import com.shutdownhook.toolbox.Exec;
+
+public class PopWriterTest
+{
+	@Test
+	public void asyncMatchesSync() throws Exception {
+
+		File asyncDir = runPopulation(2);
+		File syncDir = runPopulation(0);
+
+		try {
+			String[] asyncNames = asyncDir.listFiles()[0].list();
+			String[] syncNames = syncDir.listFiles()[0].list();
+			Assert.assertEquals(syncNames.length, asyncNames.length);
+
+			int populationFiles = 0;
+			
+			for (File file : asyncDir.listFiles()[0].listFiles()) {
+
+				String text = Easy.stringFromFile(file.getAbsolutePath());
+
+				if (file.getName().startsWith("organism-")) {
+					Assert.assertTrue(file.getName(), text.startsWith("<html>"));
+					Assert.assertTrue(file.getName(), text.trim().endsWith("</html>"));
+					Assert.assertTrue(file.getName(), text.contains("data:image/bmp;base64,"));
+				}
+				else if (file.getName().startsWith("population-")) {
+					Assert.assertTrue(file.getName(), text.contains("data:image/bmp;base64,"));
+					++populationFiles;
+				}
+			}
+
+			Assert.assertEquals(3, populationFiles);
+			Assert.assertTrue(new File(asyncDir.listFiles()[0], "index.html").exists());
+			Assert.assertTrue(new File(asyncDir.listFiles()[0], "metrics.csv").exists());
+		}
+		finally {
+			deleteTree(asyncDir);
+			deleteTree(syncDir);
+		}
+	}
+
+	private File runPopulation(int queueSize) throws Exception {
+
+		File dir = Files.createTempDirectory("popwriter").toFile();
+
+		Population.Config cfg = new Population.Config();
+		cfg.WorldDx = 20;
+		cfg.WorldDy = 20;
+		cfg.CycleLength = 5;
+		cfg.OrganismCount = 6;
+		cfg.SurvivalType = Reproduction.SurvivalType.TwoThirds;
+		cfg.PopWriter = new PopWriter.Config();
+		cfg.PopWriter.BasePath = dir.getAbsolutePath();
+		cfg.PopWriter.QueueSize = queueSize;
+
+		Exec exec = new Exec();
+		try {
+			Population pop = new Population(cfg, 3);
+			for (int i = 0; i < 3; ++i) {
+				Assert.assertTrue(pop.runCycle(exec, false));
+				if (i < 2) pop.reproduce(exec);
+			}
+		}
+		finally {
+			exec.shutdownPool();
+		}
+
+		return(dir);
+	}
+
+	private void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) for (File child : children) deleteTree(child);
+		file.delete();
+	}
+}
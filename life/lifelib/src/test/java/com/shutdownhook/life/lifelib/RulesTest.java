@@ -0,0 +1,116 @@
+//
+// RULESTEST.JAVA
+//
+
+package com.shutdownhook.life.lifelib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.shutdownhook.life.lifelib.Bitmap.EdgeStrategy;
+import com.shutdownhook.life.lifelib.Neighborhood.NeighborhoodType;
+
+public class RulesTest
+{
+	@Test
+	public void wordRulesMatchCells() throws Exception {
+
+		int[][] sizes = { {1, 1}, {2, 3}, {5, 5}, {63, 4}, {64, 5}, {65, 7}, {130, 9}, {200, 3} };
+		
+		for (NeighborhoodType neighborhoodType : NeighborhoodType.values()) {
+			for (EdgeStrategy edge : EdgeStrategy.values()) {
+				for (int[] size : sizes) {
+					
+					NeighborhoodRulesProcessor proc = new NeighborhoodRulesProcessor(neighborhoodType);
+					
+					Bitmap env = new Bitmap(size[0], size[1], edge);
+					env.randomize();
+
+					String msg = String.format("%s %s %dx%d", neighborhoodType, edge, size[0], size[1]);
+					assertSame(msg, Rules.applyByCell(env, proc), Rules.apply(env, proc));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void lifePatterns() throws Exception {
+
+		LifeRulesProcessor proc = new LifeRulesProcessor();
+		
+		for (String pattern : new String[] { LifeRulesProcessor.BLINKER, LifeRulesProcessor.LWSS,
+											 LifeRulesProcessor.PULSAR, LifeRulesProcessor.COMBO }) {
+
+			Bitmap byCell = Serializers.fromString(pattern);
+			Bitmap byWord = Serializers.fromString(pattern);
+			
+			for (int i = 0; i < 20; ++i) {
+				byCell = Rules.applyByCell(byCell, proc);
+				byWord = Rules.apply(byWord, proc);
+				assertSame(pattern, byCell, byWord);
+			}
+		}
+	}
+
+	@Test
+	public void blinkerBlinks() throws Exception {
+
+		LifeRulesProcessor proc = new LifeRulesProcessor();
+		
+		Bitmap start = Serializers.fromString(LifeRulesProcessor.BLINKER);
+		Bitmap once = Rules.apply(start, proc);
+		Bitmap twice = Rules.apply(once, proc);
+
+		Assert.assertEquals(3, once.getTrueCount());
+		Assert.assertTrue(once.get(2, 1) && once.get(2, 2) && once.get(2, 3));
+		assertSame("blinker", start, twice);
+	}
+
+	@Test
+	public void tiledMatchesApply() throws Exception {
+
+		int[][] sizes = { {1, 1}, {5, 5}, {64, 3}, {100, 37}, {130, 64}, {1000, 50} };
+		int[] bandRows = { 0, 1, 3, 64 };
+		
+		for (NeighborhoodType neighborhoodType : NeighborhoodType.values()) {
+			for (EdgeStrategy edge : EdgeStrategy.values()) {
+				for (int[] size : sizes) {
+					for (int rows : bandRows) {
+						
+						NeighborhoodRulesProcessor proc = new NeighborhoodRulesProcessor(neighborhoodType);
+						TiledRunner runner = new TiledRunner(size[0], size[1], rows, null);
+						
+						Bitmap env = new Bitmap(size[0], size[1], edge);
+						env.randomize();
+
+						Bitmap[] states = new Bitmap[4];
+						Bitmap tiled = runner.run(env, proc, 3, states);
+
+						String msg = String.format("%s %s %dx%d/%d", neighborhoodType, edge,
+												   size[0], size[1], rows);
+						
+						Bitmap expected = env;
+						for (int i = 1; i <= 3; ++i) {
+							expected = Rules.apply(expected, proc);
+							assertSame(msg + " gen " + i, expected, states[i]);
+						}
+						
+						assertSame(msg, expected, tiled);
+
+						// buffers are reused; earlier results must not change
+						runner.run(env, proc, 2, null);
+						assertSame(msg + " rerun", expected, tiled);
+					}
+				}
+			}
+		}
+	}
+
+	private void assertSame(String msg, Bitmap expected, Bitmap actual) {
+		Assert.assertEquals(msg, expected.getDx(), actual.getDx());
+		Assert.assertEquals(msg, expected.getDy(), actual.getDy());
+		for (int i = 0; i < expected.longs.length; ++i) {
+			Assert.assertEquals(msg + " long " + i, expected.longs[i], actual.longs[i]);
+		}
+	}
+}
@@ -19,7 +19,7 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import com.shutdownhook.toolbox.Easy;
-import com.shutdownhook.toolbox.MemoryCachingProxy;
+import com.shutdownhook.toolbox.DiskCachingProxy;
 import com.shutdownhook.toolbox.WebRequests;
 
 public class RokuSearchRefiner implements RokuSearchInfo.Refiner 
@@ -32,7 +32,8 @@ public class RokuSearchRefiner implements RokuSearchInfo.Refiner
 	{
 		public String BaseUrl = "https://www.roku.com/api/v1/sow/search?query=";
 		public String RokuChannelId = "151908";
-		public MemoryCachingProxy.Config Cache = new MemoryCachingProxy.Config();
+		// set Cache.DiskCachePath to keep results across restarts
+		public DiskCachingProxy.Config Cache = new DiskCachingProxy.Config();
 		public WebRequests.Config Requests = new WebRequests.Config();
 		public boolean DebugPrintFetchBody = false;
 		
@@ -95,10 +96,10 @@ public class RokuSearchRefiner implements RokuSearchInfo.Refiner
 	// | RokuCachingProxy |
 	// +------------------+
 
-	public static class RokuCachingProxy extends MemoryCachingProxy<String,RokuResult>
+	public static class RokuCachingProxy extends DiskCachingProxy<String,RokuResult>
 	{
 		public RokuCachingProxy(RokuSearchRefiner refiner) throws Exception {
-			super(refiner.getConfig().Cache);
+			super(refiner.getConfig().Cache, RokuResult.class);
 			this.refiner = refiner;
 		}
 
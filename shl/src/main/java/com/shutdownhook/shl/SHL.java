@@ -6,6 +6,7 @@
 package com.shutdownhook.shl;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.AccessDeniedException;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -358,6 +359,10 @@ public class SHL
 		public static UpsertFileParams fromJson(String json) {
 			return(new Gson().fromJson(json, UpsertFileParams.class));
 		}
+
+		public static UpsertFileParams fromJson(Reader reader) {
+			return(new Gson().fromJson(reader, UpsertFileParams.class));
+		}
 	}
 
 	public void upsertFile(String adminToken, UpsertFileParams params) throws Exception {
@@ -6,6 +6,8 @@
 package com.shutdownhook.shl;
 
 import java.io.Closeable;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -39,6 +41,10 @@ public class SHLServer implements Closeable
 
 		public String AdminTokenHeader = "X-SHL-AdminToken";
 
+		// upserted files arrive base64'd inside JSON and can be big; they're
+		// parsed straight off the request stream. null = WebServer default.
+		public Long UpsertFileMaxBodyBytes;
+
 		public static Config fromJson(String json) {
 			return(new Gson().fromJson(json, Config.class));
 		}
@@ -203,16 +209,25 @@ public class SHLServer implements Closeable
 	// +----------------------------+
 	
 	private void registerUpsertFileHandler() {
+
+		RouteOptions options = new RouteOptions();
+		options.ReadBodyAsString = false;
+		options.MaxBodyBytes = cfg.UpsertFileMaxBodyBytes;
+		
 		server.registerHandler(cfg.UpsertFileUrl, new CORSEnabledHandler("POST") {
 			public void handle2(Request request, Response response) throws Exception {
 
-				SHL.UpsertFileParams params = SHL.UpsertFileParams.fromJson(request.Body);
+				if (request.BodyStream == null) { response.Status = 500; return; }
+				
+				SHL.UpsertFileParams params = SHL.UpsertFileParams.fromJson(
+					new InputStreamReader(request.BodyStream, StandardCharsets.UTF_8));
+				
 				if (params == null) { response.Status = 500; return; }
 
 				shl.upsertFile(getAdminToken(request), params);
 				response.setText("OK");
 			}
-		});
+		}, options);
 	}
 
 	private void registerDeleteFileHandler() {
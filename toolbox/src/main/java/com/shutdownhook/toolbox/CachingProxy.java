@@ -7,10 +7,20 @@ package com.shutdownhook.toolbox;
 
 import java.io.Closeable;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import com.shutdownhook.toolbox.Easy;
@@ -27,6 +37,13 @@ abstract public class CachingProxy<K,T> implements Closeable
 	abstract public void cacheStore(K id, T obj) throws Exception;
 	abstract public Instant cacheTime(K id, T obj) throws Exception;
 
+	// optional batch liveFetch for getItems; return the items that were
+	// found keyed by id (anything missing is "not found"), or null if
+	// batching isn't supported and each id should go to liveFetch
+	public Map<K,T> liveFetchMany(Collection<K> ids) throws Exception {
+		return(null);
+	}
+
 	// +----------------+
 	// | Config & Setup |
 	// +----------------+
@@ -42,17 +59,47 @@ abstract public class CachingProxy<K,T> implements Closeable
 		// "not found" ids will be requeried after this long
 		public Integer PoisonExpirationSeconds = 60 * 5; // 10 minutes
 
+		// if > 0, entries hit at least RefreshAheadMinHits times in an interval
+		// are refreshed ASYNC this long before they'd reach the soft limit,
+		// so popular items never have to be served stale
+		public Integer RefreshAheadSeconds = 0;
+		public Integer RefreshAheadMinHits = 2;
+		public Integer RefreshAheadIntervalSeconds = 60;
+		public Integer RefreshAheadMaxKeys = 1000; // hot ids tracked at once
+
+		// background refreshes (soft or ahead) beyond this are skipped
+		public Integer MaxConcurrentRefreshes = 8;
+
 		public Integer ShutdownWaitSeconds = 10;
+		public Boolean UseVirtualThreads = false; // JDK21+ for async refreshes
 		public Boolean LogStackTraces = true;
 	}
 
 	public CachingProxy(Config cfg) throws Exception {
 		this.cfg = cfg;
-		this.pool = Executors.newCachedThreadPool();
+		this.pool = Exec.createPool(0, cfg.UseVirtualThreads);
 		this.poisonIds = new ConcurrentHashMap<K,Instant>();
+		this.inFlight = new ConcurrentHashMap<K,CompletableFuture<T>>();
+		this.refreshing = ConcurrentHashMap.newKeySet();
+		this.hotIds = new ConcurrentHashMap<K,HotId>();
+
+		if (cfg.RefreshAheadSeconds > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "CachingProxy refresh-ahead");
+				t.setDaemon(true);
+				return(t);
+			});
+
+			scheduler.scheduleWithFixedDelay(() -> refreshAhead(),
+											 cfg.RefreshAheadIntervalSeconds,
+											 cfg.RefreshAheadIntervalSeconds,
+											 TimeUnit.SECONDS);
+		}
 	}
 
 	public void close() {
+		if (scheduler != null) scheduler.shutdownNow();
+		
 		try {
 			pool.shutdown();
 			pool.awaitTermination(cfg.ShutdownWaitSeconds / 2, TimeUnit.SECONDS);
@@ -79,63 +126,249 @@ abstract public class CachingProxy<K,T> implements Closeable
 		
 		// 2. in the cache ?
 		
+		T obj = fetchFromCache(id);
+
+		// 3. fetch live
+		
+		if (obj == null) {
+			log.fine(String.format("live fetching id %s", id.toString()));
+			obj = fetchShared(id);
+		}
+
+		return(obj);
+	}
+
+	private T fetchFromCache(K id) throws Exception {
+		
 		T obj = cacheFetch(id);
+		if (obj == null) return(null);
+
+		Instant cacheTime = cacheTime(id, obj);
+		Instant now = Instant.now();
+		Instant hardLimit = now.minusSeconds(cfg.HardCacheExpirationSeconds);
+		Instant softLimit = now.minusSeconds(cfg.SoftCacheExpirationSeconds);
+
+		if (cacheTime.isBefore(hardLimit)) {
+			// too old to return
+			log.fine(String.format("hard cache limit for %s", id.toString()));
+			return(null);
+		}
 		
-		if (obj != null) {
+		if (cacheTime.isBefore(softLimit)) {
+			// ok to return but start an async refresh
+			log.fine(String.format("soft cache limit for %s", id.toString()));
+			queueFetch(id);
+		}
+		else if (scheduler != null) {
+			noteHit(id, cacheTime);
+		}
+
+		return(obj);
+	}
+
+	// +----------+
+	// | getItems |
+	// +----------+
+
+	// Same rules as getItem for each id, but misses that nobody else is
+	// already fetching go to liveFetchMany in one call. Ids that aren't
+	// found are left out of the result, which is in the order given.
+	
+	public Map<K,T> getItems(Collection<K> ids) throws Exception {
+
+		Map<K,T> cached = new LinkedHashMap<K,T>();
+		Map<K,CompletableFuture<T>> pending = new LinkedHashMap<K,CompletableFuture<T>>();
+		Map<K,CompletableFuture<T>> mine = new LinkedHashMap<K,CompletableFuture<T>>();
 
-			Instant cacheTime = cacheTime(id, obj);
-			Instant now = Instant.now();
-			Instant hardLimit = now.minusSeconds(cfg.HardCacheExpirationSeconds);
-			Instant softLimit = now.minusSeconds(cfg.SoftCacheExpirationSeconds);
+		for (K id : ids) {
 
-			if (cacheTime.isBefore(hardLimit)) {
-				// too old to return
-				log.fine(String.format("hard cache limit for %s", id.toString()));
-				obj = null;
+			if (cached.containsKey(id) || pending.containsKey(id) || isPoison(id)) continue;
+
+			T obj = fetchFromCache(id);
+			if (obj != null) { cached.put(id, obj); continue; }
+
+			CompletableFuture<T> future = new CompletableFuture<T>();
+			CompletableFuture<T> running = inFlight.putIfAbsent(id, future);
+
+			if (running == null) {
+				mine.put(id, future);
+				pending.put(id, future);
 			}
-			else if (cacheTime.isBefore(softLimit)) {
-				// ok to return but start an async refresh
-				log.fine(String.format("soft cache limit for %s", id.toString()));
-				queueFetch(id);
+			else {
+				coalesced.increment();
+				pending.put(id, running);
 			}
 		}
 
-		// 3. fetch live
+		if (mine.size() > 0) fetchMany(mine);
+
+		Map<K,T> results = new LinkedHashMap<K,T>();
 		
-		if (obj == null) {
-			log.fine(String.format("live fetching id %s", id.toString()));
+		for (K id : ids) {
+			T obj = cached.get(id);
+			if (obj == null && pending.containsKey(id)) obj = joinUnwrapped(pending.get(id));
+			if (obj != null) results.put(id, obj);
+		}
+
+		return(results);
+	}
+
+	private void fetchMany(Map<K,CompletableFuture<T>> mine) {
+
+		Map<K,T> fetched = null;
+
+		if (mine.size() > 1) {
+			try {
+				log.fine(String.format("live fetching %d ids", mine.size()));
+				fetched = liveFetchMany(mine.keySet());
+			}
+			catch (Throwable e) {
+				for (Map.Entry<K,CompletableFuture<T>> entry : mine.entrySet()) {
+					failFetch(entry.getKey(), entry.getValue(), e);
+				}
+				if (e instanceof Error) throw (Error) e;
+				return;
+			}
+		}
+
+		if (fetched == null) {
+			// not supported (or just one); errors surface when joined, but
+			// every id gets its turn first so no future is left hanging
+			Error error = null;
+			for (Map.Entry<K,CompletableFuture<T>> entry : mine.entrySet()) {
+				try { runFetch(entry.getKey(), entry.getValue()); }
+				catch (Error e) { if (error == null) error = e; }
+				catch (Exception e) { /* already on the future */ }
+			}
+			if (error != null) throw error;
+			return;
+		}
+
+		batchFetches.increment();
+		
+		for (Map.Entry<K,CompletableFuture<T>> entry : mine.entrySet()) {
+			liveFetches.increment();
+			completeFetch(entry.getKey(), fetched.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	// +---------------+
+	// | Single-Flight |
+	// +---------------+
+
+	// Concurrent misses for the same id share one liveFetch. The future
+	// stays registered until the result has been stored (or poisoned), so
+	// callers who just miss the cache still don't fetch it again.
+	
+	private T fetchShared(K id) throws Exception {
+
+		CompletableFuture<T> mine = new CompletableFuture<T>();
+		CompletableFuture<T> running = inFlight.putIfAbsent(id, mine);
+
+		if (running != null) {
+			coalesced.increment();
+			return(joinUnwrapped(running));
+		}
+
+		return(runFetch(id, mine));
+	}
+
+	private T runFetch(K id, CompletableFuture<T> future) throws Exception {
+
+		T obj;
+		
+		try {
+			liveFetches.increment();
 			obj = liveFetch(id);
-			queueCache(id, obj);
+		}
+		catch (Throwable e) {
+			// Errors too, or everyone waiting on this id blocks forever
+			failFetch(id, future, e);
+			throw e;
 		}
 
+		completeFetch(id, obj, future);
 		return(obj);
 	}
 
+	private void completeFetch(K id, T obj, CompletableFuture<T> future) {
+		future.complete(obj);
+		queueCache(id, obj, future);
+	}
+
+	private void failFetch(K id, CompletableFuture<T> future, Throwable e) {
+		inFlight.remove(id, future);
+		future.completeExceptionally(e);
+	}
+
+	private static <T> T joinUnwrapped(CompletableFuture<T> future) throws Exception {
+		try {
+			return(future.get());
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+	}
+
 	// +-------------+
 	// | Async Stuff |
 	// +-------------+
 
-	private void queueFetch(K id) {
-		pool.submit(() -> {
-			try {
-				T obj = liveFetch(id);
-				cache(id, obj);
-			}
-			catch (Exception ex) {
-				log.warning(Easy.exMsg(ex, "queueFetch", cfg.LogStackTraces));
-			}
-		});
+	// one refresh per id at a time, and at most MaxConcurrentRefreshes overall
+	private boolean queueFetch(K id) {
+
+		if (!refreshing.add(id)) return(false);
+
+		if (refreshing.size() > cfg.MaxConcurrentRefreshes) {
+			refreshing.remove(id);
+			refreshesSkipped.increment();
+			return(false);
+		}
+
+		try {
+			pool.submit(() -> {
+				try {
+					fetchShared(id);
+				}
+				catch (Exception ex) {
+					log.warning(Easy.exMsg(ex, "queueFetch", cfg.LogStackTraces));
+				}
+				finally {
+					refreshing.remove(id);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			// shutting down
+			refreshing.remove(id);
+			return(false);
+		}
+
+		refreshes.increment();
+		return(true);
 	}
 
-	private void queueCache(K id, T obj) {
-		pool.submit(() -> {
-			try {
-				cache(id, obj);
-			}
-			catch (Exception ex) {
-				log.warning(Easy.exMsg(ex, "queueCache", cfg.LogStackTraces));
-			}
-		});
+	private void queueCache(K id, T obj, CompletableFuture<T> future) {
+		try {
+			pool.submit(() -> {
+				try {
+					cache(id, obj);
+				}
+				catch (Exception ex) {
+					log.warning(Easy.exMsg(ex, "queueCache", cfg.LogStackTraces));
+				}
+				finally {
+					inFlight.remove(id, future);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			// shutting down
+			inFlight.remove(id, future);
+		}
 	}
 
 	private void cache(K id, T obj) {
@@ -155,6 +388,80 @@ abstract public class CachingProxy<K,T> implements Closeable
 		}
 	}
 
+	// +---------------+
+	// | Refresh-Ahead |
+	// +---------------+
+
+	private static class HotId
+	{
+		public AtomicInteger Hits = new AtomicInteger();
+		public volatile Instant CacheTime;
+	}
+
+	private void noteHit(K id, Instant cacheTime) {
+
+		HotId hot = hotIds.get(id);
+		
+		if (hot == null) {
+			if (hotIds.size() >= cfg.RefreshAheadMaxKeys) return;
+			hot = hotIds.computeIfAbsent(id, (k) -> new HotId());
+		}
+
+		hot.CacheTime = cacheTime;
+		hot.Hits.incrementAndGet();
+	}
+
+	// runs every RefreshAheadIntervalSeconds; hit counts start over each time
+	private void refreshAhead() {
+
+		try {
+			int ageLimit = Math.max(0, cfg.SoftCacheExpirationSeconds - cfg.RefreshAheadSeconds);
+			Instant limit = Instant.now().minusSeconds(ageLimit);
+
+			for (Map.Entry<K,HotId> entry : hotIds.entrySet()) {
+
+				HotId hot = entry.getValue();
+				int hits = hot.Hits.getAndSet(0);
+
+				if (hits == 0) {
+					hotIds.remove(entry.getKey(), hot);
+				}
+				else if (hits >= cfg.RefreshAheadMinHits && hot.CacheTime.isBefore(limit)) {
+					log.fine(String.format("refreshing ahead %s", entry.getKey().toString()));
+					if (queueFetch(entry.getKey())) hot.CacheTime = Instant.now();
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.warning(Easy.exMsg(ex, "refreshAhead", cfg.LogStackTraces));
+		}
+	}
+
+	// +-------+
+	// | Stats |
+	// +-------+
+
+	public static class FetchStats
+	{
+		public long LiveFetches;
+		public long BatchFetches;
+		public long Coalesced;
+		public long Refreshes;
+		public long RefreshesSkipped;
+		public long HotIds;
+	}
+
+	public FetchStats getFetchStats() {
+		FetchStats stats = new FetchStats();
+		stats.LiveFetches = liveFetches.sum();
+		stats.BatchFetches = batchFetches.sum();
+		stats.Coalesced = coalesced.sum();
+		stats.Refreshes = refreshes.sum();
+		stats.RefreshesSkipped = refreshesSkipped.sum();
+		stats.HotIds = hotIds.size();
+		return(stats);
+	}
+
 	// +--------------+
 	// | Poisoned IDs |
 	// +--------------+
@@ -186,6 +493,16 @@ abstract public class CachingProxy<K,T> implements Closeable
 	private Config cfg;
 	private ExecutorService pool;
 	private ConcurrentHashMap<K,Instant> poisonIds;
+	private ConcurrentHashMap<K,CompletableFuture<T>> inFlight;
+	private Set<K> refreshing;
+	private ConcurrentHashMap<K,HotId> hotIds;
+	private ScheduledExecutorService scheduler;
+
+	private LongAdder liveFetches = new LongAdder();
+	private LongAdder batchFetches = new LongAdder();
+	private LongAdder coalesced = new LongAdder();
+	private LongAdder refreshes = new LongAdder();
+	private LongAdder refreshesSkipped = new LongAdder();
 
 	private final static Logger log = Logger.getLogger(CachingProxy.class.getName());
 }
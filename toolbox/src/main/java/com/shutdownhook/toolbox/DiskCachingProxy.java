@@ -0,0 +1,526 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.gson.Gson;
+
+// A MemoryCachingProxy backed by an append-only file on local disk, so
+// the cache survives restarts. Memory misses fall through to the file and
+// hits are promoted back into memory with their original cache time, so
+// hard/soft expiration works the same as if they'd never left. Poisoned
+// ids are not persisted.
+//
+// Each record is [magic][payload length][crc32 of payload] followed by
+// the payload [cache time millis][key length][key][object as json]. Only
+// headers and keys are read at startup to rebuild the index; checksums
+// are verified when a record is actually read. A torn record at the end
+// of the file (e.g., a crash mid-write) is truncated away at startup.
+// Overwritten and expired records are reclaimed by compaction, which
+// copies live records to a new file and swaps it in.
+//
+// With no DiskCachePath this is just a MemoryCachingProxy.
+
+abstract public class DiskCachingProxy<K,T> extends MemoryCachingProxy<K,T>
+{
+	// +--------------+
+	// | Implement Me |
+	// +--------------+
+
+	// return null when id is not found, else throw
+	// abstract public T liveFetch(K id) throws Exception;
+
+	// must be unique per id and stable across restarts
+	protected String diskKey(K id) {
+		return(id.toString());
+	}
+
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public static class Config extends MemoryCachingProxy.Config
+	{
+		public String DiskCachePath; // null = memory only
+		public Long MaxDiskBytes = 256L * 1024L * 1024L; // oldest dropped past this
+		public Double CompactDeadRatio = 0.5; // compact when this much is garbage
+		public Long CompactMinDeadBytes = 4L * 1024L * 1024L; // ... and at least this
+	}
+
+	// objType is what gson should deserialize into (a Class or TypeToken type)
+	public DiskCachingProxy(Config cfg, Type objType) throws Exception {
+
+		super(cfg);
+
+		this.cfg = cfg;
+		this.objType = objType;
+		this.gson = new Gson();
+		this.index = new ConcurrentHashMap<String,Location>();
+		this.rwLock = new ReentrantReadWriteLock();
+
+		if (!Easy.nullOrEmpty(cfg.DiskCachePath)) {
+			this.path = Paths.get(cfg.DiskCachePath);
+			openAndLoad();
+		}
+	}
+
+	@Override
+	public void close() {
+
+		super.close(); // waits for queued stores
+
+		if (channel != null) {
+			rwLock.writeLock().lock();
+			try { channel.close(); }
+			catch (IOException e) { /* eat it */ }
+			finally { rwLock.writeLock().unlock(); }
+		}
+	}
+
+	// +--------------+
+	// | CachingProxy |
+	// +--------------+
+
+	@Override
+	public T cacheFetch(K id) throws Exception {
+
+		T obj = super.cacheFetch(id);
+		if (obj != null || channel == null) return(obj);
+
+		String key = diskKey(id);
+		Record rec = read(key);
+
+		if (rec == null) {
+			diskMisses.increment();
+			return(null);
+		}
+
+		diskHits.increment();
+		obj = gson.fromJson(rec.Json, objType);
+		super.cacheStore(id, obj, Instant.ofEpochMilli(rec.CacheTimeMillis));
+
+		return(obj);
+	}
+
+	@Override
+	public void cacheStore(K id, T obj) throws Exception {
+
+		Instant now = Instant.now();
+		super.cacheStore(id, obj, now);
+
+		if (channel != null) append(diskKey(id), gson.toJson(obj), now.toEpochMilli());
+	}
+
+	@Override
+	public Instant cacheTime(K id, T obj) throws Exception {
+
+		Instant cacheTime = super.cacheTime(id, obj);
+		if (cacheTime != null || channel == null) return(cacheTime);
+
+		// pushed out of memory since the fetch
+		Location loc = index.get(diskKey(id));
+		return(loc == null ? null : Instant.ofEpochMilli(loc.CacheTimeMillis));
+	}
+
+	// +-------+
+	// | Stats |
+	// +-------+
+
+	public static class DiskStats
+	{
+		public long Hits;
+		public long Misses;
+		public long Items;
+		public long FileBytes;
+		public long DeadBytes;
+		public long Compactions;
+		public long CorruptRecords;
+	}
+
+	public DiskStats getDiskStats() {
+
+		DiskStats stats = new DiskStats();
+		stats.Hits = diskHits.sum();
+		stats.Misses = diskMisses.sum();
+		stats.Compactions = compactions.sum();
+		stats.CorruptRecords = corruptRecords.sum();
+
+		synchronized (appendLock) {
+			stats.Items = index.size();
+			stats.FileBytes = fileBytes;
+			stats.DeadBytes = deadBytes;
+		}
+
+		return(stats);
+	}
+
+	// +---------+
+	// | Records |
+	// +---------+
+
+	private final static int MAGIC = 0x43505258;
+	private final static int HEADER_BYTES = 12; // magic, payload length, crc
+	private final static int PAYLOAD_FIXED_BYTES = 12; // time, key length
+
+	private static class Location
+	{
+		public long Offset;
+		public int Length; // whole record
+		public long CacheTimeMillis;
+	}
+
+	private static class Record
+	{
+		public long CacheTimeMillis;
+		public String Json;
+	}
+
+	private static ByteBuffer buildRecord(String key, String json, long cacheTimeMillis) {
+
+		byte[] rgbKey = key.getBytes(StandardCharsets.UTF_8);
+		byte[] rgbJson = json.getBytes(StandardCharsets.UTF_8);
+		int cbPayload = PAYLOAD_FIXED_BYTES + rgbKey.length + rgbJson.length;
+
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + cbPayload);
+		buf.putInt(MAGIC).putInt(cbPayload).putInt(0);
+		buf.putLong(cacheTimeMillis).putInt(rgbKey.length).put(rgbKey).put(rgbJson);
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_BYTES, cbPayload);
+		buf.putInt(8, (int) crc.getValue());
+
+		buf.flip();
+		return(buf);
+	}
+
+	private Record read(String key) throws IOException {
+
+		rwLock.readLock().lock();
+
+		try {
+			Location loc = index.get(key);
+			if (loc == null) return(null);
+
+			if (System.currentTimeMillis() - loc.CacheTimeMillis > hardLimitMillis()) {
+				// base class would toss it anyway
+				return(null);
+			}
+
+			ByteBuffer buf = ByteBuffer.allocate(loc.Length);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, loc.Offset + buf.position()) < 0) throw new EOFException();
+			}
+
+			byte[] rgb = buf.array();
+			int cbPayload = loc.Length - HEADER_BYTES;
+			int cbKey = buf.getInt(HEADER_BYTES + 8);
+			int ibKey = HEADER_BYTES + PAYLOAD_FIXED_BYTES;
+
+			CRC32 crc = new CRC32();
+			crc.update(rgb, HEADER_BYTES, cbPayload);
+
+			boolean valid = (buf.getInt(0) == MAGIC &&
+							 buf.getInt(4) == cbPayload &&
+							 buf.getInt(8) == (int) crc.getValue() &&
+							 cbKey >= 0 && cbKey <= cbPayload - PAYLOAD_FIXED_BYTES &&
+							 key.equals(new String(rgb, ibKey, cbKey, StandardCharsets.UTF_8)));
+
+			if (!valid) {
+				log.warning(String.format("Corrupt disk cache record for %s; dropping", key));
+				corruptRecords.increment();
+				dropLocation(key, loc);
+				return(null);
+			}
+
+			Record rec = new Record();
+			rec.CacheTimeMillis = buf.getLong(HEADER_BYTES);
+			rec.Json = new String(rgb, ibKey + cbKey, cbPayload - PAYLOAD_FIXED_BYTES - cbKey,
+								  StandardCharsets.UTF_8);
+
+			return(rec);
+		}
+		finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	private void append(String key, String json, long cacheTimeMillis) throws IOException {
+
+		ByteBuffer buf = buildRecord(key, json, cacheTimeMillis);
+		boolean compact;
+
+		rwLock.readLock().lock();
+
+		try {
+			synchronized (appendLock) {
+
+				Location loc = new Location();
+				loc.Offset = fileBytes;
+				loc.Length = buf.remaining();
+				loc.CacheTimeMillis = cacheTimeMillis;
+
+				while (buf.hasRemaining()) channel.write(buf, loc.Offset + buf.position());
+				fileBytes += loc.Length;
+
+				Location old = index.put(key, loc);
+				if (old != null) deadBytes += old.Length;
+
+				compact = needsCompaction();
+			}
+		}
+		finally {
+			rwLock.readLock().unlock();
+		}
+
+		if (compact) compact();
+	}
+
+	private void dropLocation(String key, Location loc) {
+		synchronized (appendLock) {
+			if (index.remove(key, loc)) deadBytes += loc.Length;
+		}
+	}
+
+	// +------------+
+	// | Compaction |
+	// +------------+
+
+	// caller holds appendLock
+	private boolean needsCompaction() {
+
+		if (fileBytes - deadBytes > cfg.MaxDiskBytes) return(true);
+
+		return(deadBytes >= cfg.CompactMinDeadBytes &&
+			   deadBytes >= fileBytes * cfg.CompactDeadRatio);
+	}
+
+	private void compact() throws IOException {
+
+		rwLock.writeLock().lock();
+
+		try {
+			// someone else may have just done it
+			synchronized (appendLock) { if (!needsCompaction()) return; }
+
+			long startNanos = System.nanoTime();
+
+			// keep what isn't hard-expired, newest first until we're at
+			// 80% of the size limit, then write those in file order
+			long expiredBefore = System.currentTimeMillis() - hardLimitMillis();
+			List<Map.Entry<String,Location>> live = new ArrayList<Map.Entry<String,Location>>();
+
+			for (Map.Entry<String,Location> entry : index.entrySet()) {
+				if (entry.getValue().CacheTimeMillis >= expiredBefore) live.add(entry);
+			}
+
+			live.sort((e1, e2) -> Long.compare(e2.getValue().CacheTimeMillis,
+											   e1.getValue().CacheTimeMillis));
+
+			long targetBytes = cfg.MaxDiskBytes / 10L * 8L;
+			long liveBytes = 0;
+			int keep = 0;
+
+			while (keep < live.size() && liveBytes + live.get(keep).getValue().Length <= targetBytes) {
+				liveBytes += live.get(keep++).getValue().Length;
+			}
+
+			live = live.subList(0, keep);
+			live.sort((e1, e2) -> Long.compare(e1.getValue().Offset, e2.getValue().Offset));
+
+			Path tmpPath = Paths.get(path.toString() + ".compact");
+			Map<String,Location> newIndex = new ConcurrentHashMap<String,Location>();
+			long newBytes = 0;
+
+			try (FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+													StandardOpenOption.WRITE,
+													StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				for (Map.Entry<String,Location> entry : live) {
+
+					Location oldLoc = entry.getValue();
+					long copied = 0;
+
+					while (copied < oldLoc.Length) {
+						copied += channel.transferTo(oldLoc.Offset + copied,
+													 oldLoc.Length - copied, tmp);
+					}
+
+					Location loc = new Location();
+					loc.Offset = newBytes;
+					loc.Length = oldLoc.Length;
+					loc.CacheTimeMillis = oldLoc.CacheTimeMillis;
+
+					newIndex.put(entry.getKey(), loc);
+					newBytes += loc.Length;
+				}
+
+				tmp.force(true);
+			}
+
+			channel.close();
+
+			try {
+				Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+						   StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				// if the move failed we're back on the old file and index
+				channel = openChannel();
+			}
+
+			synchronized (appendLock) {
+				index.clear();
+				index.putAll(newIndex);
+				fileBytes = newBytes;
+				deadBytes = 0;
+			}
+
+			compactions.increment();
+
+			log.info(String.format("Compacted disk cache %s to %d items / %d bytes in %d ms",
+								   path, newIndex.size(), newBytes,
+								   (System.nanoTime() - startNanos) / 1000000L));
+		}
+		finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// +-------------+
+	// | openAndLoad |
+	// +-------------+
+
+	// Walks the file reading just headers and keys; later records for the
+	// same key win. Stops at the first record that doesn't frame properly
+	// and cuts the file off there.
+
+	private void openAndLoad() throws IOException {
+
+		long startNanos = System.nanoTime();
+
+		channel = openChannel();
+
+		long size = channel.size();
+		long expiredBefore = System.currentTimeMillis() - hardLimitMillis();
+		long offset = 0;
+
+		DataInputStream stm = new DataInputStream(
+			new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+
+		while (offset + HEADER_BYTES + PAYLOAD_FIXED_BYTES <= size) {
+
+			int magic = stm.readInt();
+			int cbPayload = stm.readInt();
+			stm.readInt(); // crc, checked on read
+
+			if (magic != MAGIC || cbPayload < PAYLOAD_FIXED_BYTES ||
+				offset + HEADER_BYTES + cbPayload > size) {
+				break;
+			}
+
+			long cacheTimeMillis = stm.readLong();
+			int cbKey = stm.readInt();
+			if (cbKey < 0 || cbKey > cbPayload - PAYLOAD_FIXED_BYTES) break;
+
+			byte[] rgbKey = new byte[cbKey];
+			stm.readFully(rgbKey);
+			skipFully(stm, cbPayload - PAYLOAD_FIXED_BYTES - cbKey);
+
+			Location loc = new Location();
+			loc.Offset = offset;
+			loc.Length = HEADER_BYTES + cbPayload;
+			loc.CacheTimeMillis = cacheTimeMillis;
+			offset += loc.Length;
+
+			if (cacheTimeMillis < expiredBefore) {
+				deadBytes += loc.Length;
+				continue;
+			}
+
+			Location old = index.put(new String(rgbKey, StandardCharsets.UTF_8), loc);
+			if (old != null) deadBytes += old.Length;
+		}
+
+		if (offset < size) {
+			log.warning(String.format("Truncating disk cache %s at %d of %d bytes",
+									  path, offset, size));
+			corruptRecords.increment();
+			channel.truncate(offset);
+		}
+
+		fileBytes = offset;
+
+		log.info(String.format("Loaded disk cache %s (%d items / %d bytes) in %d ms",
+							   path, index.size(), fileBytes,
+							   (System.nanoTime() - startNanos) / 1000000L));
+	}
+
+	private FileChannel openChannel() throws IOException {
+		return(FileChannel.open(path, StandardOpenOption.CREATE,
+								StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	private static void skipFully(DataInputStream stm, int cb) throws IOException {
+		while (cb > 0) {
+			int skipped = stm.skipBytes(cb);
+			if (skipped <= 0) throw new EOFException();
+			cb -= skipped;
+		}
+	}
+
+	private long hardLimitMillis() {
+		return(cfg.HardCacheExpirationSeconds * 1000L);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Config cfg;
+	private Type objType;
+	private Gson gson;
+	private Path path;
+
+	private FileChannel channel;
+	private ConcurrentHashMap<String,Location> index;
+	private long fileBytes = 0;
+	private long deadBytes = 0;
+
+	// appends and reads share rwLock's read side (positional i/o is
+	// thread-safe); compaction takes the write side to swap files
+	private ReentrantReadWriteLock rwLock;
+	private Object appendLock = new Object();
+
+	private LongAdder diskHits = new LongAdder();
+	private LongAdder diskMisses = new LongAdder();
+	private LongAdder compactions = new LongAdder();
+	private LongAdder corruptRecords = new LongAdder();
+
+	private final static Logger log = Logger.getLogger(DiskCachingProxy.class.getName());
+}
@@ -18,15 +18,16 @@ public class Exec implements Closeable
 	// +-------+
 
 	public final static int CACHED_THREADPOOL = -1;
+	public final static int VIRTUAL_THREADS = -2;
 	
 	public Exec() {
 		this(CACHED_THREADPOOL);
 	}
 
 	public Exec(int threads) {
-		this.pool = (threads == CACHED_THREADPOOL
-					 ? Executors.newCachedThreadPool()
-					 : Executors.newFixedThreadPool(threads));
+		this.pool = (threads == VIRTUAL_THREADS
+					 ? createPool(0, true)
+					 : createPool(threads == CACHED_THREADPOOL ? 0 : threads, false));
 	}
 
 	public void close() {
@@ -39,6 +40,34 @@ public class Exec implements Closeable
 	
 	public ExecutorService getPool() { return(pool); }
 
+	// +------------+
+	// | createPool |
+	// +------------+
+
+	// Shared pool factory for toolbox classes. threads <= 0 means an
+	// on-demand pool, else a fixed count. virtualThreads runs each task on
+	// its own virtual thread and ignores threads entirely; we find the
+	// factory by reflection so the toolbox still builds and runs on JDKs
+	// older than 21, where this falls back to an on-demand pool.
+	
+	public static ExecutorService createPool(int threads, boolean virtualThreads) {
+
+		if (virtualThreads) {
+			try {
+				return((ExecutorService) Executors.class
+					   .getMethod("newVirtualThreadPerTaskExecutor")
+					   .invoke(null));
+			}
+			catch (Exception e) {
+				log.warning("Virtual threads unavailable in this JVM; using cached pool");
+			}
+		}
+
+		return(threads <= 0
+			   ? Executors.newCachedThreadPool()
+			   : Executors.newFixedThreadPool(threads));
+	}
+
 	// +----------+
 	// | runAsync |
 	// +----------+
@@ -6,18 +6,26 @@
 package com.shutdownhook.toolbox;
 
 import java.io.Closeable;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import com.shutdownhook.toolbox.Exec;
 
@@ -28,9 +36,21 @@ public class JsonRpc2 implements Closeable
 	// +------------------+
 
 	public JsonRpc2() {
-		this.exec = new Exec();
+		this(Exec.CACHED_THREADPOOL);
+	}
+
+	// execThreads is passed to Exec; e.g. Exec.VIRTUAL_THREADS
+	public JsonRpc2(int execThreads) {
+		this(execThreads, DEFAULT_BATCH_PARALLELISM);
+	}
+
+	// at most maxBatchParallelism elements of any one batch run at once
+	public JsonRpc2(int execThreads, int maxBatchParallelism) {
+		this.exec = new Exec(execThreads);
+		this.maxBatchParallelism = Math.max(1, maxBatchParallelism);
 		this.jsonParser = new JsonParser();
 		this.methods = new HashMap<String,MethodInfo>();
+		this.metrics = new WebMetrics();
 	}
 
 	public void close() {
@@ -76,57 +96,127 @@ public class JsonRpc2 implements Closeable
 	}
 	
 	public String executeJson(String requestJson) throws Exception {
+		StringWriter writer = new StringWriter();
+		executeJson(new StringReader(requestJson), writer);
+		return(writer.toString());
+	}
 
-		JsonElement req = null;
-		JsonArray reqs = null;
+	// Batch elements are parsed one at a time and handed off as they're
+	// read, with at most maxBatchParallelism in flight. Responses are
+	// written as they complete, so their order follows completion rather
+	// than the request; the spec allows this (clients match on id). If the
+	// batch turns out to be malformed partway through, work already started
+	// is finished and a parse error is added as the last element.
+	
+	public void executeJson(Reader requestReader, Writer responseWriter) throws Exception {
+
+		JsonReader reader = new JsonReader(requestReader);
+		reader.setLenient(true);
 
-		// parse the whole thing
+		JsonWriter writer = new JsonWriter(responseWriter);
+		
+		// figure out if we're a batch or single 
+
+		boolean isBatch;
+		JsonElement req = null;
 		
 		try {
-			req = jsonParser.parse(requestJson);
+			isBatch = (reader.peek() == JsonToken.BEGIN_ARRAY);
+			if (isBatch) reader.beginArray();
+			else { req = jsonParser.parse(reader); expectEnd(reader); }
 		}
 		catch (Exception e) {
-			return(makeErrorResponse(JsonNull.INSTANCE, PARSE_ERROR, e));
+			writer.jsonValue(makeErrorResponse(JsonNull.INSTANCE, PARSE_ERROR, e));
+			writer.flush();
+			return;
 		}
 
-		// figure out if we're a batch or single 
-		
-		StringBuilder sb = new StringBuilder();
-		int responseCount = 0;
-		boolean isBatch = false;
-
-		if (req.isJsonArray()) {
-			isBatch = true;
-			sb.append("[");
-			reqs = req.getAsJsonArray();
-		}
-		else {
-			reqs = new JsonArray();
-			reqs.add(req);
+		if (!isBatch) {
+			String resp = executeOne(req);
+			// null is ok, it just means this was a notification
+			if (resp != null) writer.jsonValue(resp);
+			writer.flush();
+			return;
 		}
 
-		// execute and then collect up responses
+		// batch; execute and write responses as they're ready
 
-		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
-		for (int i = 0; i < reqs.size(); ++i) {
-			futures.add(executeOneInternalAsync(reqs.get(i).getAsJsonObject()));
-		}
+		LinkedBlockingQueue<String> done = new LinkedBlockingQueue<String>();
+		int inFlight = 0;
+
+		writer.beginArray();
+
+		try {
+			while (reader.hasNext()) {
+				
+				req = jsonParser.parse(reader);
+
+				if (inFlight == maxBatchParallelism) {
+					emit(writer, done.take());
+					--inFlight;
+				}
 
-		for (int i = 0; i < futures.size(); ++i) {
-			String resp = futures.get(i).get();
-			if (resp != null) {
-				// null is ok, it just means this was a notification
-				// and doesn't require a response to be returned
-				if (responseCount++ > 0) sb.append(",");
-				sb.append(resp);
+				submitOne(req, done);
+				++inFlight;
+
+				inFlight -= emitReady(writer, done);
 			}
+
+			reader.endArray();
+			expectEnd(reader);
+		}
+		catch (JsonParseException | IOException e) {
+			while (inFlight > 0) { emit(writer, done.take()); --inFlight; }
+			emit(writer, makeErrorResponse(JsonNull.INSTANCE, PARSE_ERROR, e));
+		}
+
+		while (inFlight > 0) {
+			emit(writer, done.take());
+			--inFlight;
+			inFlight -= emitReady(writer, done);
+			writer.flush();
 		}
 
 		// and we're out
+
+		writer.endArray();
+		writer.flush();
+	}
+
+	// the reader is lenient so we can stream, but like parsing the whole
+	// string, anything after the top-level value is an error
+	private static void expectEnd(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.END_DOCUMENT) {
+			throw new JsonParseException("Did not consume the entire document.");
+		}
+	}
+
+	// notifications come back as "" so every submit puts exactly one item
+	private void submitOne(JsonElement req, LinkedBlockingQueue<String> done) {
+		exec.getPool().submit(() -> {
+			String resp = null;
+			try { resp = executeOne(req); }
+			catch (Exception e) { log.warning(Easy.exMsg(e, "jsonrpc2 batch", true)); }
+			finally { done.add(resp == null ? "" : resp); }
+		});
+	}
+
+	private int emitReady(JsonWriter writer, LinkedBlockingQueue<String> done) throws IOException {
 		
-		if (isBatch) sb.append("]");
+		int count = 0;
+		String resp;
+		
+		while ((resp = done.poll()) != null) {
+			emit(writer, resp);
+			++count;
+		}
+
+		if (count > 0) writer.flush();
+		return(count);
+	}
 
-		return(sb.toString());
+	private void emit(JsonWriter writer, String resp) throws IOException {
+		if (resp != null && !resp.isEmpty()) writer.jsonValue(resp);
 	}
 
 	// +---------------------------+
@@ -141,25 +231,78 @@ public class JsonRpc2 implements Closeable
 		}));
 	}
 	
+	private String executeOne(JsonElement req) {
+		
+		if (!req.isJsonObject()) {
+			recordCall(UNKNOWN_METHOD, 400, System.nanoTime());
+			return(makeErrorResponse(JsonNull.INSTANCE, INVALID_REQUEST, null));
+		}
+
+		return(executeOneInternal(req.getAsJsonObject()));
+	}
+	
 	private String executeOneInternal(JsonObject req) {
 
+		long startNanos = System.nanoTime();
+		
 		JsonElement id = req.get(PROP_ID);
-		String method = req.get(PROP_METHOD).getAsString();
+		JsonElement methodElt = req.get(PROP_METHOD);
+		
+		if (methodElt == null || !methodElt.isJsonPrimitive()) {
+			recordCall(UNKNOWN_METHOD, 400, startNanos);
+			return(makeErrorResponse(id == null ? JsonNull.INSTANCE : id, INVALID_REQUEST, null));
+		}
+		
+		String method = methodElt.getAsString();
 		log.info(String.format("executeOneInternal; method = %s, id = %s", method, id));
 		
 		MethodInfo info = methods.get(method);
-		if (info == null) return(makeErrorResponse(id, METHOD_NOT_FOUND, null));
+		if (info == null) {
+			// lumped together so junk names can't blow up the metrics
+			recordCall(UNKNOWN_METHOD, 404, startNanos);
+			return(makeErrorResponse(id, METHOD_NOT_FOUND, null));
+		}
+
+		WebMetrics.Route route = metrics.route(info.Name);
+		route.begin();
 
-		JsonObject params = paramsFromRequest(req, info);
-		if (params == null) return(makeErrorResponse(id, INVALID_PARAMS, null));
+		int status = 500;
 		
 		try {
+			JsonObject params = paramsFromRequest(req, info);
+			if (params == null) {
+				status = 400;
+				return(makeErrorResponse(id, INVALID_PARAMS, null));
+			}
+			
 			JsonObject result = info.Method.execute(params, req);
+			status = 200;
 			return(makeResponse(id, result == null ? JsonNull.INSTANCE : result));
 		}
 		catch (Exception e) {
 			return(makeErrorResponse(id, INTERNAL_ERROR, e));
 		}
+		finally {
+			route.end(status, System.nanoTime() - startNanos, 0, 0);
+		}
+	}
+
+	// +---------+
+	// | Metrics |
+	// +---------+
+
+	// Per-method call counts and latency histograms, keyed by method name.
+	// Status is HTTP-flavored: 200 ok, 400 bad request or params, 404 no
+	// such method, 500 the method threw.
+	
+	public WebMetrics getMetrics() {
+		return(metrics);
+	}
+
+	private void recordCall(String name, int status, long startNanos) {
+		WebMetrics.Route route = metrics.route(name);
+		route.begin();
+		route.end(status, System.nanoTime() - startNanos, 0, 0);
 	}
 
 	// +-------------------+
@@ -309,14 +452,19 @@ public class JsonRpc2 implements Closeable
 	public final static int RESERVED_ERROR_MAX = -32000;
 	public final static int RESERVED_ERROR_MIN = -32099;
 
+	public final static int DEFAULT_BATCH_PARALLELISM = 16;
+	public final static String UNKNOWN_METHOD = "(unknown)";
+
 
 	// +---------+
 	// | Members |
 	// +---------+
 
 	private Exec exec;
+	private int maxBatchParallelism;
 	private JsonParser jsonParser;
 	private Map<String,MethodInfo> methods;
+	private WebMetrics metrics;
 	
 	private final static Logger log = Logger.getLogger(JsonRpc2.class.getName());
 }
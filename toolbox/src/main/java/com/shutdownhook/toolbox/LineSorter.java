@@ -5,9 +5,14 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
@@ -18,14 +23,25 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class LineSorter
 {
@@ -38,11 +54,33 @@ public class LineSorter
 		public Boolean HasHeaderRow = false;
 		public Boolean ReverseSort = false;
 		public int LinesPerChunk = 500000; // assuming 1k/line, about half a gig
+
+		// If > 0, a chunk also ends once its estimated heap use hits this
+		// many bytes, so wide rows can't blow up a line-count-sized chunk.
+		// Peak is roughly (1 + ChunksInFlight) times this.
+		public long ChunkBudgetBytes = 0;
+		
+		public int ChunksInFlight = 1; // sorting/spilling while the next chunk is read
+		public int MergeFanIn = 64; // interim files merged per pass
+		public Boolean ParallelSort = true; // sort each chunk with Arrays.parallelSort
 		public SortItemFactory Factory = new IdentitySortItemFactory();
 		public LineParser Parser = new IdentityLineParser();
 		public ExecutorService Executor;
 		public String KeySeparator = "|||";
 		public Character CommentChar = '#';
+
+		// Interim files hold length-prefixed key and output strings rather
+		// than separator-joined text lines, so reading them back needs no
+		// scanning and keys can contain anything (including KeySeparator).
+		// CompressSpill deflates them (fastest level) for I/O-bound sorts.
+		public Boolean BinarySpill = true;
+		public Boolean CompressSpill = false;
+
+		// When Factory is one of the built-in PrimitiveKeyFactory types (and
+		// BinarySpill is on), chunks are held in parallel arrays of parsed
+		// keys and outputs and sorted by index instead of as SortItems, and
+		// merges compare keys read straight from the spill files.
+		public Boolean PrimitiveKeys = true;
 	}
 
 	public LineSorter() {
@@ -78,6 +116,18 @@ public class LineSorter
 		public SortItem create(String key, String output);
 	}
 
+	public enum KeyType {
+		LINE,
+		STRING,
+		LONG,
+		DOUBLE
+	}
+
+	// factories that can skip SortItems entirely; see Params.PrimitiveKeys
+	public interface PrimitiveKeyFactory extends SortItemFactory {
+		public KeyType getKeyType();
+	}
+
 	// +-----------------+
 	// | sortFile[Async] |
 	// +-----------------+
@@ -150,139 +200,130 @@ public class LineSorter
 			// TRUE return means it all fit in memory and we're done
 			if (chunkAndSort(inputStm, outputStm)) return;
 
-			// 2. incrementally merge and remerge
-			mergeDance();
-
-			// 3. write the output
-			writeFinalOutput(outputStm);
+			// 2. merge down to the output (usually in one pass)
+			mergeDance(outputStm);
 		}
 		finally {
+			for (File file : interimFiles) file.delete();
+			interimFiles.clear();
+			
 			long elapsedMS = (System.nanoTime() - startNanos) / 1000000L;
-			log.fine(String.format("Sort complete in %d milliseconds", elapsedMS));
+			log.fine(String.format("Sort complete in %d milliseconds (%d bytes spilled)",
+								   elapsedMS, spillBytes.get()));
 		}
 	}
 
-	// +------------------+
-	// | writeFinalOutput |
-	// +------------------+
-
-	private void writeFinalOutput(OutputStream outputStm) throws IOException {
-
-		OutputWriter writer = null;
-		InterimInputReader input = null;
-
-		try {
-			File file = interimFiles.pop();
-			input = new InterimInputReader(file, params);
-		
-			writer = new OutputWriter(outputStm, params);
-			if (headerLine != null) writer.writeLine(headerLine);
-
-			SortItem item;
-			while ((item = input.readItem()) != null) {
-				writer.writeLine(item.getOutputString());
-			}
-		}
-		finally {
-			safeClose(input);
-			safeClose(writer);
-		}
+	// bytes written to interim files (as stored, so after CompressSpill)
+	// across all sorts run by this instance
+	public long getSpillBytes() {
+		return(spillBytes.get());
 	}
 
 	// +------------+
 	// | mergeDance |
 	// +------------+
 
-	private void mergeDance() throws Exception {
+	// Merges up to MergeFanIn files at a time with a heap, so with the
+	// default fan-in nearly every sort is a single pass straight into the
+	// output. If there are more interim files than that, they're merged in
+	// groups (in parallel on the Executor) until few enough remain.
+	
+	private void mergeDance(OutputStream outputStm) throws Exception {
 
-		List<CompletableFuture<File>> futures = new LinkedList<CompletableFuture<File>>();
+		int fanIn = Math.max(2, params.MergeFanIn);
 		
-		while (interimFiles.size() > 1 || futures.size() > 0) {
+		while (interimFiles.size() > fanIn) {
 
-			// start new pairwise merges
-			while (interimFiles.size() > 1) {
-				futures.add(mergeFilePairAsync(interimFiles.pop(), interimFiles.pop()));
+			int groups = (interimFiles.size() + fanIn - 1) / fanIn;
+			int perGroup = (interimFiles.size() + groups - 1) / groups;
+			
+			List<CompletableFuture<File>> futures = new ArrayList<CompletableFuture<File>>();
+			
+			while (interimFiles.size() > 0) {
+				List<File> group = new ArrayList<File>();
+				while (group.size() < perGroup && interimFiles.size() > 0) {
+					group.add(interimFiles.removeFirst());
+				}
+				futures.add(mergeFilesAsync(group));
 			}
 
-			// wait for any to complete
-			CompletableFuture.anyOf(futures.toArray(new CompletableFuture[futures.size()])).get();
-
-			// collect finished results
-			int i = 0;
-			while (i < futures.size()) {
-				if (futures.get(i).isDone()) {
-					interimFiles.push(futures.get(i).join());
-					futures.remove(i);
-				}
-				else {
-					++i;
-				}
+			// keep them in order so equal keys stay stable
+			for (CompletableFuture<File> future : futures) {
+				interimFiles.addLast(joinUnwrapped(future));
 			}
 		}
+
+		OutputWriter writer = null;
+		
+		try {
+			writer = new OutputWriter(outputStm, params);
+			if (headerLine != null) writer.writeLine(headerLine);
+			
+			List<File> files = new ArrayList<File>(interimFiles);
+			interimFiles.clear();
+			mergeFiles(files, writer, false);
+		}
+		finally {
+			safeClose(writer);
+		}
 	}
 
-	private CompletableFuture<File> mergeFilePairAsync(File file1, File file2) {
+	private CompletableFuture<File> mergeFilesAsync(List<File> files) {
 
-		CompletableFuture<File> future = new CompletableFuture<File>();
+		return(runAsync(() -> {
+			OutputWriter writer = new OutputWriter(params);
+			try { mergeFiles(files, writer, true); }
+			finally { safeClose(writer); }
+			spillBytes.addAndGet(writer.getFile().length());
+			return(writer.getFile());
+		}));
+	}
 
-		params.Executor.submit(() -> {
+	private static class MergeHead
+	{
+		public SortItem Item;
+		public InterimInputReader Input;
+		public int Index;
+	}
 
-			try {
-				future.complete(mergeFilePair(file1, file2));
-			}
-			catch (Exception e) {
-				log.severe(Easy.exMsg(e, "mergeFilePairAsync", true));
-				future.complete(null);
-			}
-		});
+	private void mergeFiles(List<File> files, OutputWriter writer, boolean writeKey)
+		throws IOException {
 
-		return(future);
-	}
+		log.fine(String.format("Merging %d files", files.size()));
 
-	private File mergeFilePair(File file1, File file2) throws IOException {
+		Comparator<SortItem> cmp = itemComparator();
 
-		log.fine(String.format("Merging files %s and %S", file1.getName(), file2.getName()));
-		
-		InterimInputReader input1 = null;
-		InterimInputReader input2 = null;
-		OutputWriter writer = null;
+		PriorityQueue<MergeHead> heap = new PriorityQueue<MergeHead>(files.size(), (h1, h2) -> {
+			int icmp = cmp.compare(h1.Item, h2.Item);
+			return(icmp != 0 ? icmp : Integer.compare(h1.Index, h2.Index));
+		});
 
-		try {
-			input1 = new InterimInputReader(file1, params);
-			input2 = new InterimInputReader(file2, params);
-			writer = new OutputWriter(params);
-			
-			SortItem item1 = input1.readItem();
-			SortItem item2 = input2.readItem();
+		List<InterimInputReader> inputs = new ArrayList<InterimInputReader>();
 
-			// write out in order, de-duping
-			while (item1 != null && item2 != null) {
-				
-				int icmp = item1.compareTo(item2);
-				if (params.ReverseSort) icmp *= -1;
+		try {
+			for (int i = 0; i < files.size(); ++i) {
 				
-				if (icmp <= 0) {
-					writer.writeItem(item1);
-					item1 = input1.readItem();
-				}
-				else {
-					writer.writeItem(item2);
-					item2 = input2.readItem();
-				}
+				InterimInputReader input = new InterimInputReader(files.get(i), params);
+				inputs.add(input);
+
+				MergeHead head = new MergeHead();
+				head.Input = input;
+				head.Index = i;
+				head.Item = input.readItem();
+				if (head.Item != null) heap.add(head);
 			}
 
-			// spit out the balance
-			
-			while (item1 != null) { writer.writeItem(item1); item1 = input1.readItem(); }
-			while (item2 != null) {	writer.writeItem(item2); item2 = input2.readItem(); }
+			while (!heap.isEmpty()) {
+				
+				MergeHead head = heap.poll();
+				writer.writeItem(head.Item, writeKey);
 
-			// and done!
-			return(writer.getFile());
+				head.Item = head.Input.readItem();
+				if (head.Item != null) heap.add(head);
+			}
 		}
 		finally {
-			safeClose(writer);
-			safeClose(input2);
-			safeClose(input1);
+			for (InterimInputReader input : inputs) safeClose(input);
 		}
 	}
 
@@ -290,15 +331,18 @@ public class LineSorter
 	// | chunkAndSort |
 	// +--------------+
 
-	private boolean chunkAndSort(InputStream inputStm, OutputStream outputStm) throws IOException {
+	// Chunks are sorted and spilled on the Executor while the next one is
+	// read, with at most ChunksInFlight waiting on that at once; peak
+	// memory is about (1 + ChunksInFlight) * LinesPerChunk lines.
+	
+	private boolean chunkAndSort(InputStream inputStm, OutputStream outputStm) throws Exception {
 
 		InterimInputReader input = null;
+		List<CompletableFuture<File>> spills = new ArrayList<CompletableFuture<File>>();
 
 		try {
 			input = new InterimInputReader(inputStm, params);
 			
-			// note this is an ArrayList on purpose; we want to minimize reallocs
-			ArrayList<SortItem> items = new ArrayList<SortItem>(params.LinesPerChunk);
 			ParsedLine target = new ParsedLine();
 			int chunks = 0;
 
@@ -307,50 +351,70 @@ public class LineSorter
 				headerLine = target.Output;
 			}
 
+			boolean budgeted = (params.ChunkBudgetBytes > 0);
+			KeyType keyType = primitiveKeyType(params);
+
 			while (true) {
 				
-				// read the next chunk into memory and sort it.
+				// read the next chunk into memory; sized up front unless
+				// we're on a budget, to minimize reallocs
+				int capacity = (budgeted
+								? Math.min(params.LinesPerChunk, BUDGET_INITIAL_CAPACITY)
+								: params.LinesPerChunk);
+
+				Chunk chunk = (keyType == null
+							   ? new ItemChunk(capacity)
+							   : new KeyedChunk(keyType, capacity, params));
+				
+				long chunkBytes = 0;
 				String line;
-				items.clear(); 
 
 				while ((line = input.readLine()) != null) {
 					params.Parser.parse(line, target);
-					items.add(params.Factory.create(target.Key, target.Output));
-					if (items.size() == params.LinesPerChunk) break;
+					chunkBytes += chunk.add(target);
+					if (chunk.size() == params.LinesPerChunk) break;
+					if (budgeted && chunkBytes >= params.ChunkBudgetBytes) break;
 				}
 
-				if (items.size() == 0) break;
+				if (chunk.size() == 0) break;
 				++chunks;
-				
-				// sort it
-				if (params.ReverseSort) Collections.sort(items, Collections.reverseOrder());
-				else Collections.sort(items);
-
-				// and write it out
-				OutputWriter writer = null;
-				try {
-					if (chunks == 1 && input.peekLine() == null) {
-						// if we are here, our entire input fit into memory; no reason to 
-						// write to a temp file at all --- just write directly to output
+
+				if (chunks == 1 && input.peekLine() == null) {
+					// if we are here, our entire input fit into memory; no reason to 
+					// write to a temp file at all --- just write directly to output
+					OutputWriter writer = null;
+					try {
 						writer = new OutputWriter(outputStm, params);
 						if (headerLine != null) writer.writeLine(headerLine);
-						writer.writeItems(items, false);
-						log.fine(String.format("Oneshot sort complete with %d lines", items.size()));
+						int count = chunk.size();
+						chunk.sort();
+						chunk.write(writer, false);
+						log.fine(String.format("Oneshot sort complete with %d lines", count));
 						return(true);
 					}
-					else {
-						// ah well that's cool
-						writer = new OutputWriter(params);
-						writer.writeItems(items);
-						interimFiles.push(writer.getFile());
-						log.fine(String.format("Pushing initial interim file %s (%d lines)",
-											   writer.getFile().getName(), items.size() ));
+					finally {
+						safeClose(writer);
 					}
 				}
-				finally {
-					safeClose(writer);
+
+				// bound the number of chunks held in memory
+				int inFlight = params.ChunksInFlight;
+				for (CompletableFuture<File> spill : spills) {
+					if (!spill.isDone()) --inFlight;
 				}
 				
+				if (inFlight <= 0) {
+					for (CompletableFuture<File> spill : spills) {
+						if (!spill.isDone()) { joinUnwrapped(spill); break; }
+					}
+				}
+
+				spills.add(runAsync(() -> spillChunk(chunk)));
+			}
+
+			// in chunk order, so merges are stable
+			for (CompletableFuture<File> spill : spills) {
+				interimFiles.addLast(joinUnwrapped(spill));
 			}
 		}
 		finally {
@@ -361,6 +425,320 @@ public class LineSorter
 		return(false);
 	}
 
+	private File spillChunk(Chunk chunk) throws IOException {
+
+		OutputWriter writer = null;
+		int count = chunk.size();
+		
+		try {
+			chunk.sort();
+			writer = new OutputWriter(params);
+			chunk.write(writer, true);
+			log.fine(String.format("Spilled interim file %s (%d lines)",
+								   writer.getFile().getName(), count));
+			return(writer.getFile());
+		}
+		finally {
+			safeClose(writer);
+			if (writer != null) spillBytes.addAndGet(writer.getFile().length());
+		}
+	}
+
+	// Output is often the line itself, which we'd be holding anyway, so
+	// it's counted like any other string; chars are two bytes worst case
+	private static long stringBytes(String s) {
+		return(s == null ? 0 : STRING_OVERHEAD_BYTES + (2L * s.length()));
+	}
+
+	private final static int BUDGET_INITIAL_CAPACITY = 16 * 1024;
+	private final static long ITEM_OVERHEAD_BYTES = 32; // SortItem + list slot
+	private final static long SLOT_OVERHEAD_BYTES = 16; // KeyedChunk array slots
+	private final static long STRING_OVERHEAD_BYTES = 40;
+
+	// +--------+
+	// | Chunks |
+	// +--------+
+
+	// A chunk of input lines being read, sorted and written out. add
+	// returns (roughly) how much heap the line cost, for ChunkBudgetBytes.
+	
+	private interface Chunk {
+		public long add(ParsedLine parsed);
+		public int size();
+		public void sort();
+		public void write(OutputWriter writer, boolean spill) throws IOException;
+	}
+
+	// ItemChunk is a plain list of SortItems, for any factory
+	
+	private class ItemChunk implements Chunk
+	{
+		public ItemChunk(int capacity) {
+			this.items = new ArrayList<SortItem>(capacity);
+		}
+
+		public long add(ParsedLine parsed) {
+			items.add(params.Factory.create(parsed.Key, parsed.Output));
+			return(ITEM_OVERHEAD_BYTES + stringBytes(parsed.Key) + stringBytes(parsed.Output));
+		}
+
+		public int size() {
+			return(sorted == null ? items.size() : sorted.size());
+		}
+
+		public void sort() {
+			sorted = sortItems(items);
+			items = null;
+		}
+
+		public void write(OutputWriter writer, boolean spill) throws IOException {
+			writer.writeItems(sorted, spill);
+		}
+
+		private ArrayList<SortItem> items;
+		private List<SortItem> sorted;
+	}
+
+	// KeyedChunk keeps numeric keys parsed into a long[] (doubles as their
+	// order-preserving bits), string keys and outputs in String[]s, and
+	// sorts an int[] of indexes --- no per-line objects beyond the strings
+	// the parser already made.
+	
+	private static class KeyedChunk implements Chunk
+	{
+		public KeyedChunk(KeyType keyType, int capacity, Params params) {
+			this.keyType = keyType;
+			this.maxCapacity = params.LinesPerChunk;
+			this.reverse = params.ReverseSort;
+			this.parallel = params.ParallelSort;
+
+			this.outputs = new String[capacity];
+			if (isNumeric()) nums = new long[capacity];
+			if (keyType == KeyType.STRING) keys = new String[capacity];
+		}
+
+		public long add(ParsedLine parsed) {
+
+			if (count == outputs.length) grow();
+
+			long bytes = SLOT_OVERHEAD_BYTES + stringBytes(parsed.Output);
+
+			switch (keyType) {
+				case LONG: nums[count] = parseLongKey(parsed.Key); break;
+				case DOUBLE: nums[count] = sortableDouble(parseDoubleKey(parsed.Key)); break;
+				
+				case STRING:
+					keys[count] = (parsed.Key == null ? "" : parsed.Key);
+					if (parsed.Key != parsed.Output) bytes += stringBytes(parsed.Key);
+					break;
+
+				default: break;
+			}
+
+			outputs[count++] = parsed.Output;
+			return(bytes);
+		}
+
+		public int size() {
+			return(count);
+		}
+
+		public void sort() {
+			order = new int[count];
+			for (int i = 0; i < count; ++i) order[i] = i;
+			sortIndexes(order, comparator(), parallel);
+		}
+
+		public void write(OutputWriter writer, boolean spill) throws IOException {
+			for (int i = 0; i < count; ++i) {
+				int idx = order[i];
+				if (!spill) writer.writeLine(outputs[idx]);
+				else writeSpillRecord(writer.data, keyType, isNumeric() ? nums[idx] : 0,
+									  keyType == KeyType.STRING ? keys[idx] : null,
+									  outputs[idx]);
+			}
+		}
+
+		private IndexComparator comparator() {
+			// reversing by swapping arguments keeps equal keys in input order
+			if (isNumeric()) {
+				return(reverse ? (i1, i2) -> Long.compare(nums[i2], nums[i1])
+					   : (i1, i2) -> Long.compare(nums[i1], nums[i2]));
+			}
+			
+			String[] rg = (keyType == KeyType.STRING ? keys : outputs);
+			return(reverse ? (i1, i2) -> rg[i2].compareTo(rg[i1])
+				   : (i1, i2) -> rg[i1].compareTo(rg[i2]));
+		}
+
+		private void grow() {
+			int capacity = (int) Math.min((long) maxCapacity, outputs.length * 3L / 2L + 1L);
+			outputs = Arrays.copyOf(outputs, capacity);
+			if (nums != null) nums = Arrays.copyOf(nums, capacity);
+			if (keys != null) keys = Arrays.copyOf(keys, capacity);
+		}
+
+		private boolean isNumeric() {
+			return(keyType == KeyType.LONG || keyType == KeyType.DOUBLE);
+		}
+
+		private KeyType keyType;
+		private int maxCapacity;
+		private boolean reverse;
+		private boolean parallel;
+		
+		private int count = 0;
+		private long[] nums;
+		private String[] keys;
+		private String[] outputs;
+		private int[] order;
+	}
+
+	private static KeyType primitiveKeyType(Params params) {
+		if (!params.PrimitiveKeys || !params.BinarySpill) return(null);
+		if (!(params.Factory instanceof PrimitiveKeyFactory)) return(null);
+		return(((PrimitiveKeyFactory)params.Factory).getKeyType());
+	}
+
+	// +------------+
+	// | Index Sort |
+	// +------------+
+
+	// Stable merge sort of an index array; like Arrays.parallelSort, halves
+	// of big arrays are sorted on the common ForkJoin pool.
+	
+	private interface IndexComparator {
+		public int compare(int i1, int i2);
+	}
+
+	private static void sortIndexes(int[] order, IndexComparator cmp, boolean parallel) {
+		int[] tmp = new int[order.length];
+		if (parallel && order.length > PARALLEL_SORT_MIN) {
+			ForkJoinPool.commonPool().invoke(new IndexSortTask(order, tmp, 0, order.length, cmp));
+		}
+		else {
+			mergeSort(order, tmp, 0, order.length, cmp);
+		}
+	}
+
+	private static class IndexSortTask extends RecursiveAction
+	{
+		public IndexSortTask(int[] rg, int[] tmp, int lo, int hi, IndexComparator cmp) {
+			this.rg = rg; this.tmp = tmp; this.lo = lo; this.hi = hi; this.cmp = cmp;
+		}
+
+		protected void compute() {
+			if (hi - lo <= PARALLEL_SORT_MIN) {
+				mergeSort(rg, tmp, lo, hi, cmp);
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new IndexSortTask(rg, tmp, lo, mid, cmp),
+					  new IndexSortTask(rg, tmp, mid, hi, cmp));
+			
+			mergeRuns(rg, tmp, lo, mid, hi, cmp);
+		}
+
+		private int[] rg;
+		private int[] tmp;
+		private int lo;
+		private int hi;
+		private IndexComparator cmp;
+	}
+
+	private static void mergeSort(int[] rg, int[] tmp, int lo, int hi, IndexComparator cmp) {
+
+		if (hi - lo <= INSERTION_SORT_MAX) {
+			for (int i = lo + 1; i < hi; ++i) {
+				int v = rg[i];
+				int j = i - 1;
+				while (j >= lo && cmp.compare(rg[j], v) > 0) { rg[j + 1] = rg[j]; --j; }
+				rg[j + 1] = v;
+			}
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		mergeSort(rg, tmp, lo, mid, cmp);
+		mergeSort(rg, tmp, mid, hi, cmp);
+		mergeRuns(rg, tmp, lo, mid, hi, cmp);
+	}
+
+	private static void mergeRuns(int[] rg, int[] tmp, int lo, int mid, int hi, IndexComparator cmp) {
+
+		if (cmp.compare(rg[mid - 1], rg[mid]) <= 0) return; // already in order
+		
+		System.arraycopy(rg, lo, tmp, lo, hi - lo);
+		
+		int i = lo;
+		int j = mid;
+		int k = lo;
+
+		// ties go to the left run, which keeps the sort stable
+		while (i < mid && j < hi) rg[k++] = (cmp.compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++]);
+		while (i < mid) rg[k++] = tmp[i++];
+		while (j < hi) rg[k++] = tmp[j++];
+	}
+
+	private final static int PARALLEL_SORT_MIN = 8192;
+	private final static int INSERTION_SORT_MAX = 16;
+
+	private List<SortItem> sortItems(List<SortItem> items) {
+
+		Comparator<SortItem> cmp = itemComparator();
+
+		if (!params.ParallelSort) {
+			items.sort(cmp);
+			return(items);
+		}
+
+		// parallelSort is stable and falls back to a serial sort for small arrays
+		SortItem[] rgItems = items.toArray(new SortItem[items.size()]);
+		items.clear(); // let the list go while the array is live
+		Arrays.parallelSort(rgItems, cmp);
+		return(Arrays.asList(rgItems));
+	}
+
+	private Comparator<SortItem> itemComparator() {
+		return(params.ReverseSort ? Comparator.reverseOrder() : Comparator.naturalOrder());
+	}
+
+	// +-------+
+	// | Async |
+	// +-------+
+
+	private interface Work<T> {
+		public T run() throws Exception;
+	}
+
+	// runs inline if there's no Executor
+	private <T> CompletableFuture<T> runAsync(Work<T> work) {
+
+		CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Runnable r = () -> {
+			try { future.complete(work.run()); }
+			catch (Throwable e) { future.completeExceptionally(e); }
+		};
+
+		if (params.Executor == null) r.run();
+		else params.Executor.submit(r);
+
+		return(future);
+	}
+
+	private static <T> T joinUnwrapped(CompletableFuture<T> future) throws Exception {
+		try {
+			return(future.get());
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			throw e;
+		}
+	}
+
 	// +----------------------------+
 	// | LineParser Implementations |
 	// +----------------------------+
@@ -397,17 +775,18 @@ public class LineSorter
 		private char chSep;
 		private Character chQuote;
 		
+		// Fields are substrings of the line; only a quoted field with an
+		// escaped quote in it needs a StringBuilder. Nothing is built for
+		// columns other than the key and output.
+		
 		public void parse(String line, ParsedLine target) {
 
 			target.Key = null;
-			target.Output = null;
-			
-			StringBuilder sbKey = new StringBuilder();
-
-			StringBuilder sbOutput = null;
-			if (icolOutput == XSV_OUTPUT_ALL) target.Output = line;
-			else sbOutput = new StringBuilder();
+			target.Output = (icolOutput == XSV_OUTPUT_ALL ? line : null);
 
+			String key = "";
+			String output = null;
+			
 			int ich = 0;
 			int cch = line.length();
 			int icol = 0;
@@ -422,59 +801,73 @@ public class LineSorter
 					++ich;
 				}
 
-				if (ich < cch) {
+				if (ich == cch) break;
 					
-					// check for quoting
-					boolean quoting = false;
-					if (chQuote != null && line.charAt(ich) == chQuote) {
-						quoting = true;
-						++ich;
-					}
+				// check for quoting
+				boolean quoting = false;
+				if (chQuote != null && line.charAt(ich) == chQuote) {
+					quoting = true;
+					++ich;
+				}
+
+				boolean wanted = (icol == icolKey || icol == icolOutput);
+				int ichStart = ich;
+				int ichEnd = cch;
+				StringBuilder sbEscaped = null;
 
-					// walk to end of the field; collect chars iff target col
-					while (ich < cch) {
+				// walk to end of the field
+				while (ich < cch) {
 
-						char ch = line.charAt(ich);
+					char ch = line.charAt(ich);
 						
-						if (quoting && ch == chQuote) {
-							++ich;
-							if (ich < cch && line.charAt(ich) == chQuote) {
-								// escaped quotation; accumulate iff target
-								if (icol == icolKey) sbKey.append(chQuote);
-								if (icol == icolOutput) sbOutput.append(chQuote);
-								++ich;
-							}
-							else {
-								// end of quoted field; find separator
-								while (ich < cch && line.charAt(ich) != chSep) ++ich;
-								break;
+					if (quoting && ch == chQuote) {
+						if (ich + 1 < cch && line.charAt(ich + 1) == chQuote) {
+							// escaped quotation; keep one of the pair iff wanted
+							if (wanted) {
+								if (sbEscaped == null) sbEscaped = new StringBuilder();
+								sbEscaped.append(line, ichStart, ich + 1);
+								ichStart = ich + 2;
 							}
+							ich += 2;
 						}
-						else if (!quoting && ch == chSep) {
-							// end of non-quoted field; eat back whitespace iff target
-							if (icol == icolKey) removeTrailingWhitespace(sbKey);
-							if (icol == icolOutput) removeTrailingWhitespace(sbOutput);
+						else {
+							// end of quoted field; find separator
+							ichEnd = ich;
+							while (ich < cch && line.charAt(ich) != chSep) ++ich;
 							break;
 						}
-						else {
-							// normal character, accumulate & move on
-							if (icol == icolKey) sbKey.append(ch);
-							if (icol == icolOutput) sbOutput.append(ch);
-							++ich;
+					}
+					else if (!quoting && ch == chSep) {
+						// end of non-quoted field; eat back whitespace
+						ichEnd = ich;
+						while (ichEnd > ichStart && Character.isWhitespace(line.charAt(ichEnd - 1))) {
+							--ichEnd;
 						}
+						break;
 					}
-
-					// woot!
-					if (icol >= icolKey && icol >= icolOutput) {
-						target.Key = sbKey.toString();
-						if (sbOutput != null) target.Output = sbOutput.toString();
-						return;
+					else {
+						++ich;
 					}
+				}
 
-					// bounce over separator and increment column counter
-					if (ich < cch && line.charAt(ich) == chSep) ++ich;
-					++icol;
+				if (wanted) {
+					String field = (sbEscaped == null ? line.substring(ichStart, ichEnd)
+									: sbEscaped.append(line, ichStart, ichEnd).toString());
+					
+					if (icol == icolKey) key = field;
+					if (icol == icolOutput) output = field;
+				}
+
+				// woot!
+				if (icol >= icolKey && icol >= icolOutput) {
+					target.Key = key;
+					if (icolOutput != XSV_OUTPUT_ALL) target.Output = output;
+					return;
 				}
+
+				// bounce over separator and increment column counter
+				if (ich < cch && line.charAt(ich) == chSep) ++ich;
+				++icol;
 			}
 		}
 	}
@@ -494,11 +887,13 @@ public class LineSorter
 		private String line;
 	}
 
-	public static class IdentitySortItemFactory implements SortItemFactory
+	public static class IdentitySortItemFactory implements PrimitiveKeyFactory
 	{
 		public SortItem create(String key, String output) {
 			return(new IdentitySortItem(output));
 		}
+
+		public KeyType getKeyType() { return(KeyType.LINE); }
 	}
 	
 	// String
@@ -513,14 +908,16 @@ public class LineSorter
 		private String output;
 	}
 
-	public static class StringSortItemFactory implements SortItemFactory
+	public static class StringSortItemFactory implements PrimitiveKeyFactory
 	{
 		public SortItem create(String key, String output) {
 			return(new StringSortItem(key, output));
 		}
+
+		public KeyType getKeyType() { return(KeyType.STRING); }
 	}
 
-	// Typed (Long)
+	// Typed (Long, Double)
 
 	public static class TypedSortItem<T extends Comparable<T>> extends StringSortItem
 	{
@@ -529,16 +926,42 @@ public class LineSorter
 		private T t;
 	}
 
-	public static class LongSortItemFactory implements SortItemFactory
+	public static class LongSortItemFactory implements PrimitiveKeyFactory
 	{
 		public SortItem create(String key, String output) {
-			
-			Long l = 0L;
-			try { l = Long.parseLong(key); }
-			catch (Exception e) { /* eat it and use 0 */ }
-			
-			return(new TypedSortItem<Long>(l, key, output));
+			return(new TypedSortItem<Long>(parseLongKey(key), key, output));
 		}
+
+		public KeyType getKeyType() { return(KeyType.LONG); }
+	}
+
+	public static class DoubleSortItemFactory implements PrimitiveKeyFactory
+	{
+		public SortItem create(String key, String output) {
+			return(new TypedSortItem<Double>(parseDoubleKey(key), key, output));
+		}
+
+		public KeyType getKeyType() { return(KeyType.DOUBLE); }
+	}
+
+	private static long parseLongKey(String key) {
+		try { return(Long.parseLong(key)); }
+		catch (Exception e) { return(0L); /* eat it and use 0 */ }
+	}
+
+	private static double parseDoubleKey(String key) {
+		try { return(Double.parseDouble(key)); }
+		catch (Exception e) { return(0.0); /* eat it and use 0 */ }
+	}
+
+	// flips the non-sign bits of negatives so the longs sort like Double.compare
+	private static long sortableDouble(double d) {
+		long bits = Double.doubleToLongBits(d);
+		return(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+	}
+
+	private static double unsortableDouble(long sortable) {
+		return(Double.longBitsToDouble(sortable ^ ((sortable >> 63) & Long.MAX_VALUE)));
 	}
 
 	// +--------------+
@@ -558,14 +981,20 @@ public class LineSorter
 
 			this.params = params;
 			
-			this.file = File.createTempFile("srt", ".xsv");
+			this.file = File.createTempFile("srt", params.BinarySpill ? ".bin" : ".xsv");
 			this.file.deleteOnExit();
-			
-			this.writer = new FileWriter(file);
-			this.buf = new BufferedWriter(writer);
+
+			if (params.BinarySpill) {
+				this.data = new DataOutputStream(spillOutputStream(file, params));
+			}
+			else {
+				this.writer = new FileWriter(file);
+				this.buf = new BufferedWriter(writer);
+			}
 		}
 
 		public void close() {
+			LineSorter.safeClose(data);
 			LineSorter.safeClose(buf);
 			LineSorter.safeClose(writer);
 		}
@@ -583,6 +1012,18 @@ public class LineSorter
 		}
 
 		public void writeItem(SortItem item, boolean writeKey) throws IOException {
+
+			if (data != null && item instanceof RawSortItem) {
+				((RawSortItem)item).write(data);
+				return;
+			}
+			
+			if (data != null) {
+				writeSpillString(data, item.getKeyString());
+				writeSpillString(data, item.getOutputString());
+				return;
+			}
+			
 			writeLine(writeKey && item.getKeyString() != null
 					  ? item.getKeyString() + params.KeySeparator + item.getOutputString()
 					  : item.getOutputString());
@@ -602,6 +1043,7 @@ public class LineSorter
 		private OutputStream stm;
 		private OutputStreamWriter writer;
 		private BufferedWriter buf;
+		private DataOutputStream data;
 	}
 
 	// +--------------------+
@@ -612,9 +1054,17 @@ public class LineSorter
 	{
 		public InterimInputReader(File file, Params params) throws IOException {
 			this.file = file;
-			this.stm = new FileInputStream(file);
 			this.params = params;
-			sharedInit();
+
+			if (params.BinarySpill) {
+				this.stm = spillInputStream(file, params);
+				this.data = new DataInputStream(stm);
+				this.keyType = primitiveKeyType(params);
+			}
+			else {
+				this.stm = new FileInputStream(file);
+				sharedInit();
+			}
 		}
 
 		public InterimInputReader(InputStream stm, Params params) throws IOException {
@@ -629,6 +1079,7 @@ public class LineSorter
 		}
 
 		public void close() {
+			LineSorter.safeClose(data);
 			LineSorter.safeClose(buf);
 			LineSorter.safeClose(reader);
 			
@@ -641,6 +1092,18 @@ public class LineSorter
 		}
 
 		public SortItem readItem() throws IOException {
+
+			if (keyType != null) return(RawSortItem.read(data, keyType));
+			
+			if (data != null) {
+				int cbKey;
+				try { cbKey = data.readInt(); }
+				catch (EOFException e) { return(null); }
+				
+				String key = readSpillString(data, cbKey);
+				String output = readSpillString(data, data.readInt());
+				return(params.Factory.create(key, output));
+			}
 			
 			String line = readLine();
 			if (line == null) return(null);
@@ -698,9 +1161,150 @@ public class LineSorter
 		private InputStream stm;
 		private InputStreamReader reader;
 		private BufferedReader buf;
+		private DataInputStream data;
+		private KeyType keyType;
 		private String nextLine;
 		private Params params;
 	}
+
+	// +-------------+
+	// | Spill Files |
+	// +-------------+
+
+	// each string is an int byte count (-1 for null) then that many UTF-8 bytes
+	
+	private static void writeSpillString(DataOutputStream data, String s) throws IOException {
+		if (s == null) {
+			data.writeInt(-1);
+		}
+		else {
+			byte[] rgb = s.getBytes(StandardCharsets.UTF_8);
+			data.writeInt(rgb.length);
+			data.write(rgb);
+		}
+	}
+
+	private static String readSpillString(DataInputStream data, int cb) throws IOException {
+		if (cb == -1) return(null);
+		byte[] rgb = new byte[cb];
+		data.readFully(rgb);
+		return(new String(rgb, StandardCharsets.UTF_8));
+	}
+
+	// With primitive keys, records are instead [key][output] where the key
+	// is a long for LONG/DOUBLE or UTF-8 bytes for STRING; for LINE the
+	// output itself is the key. Text stays UTF-8 to keep spills small, so
+	// string keys are decoded once per record as they're read back.
+
+	private static void writeSpillRecord(DataOutputStream data, KeyType keyType,
+										 long num, String key, String output) throws IOException {
+		switch (keyType) {
+			case LONG:
+			case DOUBLE:
+				data.writeLong(num);
+				writeSpillBytes(data, output.getBytes(StandardCharsets.UTF_8));
+				break;
+
+			case STRING:
+				writeSpillBytes(data, key.getBytes(StandardCharsets.UTF_8));
+				writeSpillBytes(data, output.getBytes(StandardCharsets.UTF_8));
+				break;
+
+			case LINE:
+				writeSpillBytes(data, output.getBytes(StandardCharsets.UTF_8));
+				break;
+		}
+	}
+
+	private static void writeSpillBytes(DataOutputStream data, byte[] rgb) throws IOException {
+		data.writeInt(rgb.length);
+		data.write(rgb);
+	}
+
+	private static byte[] readSpillBytes(DataInputStream data) throws IOException {
+		byte[] rgb = new byte[data.readInt()];
+		data.readFully(rgb);
+		return(rgb);
+	}
+
+	private static class RawSortItem implements SortItem
+	{
+		// null at clean end of file
+		public static RawSortItem read(DataInputStream data, KeyType keyType) throws IOException {
+
+			RawSortItem item = new RawSortItem();
+			item.keyType = keyType;
+
+			try {
+				if (keyType == KeyType.LONG || keyType == KeyType.DOUBLE) item.num = data.readLong();
+				else item.key = readSpillBytes(data);
+			}
+			catch (EOFException e) {
+				return(null);
+			}
+
+			item.output = (keyType == KeyType.LINE ? item.key : readSpillBytes(data));
+			if (item.key != null) item.keyString = new String(item.key, StandardCharsets.UTF_8);
+			return(item);
+		}
+
+		public void write(DataOutputStream data) throws IOException {
+			if (key == null) data.writeLong(num);
+			else writeSpillBytes(data, key);
+			if (keyType != KeyType.LINE) writeSpillBytes(data, output);
+		}
+
+		public int compareTo(SortItem item) {
+			RawSortItem other = (RawSortItem) item;
+			if (key == null) return(Long.compare(num, other.num));
+			return(keyString.compareTo(other.keyString));
+		}
+
+		public String getKeyString() {
+			switch (keyType) {
+				case LONG: return(Long.toString(num));
+				case DOUBLE: return(Double.toString(unsortableDouble(num)));
+				case STRING: return(keyString);
+				default: return(null);
+			}
+		}
+
+		public String getOutputString() {
+			if (keyType == KeyType.LINE) return(keyString);
+			return(new String(output, StandardCharsets.UTF_8));
+		}
+
+		private KeyType keyType;
+		private long num;
+		private byte[] key;
+		private String keyString;
+		private byte[] output;
+	}
+
+	private final static int SPILL_BUFFER_BYTES = 64 * 1024;
+	
+	private static OutputStream spillOutputStream(File file, Params params) throws IOException {
+		
+		OutputStream stm = new FileOutputStream(file);
+		
+		if (params.CompressSpill) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			stm = new DeflaterOutputStream(stm, deflater, SPILL_BUFFER_BYTES) {
+				@Override public void close() throws IOException {
+					try { super.close(); } finally { deflater.end(); }
+				}
+			};
+		}
+		
+		return(new BufferedOutputStream(stm, SPILL_BUFFER_BYTES));
+	}
+
+	private static InputStream spillInputStream(File file, Params params) throws IOException {
+		
+		InputStream stm = new FileInputStream(file);
+		if (params.CompressSpill) stm = new InflaterInputStream(stm, new Inflater(), SPILL_BUFFER_BYTES);
+		return(new BufferedInputStream(stm, SPILL_BUFFER_BYTES));
+	}
 		
 	// +---------+
 	// | Helpers |
@@ -711,12 +1315,6 @@ public class LineSorter
 		catch (Exception e) { /* eat it */ }
 	}
 
-	private static void removeTrailingWhitespace(StringBuilder sb) {
-		while (sb.length() > 0 && Character.isWhitespace(sb.charAt(sb.length() - 1))) {
-			sb.setLength(sb.length() - 1);
-		}
-	}
-
 	// +------------+
 	// | Entrypoint |
 	// +------------+
@@ -730,6 +1328,7 @@ public class LineSorter
 		char chSep = '\t';
 		char chQuote = '\"';
 		boolean numericSort = false;
+		boolean floatSort = false;
 
 		Params params = new Params();
 		params.Executor = Executors.newCachedThreadPool();
@@ -743,8 +1342,10 @@ public class LineSorter
 				case 'h': params.HasHeaderRow = true; break;
 				case 'r': params.ReverseSort = true; break;
 				case 'x': params.LinesPerChunk = Integer.parseInt(arg.substring(2)); break;
+				case 'm': params.MergeFanIn = Integer.parseInt(arg.substring(2)); break;
 				case 't': params.CommentChar = arg.charAt(2); break;
 				case 'n': numericSort = true; break;
+				case 'f': floatSort = true; break;
 				case 's': chSep = arg.charAt(2); break;
 				case 'q': chQuote = arg.charAt(2); break;
 				case 'c': icolKey = Integer.parseInt(arg.substring(2)); break;
@@ -754,7 +1355,9 @@ public class LineSorter
 
 		if (icolKey != -1 || icolOutput != XSV_OUTPUT_ALL) {
 			params.Parser = new XsvLineParser(icolKey, icolOutput, chSep, chQuote);
-			params.Factory = (numericSort ? new LongSortItemFactory() : new StringSortItemFactory());
+			params.Factory = (floatSort ? new DoubleSortItemFactory()
+							  : numericSort ? new LongSortItemFactory()
+							  : new StringSortItemFactory());
 		}
 
 		LineSorter sorter = new LineSorter(params);
@@ -772,9 +1375,11 @@ public class LineSorter
 		System.out.println("-qCHAR\tuse CHAR as quote character (default '\\\"')");
 		System.out.println("-tCHAR\tuse CHAR as start-of-line comment character (default '#')");
 		System.out.println("-n\tsort numerically (default string)");
+		System.out.println("-f\tsort numerically with decimals (default string)");
 		System.out.println("-c#\tsort on field # (default full line)");
 		System.out.println("-o#\toutput field # (default full line)");
 		System.out.println("-x#\tset lines per chunk to #");
+		System.out.println("-m#\tmerge up to # interim files per pass (default 64)");
 	}
 
 	// +---------+
@@ -784,6 +1389,7 @@ public class LineSorter
 	private Params params;
 	private String headerLine;
 	private LinkedList<File> interimFiles = new LinkedList<File>();
+	private AtomicLong spillBytes = new AtomicLong(0);
 	
 	private final static Logger log = Logger.getLogger(LineSorter.class.getName());
 }
@@ -6,10 +6,22 @@
 package com.shutdownhook.toolbox;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
+// Items live in one of a fixed number of stripes chosen by key hash, each
+// with its own lock, so lookups for different keys rarely contend. Each
+// stripe is a segmented LRU: new items land in a "probation" segment and
+// move to a "protected" segment only when hit again, so a burst of one-off
+// lookups can't flush out the items that are actually popular. Limits are
+// by item count and (optionally) estimated bytes, split evenly across
+// stripes.
+
 abstract public class MemoryCachingProxy<K,T> extends CachingProxy<K,T>
 {
 	// +--------------+
@@ -19,6 +31,11 @@ abstract public class MemoryCachingProxy<K,T> extends CachingProxy<K,T>
 	// return null when id is not found, else throw
 	// abstract public T liveFetch(K id) throws Exception;
 
+	// override for a better guess than DefaultItemBytes when using MaxCacheBytes
+	protected long estimateBytes(K id, T obj) {
+		return(estimateObjectBytes(id) + estimateObjectBytes(obj));
+	}
+
 	// +----------------+
 	// | Config & Setup |
 	// +----------------+
@@ -26,51 +43,98 @@ abstract public class MemoryCachingProxy<K,T> extends CachingProxy<K,T>
 	public static class Config extends CachingProxy.Config
 	{
 		public Integer MaxCacheItems = 1000;
+		public Long MaxCacheBytes = 0L; // 0 = limit by item count only
+		public Integer DefaultItemBytes = 1024; // for objects we can't size
+		// rounded down to a power of two; each stripe gets an even share of the
+		// limits, so keep items well under MaxCacheBytes / CacheStripes
+		public Integer CacheStripes = 16;
+		public Integer ProtectedPercent = 80; // of each stripe, for repeat hits
 	}
 
-	// +----------------+
-	// | Implementation |
-	// +----------------+
-
 	public MemoryCachingProxy(Config cfg) throws Exception {
+
 		super(cfg);
-		this.cacheMap = new MemoryCacheMap<K,T>(cfg.MaxCacheItems);
+		this.cfg = cfg;
+
+		// no point in stripes too small to hold anything useful
+		int maxStripes = Math.max(1, cfg.MaxCacheItems / MIN_ITEMS_PER_STRIPE);
+		int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(cfg.CacheStripes, maxStripes)));
+
+		long maxBytes = (cfg.MaxCacheBytes > 0 ? cfg.MaxCacheBytes : Long.MAX_VALUE);
+
+		this.stripes = new ArrayList<Stripe>(stripeCount);
+		for (int i = 0; i < stripeCount; ++i) {
+			stripes.add(new Stripe(Math.max(1, cfg.MaxCacheItems / stripeCount),
+								   maxBytes == Long.MAX_VALUE ? maxBytes : maxBytes / stripeCount));
+		}
 	}
 
+	// +--------------+
+	// | CachingProxy |
+	// +--------------+
+
 	@Override
 	public T cacheFetch(K id) throws Exception {
-		MemoryCacheItem<T> item = null;
-		synchronized (cacheMap) { item = cacheMap.get(id); }
-		return(item == null ? null : item.Obj);
+		MemoryCacheItem<T> item = stripeFor(id).get(id, true);
+		if (item == null) { misses.increment(); return(null); }
+		hits.increment();
+		return(item.Obj);
 	}
 
 	@Override
 	public void cacheStore(K id, T obj) throws Exception {
+		cacheStore(id, obj, Instant.now());
+	}
+
+	// for tiers behind this one that already know when obj was fetched
+	protected void cacheStore(K id, T obj, Instant cacheTime) {
 
 		MemoryCacheItem<T> item = new MemoryCacheItem<T>();
 		item.Obj = obj;
-		item.CacheTime = Instant.now();
-
-		synchronized (cacheMap) {
-			// the remove is important because insertion order
-			// only updates if the put is net-new. Note also that
-			// if we get larger than allowed the removeEldestEntry
-			// implementation below will auto-prune things
-			cacheMap.remove(id); 
-			cacheMap.put(id, item);
-		}
+		item.CacheTime = cacheTime;
+		item.Bytes = (cfg.MaxCacheBytes > 0 ? estimateBytes(id, obj) : 0);
+
+		stripeFor(id).put(id, item);
 	}
 
 	@Override
 	public Instant cacheTime(K id, T obj) throws Exception {
-
-		MemoryCacheItem<T> item = null;
-		synchronized (cacheMap) { item = cacheMap.get(id); }
+		// a peek; cacheFetch already counted and promoted this one
+		MemoryCacheItem<T> item = stripeFor(id).get(id, false);
 		return(item == null ? null : item.CacheTime);
 	}
 
+	// +-------+
+	// | Stats |
+	// +-------+
+
+	public static class Stats
+	{
+		public long Hits;
+		public long Misses;
+		public long Evictions;
+		public long Items;
+		public long Bytes;
+	}
+
+	public Stats getStats() {
+
+		Stats stats = new Stats();
+		stats.Hits = hits.sum();
+		stats.Misses = misses.sum();
+		stats.Evictions = evictions.sum();
+
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stats.Items += stripe.probation.size() + stripe.protect.size();
+				stats.Bytes += stripe.bytes;
+			}
+		}
+
+		return(stats);
+	}
+
 	// +-----------------+
-	// | MemoryCacheMap  |
 	// | MemoryCacheItem |
 	// +-----------------+
 
@@ -78,28 +142,141 @@ abstract public class MemoryCachingProxy<K,T> extends CachingProxy<K,T>
 	{
 		public T Obj;
 		public Instant CacheTime;
+		public long Bytes;
 	}
 
-	public static class MemoryCacheMap<K,T>	extends LinkedHashMap<K,MemoryCacheItem<T>>
+	// +--------+
+	// | Stripe |
+	// +--------+
+
+	// Both segments are access-ordered, so iteration starts at the least
+	// recently used item. Everything happens under the stripe's lock.
+
+	private class Stripe
 	{
-		public MemoryCacheMap(int maxItems) {
+		public Stripe(int maxItems, long maxBytes) {
 			this.maxItems = maxItems;
+			this.maxBytes = maxBytes;
+			this.maxProtectedItems = (int) ((long) maxItems * cfg.ProtectedPercent / 100L);
+			this.maxProtectedBytes = (maxBytes == Long.MAX_VALUE ? maxBytes
+									  : maxBytes / 100L * cfg.ProtectedPercent);
+
+			this.probation = new LinkedHashMap<K,MemoryCacheItem<T>>(16, 0.75f, true);
+			this.protect = new LinkedHashMap<K,MemoryCacheItem<T>>(16, 0.75f, true);
 		}
 
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<K,MemoryCacheItem<T>> entry) {
-			return(size() > maxItems);
+		public synchronized MemoryCacheItem<T> get(K id, boolean promote) {
+
+			// in protected, the get itself refreshes recency
+			MemoryCacheItem<T> item = protect.get(id);
+			if (item != null) return(item);
+
+			item = probation.get(id);
+			if (item == null || !promote) return(item);
+
+			// second hit; move up to protected
+			probation.remove(id);
+			protect.put(id, item);
+			protectedBytes += item.Bytes;
+			demote();
+
+			return(item);
+		}
+
+		public synchronized void put(K id, MemoryCacheItem<T> item) {
+
+			// a refresh stays in whichever segment it was already in
+			MemoryCacheItem<T> old = protect.get(id);
+
+			if (old != null) {
+				protect.put(id, item);
+				protectedBytes += item.Bytes - old.Bytes;
+				demote();
+			}
+			else {
+				old = probation.put(id, item);
+			}
+
+			bytes += item.Bytes - (old == null ? 0 : old.Bytes);
+			evict();
+		}
+
+		// protected overflow goes back to the most-recent end of probation
+		private void demote() {
+
+			Iterator<Map.Entry<K,MemoryCacheItem<T>>> it = protect.entrySet().iterator();
+
+			while (it.hasNext() &&
+				   (protect.size() > maxProtectedItems || protectedBytes > maxProtectedBytes)) {
+
+				Map.Entry<K,MemoryCacheItem<T>> entry = it.next();
+				it.remove();
+				protectedBytes -= entry.getValue().Bytes;
+				probation.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// probation goes first; protected only if probation is empty
+		private void evict() {
+			while ((probation.size() + protect.size() > maxItems || bytes > maxBytes) &&
+				   (evictEldest(probation) || evictEldest(protect))) {
+
+				evictions.increment();
+			}
+		}
+
+		private boolean evictEldest(LinkedHashMap<K,MemoryCacheItem<T>> segment) {
+
+			Iterator<Map.Entry<K,MemoryCacheItem<T>>> it = segment.entrySet().iterator();
+			if (!it.hasNext()) return(false);
+
+			MemoryCacheItem<T> item = it.next().getValue();
+			it.remove();
+
+			bytes -= item.Bytes;
+			if (segment == protect) protectedBytes -= item.Bytes;
+
+			return(true);
 		}
 
 		private int maxItems;
+		private long maxBytes;
+		private int maxProtectedItems;
+		private long maxProtectedBytes;
+
+		private LinkedHashMap<K,MemoryCacheItem<T>> probation;
+		private LinkedHashMap<K,MemoryCacheItem<T>> protect;
+		private long bytes = 0;
+		private long protectedBytes = 0;
+	}
+
+	private Stripe stripeFor(K id) {
+		int h = id.hashCode();
+		h ^= (h >>> 16); // same spreading HashMap does
+		return(stripes.get(h & (stripes.size() - 1)));
 	}
 
 	// +-------------------+
 	// | Members & Helpers |
 	// +-------------------+
 
-	private MemoryCacheMap<K,T> cacheMap;
+	// rough heap cost of things we know how to size
+	private long estimateObjectBytes(Object obj) {
+		if (obj == null) return(0);
+		if (obj instanceof CharSequence) return(40 + (2L * ((CharSequence)obj).length()));
+		if (obj instanceof byte[]) return(16 + ((byte[])obj).length);
+		if (obj instanceof Number) return(16);
+		return(cfg.DefaultItemBytes);
+	}
+
+	private final static int MIN_ITEMS_PER_STRIPE = 32;
+
+	private Config cfg;
+	private List<Stripe> stripes;
+
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder evictions = new LongAdder();
 
 	private final static Logger log = Logger.getLogger(MemoryCachingProxy.class.getName());
 }
-
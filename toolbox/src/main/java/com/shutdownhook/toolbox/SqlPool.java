@@ -0,0 +1,539 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Simple bounded JDBC connection pool used by SqlStore. Callers get a
+// proxied Connection whose close() returns the underlying connection to
+// the pool, so existing code that closes connections in finally blocks
+// just works. Idle connections are reaped lazily on borrow/release rather
+// than by a background thread.
+
+public class SqlPool implements Closeable
+{
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public interface ConnectionFactory {
+		public Connection open() throws SQLException;
+	}
+
+	public SqlPool(SqlStore.Config cfg, ConnectionFactory factory) {
+		this.cfg = cfg;
+		this.factory = factory;
+		this.idle = new ArrayDeque<PooledConnection>();
+		this.permits = new Semaphore(cfg.MaxPoolSize, true);
+	}
+
+	public void close() {
+
+		closed = true;
+
+		synchronized (idle) {
+			for (PooledConnection pc : idle) closeQuietly(pc.Cxn);
+			idle.clear();
+		}
+	}
+
+	// +-------+
+	// | Stats |
+	// +-------+
+
+	public static class Stats
+	{
+		public int Active;
+		public int Idle;
+		public long Borrows;
+		public long Opens;
+		public long Discards;
+		public long Timeouts;
+		public long TotalWaitMillis;
+		public long MaxWaitMillis;
+		public long StatementHits;
+		public long StatementMisses;
+	}
+
+	public Stats getStats() {
+
+		Stats stats = new Stats();
+
+		synchronized (idle) { stats.Idle = idle.size(); }
+		stats.Active = cfg.MaxPoolSize - permits.availablePermits();
+		stats.Borrows = borrows.get();
+		stats.Opens = opens.get();
+		stats.Discards = discards.get();
+		stats.Timeouts = timeouts.get();
+		stats.TotalWaitMillis = totalWaitNanos.get() / 1000000L;
+		stats.MaxWaitMillis = maxWaitNanos.get() / 1000000L;
+		stats.StatementHits = statementHits.get();
+		stats.StatementMisses = statementMisses.get();
+
+		return(stats);
+	}
+
+	// +--------+
+	// | borrow |
+	// +--------+
+
+	public Connection borrow() throws SQLException {
+
+		if (closed) throw new SQLException("SqlPool is closed");
+
+		long start = System.nanoTime();
+
+		try {
+			if (!permits.tryAcquire(cfg.PoolBorrowTimeoutSeconds, TimeUnit.SECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out waiting for a pooled connection");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection", e);
+		}
+
+		recordWait(System.nanoTime() - start);
+		borrows.incrementAndGet();
+
+		try {
+			PooledConnection pc = takeIdle();
+
+			if (pc == null) {
+				pc = new PooledConnection(factory.open());
+				opens.incrementAndGet();
+			}
+
+			return(wrap(pc));
+		}
+		catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private PooledConnection takeIdle() {
+
+		long now = System.currentTimeMillis();
+
+		while (true) {
+
+			PooledConnection pc;
+			synchronized (idle) { pc = idle.pollFirst(); }
+			if (pc == null) return(null);
+
+			long idleMillis = now - pc.LastUsed;
+
+			if (idleMillis < cfg.PoolValidateAfterIdleSeconds * 1000L || validate(pc.Cxn)) {
+				return(pc);
+			}
+
+			discard(pc.Cxn);
+		}
+	}
+
+	private boolean validate(Connection cxn) {
+
+		try {
+			if (cfg.PoolValidationQuery == null) {
+				return(cxn.isValid(cfg.PoolValidationTimeoutSeconds));
+			}
+
+			Statement stmt = cxn.createStatement();
+			try {
+				stmt.setQueryTimeout(cfg.PoolValidationTimeoutSeconds);
+				stmt.execute(cfg.PoolValidationQuery);
+				return(true);
+			}
+			finally {
+				stmt.close();
+			}
+		}
+		catch (Exception e) {
+			log.warning(Easy.exMsg(e, "SqlPool.validate", false));
+			return(false);
+		}
+	}
+
+	// +---------+
+	// | release |
+	// +---------+
+
+	private void release(PooledConnection pc) {
+
+		try {
+			if (closed || !reset(pc.Cxn)) {
+				discard(pc.Cxn);
+				return;
+			}
+
+			pc.LastUsed = System.currentTimeMillis();
+			synchronized (idle) { idle.addFirst(pc); }
+			reapIdle();
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	// put the connection back the way we found it; false means it's
+	// not safe to reuse and should be thrown away.
+
+	private boolean reset(Connection cxn) {
+
+		try {
+			if (cxn.isClosed()) return(false);
+
+			if (!cxn.getAutoCommit()) {
+				cxn.rollback();
+				cxn.setAutoCommit(true);
+			}
+
+			cxn.clearWarnings();
+			return(true);
+		}
+		catch (SQLException e) {
+			log.warning(Easy.exMsg(e, "SqlPool.reset", false));
+			return(false);
+		}
+	}
+
+	// idle list is LIFO, so the stale connections collect at the tail
+
+	private void reapIdle() {
+
+		long limit = System.currentTimeMillis() - (cfg.PoolIdleTimeoutSeconds * 1000L);
+
+		synchronized (idle) {
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext() && idle.size() > cfg.MinPoolSize) {
+				PooledConnection pc = it.next();
+				if (pc.LastUsed >= limit) break;
+				it.remove();
+				discard(pc.Cxn);
+			}
+		}
+	}
+
+	// +------------------+
+	// | PooledConnection |
+	// +------------------+
+
+	private class PooledConnection
+	{
+		public PooledConnection(Connection cxn) {
+			this.Cxn = cxn;
+			this.LastUsed = System.currentTimeMillis();
+			this.Statements = new StatementCache(cfg.StatementCacheSize);
+		}
+
+		public Connection Cxn;
+		public long LastUsed;
+		public StatementCache Statements;
+	}
+
+	private Connection wrap(PooledConnection pc) {
+
+		InvocationHandler handler = new InvocationHandler() {
+
+			private boolean released = false;
+
+			public synchronized Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+
+				String name = method.getName();
+
+				if (name.equals("close")) {
+					if (!released) { released = true; release(pc); }
+					return(null);
+				}
+
+				if (name.equals("equals")) return(proxy == args[0]);
+				if (name.equals("hashCode")) return(System.identityHashCode(proxy));
+
+				if (name.equals("isClosed")) {
+					return(released ? true : pc.Cxn.isClosed());
+				}
+
+				if (released) {
+					throw new SQLException("Connection has been returned to the pool");
+				}
+
+				if (name.equals("prepareStatement") && args.length == 1 &&
+					cfg.StatementCacheSize > 0) {
+					
+					return(prepareCached(pc, (String) args[0]));
+				}
+
+				try {
+					return(method.invoke(pc.Cxn, args));
+				}
+				catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		};
+
+		return((Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+												   new Class<?>[] { Connection.class },
+												   handler));
+	}
+
+	// +----------------+
+	// | StatementCache |
+	// +----------------+
+
+	// Per-connection LRU of prepared statements keyed by SQL text. Callers
+	// get a proxy whose close() parks the statement for the next caller
+	// instead of closing it. A statement that is already checked out (e.g.,
+	// the same SQL nested inside a handler) just gets a fresh uncached one.
+	//
+	// Settings a caller changes must not leak to the next one: timeout, max
+	// rows and fetch size are put back to what the driver gave us, and any
+	// other Statement setter (no getter to restore from) retires the
+	// statement on close instead of parking it.
+
+	private static class CachedStatement
+	{
+		public String Sql;
+		public PreparedStatement Stmt;
+		public boolean InUse;
+		public boolean Evicted;
+
+		public int DefaultQueryTimeout;
+		public int DefaultMaxRows;
+		public int DefaultFetchSize;
+		public boolean SettingsChanged;
+		public boolean Unrestorable;
+	}
+
+	private final static Set<String> RESTORABLE_SETTERS =
+		new HashSet<String>(Arrays.asList("setQueryTimeout", "setMaxRows", "setFetchSize"));
+
+	private static class StatementCache extends LinkedHashMap<String,CachedStatement>
+	{
+		public StatementCache(int maxItems) {
+			super(16, 0.75f, true);
+			this.maxItems = maxItems;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,CachedStatement> entry) {
+			
+			if (size() <= maxItems) return(false);
+
+			CachedStatement cs = entry.getValue();
+			if (cs.InUse) cs.Evicted = true; else closeQuietly(cs.Stmt);
+			
+			return(true);
+		}
+
+		private int maxItems;
+	}
+
+	private PreparedStatement prepareCached(PooledConnection pc, String sql)
+		throws SQLException {
+
+		CachedStatement cs;
+		
+		synchronized (pc.Statements) {
+			
+			cs = pc.Statements.get(sql);
+
+			if (cs != null && cs.InUse) {
+				statementMisses.incrementAndGet();
+				return(pc.Cxn.prepareStatement(sql));
+			}
+
+			if (cs == null) {
+				statementMisses.incrementAndGet();
+				cs = new CachedStatement();
+				cs.Sql = sql;
+				cs.Stmt = pc.Cxn.prepareStatement(sql);
+
+				try {
+					cs.DefaultQueryTimeout = cs.Stmt.getQueryTimeout();
+					cs.DefaultMaxRows = cs.Stmt.getMaxRows();
+					cs.DefaultFetchSize = cs.Stmt.getFetchSize();
+				}
+				catch (SQLException e) {
+					closeQuietly(cs.Stmt);
+					throw e;
+				}
+				
+				pc.Statements.put(sql, cs);
+			}
+			else {
+				statementHits.incrementAndGet();
+			}
+
+			cs.InUse = true;
+		}
+
+		final CachedStatement csFinal = cs;
+
+		InvocationHandler handler = new InvocationHandler() {
+
+			private volatile boolean released = false;
+			private final Object cancelLock = new Object();
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+
+				// cancel comes from another thread while execute is running
+				// (and holding the lock), so it can't wait its turn. It does
+				// share cancelLock with close, so it can never land on the
+				// statement after it's gone back to the cache for someone else.
+				if (method.getName().equals("cancel")) {
+					synchronized (cancelLock) { if (!released) csFinal.Stmt.cancel(); }
+					return(null);
+				}
+
+				synchronized (this) { return(invokeLocked(proxy, method, args)); }
+			}
+			
+			private Object invokeLocked(Object proxy, Method method, Object[] args)
+				throws Throwable {
+
+				String name = method.getName();
+
+				if (name.equals("close")) {
+					synchronized (cancelLock) {
+						if (released) return(null);
+						released = true;
+					}
+					releaseStatement(pc, csFinal);
+					return(null);
+				}
+
+				if (name.equals("equals")) return(proxy == args[0]);
+				if (name.equals("hashCode")) return(System.identityHashCode(proxy));
+				if (name.equals("isClosed")) return(released ? true : csFinal.Stmt.isClosed());
+
+				if (released) throw new SQLException("Statement has been closed");
+
+				if (method.getDeclaringClass() == Statement.class &&
+					(name.startsWith("set") || name.equals("closeOnCompletion"))) {
+					
+					if (RESTORABLE_SETTERS.contains(name)) csFinal.SettingsChanged = true;
+					else csFinal.Unrestorable = true;
+				}
+
+				try {
+					return(method.invoke(csFinal.Stmt, args));
+				}
+				catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		};
+			
+		return((PreparedStatement)
+			   Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+									  new Class<?>[] { PreparedStatement.class },
+									  handler));
+	}
+
+	private void releaseStatement(PooledConnection pc, CachedStatement cs) {
+
+		boolean keep = !cs.Evicted && !cs.Unrestorable;
+
+		// clearParameters doubles as a liveness check: some drivers (sqlite)
+		// finalize the statement once getMoreResults runs off the end, and
+		// then complain here. Those just don't get reused.
+		
+		if (keep) {
+			try {
+				cs.Stmt.clearParameters();
+				cs.Stmt.clearBatch();
+				cs.Stmt.clearWarnings();
+
+				if (cs.SettingsChanged) {
+					cs.Stmt.setQueryTimeout(cs.DefaultQueryTimeout);
+					cs.Stmt.setMaxRows(cs.DefaultMaxRows);
+					cs.Stmt.setFetchSize(cs.DefaultFetchSize);
+					cs.SettingsChanged = false;
+				}
+			}
+			catch (SQLException e) {
+				keep = false;
+			}
+		}
+
+		synchronized (pc.Statements) {
+			cs.InUse = false;
+			if (!keep) {
+				if (pc.Statements.get(cs.Sql) == cs) pc.Statements.remove(cs.Sql);
+				closeQuietly(cs.Stmt);
+			}
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private void recordWait(long nanos) {
+
+		totalWaitNanos.addAndGet(nanos);
+
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	private void discard(Connection cxn) {
+		discards.incrementAndGet();
+		closeQuietly(cxn);
+	}
+
+	private static void closeQuietly(AutoCloseable c) {
+		try { c.close(); }
+		catch (Exception e) { /* eat it */ }
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private SqlStore.Config cfg;
+	private ConnectionFactory factory;
+	private ArrayDeque<PooledConnection> idle;
+	private Semaphore permits;
+	private volatile boolean closed = false;
+
+	private AtomicLong borrows = new AtomicLong();
+	private AtomicLong opens = new AtomicLong();
+	private AtomicLong discards = new AtomicLong();
+	private AtomicLong timeouts = new AtomicLong();
+	private AtomicLong totalWaitNanos = new AtomicLong();
+	private AtomicLong maxWaitNanos = new AtomicLong();
+	private AtomicLong statementHits = new AtomicLong();
+	private AtomicLong statementMisses = new AtomicLong();
+
+	private final static Logger log = Logger.getLogger(SqlPool.class.getName());
+}
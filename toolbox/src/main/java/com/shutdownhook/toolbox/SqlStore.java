@@ -5,6 +5,7 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.List;
 import java.sql.Connection;
@@ -16,7 +17,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Logger;
 
-public class SqlStore
+public class SqlStore implements Closeable
 {
 	// +--------+
 	// | Config |
@@ -34,11 +35,39 @@ public class SqlStore
 		
 		public String ConnectionString;
 		public String[] PreloadDrivers;
+
+		// connection pooling; set MaxPoolSize to 0 to open a
+		// fresh connection for every operation
+		public Integer MinPoolSize = 0;
+		public Integer MaxPoolSize = 10;
+		public Integer PoolIdleTimeoutSeconds = 60 * 5; // 5 minutes
+		public Integer PoolBorrowTimeoutSeconds = 30;
+
+		// idle connections are checked before reuse if they've been
+		// sitting longer than this. Null query means Connection.isValid
+		public Integer PoolValidateAfterIdleSeconds = 30;
+		public String PoolValidationQuery;
+		public Integer PoolValidationTimeoutSeconds = 5;
+
+		// prepared statements kept per pooled connection, keyed by SQL
+		// text; 0 disables. Has no effect when pooling is off.
+		public Integer StatementCacheSize = 32;
+
+		// default rows per executeBatch call in batchUpdate
+		public Integer BatchSize = 500;
 	}
 
 	public SqlStore(Config cfg) {
 		this.cfg = cfg;
 		preloadDrivers();
+
+		if (cfg.MaxPoolSize != null && cfg.MaxPoolSize > 0) {
+			this.pool = new SqlPool(cfg, () -> openConnection());
+		}
+	}
+
+	public void close() {
+		if (pool != null) pool.close();
 	}
 
 	private void preloadDrivers() {
@@ -55,16 +84,25 @@ public class SqlStore
 	// | getConnection |
 	// +---------------+
 
-	// this is a basic, non-pooled connection builder. Override it to provide
-	// useful stuff like connection pooling or additional configuration.
 	// The code will get/close connections using this method on each operation.
-	// Plan is to add to the config and base implementation over time but
-	// this leaves us a reasonable extension point.
+	// When pooling is enabled (the default) the returned connection goes back
+	// into the pool on close. Override openConnection to provide additional
+	// configuration for physical connections; override this one to replace
+	// pooling entirely.
 	
 	public Connection getConnection() throws SQLException {
+		return(pool == null ? openConnection() : pool.borrow());
+	}
+
+	protected Connection openConnection() throws SQLException {
 		return(DriverManager.getConnection(cfg.ConnectionString));
 	}
 
+	// null if pooling is disabled
+	public SqlPool.Stats getPoolStats() {
+		return(pool == null ? null : pool.getStats());
+	}
+
 	// +--------+
 	// | Return |
 	// +--------+
@@ -202,6 +240,76 @@ public class SqlStore
 		}
 	}
 	
+	// +-------------+
+	// | batchUpdate |
+	// +-------------+
+
+	// Binds each item and sends them to the server in groups of batchSize
+	// using addBatch/executeBatch. The whole run is a single transaction;
+	// if anything fails nothing is committed. Returns total rows affected
+	// as reported by the driver.
+
+	public interface BatchBinder<T> {
+		public void bind(PreparedStatement stmt, T item) throws Exception;
+	}
+
+	public <T> int batchUpdate(String sql, Iterable<T> items,
+							   BatchBinder<T> binder) throws Exception {
+		
+		return(batchUpdate(sql, items, binder, cfg.BatchSize));
+	}
+	
+	public <T> int batchUpdate(String sql, Iterable<T> items,
+							   BatchBinder<T> binder, int batchSize) throws Exception {
+
+		Connection cxn = null;
+		PreparedStatement stmt = null;
+		boolean committed = false;
+		
+		try {
+			cxn = getConnection();
+			cxn.setAutoCommit(false);
+			stmt = cxn.prepareStatement(sql);
+
+			int ret = 0;
+			int pending = 0;
+
+			for (T item : items) {
+				binder.bind(stmt, item);
+				stmt.addBatch();
+				
+				if (++pending >= batchSize) {
+					ret += sumCounts(stmt.executeBatch());
+					pending = 0;
+				}
+			}
+
+			if (pending > 0) ret += sumCounts(stmt.executeBatch());
+
+			cxn.commit();
+			committed = true;
+			
+			return(ret);
+		}
+		finally {
+			if (stmt != null) stmt.close();
+			if (cxn != null) {
+				try { if (!committed) cxn.rollback(); cxn.setAutoCommit(true); }
+				catch (SQLException e) { log.warning(Easy.exMsg(e, "batchUpdate", false)); }
+				cxn.close();
+			}
+		}
+	}
+
+	private static int sumCounts(int[] counts) {
+		int sum = 0;
+		for (int count : counts) {
+			if (count > 0) sum += count;
+			else if (count == Statement.SUCCESS_NO_INFO) ++sum;
+		}
+		return(sum);
+	}
+	
 	// +---------+
 	// | execute |
 	// +---------+
@@ -230,14 +338,26 @@ public class SqlStore
 		if (!tableExists(tableName)) update(ddl);
 	}
 
+	public void ensureColumn(String tableName, String columnName, String ddl) throws Exception {
+		if (!columnExists(tableName, columnName)) update(ddl);
+	}
+
 	public boolean tableExists(String tableName) {
+		return(selectSucceeds(tableName, "1"));
+	}
+
+	public boolean columnExists(String tableName, String columnName) {
+		return(selectSucceeds(tableName, columnName));
+	}
+
+	private boolean selectSucceeds(String tableName, String selectList) {
 
 		boolean exists = false;
 		
 		try {
 			String topClause = (isSqlServer() ? " top 1 " : "");
 			String limitClause = (isSqlServer() ? "" : " limit 1 ");
-			String sql = "select " + topClause + " 1 from " + tableName + limitClause;
+			String sql = "select " + topClause + " " + selectList + " from " + tableName + limitClause;
 			
 			query(sql, new SqlStore.QueryHandler() {
 				public void row(ResultSet rs, int irow) throws Exception { }
@@ -344,6 +464,7 @@ public class SqlStore
 	// +---------+
 
 	protected Config cfg;
+	private SqlPool pool;
 	
 	private final static Logger log = Logger.getLogger(SqlStore.class.getName());
 }
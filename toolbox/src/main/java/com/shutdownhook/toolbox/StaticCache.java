@@ -0,0 +1,372 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+// In-memory cache for static pages served by WebServer. Files are read
+// once, get a strong content-hash ETag and (for compressible types) a
+// precomputed gzip variant. serve() handles conditional requests (304)
+// and single byte ranges (206). The cache is an LRU bounded by total
+// bytes; files bigger than MaxFileBytes are never cached and are streamed
+// from disk with a length/mtime validator instead.
+//
+// No brotli here --- the JDK doesn't ship an encoder and the toolbox
+// doesn't take native dependencies.
+
+public class StaticCache
+{
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public static class Config
+	{
+		public Long MaxBytes = 64L * 1024L * 1024L;
+		public Long MaxFileBytes = 8L * 1024L * 1024L;
+
+		public Boolean Gzip = true;
+		public Integer GzipMinBytes = 512;
+
+		// "no-cache" means browsers keep the bytes but revalidate every
+		// time, which with ETags is a cheap 304. Bump this up if your
+		// bundle names carry content hashes.
+		public String CacheControl = "no-cache";
+	}
+
+	public StaticCache(Config cfg) {
+		this.cfg = cfg;
+		this.assets = new AssetMap();
+	}
+
+	// +-------+
+	// | Asset |
+	// +-------+
+
+	public static class Asset
+	{
+		public String ContentType;
+		public long LastModified; // epoch millis
+		public long Length;
+
+		public byte[] Bytes;      // null for uncached large files
+		public byte[] GzipBytes;  // null if not worth compressing
+		public String ETag;
+		public String GzipETag;
+
+		public File File;         // set only when Bytes is null
+	}
+
+	public static Asset buildAsset(byte[] bytes, long lastModified,
+								   String contentType, Config cfg) {
+
+		Asset asset = new Asset();
+		asset.ContentType = contentType;
+		asset.LastModified = lastModified;
+		asset.Length = bytes.length;
+		asset.Bytes = bytes;
+
+		String tag = hashTag(bytes);
+		asset.ETag = "\"" + tag + "\"";
+
+		if (cfg.Gzip && bytes.length >= cfg.GzipMinBytes && isCompressible(contentType)) {
+			byte[] gz = gzip(bytes);
+			if (gz.length < bytes.length) {
+				asset.GzipBytes = gz;
+				asset.GzipETag = "\"" + tag + "-gz\"";
+			}
+		}
+
+		return(asset);
+	}
+
+	public static boolean isCompressible(String contentType) {
+		if (contentType == null) return(false);
+		String ct = contentType.toLowerCase();
+		return(ct.startsWith("text/") || ct.contains("json") || ct.contains("javascript") ||
+			   ct.contains("xml") || ct.contains("svg"));
+	}
+
+	// +-----+
+	// | get |
+	// +-----+
+
+	public Asset get(File file, String contentType) throws IOException {
+
+		String key = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		synchronized (assets) {
+			Asset asset = assets.get(key);
+			if (asset != null && asset.LastModified == lastModified && asset.Length == length) {
+				return(asset);
+			}
+		}
+
+		if (length > cfg.MaxFileBytes) {
+			Asset asset = new Asset();
+			asset.ContentType = contentType;
+			asset.LastModified = lastModified;
+			asset.Length = length;
+			asset.File = file;
+			asset.ETag = String.format("\"%x-%x\"", lastModified, length);
+			return(asset);
+		}
+
+		Asset asset = buildAsset(Files.readAllBytes(file.toPath()), lastModified, contentType, cfg);
+		log.fine(String.format("Caching %s (%d bytes)", key, length));
+
+		synchronized (assets) {
+			Asset old = assets.put(key, asset);
+			if (old != null) cachedBytes -= weight(old);
+			cachedBytes += weight(asset);
+			assets.prune();
+		}
+
+		return(asset);
+	}
+
+	public long getCachedBytes() {
+		synchronized (assets) { return(cachedBytes); }
+	}
+
+	// +-------+
+	// | serve |
+	// +-------+
+
+	public void serve(Asset asset, WebServer.Request request, WebServer.Response response) {
+
+		response.Status = 200;
+		response.ContentType = asset.ContentType;
+		response.addHeader("Cache-Control", cfg.CacheControl);
+		response.addHeader("Last-Modified", httpDate(asset.LastModified));
+		response.addHeader("Accept-Ranges", "bytes");
+		if (asset.GzipBytes != null) response.addHeader("Vary", "Accept-Encoding");
+
+		String range = request.getHeader("Range");
+		boolean useGzip = (asset.GzipBytes != null && range == null && acceptsGzip(request));
+		String etag = (useGzip ? asset.GzipETag : asset.ETag);
+		response.addHeader("ETag", etag);
+
+		// 1. conditional
+
+		if (notModified(request, asset.LastModified, etag)) {
+			response.Status = 304;
+			response.ContentType = null;
+			return;
+		}
+
+		// 2. range
+
+		if (range != null && rangeApplies(request, asset.ETag)) {
+			long[] span = parseRange(range, asset.Length);
+
+			if (span == null) {
+				response.Status = 416;
+				response.ContentType = null;
+				response.addHeader("Content-Range", "bytes */" + Long.toString(asset.Length));
+				return;
+			}
+
+			if (span.length == 2) {
+				response.Status = 206;
+				response.addHeader("Content-Range", String.format("bytes %d-%d/%d",
+																  span[0], span[1], asset.Length));
+				setBody(response, asset, span[0], span[1] - span[0] + 1);
+				return;
+			}
+		}
+
+		// 3. whole thing
+
+		if (useGzip) {
+			response.addHeader("Content-Encoding", "gzip");
+			response.BodyBytes = asset.GzipBytes;
+		}
+		else {
+			setBody(response, asset, 0, asset.Length);
+		}
+	}
+
+	private static void setBody(WebServer.Response response, Asset asset,
+								long offset, long length) {
+
+		if (asset.Bytes != null) {
+			if (offset == 0 && length == asset.Bytes.length) {
+				response.BodyBytes = asset.Bytes;
+			}
+			else {
+				response.BodyBytes = new byte[(int) length];
+				System.arraycopy(asset.Bytes, (int) offset, response.BodyBytes, 0, (int) length);
+			}
+		}
+		else {
+			response.BodyFile = asset.File;
+			response.BodyFileOffset = offset;
+			response.BodyFileLength = length;
+		}
+	}
+
+	// +-------------+
+	// | Conditional |
+	// +-------------+
+
+	static boolean notModified(WebServer.Request request, long lastModified, String etag) {
+
+		String inm = request.getHeader("If-None-Match");
+
+		if (inm != null) {
+			for (String candidate : inm.split(",")) {
+				String c = candidate.trim();
+				if (c.startsWith("W/")) c = c.substring(2);
+				if (c.equals("*") || c.equals(etag)) return(true);
+			}
+			return(false);
+		}
+
+		String ims = request.getHeader("If-Modified-Since");
+
+		if (ims != null) {
+			try {
+				long since = ZonedDateTime.parse(ims, DateTimeFormatter.RFC_1123_DATE_TIME)
+					.toInstant().toEpochMilli();
+
+				return((lastModified / 1000L) <= (since / 1000L));
+			}
+			catch (Exception e) {
+				return(false);
+			}
+		}
+
+		return(false);
+	}
+
+	static boolean rangeApplies(WebServer.Request request, String etag) {
+		String ifRange = request.getHeader("If-Range");
+		return(ifRange == null || ifRange.trim().equals(etag));
+	}
+
+	// null = unsatisfiable; empty = ignore (multi-range or garbage); else {first, last}
+	public static long[] parseRange(String header, long length) {
+
+		String h = header.trim();
+		if (!h.startsWith("bytes=") || h.indexOf(",") != -1) return(new long[0]);
+
+		String spec = h.substring(6).trim();
+		int ichDash = spec.indexOf("-");
+		if (ichDash == -1) return(new long[0]);
+
+		try {
+			String startStr = spec.substring(0, ichDash).trim();
+			String endStr = spec.substring(ichDash + 1).trim();
+			long first;
+			long last;
+
+			if (startStr.isEmpty()) {
+				// suffix range: last N bytes
+				long suffix = Long.parseLong(endStr);
+				if (suffix <= 0) return(null);
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			}
+			else {
+				first = Long.parseLong(startStr);
+				last = (endStr.isEmpty() ? length - 1 : Math.min(Long.parseLong(endStr), length - 1));
+			}
+
+			if (first >= length || first > last) return(null);
+			return(new long[] { first, last });
+		}
+		catch (NumberFormatException e) {
+			return(new long[0]);
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	static boolean acceptsGzip(WebServer.Request request) {
+		String ae = request.getHeader("Accept-Encoding");
+		return(ae != null && ae.toLowerCase().contains("gzip"));
+	}
+
+	static String httpDate(long epochMillis) {
+		return(DateTimeFormatter.RFC_1123_DATE_TIME.format(
+			ZonedDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC)));
+	}
+
+	private static String hashTag(byte[] bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(bytes);
+			return(Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22));
+		}
+		catch (NoSuchAlgorithmException e) { return(null); } // will never happen
+	}
+
+	private static byte[] gzip(byte[] bytes) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 2);
+			GZIPOutputStream gz = new GZIPOutputStream(buf);
+			gz.write(bytes);
+			gz.close();
+			return(buf.toByteArray());
+		}
+		catch (IOException e) {
+			return(bytes); // can't happen with an in-memory stream
+		}
+	}
+
+	private static long weight(Asset asset) {
+		return(asset.Length + (asset.GzipBytes == null ? 0 : asset.GzipBytes.length));
+	}
+
+	// +----------+
+	// | AssetMap |
+	// +----------+
+
+	private class AssetMap extends LinkedHashMap<String,Asset>
+	{
+		public AssetMap() {
+			super(16, 0.75f, true);
+		}
+
+		// caller holds the lock
+		public void prune() {
+			while (cachedBytes > cfg.MaxBytes && size() > 1) {
+				Map.Entry<String,Asset> eldest = entrySet().iterator().next();
+				cachedBytes -= weight(eldest.getValue());
+				remove(eldest.getKey());
+			}
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Config cfg;
+	private AssetMap assets;
+	private long cachedBytes = 0;
+
+	private final static Logger log = Logger.getLogger(StaticCache.class.getName());
+}
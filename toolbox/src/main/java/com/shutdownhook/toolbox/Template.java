@@ -5,11 +5,15 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.File;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Template
 {
@@ -27,10 +31,47 @@ public class Template
 	public Template(String templateText) throws Exception {
 		this.templateText = templateText;
 		setupBlocks();
+		compile();
 	}
 
+	// +----------+
+	// | fromPath |
+	// +----------+
+
+	// Templates are parsed and compiled once per smarty path and shared;
+	// rendering is thread-safe. File templates are recompiled if the file
+	// changes, resources never are.
+	
+	public static Template fromPath(String smartyPath) throws Exception {
+
+		long modified = (smartyPath.startsWith("@") ? 0L : new File(smartyPath).lastModified());
+
+		CachedTemplate cached = templateCache.get(smartyPath);
+		if (cached != null && cached.Modified == modified) return(cached.Template);
+
+		cached = new CachedTemplate();
+		cached.Template = new Template(Easy.stringFromSmartyPath(smartyPath));
+		cached.Modified = modified;
+
+		templateCache.put(smartyPath, cached);
+		return(cached.Template);
+	}
+
+	private static class CachedTemplate
+	{
+		public Template Template;
+		public long Modified;
+	}
+
+	private static Map<String,CachedTemplate> templateCache =
+		new ConcurrentHashMap<String,CachedTemplate>();
+
+	// +--------+
+	// | render |
+	// +--------+
+
 	public String render() throws Exception {
-		return(render(null, null));
+		return(render((Map<String,String>) null, null));
 	}
 
 	public String render(Map<String,String> tokens) throws Exception {
@@ -40,102 +81,199 @@ public class Template
 	public String render(Map<String,String> tokens,
 						 TemplateProcessor processor) throws Exception {
 
-		Map<String,String> realTokens =
-			(tokens == null ? new HashMap<String,String>() : tokens);
-		
-		TemplateProcessor realProcessor =
-			(processor == null ? new TemplateProcessor() : processor);
-		
-		for (String key : realTokens.keySet()) {
-			log.finest("render map: [" + key + "]=[" + realTokens.get(key) + "]");
-		}
+		StringBuilder sb = new StringBuilder(lastLength);
+		render(sb, tokens, processor);
+		lastLength = sb.length();
+		return(sb.toString());
+	}
+
+	public String render(Values values, TemplateProcessor processor) throws Exception {
 		
-		StringBuilder sb = new StringBuilder();
-		renderRecursive(sb, realTokens, realProcessor, blocks);
+		StringBuilder sb = new StringBuilder(lastLength);
+		render(sb, values, processor);
+		lastLength = sb.length();
 		return(sb.toString());
 	}
 
-	private void renderRecursive(StringBuilder sb,
-								 Map<String,String> tokens,
-								 TemplateProcessor processor,
-								 List<Block> blocks) throws Exception {
+	// Tokens are looked up in the map as they're rendered, so a processor
+	// may change the map on the fly (e.g., from repeat) and see its updates.
+	// The map is never modified here.
+	
+	public void render(Appendable out,
+					   Map<String,String> tokens,
+					   TemplateProcessor processor) throws Exception {
+
+		if (log.isLoggable(Level.FINEST) && tokens != null) {
+			for (String key : tokens.keySet()) {
+				log.finest("render map: [" + key + "]=[" + tokens.get(key) + "]");
+			}
+		}
+
+		render(out, new Values(tokens), processor);
+	}
+
+	public void render(Appendable out,
+					   Values values,
+					   TemplateProcessor processor) throws Exception {
 
-		String token;
+		if (values.getTemplate() != this) {
+			throw new IllegalArgumentException("Values from a different template");
+		}
 		
-		for (Block block : blocks) {
+		TemplateProcessor realProcessor =
+			(processor == null ? defaultProcessor : processor);
 
-			log.fine(String.format("renderRecursive; cch on entry = %d", sb.length()));
+		exec(out, values, realProcessor, 0, ops.length);
+	}
 
-			if (block instanceof RecursiveBlock) {
-				// gonna recurse
-				RecursiveBlock rb = (RecursiveBlock) block;
-				
-				switch (rb.getDirective()) {
-					
-				    case REPEAT_DIRECTIVE:
-						int counter = 0;
-						while (processor.repeat(rb.getArgs(), counter++)) {
-							renderRecursive(sb, tokens, processor, rb.getChildren());
-						}
-						break;
+	// +--------+
+	// | Values |
+	// +--------+
 
-				    case EACH_DIRECTIVE:
-						token = rb.getArgs()[0];
-						String split = rb.getArgs()[1];
-						String originalTokenValue = mapOrEnv(tokens, token);
-						
-						for (String elt : originalTokenValue.split(split, -1)) {
-							tokens.put(token, elt);
-							renderRecursive(sb, tokens, processor, rb.getChildren());
-						}
-						
-						tokens.put(token, originalTokenValue);
-						break;
+	// Token values addressed by slot rather than by name; for callers that
+	// render the same template over and over, look slots up once and then
+	// set them directly on a reused Values. Unset slots fall back to the
+	// wrapped map (if any), then the environment, then the processor.
+	// A Values is not thread-safe; use one per thread.
 
-				    case IF_DIRECTIVE:
-				    case IFNOT_DIRECTIVE:
-						token = rb.getArgs()[0];
-						boolean tokenBool;
-						
-						if (token.equalsIgnoreCase("true") || token.equals("1")) {
-							tokenBool = true;
-						}
-						else if (token.equalsIgnoreCase("false") || token.equals("0")) {
-							tokenBool = false;
-						}
-						else {
-							String tokenStr = mapOrEnv(tokens, token);
-							if (tokenStr == null || tokenStr.isEmpty()) {
-								tokenStr = "false";
-							}
-							
-							if (isDigits(tokenStr)) {
-								tokenBool = (Integer.parseInt(tokenStr) != 0);
-							}
-							else {
-								tokenBool = Boolean.parseBoolean(tokenStr);
-							}
-						}
-							
-						if ((tokenBool && rb.getDirective().equals(IF_DIRECTIVE)) ||
-							(!tokenBool && rb.getDirective().equals(IFNOT_DIRECTIVE))) {
+	public Values newValues() {
+		return(new Values(null));
+	}
 
-							renderRecursive(sb, tokens, processor, rb.getChildren());
-						}
-						
-						break;
+	// -1 if name doesn't appear in the template
+	public int slot(String name) {
+		Integer slot = slots.get(name);
+		return(slot == null ? -1 : slot);
+	}
 
-				    default:
-						throw new Exception("What evil is this? " + rb.getDirective());
-				}
+	public class Values
+	{
+		private Values(Map<String,String> tokens) {
+			this.tokens = tokens;
+			this.vals = new String[slotNames.length];
+		}
+
+		public Values set(String name, String value) {
+			int slot = slot(name);
+			if (slot != -1) vals[slot] = value;
+			return(this);
+		}
+
+		public Values set(int slot, String value) {
+			vals[slot] = value;
+			return(this);
+		}
+
+		public Values clear() {
+			Arrays.fill(vals, null);
+			return(this);
+		}
+
+		private Template getTemplate() {
+			return(Template.this);
+		}
+
+		private String get(int slot) {
+			
+			String val = vals[slot];
+			if (val != null) return(val);
+
+			if (tokens != null) {
+				val = tokens.get(slotNames[slot]);
+				if (val != null || tokens.containsKey(slotNames[slot])) return(val);
 			}
-			else {
-				// normal rendering block
-				block.append(sb, tokens, processor);
+
+			return(envValues[slot]);
+		}
+
+		private Map<String,String> tokens;
+		private String[] vals;
+	}
+
+	// +------+
+	// | exec |
+	// +------+
+
+	// Runs ops[pc, pcMac). Block ops carry the index just past their body,
+	// so the body is a nested exec and skipping it is just a jump.
+	
+	private void exec(Appendable out,
+					  Values values,
+					  TemplateProcessor processor,
+					  int pc, int pcMac) throws Exception {
+
+		String val;
+		
+		while (pc < pcMac) {
+
+			Op op = ops[pc];
+
+			switch (op.Code) {
+
+			    case OP_STATIC:
+					out.append(op.Text);
+					++pc;
+					break;
+
+			    case OP_TOKEN:
+			    case OP_RAW:
+					val = values.get(op.Slot);
+					if (val == null) val = processor.token(op.Text, op.Args);
+					out.append(op.Code == OP_RAW ? val : Easy.htmlEncode(val));
+					++pc;
+					break;
+
+			    case OP_CMD:
+					out.append(Easy.stringFromProcess(op.Text));
+					++pc;
+					break;
+
+			    case OP_REPEAT:
+					int counter = 0;
+					while (processor.repeat(op.Argv, counter++)) {
+						exec(out, values, processor, pc + 1, op.End);
+					}
+					pc = op.End;
+					break;
+
+			    case OP_EACH:
+					String saved = values.vals[op.Slot];
+					val = values.get(op.Slot);
+
+					try {
+						for (String elt : val.split(op.Text, -1)) {
+							values.vals[op.Slot] = elt;
+							exec(out, values, processor, pc + 1, op.End);
+						}
+					}
+					finally {
+						values.vals[op.Slot] = saved;
+					}
+					
+					pc = op.End;
+					break;
+
+			    case OP_IF:
+			    case OP_IFNOT:
+					boolean tokenBool = (op.Slot == -1 ? op.Literal : isTrue(values.get(op.Slot)));
+					if (tokenBool == (op.Code == OP_IF)) exec(out, values, processor, pc + 1, op.End);
+					pc = op.End;
+					break;
+
+			    default:
+					throw new Exception("What evil is this? " + op.Code);
 			}
 		}
 	}
 
+	private static boolean isTrue(String tokenStr) {
+		
+		if (tokenStr == null || tokenStr.isEmpty()) return(false);
+		
+		if (isDigits(tokenStr)) return(Integer.parseInt(tokenStr) != 0);
+		return(Boolean.parseBoolean(tokenStr));
+	}
+
 	// +-------------------+
 	// | TemplateProcessor |
 	// +-------------------+
@@ -158,14 +296,11 @@ public class Template
 	// | Block Types |
 	// +-------------+
 
+	// Parse tree only; compile flattens these into ops and exec is the one
+	// place rendering rules live.
+
 	public static class Block
 	{
-		public void append(StringBuilder sb,
-						   Map<String,String> tokens,
-						   TemplateProcessor processor) throws Exception {
-			
-			// default do nothing, e.g. for repeat/end directives
-		}
 	}
 
 	public static class StaticBlock extends Block
@@ -177,13 +312,6 @@ public class Template
 			log.fine("Adding StaticBlock: " + text.substring(0, cchSnippet) + "...");
 		}
 
-		public void append(StringBuilder sb,
-						   Map<String,String> tokens,
-						   TemplateProcessor processor) throws Exception {
-			
-			sb.append(text);
-		}
-
 		private String text;
 	}
 
@@ -198,16 +326,6 @@ public class Template
 			log.fine(String.format("Adding TokenBlock (%s): %s", outputRaw, token));
 		}
 
-		public void append(StringBuilder sb,
-						   Map<String,String> params,
-						   TemplateProcessor processor) throws Exception {
-			
-			String s = mapOrEnv(params, token);
-			if (s == null) s = processor.token(token, args);
-
-			sb.append(outputRaw ? s : Easy.htmlEncode(s));
-		}
-
 		private String token;
 		private String args;
 		private boolean outputRaw;
@@ -221,13 +339,6 @@ public class Template
 			log.fine("Adding CommandBlock: " + cmdLine);
 		}
 
-		public void append(StringBuilder sb,
-						   Map<String,String> params,
-						   TemplateProcessor processor) throws Exception {
-			
-			sb.append(Easy.stringFromProcess(cmdLine));
-		}
-
 		private String cmdLine;
 	}
 
@@ -356,6 +467,135 @@ public class Template
 		return(cch);
 	}
 
+	// +---------+
+	// | compile |
+	// +---------+
+
+	// Flattens the block tree into ops and gives every token name a slot,
+	// with its environment value (if any) resolved once up front.
+
+	private final static int OP_STATIC = 0;
+	private final static int OP_TOKEN = 1;
+	private final static int OP_RAW = 2;
+	private final static int OP_CMD = 3;
+	private final static int OP_REPEAT = 4;
+	private final static int OP_EACH = 5;
+	private final static int OP_IF = 6;
+	private final static int OP_IFNOT = 7;
+	
+	private static class Op
+	{
+		public int Code;
+		public String Text; // static text, token name, command line or each split
+		public String Args; // token args
+		public String[] Argv; // repeat args
+		public int Slot = -1;
+		public boolean Literal; // if/ifnot with a constant, when Slot == -1
+		public int End; // first op past a block's body
+	}
+
+	private void compile() throws Exception {
+
+		List<Op> opList = new ArrayList<Op>();
+		slots = new HashMap<String,Integer>();
+		
+		compileLevel(opList, blocks);
+		ops = opList.toArray(new Op[opList.size()]);
+
+		slotNames = new String[slots.size()];
+		for (Map.Entry<String,Integer> entry : slots.entrySet()) {
+			slotNames[entry.getValue()] = entry.getKey();
+		}
+
+		envValues = new String[slotNames.length];
+		for (int i = 0; i < slotNames.length; ++i) envValues[i] = System.getenv(slotNames[i]);
+
+		log.fine(String.format("Compiled template; %d ops, %d slots", ops.length, slotNames.length));
+	}
+
+	private void compileLevel(List<Op> opList, List<Block> levelBlocks) throws Exception {
+
+		for (Block block : levelBlocks) {
+
+			Op op = new Op();
+			
+			if (block instanceof StaticBlock) {
+				op.Code = OP_STATIC;
+				op.Text = ((StaticBlock) block).text;
+				opList.add(op);
+			}
+			else if (block instanceof TokenBlock) {
+				TokenBlock tb = (TokenBlock) block;
+				op.Code = (tb.outputRaw ? OP_RAW : OP_TOKEN);
+				op.Text = tb.token;
+				op.Args = tb.args;
+				op.Slot = slotFor(tb.token);
+				opList.add(op);
+			}
+			else if (block instanceof CommandBlock) {
+				op.Code = OP_CMD;
+				op.Text = ((CommandBlock) block).cmdLine;
+				opList.add(op);
+			}
+			else if (block instanceof RecursiveBlock) {
+				compileRecursive(opList, op, (RecursiveBlock) block);
+			}
+		}
+	}
+
+	private void compileRecursive(List<Op> opList, Op op, RecursiveBlock rb) throws Exception {
+
+		String[] args = rb.getArgs();
+		
+		switch (rb.getDirective()) {
+
+		    case REPEAT_DIRECTIVE:
+				op.Code = OP_REPEAT;
+				op.Argv = args;
+				break;
+
+		    case EACH_DIRECTIVE:
+				if (args.length < 2) throw new Exception(EACH_DIRECTIVE + " needs a token and a split");
+				op.Code = OP_EACH;
+				op.Slot = slotFor(args[0]);
+				op.Text = args[1];
+				break;
+
+		    case IF_DIRECTIVE:
+		    case IFNOT_DIRECTIVE:
+				if (args.length < 1) throw new Exception(rb.getDirective() + " needs a token");
+				op.Code = (rb.getDirective().equals(IF_DIRECTIVE) ? OP_IF : OP_IFNOT);
+				
+				String token = args[0];
+				if (token.equalsIgnoreCase("true") || token.equals("1")) {
+					op.Literal = true;
+				}
+				else if (token.equalsIgnoreCase("false") || token.equals("0")) {
+					op.Literal = false;
+				}
+				else {
+					op.Slot = slotFor(token);
+				}
+				break;
+
+		    default:
+				throw new Exception("What evil is this? " + rb.getDirective());
+		}
+
+		opList.add(op);
+		compileLevel(opList, rb.getChildren());
+		op.End = opList.size();
+	}
+
+	private int slotFor(String name) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return(slot);
+	}
+
 	// +---------------------------+
 	// | Test / Cmdline Entrypoint |
 	// +---------------------------+
@@ -366,26 +606,13 @@ public class Template
 						   ? Easy.stringFromInputStream(System.in)
 						   : Easy.stringFromFile(args[0]));
 
-		System.out.print(new Template(template).render(null));
+		System.out.print(new Template(template).render());
 	}
 
 	// +-------------------+
 	// | Helpers & Members |
 	// +-------------------+
 
-	private static String mapOrEnv(Map<String,String> map, String key) {
-		
-		if (key != null && map != null && map.containsKey(key)) {
-			return(map.get(key));
-		}
-
-		if (key != null && System.getenv().containsKey(key)) {
-			return(System.getenv(key));
-		}
-
-		return(null);
-	}
-	
 	private static int skipToWhitespace(String text, int ichStart, int ichMac) {
 
 		int ichWalk = ichStart;
@@ -445,6 +672,16 @@ public class Template
 
 	private String templateText;
 	private List<Block> blocks;
+
+	private Op[] ops;
+	private Map<String,Integer> slots;
+	private String[] slotNames;
+	private String[] envValues;
+
+	// sizing hint for the next String render
+	private volatile int lastLength = 256;
+
+	private final static TemplateProcessor defaultProcessor = new TemplateProcessor();
 	
 	private final static Logger log = Logger.getLogger(Template.class.getName());
 }
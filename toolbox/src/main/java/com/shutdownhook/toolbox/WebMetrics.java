@@ -0,0 +1,264 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.GsonBuilder;
+
+// Per-route request metrics for WebServer. Everything on the request path
+// is a LongAdder or an atomic array slot, so recording a request is lock-
+// and allocation-free. Latency is kept in a fixed-bucket histogram;
+// percentiles in snapshots are estimated by interpolating within buckets.
+
+public class WebMetrics
+{
+	// +---------+
+	// | Buckets |
+	// +---------+
+
+	// upper bounds in milliseconds; there's an implicit +Inf after the last
+	public final static long[] BUCKET_MILLIS = new long[] {
+		1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+	};
+
+	private final static int BUCKET_COUNT = BUCKET_MILLIS.length + 1;
+	private final static String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	// +-------+
+	// | Route |
+	// +-------+
+
+	public static class Route
+	{
+		public Route(String name) {
+			this.name = name;
+		}
+
+		public void begin() {
+			inFlight.increment();
+		}
+
+		public void end(int status, long elapsedNanos, long bytesIn, long bytesOut) {
+
+			inFlight.decrement();
+
+			int statusClass = (status / 100) - 1;
+			if (statusClass < 0 || statusClass >= STATUS_CLASSES.length) statusClass = 4;
+			statusCounts[statusClass].increment();
+
+			buckets.incrementAndGet(bucketFor(elapsedNanos));
+			totalNanos.add(elapsedNanos);
+
+			if (bytesIn > 0) this.bytesIn.add(bytesIn);
+			if (bytesOut > 0) this.bytesOut.add(bytesOut);
+		}
+
+		private static int bucketFor(long elapsedNanos) {
+			long millis = elapsedNanos / 1000000L;
+			for (int i = 0; i < BUCKET_MILLIS.length; ++i) {
+				if (millis < BUCKET_MILLIS[i]) return(i);
+			}
+			return(BUCKET_MILLIS.length);
+		}
+
+		private String name;
+		private LongAdder inFlight = new LongAdder();
+		private LongAdder totalNanos = new LongAdder();
+		private LongAdder bytesIn = new LongAdder();
+		private LongAdder bytesOut = new LongAdder();
+		private AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		private LongAdder[] statusCounts = new LongAdder[] {
+			new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()
+		};
+	}
+
+	public Route route(String name) {
+		return(routes.computeIfAbsent(name, (k) -> new Route(k)));
+	}
+
+	// +----------+
+	// | Snapshot |
+	// +----------+
+
+	public static class RouteSnapshot
+	{
+		public String Route;
+		public long Requests;
+		public long InFlight;
+		public long Status1xx;
+		public long Status2xx;
+		public long Status3xx;
+		public long Status4xx;
+		public long Status5xx;
+		public double ErrorRate;
+		public long BytesIn;
+		public long BytesOut;
+		public double MeanMillis;
+		public double P50Millis;
+		public double P90Millis;
+		public double P99Millis;
+		public long[] BucketCounts;
+	}
+
+	public List<RouteSnapshot> snapshot() {
+
+		List<RouteSnapshot> snaps = new ArrayList<RouteSnapshot>();
+
+		for (Route route : routes.values()) {
+
+			RouteSnapshot snap = new RouteSnapshot();
+			snaps.add(snap);
+
+			snap.Route = route.name;
+			snap.InFlight = route.inFlight.sum();
+			snap.Status1xx = route.statusCounts[0].sum();
+			snap.Status2xx = route.statusCounts[1].sum();
+			snap.Status3xx = route.statusCounts[2].sum();
+			snap.Status4xx = route.statusCounts[3].sum();
+			snap.Status5xx = route.statusCounts[4].sum();
+			snap.BytesIn = route.bytesIn.sum();
+			snap.BytesOut = route.bytesOut.sum();
+
+			snap.BucketCounts = new long[BUCKET_COUNT];
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				snap.BucketCounts[i] = route.buckets.get(i);
+				snap.Requests += snap.BucketCounts[i];
+			}
+
+			if (snap.Requests > 0) {
+				snap.ErrorRate = ((double) snap.Status5xx) / snap.Requests;
+				snap.MeanMillis = (route.totalNanos.sum() / 1000000.0) / snap.Requests;
+				snap.P50Millis = percentile(snap.BucketCounts, snap.Requests, 0.50);
+				snap.P90Millis = percentile(snap.BucketCounts, snap.Requests, 0.90);
+				snap.P99Millis = percentile(snap.BucketCounts, snap.Requests, 0.99);
+			}
+		}
+
+		snaps.sort((a, b) -> a.Route.compareTo(b.Route));
+		return(snaps);
+	}
+
+	private static double percentile(long[] counts, long total, double pct) {
+
+		double target = pct * total;
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; ++i) {
+
+			if (counts[i] == 0) continue;
+
+			if (seen + counts[i] >= target) {
+				double lower = (i == 0 ? 0 : BUCKET_MILLIS[i-1]);
+				if (i == BUCKET_MILLIS.length) return(lower); // open-ended top bucket
+				double upper = BUCKET_MILLIS[i];
+				return(lower + ((upper - lower) * (target - seen) / counts[i]));
+			}
+
+			seen += counts[i];
+		}
+
+		return(0.0);
+	}
+
+	// +--------+
+	// | Format |
+	// +--------+
+
+	public String toJson() {
+		return(new GsonBuilder().setPrettyPrinting().create().toJson(snapshot()));
+	}
+
+	public String toPrometheus() {
+
+		StringBuilder sb = new StringBuilder();
+		List<RouteSnapshot> snaps = snapshot();
+
+		sb.append("# HELP webserver_request_duration_seconds Request latency by route\n");
+		sb.append("# TYPE webserver_request_duration_seconds histogram\n");
+
+		for (RouteSnapshot snap : snaps) {
+
+			String label = routeLabel(snap.Route);
+			long cumulative = 0;
+
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				cumulative += snap.BucketCounts[i];
+				String le = (i == BUCKET_MILLIS.length ? "+Inf"
+							 : Double.toString(BUCKET_MILLIS[i] / 1000.0));
+
+				sb.append("webserver_request_duration_seconds_bucket{").append(label)
+					.append(",le=\"").append(le).append("\"} ").append(cumulative).append("\n");
+			}
+
+			sb.append("webserver_request_duration_seconds_sum{").append(label).append("} ")
+				.append((snap.MeanMillis * snap.Requests) / 1000.0).append("\n");
+
+			sb.append("webserver_request_duration_seconds_count{").append(label).append("} ")
+				.append(snap.Requests).append("\n");
+		}
+
+		sb.append("# HELP webserver_requests_total Completed requests by route and status class\n");
+		sb.append("# TYPE webserver_requests_total counter\n");
+
+		for (RouteSnapshot snap : snaps) {
+
+			String label = routeLabel(snap.Route);
+			long[] counts = { snap.Status1xx, snap.Status2xx, snap.Status3xx,
+							  snap.Status4xx, snap.Status5xx };
+
+			for (int i = 0; i < counts.length; ++i) {
+				sb.append("webserver_requests_total{").append(label)
+					.append(",status=\"").append(STATUS_CLASSES[i]).append("\"} ")
+					.append(counts[i]).append("\n");
+			}
+		}
+
+		appendGauge(sb, snaps, "webserver_requests_in_flight", "gauge",
+					"Requests currently being handled", (snap) -> snap.InFlight);
+
+		appendGauge(sb, snaps, "webserver_request_bytes_total", "counter",
+					"Request body bytes received", (snap) -> snap.BytesIn);
+
+		appendGauge(sb, snaps, "webserver_response_bytes_total", "counter",
+					"Response body bytes sent", (snap) -> snap.BytesOut);
+
+		return(sb.toString());
+	}
+
+	private interface SnapValue {
+		public long get(RouteSnapshot snap);
+	}
+
+	private static void appendGauge(StringBuilder sb, List<RouteSnapshot> snaps,
+									String metric, String type, String help,
+									SnapValue value) {
+
+		sb.append("# HELP ").append(metric).append(" ").append(help).append("\n");
+		sb.append("# TYPE ").append(metric).append(" ").append(type).append("\n");
+
+		for (RouteSnapshot snap : snaps) {
+			sb.append(metric).append("{").append(routeLabel(snap.Route)).append("} ")
+				.append(value.get(snap)).append("\n");
+		}
+	}
+
+	private static String routeLabel(String route) {
+		String escaped = route.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return("route=\"" + escaped + "\"");
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private ConcurrentMap<String,Route> routes = new ConcurrentHashMap<String,Route>();
+}
@@ -7,6 +7,7 @@ package com.shutdownhook.toolbox;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
@@ -16,8 +17,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.StringBuilder;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -28,14 +35,17 @@ import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -53,6 +63,7 @@ public class WebRequests implements Closeable
 	public static class Config
 	{
 		public int ThreadCount = 0; // 0 = use an on-demand pool, else specific fixed count
+		public boolean UseVirtualThreads = false; // JDK21+; overrides ThreadCount
 		public int ShutdownWaitSeconds = 30;
 		public int TimeoutMillis = 60000;
 		public boolean FollowRedirects = true;
@@ -63,6 +74,14 @@ public class WebRequests implements Closeable
 		// If provided, this cert is added to the trust chain for requests.
 		// It is additive, not a replacement for the built-in trusted roots
 		public String TrustedCertificateFile;
+
+		// Use java.net.http.HttpClient rather than HttpURLConnection. Connections
+		// are pooled and kept alive, HTTP/2 is used when the server supports it
+		// (many requests share one connection), and async requests don't hold
+		// a thread while they wait on the network.
+		public boolean UseHttpClient = false;
+		public boolean PreferHttp2 = true; // HttpClient only
+		public int MaxRequestsPerHost = 0; // HttpClient only; 0 = unlimited, else extras wait their turn
 	}
 
 	public static class Params
@@ -169,16 +188,19 @@ public class WebRequests implements Closeable
 		this.cfg = cfg;
 		this.syncFutures = new HashSet<Future>();
 
-		this.pool = (cfg.ThreadCount == 0
-					 ? Executors.newCachedThreadPool()
-					 : Executors.newFixedThreadPool(cfg.ThreadCount));
+		this.pool = Exec.createPool(cfg.ThreadCount, cfg.UseVirtualThreads);
 
 		if (cfg.TrustedCertificateFile != null) {
 			ExtendedTrustManager etm = new ExtendedTrustManager(cfg.TrustedCertificateFile);
-			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext = SSLContext.getInstance("TLS");
 			sslContext.init(null, new TrustManager[] { etm }, null);
 			sslSocketFactory = sslContext.getSocketFactory();
 		}
+
+		if (cfg.UseHttpClient) {
+			this.hostGates = new ConcurrentHashMap<String,HostGate>();
+			this.httpClient = buildClient(cfg.FollowRedirects);
+		}
 	}
 
 	public void close() {
@@ -188,9 +210,9 @@ public class WebRequests implements Closeable
 		// note thanks to the nature of HttpUrlConnection, there are cases where
 		// threads just aren't going to respond to these signals. This is crappy
 		// but not the end of the world becuase the Futures handle their own
-		// timeouts and that will get control back to application code. Obs a
-		// better choice would be to use JDK11 HttpClient, but trying to keep this
-		// class viable in older versions.
+		// timeouts and that will get control back to application code. With
+		// UseHttpClient the pool is the client's executor and nothing blocks
+		// on the network, so this is much tidier.
 
 		try {
 			pool.shutdown();
@@ -235,6 +257,8 @@ public class WebRequests implements Closeable
 	}
 
 	public CompletableFuture<Response> fetchAsync(String url, Params params) {
+
+		if (httpClient != null) return(fetchAsyncClient(url, params));
 		
 		CompletableFuture<Response> future = new CompletableFuture<Response>();
 
@@ -297,28 +321,286 @@ public class WebRequests implements Closeable
 				}
 			}
 
-			if (cfg.LogResponse) {
+			logResponse(fullUrl, response, started);
+			future.complete(response);
+		});
+		
+		return(future);
+	}
+
+	private void logResponse(String fullUrl, Response response, Instant started) {
+
+		if (!cfg.LogResponse) return;
+		
+		long elapsed = ChronoUnit.MILLIS.between(started, Instant.now());
+
+		if (response.Ex == null) {
+			String msg = String.format("WebRequest for %s: %d/%s, %d bytes (%d ms)",
+									   fullUrl, response.Status, response.StatusText,
+									   response.Body == null ? 0 : response.Body.length(),
+									   elapsed);
+			log.info(msg);
+		}
+		else {
+			String msg = String.format("WebRequest for %s: EXCEPTION %s (%d ms)",
+									   fullUrl, response.Ex.toString(), elapsed);
+			log.warning(msg);
+		}
+	}
+
+	// +------------+
+	// | HttpClient |
+	// +------------+
+
+	private CompletableFuture<Response> fetchAsyncClient(String url, Params params) {
+
+		CompletableFuture<Response> future = new CompletableFuture<Response>();
+		Instant started = Instant.now();
+
+		String fullUrl = url;
+		HttpRequest request;
+		HttpClient client;
+		
+		try {
+			if (params == null) {
+				throw new IllegalArgumentException("params cannot be null");
+			}
 			
-				long elapsed = ChronoUnit.MILLIS.between(started, Instant.now());
-
-				if (response.Ex == null) {
-					String msg = String.format("WebRequest for %s: %d/%s, %d bytes (%d ms)",
-											   fullUrl, response.Status, response.StatusText,
-											   response.Body == null ? 0 : response.Body.length(),
-											   elapsed);
-					log.info(msg);
+			fullUrl = Easy.urlAddQueryParams(url, params.QueryParams);
+			request = buildRequest(fullUrl, params);
+
+			boolean followRedirects = (params.FollowRedirects == null ? cfg.FollowRedirects : params.FollowRedirects);
+			client = (followRedirects == cfg.FollowRedirects ? httpClient : getAltClient());
+		}
+		catch (Exception e) {
+			Response response = new Response();
+			response.setException(e);
+			logResponse(fullUrl, response, started);
+			future.complete(response);
+			return(future);
+		}
+
+		final String logUrl = fullUrl;
+		final HostGate gate = getHostGate(request.uri());
+
+		gate.run(() -> {
+			try {
+				client.sendAsync(request, bodyHandler(params))
+					.handle((httpResponse, t) -> readResponse(httpResponse, t, params))
+					.thenAccept((response) -> {
+						gate.release();
+						logResponse(logUrl, response, started);
+						future.complete(response);
+					});
+			}
+			catch (Exception e) {
+				gate.release();
+				Response response = new Response();
+				response.setException(e);
+				logResponse(logUrl, response, started);
+				future.complete(response);
+			}
+		});
+
+		return(future);
+	}
+
+	private HttpRequest buildRequest(String fullUrl, Params params) throws Exception {
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(fullUrl))
+			.timeout(Duration.ofMillis(cfg.TimeoutMillis));
+
+		if (cfg.UserAgent != null && (params.Headers == null || !params.Headers.containsKey("User-Agent"))) {
+			builder.header("User-Agent", cfg.UserAgent);
+		}
+
+		if (params.Headers != null) {
+			for (String name : params.Headers.keySet()) {
+				if (RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+					// HttpClient manages these itself and refuses to take them
+					log.fine("Skipping restricted header " + name);
+					continue;
 				}
-				else {
-					String msg = String.format("WebRequest for %s: EXCEPTION %s (%d ms)",
-											   fullUrl, response.Ex.toString(), elapsed);
-					log.warning(msg);
+				
+				builder.header(name, params.Headers.get(name));
+			}
+		}
+		
+		String method = (params.Body == null ? "GET" : "POST");
+		if (params.MethodOverride != null) method = params.MethodOverride;
+
+		if (params.Body == null) {
+			builder.method(method, HttpRequest.BodyPublishers.noBody());
+		}
+		else {
+			builder.header("X-Requested-With", "ShutdownHookWebRequests");
+			builder.header("Csrf-Token", "nocheck");
+			builder.method(method, HttpRequest.BodyPublishers.ofString(params.Body, StandardCharsets.UTF_8));
+		}
+
+		return(builder.build());
+	}
+
+	// Plain bodies stream straight into a String or ResponseBodyPath as they
+	// arrive. ForceGzip bodies are gathered and inflated once complete.
+	
+	private HttpResponse.BodyHandler<?> bodyHandler(Params params) {
+
+		if (params.ForceGzip != null && params.ForceGzip) {
+			return(HttpResponse.BodyHandlers.ofByteArray());
+		}
+		
+		if (params.ResponseBodyPath != null) {
+			return(HttpResponse.BodyHandlers.ofFile(Paths.get(params.ResponseBodyPath),
+													StandardOpenOption.CREATE,
+													StandardOpenOption.WRITE,
+													StandardOpenOption.TRUNCATE_EXISTING));
+		}
+
+		return(HttpResponse.BodyHandlers.ofString());
+	}
+
+	private Response readResponse(HttpResponse<?> httpResponse, Throwable t, Params params) {
+
+		Response response = new Response();
+
+		try {
+			if (t != null) {
+				Throwable cause = ((t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t);
+				throw (cause instanceof Exception ? (Exception) cause : new Exception(cause));
+			}
+
+			response.Status = httpResponse.statusCode();
+			response.StatusText = reasonPhrase(response.Status);
+			response.Headers = httpResponse.headers().map();
+
+			Object body = httpResponse.body();
+
+			if (body instanceof byte[]) {
+				InputStream stm = new GZIPInputStream(new ByteArrayInputStream((byte[]) body));
+				try {
+					if (params.ResponseBodyPath != null) {
+						Easy.inputStreamToFile(stm, params.ResponseBodyPath);
+					}
+					else {
+						response.Body = Easy.stringFromInputStream(stm);
+					}
+				}
+				finally {
+					stm.close();
 				}
 			}
+			else if (body instanceof String) {
+				response.Body = (String) body;
+			}
+		}
+		catch (Exception e) {
+			response.setException(e);
+		}
 
-			future.complete(response);
-		});
+		return(response);
+	}
+
+	private HttpClient buildClient(boolean followRedirects) {
+
+		HttpClient.Builder builder = HttpClient.newBuilder()
+			.version(cfg.PreferHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofMillis(cfg.TimeoutMillis))
+			.followRedirects(followRedirects ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER)
+			.executor(pool);
+
+		if (sslContext != null) builder.sslContext(sslContext);
+
+		return(builder.build());
+	}
+
+	// redirect policy is per-client, so a Params override needs a second one
+	private synchronized HttpClient getAltClient() {
+		if (altHttpClient == null) altHttpClient = buildClient(!cfg.FollowRedirects);
+		return(altHttpClient);
+	}
+
+	private static String reasonPhrase(int status) {
 		
-		return(future);
+		// HTTP/2 has no reason phrase on the wire, so fake up the usual ones
+		switch (status) {
+			case 200: return("OK");
+			case 201: return("Created");
+			case 202: return("Accepted");
+			case 204: return("No Content");
+			case 206: return("Partial Content");
+			case 301: return("Moved Permanently");
+			case 302: return("Found");
+			case 304: return("Not Modified");
+			case 307: return("Temporary Redirect");
+			case 308: return("Permanent Redirect");
+			case 400: return("Bad Request");
+			case 401: return("Unauthorized");
+			case 403: return("Forbidden");
+			case 404: return("Not Found");
+			case 405: return("Method Not Allowed");
+			case 409: return("Conflict");
+			case 413: return("Payload Too Large");
+			case 429: return("Too Many Requests");
+			case 500: return("Internal Server Error");
+			case 502: return("Bad Gateway");
+			case 503: return("Service Unavailable");
+			case 504: return("Gateway Timeout");
+			default: return(Integer.toString(status));
+		}
+	}
+
+	private final static Set<String> RESTRICTED_HEADERS = new HashSet<String>(
+		Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+	// +----------+
+	// | HostGate |
+	// +----------+
+
+	// Limits in-flight requests per host without parking a thread: requests
+	// past the limit are queued and started as earlier ones complete.
+	
+	private static class HostGate
+	{
+		public HostGate(int max) {
+			this.max = max;
+		}
+
+		public void run(Runnable task) {
+			
+			synchronized (this) {
+				if (max > 0 && active >= max) {
+					waiting.add(task);
+					return;
+				}
+				
+				++active;
+			}
+
+			task.run();
+		}
+
+		public void release() {
+
+			Runnable next;
+			
+			synchronized (this) {
+				next = waiting.poll();
+				if (next == null) { --active; return; }
+			}
+
+			// the slot passes straight to the next in line
+			next.run();
+		}
+
+		private int max;
+		private int active = 0;
+		private ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+	}
+
+	private HostGate getHostGate(URI uri) {
+		String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+		return(hostGates.computeIfAbsent(key, (k) -> new HostGate(cfg.MaxRequestsPerHost)));
 	}
 
 	private InputStream getInputStreamReally(HttpURLConnection conn) {
@@ -495,7 +777,12 @@ public class WebRequests implements Closeable
 	private Config cfg;
 	private ExecutorService pool;
 	private Set<Future> syncFutures;
+	private SSLContext sslContext;
 	private SSLSocketFactory sslSocketFactory;
 
+	private HttpClient httpClient;
+	private HttpClient altHttpClient;
+	private Map<String,HostGate> hostGates;
+
 	private final static Logger log = Logger.getLogger(WebRequests.class.getName());
 }
@@ -8,25 +8,35 @@ package com.shutdownhook.toolbox;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.IllegalArgumentException;
 import java.lang.InterruptedException;
 import java.lang.Runtime;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipInputStream;
 import java.util.zip.GZIPInputStream;
@@ -120,6 +130,14 @@ public class WebServer implements Closeable
 		// to a temp directory, served from there, and deleted on exit.
 		public String StaticPagesZip;
 
+		// If true, StaticPagesZip is not extracted; pages are served directly
+		// from a memory-mapped copy of the archive by a single "/" handler.
+		public Boolean StaticPagesZipDirect = false;
+
+		// If set, static pages are served from an in-memory cache with
+		// ETags, precompressed gzip variants, 304s and byte ranges.
+		public StaticCache.Config StaticPagesCache;
+
 		public Boolean StaticPagesRouteHtmlWithoutExtension = true;
 		public String StaticPagesIndexFile = "index.html";
 		
@@ -149,9 +167,34 @@ public class WebServer implements Closeable
 		
 		public int ThreadCount = 0; // 0 = use an on-demand pool, else specific fixed count
 		public int ShutdownWaitSeconds = 30;
+
+		// Run each exchange on its own virtual thread (JDK21+; falls back to
+		// an on-demand pool on older JVMs). Overrides ThreadCount.
+		public boolean UseVirtualThreads = false;
+
+		// If MaxConcurrentRequests > 0, at most that many requests run
+		// handlers at once. Up to MaxQueuedRequests more wait their turn;
+		// beyond that requests are rejected immediately with a 503.
+		public int MaxConcurrentRequests = 0;
+		public int MaxQueuedRequests = 100;
+
+		// Per-route latency / status / byte counts are always collected
+		// (see getMetrics). If MetricsPath is set they're also served there
+		// in Prometheus text format, or as JSON with ?format=json. The
+		// endpoint goes through normal authentication like any other route.
+		public String MetricsPath;
+
+		// set false to skip the per-request INFO line
+		public boolean LogRequests = true;
 		public boolean ReturnExceptionDetails = false;
 		public boolean ReadBodyAsString = true;
 
+		// If > 0, POST/PUT bodies bigger than this get a 413. Checked against
+		// Content-Length up front and enforced again while the body is read,
+		// so chunked uploads can't sneak past. Override per route with
+		// RouteOptions.
+		public long MaxBodyBytes = 0;
+
 		// these aren't documented and are a bit problematic because they
 		// get set as statics ... if you set them you'll change all instances
 		// in the process. But without them clients can end up hanging sockets
@@ -173,6 +216,27 @@ public class WebServer implements Closeable
 		public void handle(Request request, Response response) throws Exception;
 	}
 
+	// +--------------+
+	// | RouteOptions |
+	// +--------------+
+
+	// Per-route overrides for body handling; null fields fall back to Config.
+	// e.g., set ReadBodyAsString = false on an upload route to get the raw
+	// stream in Request.BodyStream without turning it off server-wide.
+	
+	public static class RouteOptions
+	{
+		public Boolean ReadBodyAsString;
+		public Long MaxBodyBytes;
+	}
+
+	public static class BodyTooLargeException extends IOException
+	{
+		public BodyTooLargeException(long max) {
+			super(String.format("Request body exceeds %d bytes", max));
+		}
+	}
+
 	// +---------+
 	// | Request |
 	// +---------+
@@ -225,10 +289,23 @@ public class WebServer implements Closeable
 
 		public Response(Encrypt cookieEncrypt) { this.cookieEncrypt = cookieEncrypt; }
 		private Encrypt cookieEncrypt;
+
+		// Called after headers go out; whatever it writes is sent with chunked
+		// transfer encoding so nothing has to be buffered. Don't close out.
+		// Headers are already gone when write runs, so if it throws the
+		// client just sees a short body --- the error is logged.
+		public interface StreamWriter {
+			public void write(OutputStream out) throws Exception;
+		}
 		
 		public int Status;
 		public String Body;
+		public StreamWriter BodyWriter; // takes precedence over all other body fields
+		public ByteBuffer[] BodyBuffers; // sent in order; takes precedence over the rest
+		public byte[] BodyBytes; // sent as-is; takes precedence over Body
 		public File BodyFile;
+		public long BodyFileOffset = 0;
+		public long BodyFileLength = -1; // -1 = to end of file
 		public Boolean DeleteBodyFile;
 		public String ContentType;
 		public Map<String,String> Headers;
@@ -239,6 +316,21 @@ public class WebServer implements Closeable
 		public void setHtml(String s) { Status = 200; Body = s; ContentType = "text/html"; }
 		public void setJS(String s) { Status = 200; Body = s; ContentType = "text/javascript"; }
 
+		public void setStream(String contentType, StreamWriter writer) {
+			Status = 200; BodyWriter = writer; ContentType = contentType;
+		}
+
+		// renders straight to the response; tokens must not change after this call
+		public void setHtml(Template template, Map<String,String> tokens,
+							Template.TemplateProcessor processor) {
+
+			setStream("text/html", (out) -> {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out));
+				template.render(writer, tokens, processor);
+				writer.flush();
+			});
+		}
+
 		public void redirect(String url) {
 			Status = 302;
 			addHeader("Location", url);
@@ -305,6 +397,7 @@ public class WebServer implements Closeable
 		server.setExecutor();
 
 		server.registerStaticRoutes();
+		server.registerMetrics();
 
 		if (cfg.CookieEncrypt != null) server.cookieEncrypt = new Encrypt(cfg.CookieEncrypt);
 
@@ -393,6 +486,17 @@ public class WebServer implements Closeable
 		});
 	}
 
+	public void registerCachedFileHandler(String urlPrefix,
+										  final File file,
+										  final String contentType) {
+
+		registerHandler(urlPrefix, new Handler() {
+			public void handle(Request request, Response response) throws Exception {
+				staticCache.serve(staticCache.get(file, contentType), request, response);
+			}
+		});
+	}
+
 	public void registerEmptyHandler(String urlPrefix,
 									 final int status) {
 
@@ -406,59 +510,157 @@ public class WebServer implements Closeable
 	}
 
 	public void registerHandler(String urlPrefix, final Handler handler) {
+		registerHandler(urlPrefix, handler, null);
+	}
+
+	public void registerHandler(String urlPrefix, final Handler handler,
+								final RouteOptions options) {
 
+		final WebMetrics.Route route = metrics.route(urlPrefix);
+		
 		server.createContext(urlPrefix, new HttpHandler() {
-				
 			public void handle(HttpExchange exchange) {
-				
-				log.info(String.format("WebServer %s: %s: %s (%s)",
-									   handler.getClass().getName(),
-									   exchange.getRemoteAddress(),
-									   exchange.getRequestURI(),
-									   exchange.getRequestMethod()));
+				if (!admitRequest(exchange, route)) return;
+				try { dispatch(exchange, handler, options, route); }
+				finally { releaseRequest(); }
+			}
+		});
+	}
+
+	public WebMetrics getMetrics() {
+		return(metrics);
+	}
+
+	private void dispatch(HttpExchange exchange, Handler handler,
+						  RouteOptions options, WebMetrics.Route route) {
+
+		long startNanos = System.nanoTime();
+		route.begin();
+		
+		if (cfg.LogRequests && log.isLoggable(Level.INFO)) {
+			log.info(String.format("WebServer %s: %s: %s (%s)",
+								   handler.getClass().getName(),
+								   exchange.getRemoteAddress(),
+								   exchange.getRequestURI(),
+								   exchange.getRequestMethod()));
+		}
 
-				Response response = new Response(cookieEncrypt);
-				response.Status = 200; // optimistic!
+		Response response = new Response(cookieEncrypt);
+		response.Status = 200; // optimistic!
 
-				Request request = null;
+		Request request = null;
 				
-				try {
-					request = setupRequest(exchange);
+		try {
+			request = setupRequest(exchange, options);
 					
-					if (!handlePreflight(request, response) &&
-						!shortCircuitForAuth(request, response)) {
+			if (!handlePreflight(request, response) &&
+				!shortCircuitForAuth(request, response)) {
 						
-						handler.handle(request, response);
-					}
-				}
-				catch (Exception e) {
-					
-					response.Status = 500;
-					response.Body = null;
-					response.ContentType = null;
+				handler.handle(request, response);
+			}
+		}
+		catch (Exception e) {
 
-					String msg = Easy.exMsg(e, handler.getClass().getName(), true);
-					log.severe(msg);
+			response.Body = null;
+			response.BodyWriter = null;
+			response.ContentType = null;
 
-					if (cfg.ReturnExceptionDetails) {
-						response.Body = msg;
-						response.ContentType = "text/plain";
-					}
-				}
-				finally {
+			if (e instanceof BodyTooLargeException ||
+				e.getCause() instanceof BodyTooLargeException) {
+				
+				response.Status = 413;
+				log.warning(String.format("WebServer %s: %s", exchange.getRequestURI(),
+										  Easy.exMsg(e, "body", false)));
+				return;
+			}
+			
+			response.Status = 500;
 
-					if (request != null) {
-						if (request.BodyStream != null) Easy.safeClose(request.BodyStream);
-						if (request.InnerBodyStream != null) Easy.safeClose(request.InnerBodyStream);
-					}
+			String msg = Easy.exMsg(e, handler.getClass().getName(), true);
+			log.severe(msg);
+
+			if (cfg.ReturnExceptionDetails) {
+				response.Body = msg;
+				response.ContentType = "text/plain";
+			}
+		}
+		finally {
+
+			if (request != null) {
+				if (request.BodyStream != null) Easy.safeClose(request.BodyStream);
+				if (request.InnerBodyStream != null) Easy.safeClose(request.InnerBodyStream);
+			}
 					
-					try { sendResponse(exchange, response); }
-					catch (IOException inner) { /* oh well */ }
+			long bytesOut = 0;
+			try { bytesOut = sendResponse(exchange, response); }
+			catch (IOException inner) { /* oh well */ }
+
+			// record before close; buffered bodies don't flush until
+			// then, so most clients see the metrics already updated
+			route.end(response.Status, System.nanoTime() - startNanos,
+					  requestBytes(exchange), bytesOut);
 					
-					exchange.close();
-				}
-			}
-		});
+			exchange.close();
+		}
+	}
+
+	private static long requestBytes(HttpExchange exchange) {
+		String len = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (len == null) return(0);
+		try { return(Long.parseLong(len.trim())); }
+		catch (NumberFormatException e) { return(0); }
+	}
+
+	// +-----------+
+	// | Admission |
+	// +-----------+
+
+	private boolean admitRequest(HttpExchange exchange, WebMetrics.Route route) {
+
+		if (admission == null) return(true);
+
+		int limit = cfg.MaxConcurrentRequests + cfg.MaxQueuedRequests;
+		
+		if (pendingRequests.incrementAndGet() > limit) {
+			pendingRequests.decrementAndGet();
+			log.warning(String.format("WebServer rejecting %s; %d requests pending",
+									  exchange.getRequestURI(), limit));
+			rejectRequest(exchange, route);
+			return(false);
+		}
+
+		try {
+			admission.acquire();
+			return(true);
+		}
+		catch (InterruptedException e) {
+			pendingRequests.decrementAndGet();
+			rejectRequest(exchange, route);
+			return(false);
+		}
+	}
+
+	private void releaseRequest() {
+		if (admission == null) return;
+		admission.release();
+		pendingRequests.decrementAndGet();
+	}
+
+	private void rejectRequest(HttpExchange exchange, WebMetrics.Route route) {
+
+		route.begin();
+		route.end(503, 0, 0, 0);
+		
+		try {
+			exchange.getResponseHeaders().add("Retry-After", "1");
+			exchange.sendResponseHeaders(503, -1);
+		}
+		catch (IOException e) {
+			// oh well
+		}
+		finally {
+			exchange.close();
+		}
 	}
 
 	// +-------------------+
@@ -476,14 +678,16 @@ public class WebServer implements Closeable
 	
 	private void setExecutor() {
 
-		pool = (cfg.ThreadCount == 0
-				? Executors.newCachedThreadPool()
-				: Executors.newFixedThreadPool(cfg.ThreadCount));
-
+		pool = Exec.createPool(cfg.ThreadCount, cfg.UseVirtualThreads);
 		server.setExecutor(pool);
+
+		if (cfg.MaxConcurrentRequests > 0) {
+			admission = new Semaphore(cfg.MaxConcurrentRequests, true);
+		}
 	}
 	
-	private void sendResponse(HttpExchange exchange, Response response) throws IOException {
+	// returns body bytes sent
+	private long sendResponse(HttpExchange exchange, Response response) throws IOException {
 
 		handleCORS(response);
 		
@@ -503,25 +707,71 @@ public class WebServer implements Closeable
 			exchange.getResponseHeaders().add("Content-Type", response.ContentType);
 		}
 
-		if (response.BodyFile != null) {
-			exchange.sendResponseHeaders(response.Status, response.BodyFile.length());
-			sendFileTo(response.BodyFile, exchange.getResponseBody());
+		if (response.BodyWriter != null) {
+			exchange.sendResponseHeaders(response.Status, 0); // chunked
+			CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+
+			try {
+				response.BodyWriter.write(out);
+				out.flush();
+			}
+			catch (IOException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				log.severe(Easy.exMsg(e, "BodyWriter (response truncated)", true));
+			}
+			
+			return(out.getCount());
+		}
+		else if (response.BodyBuffers != null) {
+			long cb = 0;
+			for (ByteBuffer buf : response.BodyBuffers) cb += buf.remaining();
+			exchange.sendResponseHeaders(response.Status, cb == 0 ? -1 : cb);
+
+			if (cb > 0) {
+				WritableByteChannel channel = Channels.newChannel(exchange.getResponseBody());
+				for (ByteBuffer buf : response.BodyBuffers) {
+					ByteBuffer dup = buf.duplicate();
+					while (dup.hasRemaining()) channel.write(dup);
+				}
+			}
+
+			return(cb);
+		}
+		else if (response.BodyBytes != null) {
+			int cb = response.BodyBytes.length;
+			exchange.sendResponseHeaders(response.Status, cb == 0 ? -1 : cb);
+			if (cb > 0) exchange.getResponseBody().write(response.BodyBytes);
+			return(cb);
+		}
+		else if (response.BodyFile != null) {
+			long cb = (response.BodyFileLength == -1
+					   ? response.BodyFile.length() - response.BodyFileOffset
+					   : response.BodyFileLength);
+			
+			exchange.sendResponseHeaders(response.Status, cb);
+			sendFileTo(response.BodyFile, response.BodyFileOffset, cb, exchange.getResponseBody());
 			if (response.DeleteBodyFile != null && response.DeleteBodyFile == true) {
 				try { response.BodyFile.delete(); }
 				catch (Exception de) { /* eat it */ }
 			}
+			return(cb);
 		}
 		else if (response.Body == null || response.Body.isEmpty()) {
 			exchange.sendResponseHeaders(response.Status, -1);
+			return(0);
 		}
 		else {
 			byte[] rgb = response.Body.getBytes();
 			exchange.sendResponseHeaders(response.Status, rgb.length);
 			exchange.getResponseBody().write(rgb);
+			return(rgb.length);
 		}
 	}
 
-	private Request setupRequest(HttpExchange exchange) throws IOException, IllegalArgumentException {
+	private Request setupRequest(HttpExchange exchange, RouteOptions options)
+		throws IOException, IllegalArgumentException {
 
 		Request request = new Request(cookieEncrypt);
 
@@ -561,21 +811,26 @@ public class WebServer implements Closeable
 		if (request.Method.equalsIgnoreCase("POST") ||
 			request.Method.equalsIgnoreCase("PUT")) {
 
-			if (cfg.ReadBodyAsString) {
-				
-				InputStream stream = null;
+			boolean readAsString = (options == null || options.ReadBodyAsString == null
+									? cfg.ReadBodyAsString : options.ReadBodyAsString);
+			
+			long maxBody = (options == null || options.MaxBodyBytes == null
+							? cfg.MaxBodyBytes : options.MaxBodyBytes);
 
-				try {
-					stream = exchange.getRequestBody();
-					request.Body = Easy.stringFromInputStream(stream);
-				}
-				finally {
-					if (stream != null) stream.close();
-				}
+			InputStream body = exchange.getRequestBody();
+
+			if (maxBody > 0) {
+				if (requestBytes(exchange) > maxBody) throw new BodyTooLargeException(maxBody);
+				body = new LimitedInputStream(body, maxBody);
+			}
+
+			if (readAsString) {
+				try { request.Body = Easy.stringFromInputStream(body); }
+				finally { body.close(); }
 			}
 			else {
-				// will be closed by registerHandler finally clause
-				request.BodyStream = exchange.getRequestBody();
+				// will be closed by dispatch finally clause
+				request.BodyStream = body;
 				
 				List<String> contentTypeHeaders = request.Headers.get("Content-Type");
 				String ct = ((contentTypeHeaders != null && contentTypeHeaders.size() >= 1)
@@ -590,6 +845,12 @@ public class WebServer implements Closeable
 					request.InnerBodyStream = request.BodyStream;
 					request.BodyStream = new GZIPInputStream(request.InnerBodyStream);
 				}
+
+				// the limit covers inflated bytes too, so a tiny zip can't
+				// turn into a huge stream on the handler's side
+				if (maxBody > 0 && request.InnerBodyStream != null) {
+					request.BodyStream = new LimitedInputStream(request.BodyStream, maxBody);
+				}
 			}
 		}
 
@@ -616,6 +877,8 @@ public class WebServer implements Closeable
 	}
 
 	private void registerStaticRoutes() throws Exception {
+
+		if (cfg.StaticPagesCache != null) staticCache = new StaticCache(cfg.StaticPagesCache);
 		
 		if (cfg.StaticPagesDirectory != null) {
 
@@ -624,7 +887,10 @@ public class WebServer implements Closeable
 			registerStaticRoutesHelper(new File(cfg.StaticPagesDirectory), "/");
 		}
 
-		if (cfg.StaticPagesZip != null) {
+		if (cfg.StaticPagesZip != null && cfg.StaticPagesZipDirect) {
+			registerZipPages();
+		}
+		else if (cfg.StaticPagesZip != null) {
 
 			staticPagesTemp = Files.createTempDirectory("shweb").toFile();
 			String zipPath = new File(staticPagesTemp, "pages.zip").getAbsolutePath();
@@ -639,6 +905,28 @@ public class WebServer implements Closeable
 		}
 	}
 	
+	private void registerZipPages() throws Exception {
+
+		String zipPath = cfg.StaticPagesZip;
+
+		if (zipPath.startsWith("@")) {
+			// resources can't be mapped; copy out once
+			staticPagesTemp = Files.createTempDirectory("shweb").toFile();
+			zipPath = new File(staticPagesTemp, "pages.zip").getAbsolutePath();
+			Easy.smartyPathToFile(cfg.StaticPagesZip, zipPath);
+		}
+
+		log.info(String.format("Serving pages directly from %s", cfg.StaticPagesZip));
+
+		final ZipPages zipPages = new ZipPages(new File(zipPath), cfg);
+
+		registerHandler("/", new Handler() {
+			public void handle(Request request, Response response) throws Exception {
+				zipPages.serve(request, response);
+			}
+		});
+	}
+	
 	private void registerStaticRoutesHelper(File dir, String prefix) throws Exception {
 		
 		for (File file : dir.listFiles()) {
@@ -662,15 +950,44 @@ public class WebServer implements Closeable
 					 ? name.substring(0, ichLastDot) : name);
 
 				String contentType = cfg.StaticPagesExtensionMap.get(ext);
-				registerFileHandler(prefix + route, file, contentType);
+				registerStaticFile(prefix + route, file, contentType);
 
 				if (name.equals(cfg.StaticPagesIndexFile)) {
-					registerFileHandler(prefix, file, contentType);
+					registerStaticFile(prefix, file, contentType);
 				}
 			}
 		}
 	}
 
+	// +-----------------+
+	// | registerMetrics |
+	// +-----------------+
+
+	private void registerMetrics() {
+
+		if (cfg.MetricsPath == null) return;
+
+		log.info("Serving metrics at " + cfg.MetricsPath);
+		
+		registerHandler(cfg.MetricsPath, new Handler() {
+			public void handle(Request request, Response response) throws Exception {
+				if ("json".equalsIgnoreCase(request.QueryParams.get("format"))) {
+					response.setJson(metrics.toJson());
+				}
+				else {
+					response.Status = 200;
+					response.ContentType = "text/plain; version=0.0.4";
+					response.Body = metrics.toPrometheus();
+				}
+			}
+		});
+	}
+
+	private void registerStaticFile(String urlPrefix, File file, String contentType) {
+		if (staticCache == null) registerFileHandler(urlPrefix, file, contentType);
+		else registerCachedFileHandler(urlPrefix, file, contentType);
+	}
+
 	// +--------------+
 	// | registerAuth |
 	// +--------------+
@@ -778,8 +1095,7 @@ public class WebServer implements Closeable
 			(Config.AUTHTYPE_BASIC.equals(authType) || Config.AUTHTYPE_SIMPLE.equals(authType))
 			? true : false;
 
-		String templateText = Easy.stringFromResource("logout.html.tmpl");
-		final Template template = new Template(templateText);
+		final Template template = Template.fromPath("@logout.html.tmpl");
 		
 		registerHandler(cfg.LogoutPath, new Handler() {
 				
@@ -791,12 +1107,12 @@ public class WebServer implements Closeable
 				String redir = request.QueryParams.get("r");
 				if (Easy.nullOrEmpty(redir) || redir.indexOf("://") != -1) redir = "/";
 
-				HashMap tokens = new HashMap<String,String>();
+				HashMap<String,String> tokens = new HashMap<String,String>();
 				tokens.put("401_URL", cfg.Basic401Path);
 				tokens.put("REDIRECT_URL", redir);
 				tokens.put("ACTIVE_LOGOUT", activeLogout ? "TRUE" : "FALSE");
 				
-				response.setHtml(template.render(tokens));
+				response.setHtml(template, tokens, null);
 			}
 
 		});
@@ -1010,19 +1326,96 @@ public class WebServer implements Closeable
 	// | Helpers |
 	// +---------+
 
-	private void sendFileTo(File file, OutputStream outputStream) throws IOException {
+	private void sendFileTo(File file, long offset, long length,
+							OutputStream outputStream) throws IOException {
 
 		FileInputStream inputStream = null;
 
 		try {
 			inputStream = new FileInputStream(file);
-			inputStream.transferTo(outputStream);
+			
+			if (offset == 0 && length == file.length()) {
+				inputStream.transferTo(outputStream);
+			}
+			else {
+				inputStream.getChannel().transferTo(offset, length,
+													Channels.newChannel(outputStream));
+			}
 		}
 		finally {
 			if (inputStream != null) inputStream.close();
 		}
 	}
 
+	// +--------------+
+	// | Body Streams |
+	// +--------------+
+
+	private static class LimitedInputStream extends FilterInputStream
+	{
+		public LimitedInputStream(InputStream in, long max) {
+			super(in);
+			this.max = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) count(1);
+			return(b);
+		}
+
+		@Override
+		public int read(byte[] rgb, int off, int len) throws IOException {
+			int cb = super.read(rgb, off, len);
+			if (cb > 0) count(cb);
+			return(cb);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long cb = super.skip(n);
+			if (cb > 0) count(cb);
+			return(cb);
+		}
+
+		@Override public boolean markSupported() { return(false); }
+
+		private void count(long cb) throws BodyTooLargeException {
+			seen += cb;
+			if (seen > max) throw new BodyTooLargeException(max);
+		}
+
+		private long max;
+		private long seen = 0;
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] rgb, int off, int len) throws IOException {
+			out.write(rgb, off, len);
+			count += len;
+		}
+
+		// the exchange closes the real stream
+		@Override public void close() throws IOException { flush(); }
+		
+		public long getCount() { return(count); }
+
+		private long count = 0;
+	}
+
 	// +---------+
 	// | Members |
 	// +---------+
@@ -1046,11 +1439,15 @@ public class WebServer implements Closeable
 	protected HttpServer server;
 	
 	private ExecutorService pool;
+	private Semaphore admission;
+	private AtomicInteger pendingRequests = new AtomicInteger();
+	private WebMetrics metrics = new WebMetrics();
 	private OAuth2Login oauth2;
 	private Encrypt cookieEncrypt;
 	private PasswordStore passwordStore;
 
 	private File staticPagesTemp; 
+	private StaticCache staticCache;
 
 	private JsonParser jsonParser;
 	
@@ -0,0 +1,433 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Serves static pages straight out of a zip archive. The central directory
+// is read once into a route -> entry map and the archive itself is memory-
+// mapped, so nothing is extracted and one handler covers every file. Deflated
+// entries go to gzip-capable clients as-is, just wrapped in a gzip header and
+// trailer (the zip already has the CRC and size gzip wants). Everyone else
+// gets the entry inflated; inflated bytes are kept in a small LRU cache
+// (StaticPagesCache.MaxBytes, else INFLATED_CACHE_BYTES) so a client
+// walking a file with range requests doesn't pay to decompress it again
+// for every chunk. Entries too big to cache inflate only through the end
+// of the requested range.
+//
+// Plain zip only --- no zip64, no encrypted entries.
+
+public class ZipPages
+{
+	// +----------------+
+	// | Config & Setup |
+	// +----------------+
+
+	public ZipPages(File zipFile, WebServer.Config cfg) throws IOException {
+
+		this.cfg = cfg;
+		this.cacheControl = (cfg.StaticPagesCache == null
+							 ? "no-cache" : cfg.StaticPagesCache.CacheControl);
+
+		RandomAccessFile raf = new RandomAccessFile(zipFile, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			this.zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			this.zip.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		finally {
+			raf.close(); // mapping stays valid
+		}
+
+		this.routes = new HashMap<String,Entry>();
+		this.inflated = new InflatedMap();
+		this.maxInflatedBytes = (cfg.StaticPagesCache == null
+								 ? INFLATED_CACHE_BYTES : cfg.StaticPagesCache.MaxBytes);
+		readCentralDirectory();
+
+		log.info(String.format("Indexed %d routes from %s", routes.size(), zipFile));
+	}
+
+	// +-------+
+	// | Entry |
+	// +-------+
+
+	public static class Entry
+	{
+		public String Name;
+		public String ContentType;
+		public int Method;
+		public long Crc;
+		public int CompressedSize;
+		public int Size;
+		public int DataOffset;
+		public long LastModified;
+		public String ETag;
+		public String GzipETag;
+	}
+
+	public Entry lookup(String path) {
+
+		Entry entry = routes.get(path);
+		if (entry != null) return(entry);
+
+		// not a file; fall back to the nearest enclosing index like
+		// prefix-matched contexts did when these were extracted to disk
+		int ichSlash = path.lastIndexOf("/");
+		while (ichSlash != -1) {
+			entry = routes.get(path.substring(0, ichSlash + 1));
+			if (entry != null) return(entry);
+			ichSlash = path.lastIndexOf("/", ichSlash - 1);
+		}
+
+		return(null);
+	}
+
+	// +-------+
+	// | serve |
+	// +-------+
+
+	public void serve(WebServer.Request request, WebServer.Response response) throws Exception {
+
+		String path = request.Path;
+		int ichQuery = path.indexOf("?");
+		if (ichQuery != -1) path = path.substring(0, ichQuery);
+
+		Entry entry = lookup(Easy.urlDecode(path));
+
+		if (entry == null) {
+			response.Status = 404;
+			return;
+		}
+
+		boolean deflated = (entry.Method == METHOD_DEFLATED);
+
+		response.Status = 200;
+		response.ContentType = entry.ContentType;
+		response.addHeader("Cache-Control", cacheControl);
+		response.addHeader("Last-Modified", StaticCache.httpDate(entry.LastModified));
+		response.addHeader("Accept-Ranges", "bytes");
+		if (deflated) response.addHeader("Vary", "Accept-Encoding");
+
+		String range = request.getHeader("Range");
+		boolean useGzip = (deflated && range == null && StaticCache.acceptsGzip(request));
+		String etag = (useGzip ? entry.GzipETag : entry.ETag);
+		response.addHeader("ETag", etag);
+
+		if (StaticCache.notModified(request, entry.LastModified, etag)) {
+			response.Status = 304;
+			response.ContentType = null;
+			return;
+		}
+
+		if (range != null && StaticCache.rangeApplies(request, entry.ETag)) {
+
+			long[] span = StaticCache.parseRange(range, entry.Size);
+
+			if (span == null) {
+				response.Status = 416;
+				response.ContentType = null;
+				response.addHeader("Content-Range", "bytes */" + Integer.toString(entry.Size));
+				return;
+			}
+
+			if (span.length == 2) {
+				response.Status = 206;
+				response.addHeader("Content-Range", String.format("bytes %d-%d/%d",
+																  span[0], span[1], entry.Size));
+
+				ByteBuffer identity = identityBytes(entry, (int) span[1] + 1);
+				identity.position((int) span[0]);
+				identity.limit((int) span[1] + 1);
+				response.BodyBuffers = new ByteBuffer[] { identity };
+				return;
+			}
+		}
+
+		if (useGzip) {
+			response.addHeader("Content-Encoding", "gzip");
+			response.BodyBuffers = new ByteBuffer[] {
+				ByteBuffer.wrap(GZIP_HEADER), rawBytes(entry), gzipTrailer(entry)
+			};
+		}
+		else {
+			response.BodyBuffers = new ByteBuffer[] { identityBytes(entry, entry.Size) };
+		}
+	}
+
+	// +--------------+
+	// | Entry Access |
+	// +--------------+
+
+	private ByteBuffer rawBytes(Entry entry) {
+		ByteBuffer buf = zip.duplicate();
+		buf.position(entry.DataOffset);
+		buf.limit(entry.DataOffset + entry.CompressedSize);
+		return(buf.slice());
+	}
+
+	// at least the first cbNeeded bytes of the inflated entry
+	private ByteBuffer identityBytes(Entry entry, int cbNeeded) throws DataFormatException {
+
+		if (entry.Method == METHOD_STORED) return(rawBytes(entry));
+
+		byte[] output;
+		synchronized (inflated) { output = inflated.get(entry); }
+		if (output != null) return(ByteBuffer.wrap(output));
+
+		if (entry.Size > maxInflatedBytes) {
+			// never going to fit; just do as much as this request needs
+			return(ByteBuffer.wrap(inflate(entry, cbNeeded)));
+		}
+
+		output = inflate(entry, entry.Size);
+
+		synchronized (inflated) {
+			if (inflated.put(entry, output) == null) inflatedBytes += output.length;
+			inflated.prune();
+		}
+
+		return(ByteBuffer.wrap(output));
+	}
+
+	private byte[] inflate(Entry entry, int cbWant) throws DataFormatException {
+
+		byte[] output = new byte[cbWant];
+		Inflater inflater = new Inflater(true);
+
+		try {
+			inflater.setInput(rawBytes(entry));
+			int cb = 0;
+			boolean fedDummy = false;
+
+			while (!inflater.finished() && cb < output.length) {
+				int cbThis = inflater.inflate(output, cb, output.length - cb);
+				if (cbThis == 0) {
+					// raw deflate sometimes wants one byte past the end
+					if (fedDummy || !inflater.needsInput()) {
+						throw new DataFormatException("Truncated zip entry: " + entry.Name);
+					}
+					inflater.setInput(new byte[1]);
+					fedDummy = true;
+				}
+				cb += cbThis;
+			}
+		}
+		finally {
+			inflater.end();
+		}
+
+		return(output);
+	}
+
+	// +-------------+
+	// | InflatedMap |
+	// +-------------+
+
+	private class InflatedMap extends LinkedHashMap<Entry,byte[]>
+	{
+		public InflatedMap() {
+			super(16, 0.75f, true);
+		}
+
+		// caller holds the lock
+		public void prune() {
+			while (inflatedBytes > maxInflatedBytes && size() > 0) {
+				// plain "Entry" in here would be the inherited Map.Entry
+				Map.Entry<ZipPages.Entry,byte[]> eldest = entrySet().iterator().next();
+				inflatedBytes -= eldest.getValue().length;
+				remove(eldest.getKey());
+			}
+		}
+	}
+
+	private static ByteBuffer gzipTrailer(Entry entry) {
+		ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt((int) entry.Crc);
+		buf.putInt(entry.Size);
+		buf.flip();
+		return(buf);
+	}
+
+	// +-------------------+
+	// | Central Directory |
+	// +-------------------+
+
+	private void readCentralDirectory() throws IOException {
+
+		int eocd = findEndOfCentralDirectory();
+		int entryCount = u16(eocd + 10);
+		long cdOffset = u32(eocd + 16);
+
+		if (entryCount == 0xFFFF || cdOffset == 0xFFFFFFFFL) {
+			throw new IOException("zip64 archives not supported");
+		}
+
+		int ich = (int) cdOffset;
+
+		for (int i = 0; i < entryCount; ++i) {
+
+			if (zip.getInt(ich) != SIG_CENTRAL) throw new IOException("Bad central directory");
+
+			int flags = u16(ich + 8);
+			int method = u16(ich + 10);
+			int dosTime = u16(ich + 12);
+			int dosDate = u16(ich + 14);
+			long crc = u32(ich + 16);
+			long compressedSize = u32(ich + 20);
+			long size = u32(ich + 24);
+			int cchName = u16(ich + 28);
+			int cchExtra = u16(ich + 30);
+			int cchComment = u16(ich + 32);
+			long localOffset = u32(ich + 42);
+
+			String name = readString(ich + 46, cchName);
+			ich += 46 + cchName + cchExtra + cchComment;
+
+			if (name.endsWith("/")) continue;
+
+			if ((flags & 0x0001) != 0 ||
+				(method != METHOD_STORED && method != METHOD_DEFLATED)) {
+
+				log.warning("Skipping encrypted or unsupported zip entry: " + name);
+				continue;
+			}
+
+			if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL) {
+				throw new IOException("zip64 entries not supported: " + name);
+			}
+
+			Entry entry = new Entry();
+			entry.Name = name;
+			entry.Method = method;
+			entry.Crc = crc;
+			entry.CompressedSize = (int) compressedSize;
+			entry.Size = (int) size;
+			entry.LastModified = dosToEpochMillis(dosDate, dosTime);
+			entry.DataOffset = dataOffset((int) localOffset);
+			entry.ETag = String.format("\"%08x-%x\"", crc, size);
+			entry.GzipETag = String.format("\"%08x-%x-gz\"", crc, size);
+
+			addRoutes(entry);
+		}
+	}
+
+	// mirrors the route naming in WebServer.registerStaticRoutesHelper
+	private void addRoutes(Entry entry) {
+
+		String name = entry.Name;
+		int ichLastSlash = name.lastIndexOf("/");
+		String prefix = "/" + name.substring(0, ichLastSlash + 1);
+		String fileName = name.substring(ichLastSlash + 1);
+
+		int ichLastDot = fileName.lastIndexOf(".");
+		if (ichLastDot == -1) return;
+
+		String ext = fileName.substring(ichLastDot + 1).toLowerCase();
+		String contentType = cfg.StaticPagesExtensionMap.get(ext);
+		if (contentType == null) return;
+
+		entry.ContentType = contentType;
+
+		String route = (cfg.StaticPagesRouteHtmlWithoutExtension && ext.equals("html")
+						? fileName.substring(0, ichLastDot) : fileName);
+
+		routes.put(prefix + route, entry);
+		if (fileName.equals(cfg.StaticPagesIndexFile)) routes.put(prefix, entry);
+	}
+
+	private int findEndOfCentralDirectory() throws IOException {
+
+		// EOCD is 22 bytes plus a comment of up to 64k
+		int min = Math.max(0, zip.limit() - 22 - 0xFFFF);
+
+		for (int ich = zip.limit() - 22; ich >= min; --ich) {
+			if (zip.getInt(ich) == SIG_END) return(ich);
+		}
+
+		throw new IOException("Not a zip file (no end of central directory)");
+	}
+
+	private int dataOffset(int localOffset) throws IOException {
+
+		if (zip.getInt(localOffset) != SIG_LOCAL) throw new IOException("Bad local header");
+
+		int cchName = u16(localOffset + 26);
+		int cchExtra = u16(localOffset + 28);
+		return(localOffset + 30 + cchName + cchExtra);
+	}
+
+	private static long dosToEpochMillis(int dosDate, int dosTime) {
+		try {
+			LocalDateTime ldt = LocalDateTime.of(((dosDate >> 9) & 0x7F) + 1980,
+												 (dosDate >> 5) & 0x0F,
+												 dosDate & 0x1F,
+												 (dosTime >> 11) & 0x1F,
+												 (dosTime >> 5) & 0x3F,
+												 (dosTime & 0x1F) * 2);
+
+			return(ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		}
+		catch (Exception e) {
+			return(0);
+		}
+	}
+
+	private int u16(int ich) { return(zip.getShort(ich) & 0xFFFF); }
+	private long u32(int ich) { return(zip.getInt(ich) & 0xFFFFFFFFL); }
+
+	private String readString(int ich, int cch) {
+		byte[] rgb = new byte[cch];
+		ByteBuffer buf = zip.duplicate();
+		buf.position(ich);
+		buf.get(rgb);
+		return(new String(rgb, StandardCharsets.UTF_8));
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private final static int SIG_LOCAL = 0x04034b50;
+	private final static int SIG_CENTRAL = 0x02014b50;
+	private final static int SIG_END = 0x06054b50;
+
+	private final static int METHOD_STORED = 0;
+	private final static int METHOD_DEFLATED = 8;
+
+	private final static long INFLATED_CACHE_BYTES = 32L * 1024L * 1024L;
+
+	// magic, deflate, no flags, no mtime, no xfl, unknown OS
+	private final static byte[] GZIP_HEADER = new byte[] {
+		(byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+	};
+
+	private WebServer.Config cfg;
+	private String cacheControl;
+	private ByteBuffer zip;
+	private Map<String,Entry> routes;
+
+	private InflatedMap inflated;
+	private long inflatedBytes = 0;
+	private long maxInflatedBytes;
+
+	private final static Logger log = Logger.getLogger(ZipPages.class.getName());
+}
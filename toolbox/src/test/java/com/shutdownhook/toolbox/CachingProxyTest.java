@@ -0,0 +1,207 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachingProxyTest
+{
+	@Test
+	public void testCoalescesMisses() throws Exception {
+
+		TestProxy proxy = new TestProxy(new MemoryCachingProxy.Config());
+		proxy.gate = new CountDownLatch(1);
+
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < threads; ++i) futures.add(pool.submit(() -> proxy.getItem("a")));
+
+			// let everyone pile up behind the first fetch
+			while (proxy.getFetchStats().Coalesced < threads - 1) Thread.sleep(10);
+			proxy.gate.countDown();
+
+			for (Future<String> f : futures) Assert.assertEquals("A", f.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(1, proxy.fetches.get());
+		}
+		finally {
+			proxy.gate.countDown();
+			pool.shutdownNow();
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testGetItemsBatches() throws Exception {
+
+		TestProxy proxy = new TestProxy(new MemoryCachingProxy.Config());
+		proxy.batching = true;
+
+		try {
+			proxy.getItem("b");
+			waitForCache(proxy, "b");
+
+			// "missing" is not found; b comes from the cache
+			Map<String,String> items = proxy.getItems(Arrays.asList("c", "b", "missing", "d", "c"));
+			Assert.assertEquals(Arrays.asList("c", "b", "d"), new ArrayList<String>(items.keySet()));
+			Assert.assertEquals("D", items.get("d"));
+
+			Assert.assertEquals(1, proxy.batches.get());
+			Assert.assertEquals(1, proxy.fetches.get()); // just b
+			Assert.assertEquals(1, proxy.getFetchStats().BatchFetches);
+
+			// and now "missing" is poison
+			waitForCache(proxy, "c");
+			Assert.assertNull(proxy.getItem("missing"));
+			Assert.assertEquals(1, proxy.batches.get());
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testGetItemsWithoutBatching() throws Exception {
+
+		TestProxy proxy = new TestProxy(new MemoryCachingProxy.Config());
+
+		try {
+			Map<String,String> items = proxy.getItems(Arrays.asList("x", "y"));
+			Assert.assertEquals(2, items.size());
+			Assert.assertEquals(2, proxy.fetches.get());
+			Assert.assertEquals(0, proxy.batches.get());
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testErrorsDontStrandWaiters() throws Exception {
+
+		TestProxy proxy = new TestProxy(new MemoryCachingProxy.Config());
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+
+		try {
+			// single fetch
+			proxy.errorsLeft.set(1);
+			assertThrowsError(() -> proxy.getItem("a"));
+			Assert.assertEquals("A", pool.submit(() -> proxy.getItem("a")).get(10, TimeUnit.SECONDS));
+
+			// getItems without batching; the second id still gets fetched
+			proxy.errorsLeft.set(1);
+			assertThrowsError(() -> proxy.getItems(Arrays.asList("b", "c")));
+			Assert.assertEquals(2, pool.submit(() -> proxy.getItems(Arrays.asList("b", "c")))
+								.get(10, TimeUnit.SECONDS).size());
+
+			// batched
+			proxy.batching = true;
+			proxy.errorsLeft.set(1);
+			assertThrowsError(() -> proxy.getItems(Arrays.asList("d", "e")));
+			Assert.assertEquals(2, pool.submit(() -> proxy.getItems(Arrays.asList("d", "e")))
+								.get(10, TimeUnit.SECONDS).size());
+		}
+		finally {
+			pool.shutdownNow();
+			proxy.close();
+		}
+	}
+
+	private interface Fetcher { public Object fetch() throws Exception; }
+
+	private static void assertThrowsError(Fetcher fetcher) throws Exception {
+		try {
+			fetcher.fetch();
+			Assert.fail("expected an Error");
+		}
+		catch (AssertionError e) {
+			Assert.assertEquals("boom", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+
+		MemoryCachingProxy.Config cfg = new MemoryCachingProxy.Config();
+		cfg.SoftCacheExpirationSeconds = 2;
+		cfg.RefreshAheadSeconds = 2; // i.e., refresh anything hot
+		cfg.RefreshAheadMinHits = 2;
+		cfg.RefreshAheadIntervalSeconds = 1;
+
+		TestProxy proxy = new TestProxy(cfg);
+
+		try {
+			proxy.getItem("hot");
+			proxy.getItem("cold");
+			waitForCache(proxy, "hot");
+			waitForCache(proxy, "cold");
+
+			proxy.getItem("hot");
+			proxy.getItem("hot");
+			proxy.getItem("cold");
+
+			long giveUp = System.currentTimeMillis() + 10000;
+			while (proxy.fetches.get() < 3 && System.currentTimeMillis() < giveUp) Thread.sleep(50);
+
+			Assert.assertEquals(3, proxy.fetches.get());
+			Assert.assertTrue(proxy.getFetchStats().Refreshes >= 1);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	private static void waitForCache(TestProxy proxy, String id) throws Exception {
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (proxy.cacheTime(id, null) == null && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(10);
+		}
+	}
+
+	public static class TestProxy extends MemoryCachingProxy<String,String>
+	{
+		public TestProxy(MemoryCachingProxy.Config cfg) throws Exception { super(cfg); }
+
+		public String liveFetch(String id) throws Exception {
+			fetches.incrementAndGet();
+			if (errorsLeft.getAndDecrement() > 0) throw new AssertionError("boom");
+			if (gate != null) gate.await(10, TimeUnit.SECONDS);
+			return(id.equals("missing") ? null : id.toUpperCase());
+		}
+
+		@Override
+		public Map<String,String> liveFetchMany(Collection<String> ids) throws Exception {
+			if (!batching) return(null);
+			batches.incrementAndGet();
+			if (errorsLeft.getAndDecrement() > 0) throw new AssertionError("boom");
+			Map<String,String> found = new HashMap<String,String>();
+			for (String id : ids) if (!id.equals("missing")) found.put(id, id.toUpperCase());
+			return(found);
+		}
+
+		public CountDownLatch gate;
+		public boolean batching = false;
+		public AtomicInteger fetches = new AtomicInteger();
+		public AtomicInteger batches = new AtomicInteger();
+		public AtomicInteger errorsLeft = new AtomicInteger();
+	}
+}
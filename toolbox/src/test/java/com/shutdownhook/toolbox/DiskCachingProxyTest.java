@@ -0,0 +1,185 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskCachingProxyTest
+{
+	private File file;
+
+	@Before
+	public void before() throws Exception {
+		file = File.createTempFile("diskcache", ".log");
+		file.delete();
+	}
+
+	@After
+	public void after() throws Exception {
+		file.delete();
+		new File(file.getAbsolutePath() + ".compact").delete();
+	}
+
+	@Test
+	public void testWarmStart() throws Exception {
+
+		Instant cacheTime;
+
+		TestProxy proxy = open(null);
+		try {
+			proxy.cacheStore("a", thing("a", 1));
+			proxy.cacheStore("b", thing("b", 2));
+			proxy.cacheStore("a", thing("a", 3));
+			cacheTime = proxy.cacheTime("a", null);
+		}
+		finally {
+			proxy.close();
+		}
+
+		proxy = open(null);
+		try {
+			Assert.assertEquals(3, proxy.cacheFetch("a").Count);
+			Assert.assertEquals(2, proxy.cacheFetch("b").Count);
+			Assert.assertNull(proxy.cacheFetch("c"));
+
+			// keeps the original time, now from memory
+			Assert.assertEquals(cacheTime.toEpochMilli(), proxy.cacheTime("a", null).toEpochMilli());
+			Assert.assertEquals("A", proxy.getItem("a").Name);
+
+			DiskCachingProxy.DiskStats stats = proxy.getDiskStats();
+			Assert.assertEquals(2, stats.Hits);
+			Assert.assertEquals(1, stats.Misses);
+			Assert.assertEquals(2, stats.Items);
+			Assert.assertTrue(stats.DeadBytes > 0);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testTornTail() throws Exception {
+
+		TestProxy proxy = open(null);
+		try { proxy.cacheStore("a", thing("a", 1)); }
+		finally { proxy.close(); }
+
+		long goodLength = file.length();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(goodLength);
+			raf.write(new byte[] { 0x43, 0x50, 0x52, 0x58, 0, 0, 1 });
+		}
+
+		proxy = open(null);
+		try {
+			Assert.assertEquals(1, proxy.cacheFetch("a").Count);
+			Assert.assertEquals(1, proxy.getDiskStats().CorruptRecords);
+			Assert.assertEquals(goodLength, file.length());
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testBadChecksum() throws Exception {
+
+		TestProxy proxy = open(null);
+		try { proxy.cacheStore("a", thing("a", 1)); }
+		finally { proxy.close(); }
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(file.length() - 3);
+			raf.write('z');
+		}
+
+		proxy = open(null);
+		try {
+			Assert.assertNull(proxy.cacheFetch("a"));
+			Assert.assertEquals(1, proxy.getDiskStats().CorruptRecords);
+			Assert.assertEquals(0, proxy.getDiskStats().Items);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+
+		DiskCachingProxy.Config cfg = new DiskCachingProxy.Config();
+		cfg.CompactMinDeadBytes = 1000L;
+
+		TestProxy proxy = open(cfg);
+		try {
+			for (int i = 0; i < 200; ++i) proxy.cacheStore("k" + (i % 5), thing("x", i));
+
+			DiskCachingProxy.DiskStats stats = proxy.getDiskStats();
+			Assert.assertTrue(stats.Compactions > 0);
+			Assert.assertEquals(5, stats.Items);
+			Assert.assertTrue(stats.FileBytes < 2000L);
+		}
+		finally {
+			proxy.close();
+		}
+
+		proxy = open(cfg);
+		try {
+			for (int i = 0; i < 5; ++i) Assert.assertEquals(195 + i, proxy.cacheFetch("k" + i).Count);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testMemoryOnly() throws Exception {
+
+		TestProxy proxy = new TestProxy(new DiskCachingProxy.Config());
+		try {
+			proxy.cacheStore("a", thing("a", 1));
+			Assert.assertEquals(1, proxy.cacheFetch("a").Count);
+			Assert.assertNull(proxy.cacheFetch("b"));
+			Assert.assertEquals(0, proxy.getDiskStats().Misses);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	private TestProxy open(DiskCachingProxy.Config cfg) throws Exception {
+		if (cfg == null) cfg = new DiskCachingProxy.Config();
+		cfg.DiskCachePath = file.getAbsolutePath();
+		return(new TestProxy(cfg));
+	}
+
+	private static Thing thing(String name, int count) {
+		Thing thing = new Thing();
+		thing.Name = name.toUpperCase();
+		thing.Count = count;
+		return(thing);
+	}
+
+	public static class Thing
+	{
+		public String Name;
+		public int Count;
+	}
+
+	public static class TestProxy extends DiskCachingProxy<String,Thing>
+	{
+		public TestProxy(DiskCachingProxy.Config cfg) throws Exception { super(cfg, Thing.class); }
+		public Thing liveFetch(String id) { return(thing(id, 0)); }
+	}
+}
@@ -5,6 +5,10 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Assert;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -71,6 +75,19 @@ public class JsonRpc2Test
 		Assert.assertNotNull(error.get(MSG));
 	}
 	
+	@Test
+	public void trailingData() throws Exception {
+
+		String req = buildRequest(ECHO, "t1", "['abc']") + " garbage";
+		JsonObject resp = parser.parse(rpc.executeJson(req)).getAsJsonObject();
+		Assert.assertNull(resp.get(RES));
+		Assert.assertEquals(-32700, resp.getAsJsonObject(ERR).get(CODE).getAsInt());
+
+		// trailing whitespace is fine
+		resp = parser.parse(rpc.executeJson(buildRequest(ECHO, "t1", "['abc']") + " \n")).getAsJsonObject();
+		assertValidResponse(resp, "t1");
+	}
+	
 	@Test
 	public void unknownMethod() throws Exception {
 		String req = buildRequest("yodawg", "test", "{}");
@@ -201,10 +218,92 @@ public class JsonRpc2Test
 		
 	}
 
+	@Test
+	public void batchBoundedParallelism() throws Exception {
+
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		
+		JsonRpc2 limited = new JsonRpc2(Exec.CACHED_THREADPOOL, 3);
+
+		try {
+			limited.registerMethod("slow", new String[] { "n" }, new Method() {
+				public JsonObject execute(JsonObject params, JsonObject req) throws Exception {
+					maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+					Thread.sleep(10);
+					active.decrementAndGet();
+					JsonObject result = new JsonObject();
+					result.add("n", params.get("n"));
+					return(result);
+				}
+			});
+
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 0; i < 40; ++i) {
+				if (i > 0) sb.append(",");
+				sb.append(buildRequest("slow", i % 10 == 0 ? null : "s" + i, "[" + i + "]"));
+			}
+			sb.append("]");
+
+			StringWriter writer = new StringWriter();
+			limited.executeJson(new StringReader(sb.toString()), writer);
+
+			JsonArray responses = parser.parse(writer.toString()).getAsJsonArray();
+			Assert.assertEquals(36, responses.size()); // four notifications
+			Assert.assertEquals(17, findById(responses, "s17").getAsJsonObject(RES).get("n").getAsInt());
+			Assert.assertTrue(maxActive.get() <= 3);
+
+			WebMetrics.RouteSnapshot snap = limited.getMetrics().snapshot().get(0);
+			Assert.assertEquals("slow", snap.Route);
+			Assert.assertEquals(40, snap.Requests);
+			Assert.assertEquals(40, snap.Status2xx);
+		}
+		finally {
+			limited.close();
+		}
+	}
+
+	@Test
+	public void batchInvalidElements() throws Exception {
+
+		String req = "[" + buildRequest(ECHO, "t1", "['abc']") + ", 5, { 'id': 'nomethod' }]";
+		JsonArray responses = parser.parse(rpc.executeJson(req)).getAsJsonArray();
+
+		Assert.assertEquals(3, responses.size());
+		assertValidResponse(findById(responses, "t1"), "t1");
+		Assert.assertEquals(-32600, findById(responses, "nomethod").getAsJsonObject(ERR).get(CODE).getAsInt());
+	}
+
+	@Test
+	public void batchTruncated() throws Exception {
+
+		String req = "[" + buildRequest(ECHO, "t1", "['abc']") + "," + buildRequest(ECHO, "t2", "['d'");
+		JsonArray responses = parser.parse(rpc.executeJson(req)).getAsJsonArray();
+
+		Assert.assertEquals(2, responses.size());
+		assertValidResponse(findById(responses, "t1"), "t1");
+		
+		JsonObject last = responses.get(1).getAsJsonObject();
+		Assert.assertEquals(-32700, last.getAsJsonObject(ERR).get(CODE).getAsInt());
+	}
+
+	@Test
+	public void batchTrailingData() throws Exception {
+
+		String req = "[" + buildRequest(ECHO, "t1", "['abc']") + "] garbage";
+		JsonArray responses = parser.parse(rpc.executeJson(req)).getAsJsonArray();
+
+		Assert.assertEquals(2, responses.size());
+		assertValidResponse(findById(responses, "t1"), "t1");
+		
+		JsonObject last = responses.get(1).getAsJsonObject();
+		Assert.assertEquals(-32700, last.getAsJsonObject(ERR).get(CODE).getAsInt());
+	}
+
 	private JsonObject findById(JsonArray responses, String id) {
 		for (int i = 0; i < responses.size(); ++i) {
 			JsonObject resp = responses.get(i).getAsJsonObject();
-			if (id.equals(resp.get("id").getAsString())) return(resp);
+			if (!resp.get("id").isJsonNull() && id.equals(resp.get("id").getAsString())) return(resp);
 		}
 		return(null);
 	}
@@ -5,7 +5,18 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Ignore;
@@ -50,9 +61,254 @@ public class LineSorterTest
 		}
 	}
 
+	@Test
+	public void testXsvLineParserWhitespace() throws Exception {
+
+		LineSorter.ParsedLine parsed = new LineSorter.ParsedLine();
+		String line = "  a b \t\"c\"\"d\" x\t e";
+
+		new LineSorter.XsvLineParser(0, 2).parse(line, parsed);
+		Assert.assertEquals("a b", parsed.Key);
+		Assert.assertEquals("e", parsed.Output);
+
+		new LineSorter.XsvLineParser(1, 1).parse(line, parsed);
+		Assert.assertEquals("c\"d", parsed.Key);
+		Assert.assertEquals("c\"d", parsed.Output);
+	}
+
+	// +------+
+	// | Sort |
+	// +------+
+
+	@Test
+	public void testSortSmallChunks() throws Exception {
+		// 10 chunks, fan-in 3 forces an intermediate merge round
+		assertSorted(randomLines(1000), 100, 3, true, false);
+	}
+
+	@Test
+	public void testSortSingleChunk() throws Exception {
+		assertSorted(randomLines(1000), 5000, 64, true, false);
+	}
+
+	@Test
+	public void testSortLargeChunks() throws Exception {
+		// big enough for the index sort to fork
+		assertSorted(randomLines(30000), 20000, 64, true, true);
+	}
+
+	@Test
+	public void testSortNoExecutorReverse() throws Exception {
+		assertSorted(randomLines(777), 50, 4, false, true);
+	}
+
+	@Test
+	public void testSortMemoryBudget() throws Exception {
+		// ~100 bytes/line against a 5k budget means lots of small chunks
+		LineSorter.Params params = new LineSorter.Params();
+		params.ChunkBudgetBytes = 5000;
+		params.MergeFanIn = 4;
+		params.Executor = Executors.newFixedThreadPool(4);
+		assertSorted(randomLines(1000), params);
+	}
+
+	@Test
+	public void testSortCompressedSpill() throws Exception {
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 64;
+		params.MergeFanIn = 3;
+		params.CompressSpill = true;
+		assertSorted(randomLines(1000), params);
+	}
+
+	@Test
+	public void testSortTextSpill() throws Exception {
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 64;
+		params.MergeFanIn = 3;
+		params.BinarySpill = false;
+		assertSorted(randomLines(1000), params);
+	}
+
+	@Test
+	public void testSpillSizeAscii() throws Exception {
+		List<String> lines = randomLines(1000);
+		
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 64;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] input = String.join("\n", lines).getBytes("UTF-8");
+		LineSorter sorter = new LineSorter(params);
+		sorter.sortStream(new ByteArrayInputStream(input), out);
+
+		// one merge pass, so each line is spilled once: a length prefix
+		// plus one byte per ASCII char
+		long expected = 0;
+		for (String line : lines) expected += 4 + line.length();
+		Assert.assertEquals(expected, sorter.getSpillBytes());
+	}
+
+	@Test
+	public void testSortNonAsciiSpill() throws Exception {
+		// supplementary chars sort below U+E000..U+FFFF as Strings, which
+		// isn't code point (UTF-8 byte) order. Input and output go through
+		// the platform charset, so this needs one that round-trips them.
+		Assume.assumeTrue(Charset.defaultCharset().equals(StandardCharsets.UTF_8));
+		
+		List<String> lines = new ArrayList<String>();
+		String[] tails = { "\uD83D\uDE00", "\uFFFD", "\uE000", "\u00E9", "z" };
+		for (int i = 0; i < 300; ++i) lines.add(tails[i % tails.length] + Integer.toString(i, 36));
+
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 32;
+		params.MergeFanIn = 3;
+		assertSorted(lines, params);
+	}
+
+	@Test
+	public void testSortObjectKeys() throws Exception {
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 64;
+		params.MergeFanIn = 3;
+		params.PrimitiveKeys = false;
+		assertSorted(randomLines(1000), params);
+	}
+
+	@Test
+	public void testSortDoubleKeys() throws Exception {
+
+		Random rand = new Random(42);
+		List<Double> vals = new ArrayList<Double>();
+		StringBuilder sb = new StringBuilder();
+		
+		for (int i = 0; i < 500; ++i) {
+			double d = (rand.nextDouble() - 0.5) * 1000.0;
+			vals.add(d);
+			sb.append("x").append(i).append("\t").append(d).append("\n");
+		}
+		
+		Collections.sort(vals, Collections.reverseOrder());
+
+		for (boolean primitive : new boolean[] { true, false }) {
+			
+			LineSorter.Params params = new LineSorter.Params();
+			params.LinesPerChunk = 40;
+			params.MergeFanIn = 4;
+			params.ReverseSort = true;
+			params.PrimitiveKeys = primitive;
+			params.Parser = new LineSorter.XsvLineParser(1, 1);
+			params.Factory = new LineSorter.DoubleSortItemFactory();
+
+			String[] lines = sort(sb.toString(), params);
+			Assert.assertEquals(vals.size(), lines.length);
+			for (int i = 0; i < lines.length; ++i) {
+				Assert.assertEquals(vals.get(i), Double.valueOf(lines[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testSortStringKeys() throws Exception {
+
+		List<String> keys = randomLines(600);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < keys.size(); ++i) {
+			sb.append(i).append(",").append(keys.get(i)).append("\n");
+		}
+
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = 50;
+		params.MergeFanIn = 5;
+		params.Parser = new LineSorter.XsvLineParser(1, 1, ',', null);
+		params.Factory = new LineSorter.StringSortItemFactory();
+		params.Executor = Executors.newFixedThreadPool(4);
+
+		try {
+			List<String> expected = new ArrayList<String>(keys);
+			Collections.sort(expected);
+			Assert.assertArrayEquals(expected.toArray(new String[0]), sort(sb.toString(), params));
+		}
+		finally {
+			params.Executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSortStableKeyed() throws Exception {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("key\tval\n");
+		for (int i = 0; i < 500; ++i) sb.append(i % 7).append("\t").append(i).append("\n");
+
+		LineSorter.Params params = new LineSorter.Params();
+		params.HasHeaderRow = true;
+		params.LinesPerChunk = 37;
+		params.MergeFanIn = 2;
+		params.Parser = new LineSorter.XsvLineParser(0, 1);
+		params.Factory = new LineSorter.LongSortItemFactory();
+		params.Executor = Executors.newFixedThreadPool(4);
+
+		try {
+			String[] lines = sort(sb.toString(), params);
+			Assert.assertEquals(501, lines.length);
+			Assert.assertEquals("val", lines[0]);
+
+			// equal keys come out in input order
+			int ich = 1;
+			for (int key = 0; key < 7; ++key) {
+				for (int i = key; i < 500; i += 7) {
+					Assert.assertEquals(Integer.toString(i), lines[ich++]);
+				}
+			}
+		}
+		finally {
+			params.Executor.shutdownNow();
+		}
+	}
+
 	// +---------+
 	// | Helpers |
 	// +---------+
 
-	
+	private static List<String> randomLines(int count) {
+		Random rand = new Random(count);
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < count; ++i) lines.add(Long.toString(rand.nextLong(), 36));
+		return(lines);
+	}
+
+	private static void assertSorted(List<String> lines, int linesPerChunk, int fanIn,
+									 boolean useExecutor, boolean reverse) throws Exception {
+
+		LineSorter.Params params = new LineSorter.Params();
+		params.LinesPerChunk = linesPerChunk;
+		params.MergeFanIn = fanIn;
+		params.ReverseSort = reverse;
+		if (useExecutor) params.Executor = Executors.newFixedThreadPool(4);
+
+		assertSorted(lines, params);
+	}
+
+	private static void assertSorted(List<String> lines, LineSorter.Params params) throws Exception {
+
+		try {
+			String[] sorted = sort(String.join("\n", lines), params);
+
+			List<String> expected = new ArrayList<String>(lines);
+			if (params.ReverseSort) Collections.sort(expected, Collections.reverseOrder());
+			else Collections.sort(expected);
+			
+			Assert.assertArrayEquals(expected.toArray(new String[0]), sorted);
+		}
+		finally {
+			if (params.Executor != null) params.Executor.shutdownNow();
+		}
+	}
+
+	private static String[] sort(String input, LineSorter.Params params) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new LineSorter(params).sortStream(new ByteArrayInputStream(input.getBytes("UTF-8")), out);
+		return(out.toString("UTF-8").split("\r?\n"));
+	}
 }
@@ -0,0 +1,135 @@
+/*
+** Read about this code at http://shutdownhook.com
+** MIT license details at https://github.com/seanno/shutdownhook/blob/main/LICENSE
+*/
+
+package com.shutdownhook.toolbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoryCachingProxyTest
+{
+	@Test
+	public void testHitsAndMisses() throws Exception {
+
+		TestProxy proxy = new TestProxy(new MemoryCachingProxy.Config());
+
+		try {
+			proxy.cacheStore("a", "A");
+			Assert.assertEquals("A", proxy.cacheFetch("a"));
+			Assert.assertNull(proxy.cacheFetch("b"));
+			Assert.assertNotNull(proxy.cacheTime("a", "A"));
+
+			MemoryCachingProxy.Stats stats = proxy.getStats();
+			Assert.assertEquals(1, stats.Hits);
+			Assert.assertEquals(1, stats.Misses);
+			Assert.assertEquals(1, stats.Items);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testScanResistant() throws Exception {
+
+		MemoryCachingProxy.Config cfg = new MemoryCachingProxy.Config();
+		cfg.MaxCacheItems = 10;
+		TestProxy proxy = new TestProxy(cfg);
+
+		try {
+			// a couple of popular items get hit twice...
+			for (String key : new String[] { "hot1", "hot2" }) {
+				proxy.cacheStore(key, key);
+				proxy.cacheFetch(key);
+			}
+
+			// ... then a scan of one-offs comes through
+			for (int i = 0; i < 50; ++i) proxy.cacheStore("scan" + i, "x");
+
+			Assert.assertEquals("hot1", proxy.cacheFetch("hot1"));
+			Assert.assertEquals("hot2", proxy.cacheFetch("hot2"));
+			Assert.assertNull(proxy.cacheFetch("scan0"));
+			Assert.assertEquals("x", proxy.cacheFetch("scan49"));
+
+			MemoryCachingProxy.Stats stats = proxy.getStats();
+			Assert.assertEquals(10, stats.Items);
+			Assert.assertEquals(42, stats.Evictions);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testByteLimit() throws Exception {
+
+		MemoryCachingProxy.Config cfg = new MemoryCachingProxy.Config();
+		cfg.MaxCacheBytes = 10000L;
+		cfg.CacheStripes = 1;
+		TestProxy proxy = new TestProxy(cfg);
+
+		try {
+			String big = new String(new char[1000]);
+			for (int i = 0; i < 100; ++i) proxy.cacheStore("k" + i, big);
+
+			MemoryCachingProxy.Stats stats = proxy.getStats();
+			Assert.assertTrue(stats.Bytes <= 10000L);
+			Assert.assertEquals(4, stats.Items); // ~2k each
+			Assert.assertEquals(100, stats.Items + stats.Evictions);
+		}
+		finally {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+
+		MemoryCachingProxy.Config cfg = new MemoryCachingProxy.Config();
+		cfg.MaxCacheItems = 500;
+		TestProxy proxy = new TestProxy(cfg);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+			for (int t = 0; t < 8; ++t) {
+				final int seed = t;
+				futures.add(pool.submit(() -> {
+					for (int i = 0; i < 5000; ++i) {
+						String key = Integer.toString((i * 31 + seed) % 2000);
+						String val = proxy.cacheFetch(key);
+						if (val == null) proxy.cacheStore(key, key);
+						else if (!val.equals(key)) return(false);
+					}
+					return(true);
+				}));
+			}
+
+			for (Future<Boolean> f : futures) Assert.assertTrue(f.get(30, TimeUnit.SECONDS));
+
+			MemoryCachingProxy.Stats stats = proxy.getStats();
+			Assert.assertTrue(stats.Items <= 500);
+			Assert.assertEquals(40000, stats.Hits + stats.Misses);
+		}
+		finally {
+			pool.shutdownNow();
+			proxy.close();
+		}
+	}
+
+	public static class TestProxy extends MemoryCachingProxy<String,String>
+	{
+		public TestProxy(MemoryCachingProxy.Config cfg) throws Exception { super(cfg); }
+		public String liveFetch(String id) { return(id.toUpperCase()); }
+	}
+}
@@ -6,9 +6,17 @@
 package com.shutdownhook.toolbox;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -35,6 +43,7 @@ public class SqlTest
 	
 	@AfterClass
 	public static void afterClass() throws Exception {
+		sql.close();
 		sql = null;
 		(new File(SQLITE_TEMP_FILE)).delete();
 	}
@@ -78,4 +87,230 @@ public class SqlTest
 		
 		sql.execute(dropSql);
 	}
+
+	@Test
+	public void testPoolReuse() throws Exception {
+
+		SqlStore.Config cfg = new SqlStore.Config(SQLITE_CXN_STRING);
+		cfg.MaxPoolSize = 2;
+		
+		SqlStore pooled = new SqlStore(cfg);
+
+		try {
+			for (int i = 0; i < 10; ++i) {
+				pooled.query("select 1", new SqlStore.QueryHandler() {
+					public void row(ResultSet rs, int irow) throws Exception {
+						Assert.assertEquals(1, rs.getInt(1));
+					}
+				});
+			}
+
+			SqlPool.Stats stats = pooled.getPoolStats();
+			Assert.assertEquals(10, stats.Borrows);
+			Assert.assertEquals(1, stats.Opens);
+			Assert.assertEquals(0, stats.Active);
+			Assert.assertEquals(1, stats.Idle);
+		}
+		finally {
+			pooled.close();
+		}
+	}
+
+	@Test
+	public void testPoolDisabled() throws Exception {
+
+		SqlStore.Config cfg = new SqlStore.Config(SQLITE_CXN_STRING);
+		cfg.MaxPoolSize = 0;
+		
+		SqlStore unpooled = new SqlStore(cfg);
+		Assert.assertNull(unpooled.getPoolStats());
+		Assert.assertTrue(unpooled.execute("select 1"));
+	}
+
+	@Test
+	public void testBatchUpdate() throws Exception {
+
+		sql.execute("create table batchy ( foo int primary key, bar varchar(32) )");
+
+		List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 1234; ++i) items.add(i);
+
+		int count = sql.batchUpdate("insert into batchy (foo, bar) values (?,?)", items,
+			(stmt, item) -> {
+				stmt.setInt(1, item);
+				stmt.setString(2, "bar" + Integer.toString(item));
+			}, 100);
+
+		Assert.assertEquals(items.size(), count);
+
+		SqlStore.Return<Integer> rows = new SqlStore.Return<Integer>();
+		sql.query("select count(*) from batchy", new SqlStore.QueryHandler() {
+			public void row(ResultSet rs, int irow) throws Exception {
+				rows.Value = rs.getInt(1);
+			}
+		});
+
+		Assert.assertEquals(items.size(), rows.Value.intValue());
+
+		// duplicate key partway through should roll back everything
+		List<Integer> dups = new ArrayList<Integer>();
+		dups.add(5000); dups.add(5001); dups.add(1);
+
+		try {
+			sql.batchUpdate("insert into batchy (foo, bar) values (?,?)", dups,
+				(stmt, item) -> { stmt.setInt(1, item); stmt.setString(2, "dup"); }, 2);
+			Assert.fail("expected constraint failure");
+		}
+		catch (Exception e) {
+			// expected
+		}
+
+		sql.query("select count(*) from batchy", new SqlStore.QueryHandler() {
+			public void row(ResultSet rs, int irow) throws Exception {
+				rows.Value = rs.getInt(1);
+			}
+		});
+
+		Assert.assertEquals(items.size(), rows.Value.intValue());
+		
+		sql.execute("drop table batchy");
+	}
+
+	@Test
+	public void testStatementCache() throws Exception {
+
+		SqlStore.Config cfg = new SqlStore.Config(SQLITE_CXN_STRING);
+		cfg.MaxPoolSize = 1;
+		cfg.StatementCacheSize = 2;
+		
+		SqlStore pooled = new SqlStore(cfg);
+
+		try {
+			pooled.execute("create table cachey ( foo int primary key )");
+			long missesStart = pooled.getPoolStats().StatementMisses;
+			
+			for (int i = 0; i < 5; ++i) {
+				final int val = i;
+				pooled.update("insert into cachey (foo) values (?)", new SqlStore.UpdateHandler() {
+					public void prepare(PreparedStatement stmt, int iter) throws Exception {
+						stmt.setInt(1, val);
+					}
+				});
+			}
+
+			SqlPool.Stats stats = pooled.getPoolStats();
+			Assert.assertEquals(missesStart + 1, stats.StatementMisses);
+			Assert.assertEquals(4, stats.StatementHits);
+
+			// push it out of the LRU and make sure it comes back clean
+			pooled.update("update cachey set foo = foo + 100 where foo = 0");
+			pooled.update("update cachey set foo = foo + 100 where foo = 1");
+			pooled.update("insert into cachey (foo) values (?)", new SqlStore.UpdateHandler() {
+				public void prepare(PreparedStatement stmt, int iter) throws Exception {
+					stmt.setInt(1, 99);
+				}
+				public void confirm(int rowsAffected, int iter) {
+					Assert.assertEquals(1, rowsAffected);
+				}
+			});
+			
+			Assert.assertEquals(missesStart + 4, pooled.getPoolStats().StatementMisses);
+			pooled.execute("drop table cachey");
+		}
+		finally {
+			pooled.close();
+		}
+	}
+
+	@Test
+	public void testStatementSettingsReset() throws Exception {
+
+		SqlStore.Config cfg = new SqlStore.Config(SQLITE_CXN_STRING);
+		cfg.MaxPoolSize = 1;
+		cfg.StatementCacheSize = 2;
+
+		SqlPool pool = new SqlPool(cfg, () -> DriverManager.getConnection(SQLITE_CXN_STRING));
+		String sql = "select 1 union all select 2";
+
+		try {
+			Connection cxn = pool.borrow();
+			
+			PreparedStatement stmt = cxn.prepareStatement(sql);
+			int timeout = stmt.getQueryTimeout();
+			int maxRows = stmt.getMaxRows();
+			stmt.setQueryTimeout(timeout + 5);
+			stmt.setMaxRows(1);
+			stmt.close();
+
+			// same cached statement, back to the driver's defaults
+			stmt = cxn.prepareStatement(sql);
+			Assert.assertEquals(1, pool.getStats().StatementHits);
+			Assert.assertEquals(timeout, stmt.getQueryTimeout());
+			Assert.assertEquals(maxRows, stmt.getMaxRows());
+
+			// no getter to restore this one from, so it isn't reused
+			stmt.setEscapeProcessing(false);
+			stmt.close();
+
+			long misses = pool.getStats().StatementMisses;
+			cxn.prepareStatement(sql).close();
+			Assert.assertEquals(misses + 1, pool.getStats().StatementMisses);
+			
+			cxn.close();
+		}
+		finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testCancelAfterClose() throws Exception {
+
+		SqlStore.Config cfg = new SqlStore.Config(SQLITE_CXN_STRING);
+		cfg.MaxPoolSize = 1;
+		cfg.StatementCacheSize = 2;
+
+		AtomicInteger cancels = new AtomicInteger();
+		SqlPool pool = new SqlPool(cfg, () -> countCancels(DriverManager.getConnection(SQLITE_CXN_STRING), cancels));
+
+		try {
+			Connection cxn = pool.borrow();
+			PreparedStatement stmt = cxn.prepareStatement("select 1");
+			stmt.cancel();
+			Assert.assertEquals(1, cancels.get());
+			stmt.close();
+
+			// the cached statement now belongs to the next caller; a late
+			// cancel through the old proxy must not reach it
+			PreparedStatement next = cxn.prepareStatement("select 1");
+			stmt.cancel();
+			Assert.assertEquals(1, cancels.get());
+			Assert.assertEquals(1, pool.getStats().StatementHits);
+
+			next.close();
+			cxn.close();
+		}
+		finally {
+			pool.close();
+		}
+	}
+
+	private static Connection countCancels(Connection cxn, AtomicInteger cancels) {
+		return((Connection) Proxy.newProxyInstance(
+			Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (p, m, a) -> {
+				Object ret = invokeUnwrapped(cxn, m, a);
+				if (!m.getName().equals("prepareStatement")) return(ret);
+				PreparedStatement stmt = (PreparedStatement) ret;
+				return(Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, (p2, m2, a2) -> {
+						if (m2.getName().equals("cancel")) cancels.incrementAndGet();
+						return(invokeUnwrapped(stmt, m2, a2));
+					}));
+			}));
+	}
+
+	private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+		try { return(method.invoke(target, args)); }
+		catch (InvocationTargetException e) { throw e.getCause(); }
+	}
 }
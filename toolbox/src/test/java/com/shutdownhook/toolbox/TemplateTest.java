@@ -5,6 +5,8 @@
 
 package com.shutdownhook.toolbox;
 
+import java.io.File;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -156,6 +158,83 @@ public class TemplateTest
 		testOne("{{:if false}}{{:rpt 3}}x{{:end}}{{:end}}", "", tokens, null);
 	}
 
+	@Test
+	public void testEachLeavesMapAlone() throws Exception {
+		HashMap<String,String> tokens = new HashMap<String,String>();
+		tokens.put("list", "a,b,c");
+
+		testOne("{{:each list ,}}[{{list}}]{{:end}}{{list}}", "[a][b][c]a,b,c", tokens, null);
+		Assert.assertEquals("a,b,c", tokens.get("list"));
+		Assert.assertEquals(1, tokens.size());
+	}
+
+	@Test
+	public void testProcessorUpdatesMap() throws Exception {
+		
+		final HashMap<String,String> tokens = new HashMap<String,String>();
+		
+		String input = "{{:rpt many}}{{N}}.{{:end}}";
+		testOne(input, "1.2.3.", tokens, new Template.TemplateProcessor() {
+			public boolean repeat(String[] args, int counter) {
+				if (counter == 3) return(false);
+				tokens.put("N", Integer.toString(counter + 1));
+				return(true);
+			}
+		});
+	}
+
+	@Test
+	public void testValues() throws Exception {
+
+		Template t = new Template("{{a}}-{{b}}-{{:if show}}{{c}}{{:end}}-{{REV abc}}");
+		Assert.assertEquals(-1, t.slot("nope"));
+
+		int slotA = t.slot("a");
+		Template.Values values = t.newValues();
+		ReverseProcessor processor = new ReverseProcessor();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3; ++i) {
+			values.set(slotA, Integer.toString(i)).set("b", "<b>").set("show", "1").set("c", "C");
+			t.render(sb, values, processor);
+			sb.append("|");
+		}
+
+		Assert.assertEquals("0-&lt;b&gt;-C-cba|1-&lt;b&gt;-C-cba|2-&lt;b&gt;-C-cba|", sb.toString());
+
+		values.clear().set("a", "x");
+		Assert.assertEquals("x-b--cba", t.render(values, new Template.TemplateProcessor() {
+			public String token(String token, String args) {
+				return(args == null ? token : reverse(args));
+			}
+		}));
+	}
+
+	@Test
+	public void testFromPath() throws Exception {
+
+		File file = File.createTempFile("tmpl", ".tmpl");
+		
+		try {
+			Easy.stringToFile(file.getAbsolutePath(), "one {{x}}");
+			Template t1 = Template.fromPath(file.getAbsolutePath());
+			Assert.assertSame(t1, Template.fromPath(file.getAbsolutePath()));
+
+			Easy.stringToFile(file.getAbsolutePath(), "two {{x}}");
+			file.setLastModified(file.lastModified() + 10000);
+			
+			Template t2 = Template.fromPath(file.getAbsolutePath());
+			Assert.assertNotSame(t1, t2);
+
+			HashMap<String,String> tokens = new HashMap<String,String>();
+			tokens.put("x", "y");
+			Assert.assertEquals("two y", t2.render(tokens));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
 	// +---------+
 	// | Helpers |
 	// +---------+
@@ -222,5 +301,10 @@ public class TemplateTest
 		String result = t.render(tokens, processor);
 		System.out.println(result);
 		Assert.assertEquals(expected, result);
+
+		// same again streamed to a Writer
+		StringWriter writer = new StringWriter();
+		t.render(writer, tokens, processor);
+		Assert.assertEquals(expected, writer.toString());
 	}
 }
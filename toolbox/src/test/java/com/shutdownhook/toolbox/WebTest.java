@@ -6,11 +6,21 @@
 package com.shutdownhook.toolbox;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -26,6 +36,7 @@ public class WebTest
 
 	private static WebRequests requests;
 	private static WebRequests requestsDefaultSSL;
+	private static WebRequests requestsClient;
 	
 	@BeforeClass
 	public static void beforeClass() throws Exception {
@@ -47,12 +58,19 @@ public class WebTest
 		WebRequests.Config clientConfigDefaultSSL = new WebRequests.Config();
 		clientConfigDefaultSSL.TimeoutMillis = 10000;
 		requestsDefaultSSL = new WebRequests(clientConfigDefaultSSL);
+
+		WebRequests.Config clientConfigHttpClient = new WebRequests.Config();
+		clientConfigHttpClient.TimeoutMillis = 10000;
+		clientConfigHttpClient.TrustedCertificateFile = "@localhost.crt";
+		clientConfigHttpClient.UseHttpClient = true;
+		requestsClient = new WebRequests(clientConfigHttpClient);
 	}
 
 	private static WebServer createServer(int port, boolean secure) throws Exception {
 
 		WebServer.Config serverConfig = new WebServer.Config();
 		serverConfig.Port = port;
+		serverConfig.MetricsPath = "/__metrics";
 
 		if (secure) {
 			serverConfig.SSLCertificateFile = "@localhost.crt";
@@ -121,6 +139,7 @@ public class WebTest
 
 		requests.close(); requests = null;
 		requestsDefaultSSL.close(); requestsDefaultSSL = null;
+		requestsClient.close(); requestsClient = null;
 	}
 
 	@Test
@@ -397,6 +416,455 @@ public class WebTest
 		server.close();
 	}
 
+	@Test
+	public void metrics() throws Exception {
+
+		for (int i = 0; i < SERVER_COUNT; ++i) {
+
+			Assert.assertEquals(200, requests.fetch(baseUrls[i] + "/static").Status);
+			Assert.assertEquals(500, requests.fetch(baseUrls[i] + "/exception").Status);
+
+			// client can see the response a hair before the server records it
+			WebMetrics.RouteSnapshot statik = null;
+			WebMetrics.RouteSnapshot exception = null;
+
+			for (int tries = 0; tries < 20; ++tries) {
+				for (WebMetrics.RouteSnapshot snap : servers[i].getMetrics().snapshot()) {
+					if (snap.Route.equals("/static")) statik = snap;
+					if (snap.Route.equals("/exception")) exception = snap;
+				}
+				if (statik.Requests > 0 && exception.Requests > 0) break;
+				Thread.sleep(50);
+			}
+
+			Assert.assertTrue(statik.Status2xx >= 1);
+			Assert.assertEquals(0, statik.Status5xx);
+			Assert.assertTrue(statik.BytesOut >= "static".length());
+			Assert.assertTrue(exception.Status5xx >= 1);
+			Assert.assertEquals(1.0, exception.ErrorRate, 0.0001);
+
+			WebRequests.Response response = requests.fetch(baseUrls[i] + "/__metrics");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertTrue(response.Body.contains("webserver_requests_total{route=\"/static\",status=\"2xx\"}"));
+			Assert.assertTrue(response.Body.contains("webserver_request_duration_seconds_bucket{route=\"/static\",le=\"+Inf\"}"));
+
+			WebRequests.Params params = new WebRequests.Params();
+			params.addQueryParam("format", "json");
+			response = requests.fetch(baseUrls[i] + "/__metrics", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertTrue(response.Body.contains("\"P99Millis\""));
+		}
+	}
+
+	@Test
+	public void staticCache() throws Exception {
+
+		File dir = Files.createTempDirectory("webtest").toFile();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; ++i) sb.append("console.log('line ").append(i).append("');\n");
+		String js = sb.toString();
+		
+		Easy.stringToFile(new File(dir, "index.html").getAbsolutePath(), "<p>hi</p>");
+		Easy.stringToFile(new File(dir, "app.js").getAbsolutePath(), js);
+		
+		WebServer.Config cfg = new WebServer.Config();
+		cfg.Port = new Random().nextInt(2000) + 7000;
+		cfg.StaticPagesDirectory = dir.getAbsolutePath();
+		cfg.StaticPagesCache = new StaticCache.Config();
+
+		WebServer server = WebServer.create(cfg);
+		server.start();
+
+		try {
+			String base = String.format("http://localhost:%d", cfg.Port);
+
+			// plain fetch with validators
+			WebRequests.Response response = requests.fetch(base + "/app.js");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals(js, response.Body);
+			String etag = getHeader(response, "ETag");
+			Assert.assertNotNull(etag);
+			Assert.assertNotNull(getHeader(response, "Last-Modified"));
+
+			// conditional
+			WebRequests.Params params = new WebRequests.Params();
+			params.addHeader("If-None-Match", etag);
+			response = requests.fetch(base + "/app.js", params);
+			Assert.assertEquals(304, response.Status);
+
+			// range
+			params = new WebRequests.Params();
+			params.addHeader("Range", "bytes=8-10");
+			response = requests.fetch(base + "/app.js", params);
+			Assert.assertEquals(206, response.Status);
+			Assert.assertEquals(js.substring(8, 11), response.Body);
+			Assert.assertEquals("bytes 8-10/" + js.length(), getHeader(response, "Content-Range"));
+
+			params = new WebRequests.Params();
+			params.addHeader("Range", "bytes=99999-");
+			response = requests.fetch(base + "/app.js", params);
+			Assert.assertEquals(416, response.Status);
+			
+			// gzip
+			params = new WebRequests.Params();
+			params.addHeader("Accept-Encoding", "gzip");
+			params.ForceGzip = true;
+			response = requests.fetch(base + "/app.js", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("gzip", getHeader(response, "Content-Encoding"));
+			Assert.assertEquals(js, response.Body);
+			Assert.assertFalse(etag.equals(getHeader(response, "ETag")));
+
+			// index routing still works; too small to bother compressing
+			params = new WebRequests.Params();
+			params.addHeader("Accept-Encoding", "gzip");
+			response = requests.fetch(base + "/", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("<p>hi</p>", response.Body);
+			Assert.assertNull(getHeader(response, "Content-Encoding"));
+		}
+		finally {
+			server.close();
+			Easy.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void zipDirect() throws Exception {
+
+		File dir = Files.createTempDirectory("webtest").toFile();
+		File zipFile = new File(dir, "pages.zip");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; ++i) sb.append("body { margin: ").append(i).append("px; }\n");
+		String css = sb.toString();
+		String html = "<p>hi</p>";
+		byte[] txt = "stored not deflated".getBytes("UTF-8");
+
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+		zos.putNextEntry(new ZipEntry("index.html"));
+		zos.write(html.getBytes("UTF-8"));
+		zos.closeEntry();
+		zos.putNextEntry(new ZipEntry("static/"));
+		zos.closeEntry();
+		zos.putNextEntry(new ZipEntry("static/app.css"));
+		zos.write(css.getBytes("UTF-8"));
+		zos.closeEntry();
+		
+		ZipEntry stored = new ZipEntry("static/plain.txt");
+		CRC32 crc = new CRC32();
+		crc.update(txt);
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(txt.length);
+		stored.setCrc(crc.getValue());
+		zos.putNextEntry(stored);
+		zos.write(txt);
+		zos.closeEntry();
+		zos.close();
+		
+		WebServer.Config cfg = new WebServer.Config();
+		cfg.Port = new Random().nextInt(2000) + 7000;
+		cfg.StaticPagesZip = zipFile.getAbsolutePath();
+		cfg.StaticPagesZipDirect = true;
+
+		WebServer server = WebServer.create(cfg);
+		server.start();
+
+		try {
+			String base = String.format("http://localhost:%d", cfg.Port);
+
+			// deflated entry, inflated for a client that doesn't do gzip
+			WebRequests.Response response = requests.fetch(base + "/static/app.css");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals(css, response.Body);
+			Assert.assertNull(getHeader(response, "Content-Encoding"));
+			String etag = getHeader(response, "ETag");
+
+			// deflated entry passed through as gzip
+			WebRequests.Params params = new WebRequests.Params();
+			params.addHeader("Accept-Encoding", "gzip");
+			params.ForceGzip = true;
+			response = requests.fetch(base + "/static/app.css", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("gzip", getHeader(response, "Content-Encoding"));
+			Assert.assertEquals(css, response.Body);
+
+			// stored entry
+			response = requests.fetch(base + "/static/plain.txt");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("stored not deflated", response.Body);
+
+			// conditional and range
+			params = new WebRequests.Params();
+			params.addHeader("If-None-Match", etag);
+			Assert.assertEquals(304, requests.fetch(base + "/static/app.css", params).Status);
+
+			params = new WebRequests.Params();
+			params.addHeader("Range", "bytes=-5");
+			response = requests.fetch(base + "/static/app.css", params);
+			Assert.assertEquals(206, response.Status);
+			Assert.assertEquals(css.substring(css.length() - 5), response.Body);
+
+			// walking the file in chunks (served from the inflated cache)
+			for (int ich = 0; ich < css.length(); ich += 1000) {
+				int ichLast = Math.min(css.length(), ich + 1000) - 1;
+				params = new WebRequests.Params();
+				params.addHeader("Range", String.format("bytes=%d-%d", ich, ichLast));
+				response = requests.fetch(base + "/static/app.css", params);
+				Assert.assertEquals(206, response.Status);
+				Assert.assertEquals(css.substring(ich, ichLast + 1), response.Body);
+			}
+
+			// index routing and fallback
+			Assert.assertEquals(html, requests.fetch(base + "/").Body);
+			Assert.assertEquals(html, requests.fetch(base + "/index").Body);
+			Assert.assertEquals(html, requests.fetch(base + "/static/nope.js?x=1").Body);
+		}
+		finally {
+			server.close();
+			Easy.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void streamingBodies() throws Exception {
+
+		WebServer.Config cfg = new WebServer.Config();
+		cfg.Port = new Random().nextInt(2000) + 7000;
+		cfg.MaxBodyBytes = 16;
+
+		WebServer server = WebServer.create(cfg);
+
+		server.registerHandler("/stream", new WebServer.Handler() {
+			public void handle(WebServer.Request request, WebServer.Response response)
+				throws Exception {
+				response.setStream("text/plain", (out) -> {
+					for (int i = 0; i < 1000; ++i) out.write((i + "\n").getBytes("UTF-8"));
+				});
+			}
+		});
+
+		server.registerHandler("/small", new WebServer.Handler() {
+			public void handle(WebServer.Request request, WebServer.Response response)
+				throws Exception {
+				response.setText(request.Body);
+			}
+		});
+
+		WebServer.RouteOptions options = new WebServer.RouteOptions();
+		options.ReadBodyAsString = false;
+		options.MaxBodyBytes = 1024L;
+		
+		server.registerHandler("/count", new WebServer.Handler() {
+			public void handle(WebServer.Request request, WebServer.Response response)
+				throws Exception {
+				Assert.assertNull(request.Body);
+				long cb = 0;
+				byte[] rgb = new byte[100];
+				int cbRead;
+				while ((cbRead = request.BodyStream.read(rgb)) != -1) cb += cbRead;
+				response.setText(Long.toString(cb));
+			}
+		}, options);
+
+		server.start();
+
+		try {
+			String base = String.format("http://localhost:%d", cfg.Port);
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 1000; ++i) sb.append(i).append("\n");
+
+			WebRequests.Response response = requests.fetch(base + "/stream");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals(sb.toString(), response.Body);
+
+			WebRequests.Params params = new WebRequests.Params();
+			params.Body = "just fine";
+			response = requests.fetch(base + "/small", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("just fine", response.Body);
+
+			params.Body = "this one is longer than sixteen bytes";
+			Assert.assertEquals(413, requests.fetch(base + "/small", params).Status);
+
+			params.Body = "x".repeat(500);
+			response = requests.fetch(base + "/count", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("500", response.Body);
+
+			params.Body = "x".repeat(2000);
+			Assert.assertEquals(413, requests.fetch(base + "/count", params).Status);
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	private String getHeader(WebRequests.Response response, String name) {
+		for (String key : response.Headers.keySet()) {
+			if (key != null && key.equalsIgnoreCase(name)) return(response.Headers.get(key).get(0));
+		}
+		return(null);
+	}
+
+	@Test
+	public void admissionLimit() throws Exception {
+
+		WebServer.Config cfg = new WebServer.Config();
+		cfg.Port = new Random().nextInt(2000) + 7000;
+		cfg.UseVirtualThreads = true;
+		cfg.MaxConcurrentRequests = 1;
+		cfg.MaxQueuedRequests = 0;
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		
+		WebServer server = WebServer.create(cfg);
+		
+		server.registerHandler("/slow", new WebServer.Handler() {
+			public void handle(WebServer.Request request, WebServer.Response response)
+				throws Exception {
+				entered.countDown();
+				proceed.await(10, TimeUnit.SECONDS);
+				response.setText("slow");
+			}
+		});
+
+		server.start();
+
+		try {
+			String url = String.format("http://localhost:%d/slow", cfg.Port);
+			
+			CompletableFuture<WebRequests.Response> first =
+				requests.fetchAsync(url, new WebRequests.Params());
+
+			Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+			WebRequests.Response second = requests.fetch(url);
+			Assert.assertEquals(503, second.Status);
+
+			proceed.countDown();
+			Assert.assertEquals(200, first.get(10, TimeUnit.SECONDS).Status);
+
+			// and once the slot frees up we're back in business
+			Assert.assertEquals(200, requests.fetch(url).Status);
+		}
+		finally {
+			proceed.countDown();
+			server.close();
+		}
+	}
+
+	@Test
+	public void httpClientEngine() throws Exception {
+
+		for (int i = 0; i < SERVER_COUNT; ++i) {
+
+			WebRequests.Response response = requestsClient.fetch(baseUrls[i] + "/static");
+			Assert.assertEquals(200, response.Status);
+			Assert.assertEquals("OK", response.StatusText);
+			Assert.assertEquals("static", response.Body);
+
+			WebRequests.Params params = new WebRequests.Params();
+			params.addQueryParam("echo", "bananafishbones");
+			Assert.assertEquals("bananafishbones", requestsClient.fetch(baseUrls[i] + "/echo", params).Body);
+
+			params = new WebRequests.Params();
+			params.Body = "zippideedoo";
+			Assert.assertEquals("zippideedoo", requestsClient.fetch(baseUrls[i] + "/echoPost", params).Body);
+
+			response = requestsClient.fetch(baseUrls[i] + "/nomatch");
+			Assert.assertEquals(404, response.Status);
+			Assert.assertNull(response.Ex);
+
+			response = requestsClient.fetch(baseUrls[i] + "/echo");
+			Assert.assertEquals(500, response.Status);
+			Assert.assertNull(response.Ex);
+
+			params = new WebRequests.Params();
+			params.addHeader("Cookie", "MACOOKIE=" + Easy.urlEncode("YOIMACOOK  IE%"));
+			params.addHeader("Content-Length", "99"); // restricted; dropped
+			response = requestsClient.fetch(baseUrls[i] + "/cookie", params);
+			Assert.assertEquals(200, response.Status);
+			Assert.assertTrue(response.getFirstHeader("Set-Cookie").startsWith("MACOOKIE="));
+
+			File f = File.createTempFile(UUID.randomUUID().toString(), ".txt");
+			try {
+				Easy.stringToFile(f.getAbsolutePath(), "a much longer string than the response");
+				
+				params = new WebRequests.Params();
+				params.addQueryParam("echo", "tofile");
+				params.ResponseBodyPath = f.getAbsolutePath();
+				
+				response = requestsClient.fetch(baseUrls[i] + "/echo", params);
+				Assert.assertEquals(200, response.Status);
+				Assert.assertNull(response.Body);
+				Assert.assertEquals("tofile", Easy.stringFromFile(f.getAbsolutePath()));
+			}
+			finally {
+				f.delete();
+			}
+		}
+
+		WebRequests.Response response = requestsClient.fetch("http://notaserverreallyiswear.us/");
+		Assert.assertEquals(500, response.Status);
+		Assert.assertNotNull(response.Ex);
+	}
+
+	@Test
+	public void httpClientHostLimit() throws Exception {
+
+		WebServer.Config cfg = new WebServer.Config();
+		cfg.Port = new Random().nextInt(2000) + 7000;
+
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		
+		WebServer server = WebServer.create(cfg);
+		
+		server.registerHandler("/slow", new WebServer.Handler() {
+			public void handle(WebServer.Request request, WebServer.Response response)
+				throws Exception {
+				int now = active.incrementAndGet();
+				maxActive.accumulateAndGet(now, Math::max);
+				Thread.sleep(50);
+				active.decrementAndGet();
+				response.setText("slow");
+			}
+		});
+
+		server.start();
+
+		WebRequests.Config clientCfg = new WebRequests.Config();
+		clientCfg.UseHttpClient = true;
+		clientCfg.PreferHttp2 = false;
+		clientCfg.MaxRequestsPerHost = 2;
+		WebRequests limited = new WebRequests(clientCfg);
+
+		try {
+			String url = String.format("http://localhost:%d/slow", cfg.Port);
+
+			List<CompletableFuture<WebRequests.Response>> futures =
+				new ArrayList<CompletableFuture<WebRequests.Response>>();
+			
+			for (int i = 0; i < 8; ++i) futures.add(limited.fetchAsync(url, new WebRequests.Params()));
+
+			for (CompletableFuture<WebRequests.Response> future : futures) {
+				WebRequests.Response response = future.get(10, TimeUnit.SECONDS);
+				Assert.assertEquals(200, response.Status);
+				Assert.assertEquals("slow", response.Body);
+			}
+
+			Assert.assertTrue(maxActive.get() <= 2);
+		}
+		finally {
+			limited.close();
+			server.close();
+		}
+	}
+
 	private String assertSetCookieNamed(WebRequests.Response response, String name) {
 
 		List<String> setCookies = response.Headers.get("Set-cookie");
@@ -179,17 +179,7 @@ public class WeatherStore
 		sql.update(INSERT_METRICS, new SqlStore.UpdateHandler() {
 				
 			public void prepare(PreparedStatement stmt, int iter) throws Exception {
-				stmt.setString(1, metrics.StationId);
-				stmt.setLong(2, metrics.EpochTime.getEpochSecond());
-				stmt.setInt(3, metrics.AggregationMinutes);
-				stmt.setInt(4, metrics.SpanMinutes);
-				stmt.setDouble(5, metrics.TempF);
-				stmt.setDouble(6, metrics.PressureMb);
-				stmt.setDouble(7, metrics.HumidityPct);
-				stmt.setDouble(8, metrics.PrecipIn);
-				stmt.setDouble(9, metrics.WindMph);
-				stmt.setDouble(10, metrics.WindMaxMph);
-				stmt.setDouble(11, metrics.SolarRadWpm2);
+				bindMetrics(stmt, metrics);
 			}
 				
 			public void confirm(int rowsAffected, int iter) {
@@ -200,6 +190,25 @@ public class WeatherStore
 		return(added.Value == true);
 	}
 
+	// bulk version for backfills; one transaction, batched round trips
+	public int addMetrics(Iterable<Metrics> metrics) throws Exception {
+		return(sql.batchUpdate(INSERT_METRICS, metrics, (stmt, m) -> bindMetrics(stmt, m)));
+	}
+
+	private static void bindMetrics(PreparedStatement stmt, Metrics metrics) throws Exception {
+		stmt.setString(1, metrics.StationId);
+		stmt.setLong(2, metrics.EpochTime.getEpochSecond());
+		stmt.setInt(3, metrics.AggregationMinutes);
+		stmt.setInt(4, metrics.SpanMinutes);
+		stmt.setDouble(5, metrics.TempF);
+		stmt.setDouble(6, metrics.PressureMb);
+		stmt.setDouble(7, metrics.HumidityPct);
+		stmt.setDouble(8, metrics.PrecipIn);
+		stmt.setDouble(9, metrics.WindMph);
+		stmt.setDouble(10, metrics.WindMaxMph);
+		stmt.setDouble(11, metrics.SolarRadWpm2);
+	}
+
 	public List<Metrics> getMetrics(String stationId, Instant minEpoch,
 									Instant maxEpoch, Integer limit) throws Exception {
 